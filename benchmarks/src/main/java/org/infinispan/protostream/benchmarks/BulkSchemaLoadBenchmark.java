@@ -0,0 +1,71 @@
+package org.infinispan.protostream.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.protostream.FileDescriptorSource;
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.config.Configuration;
+import org.infinispan.protostream.sampledomain.marshallers.MarshallerRegistration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the registration of many independent copies of the bank.proto schema (each in its own package) in a new
+ * context, with the files parsed sequentially or in parallel on the common fork-join pool.
+ *
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkSchemaLoadBenchmark {
+
+   @Param({"100", "1000"})
+   public int fileCount;
+
+   @Param({"false", "true"})
+   public boolean parallel;
+
+   private Configuration configuration;
+
+   private FileDescriptorSource source;
+
+   @Setup
+   public void setup() throws IOException {
+      FileDescriptorSource bankSource = FileDescriptorSource.fromResources(MarshallerRegistration.PROTOBUF_RES);
+      // type ids must be unique in a context so they are removed from the copies
+      String bankProto = new String(bankSource.getFileDescriptors().values().iterator().next()).replaceAll("@TypeId\\(\\d+\\)", "");
+      source = new FileDescriptorSource();
+      for (int i = 0; i < fileCount; i++) {
+         source.addProtoFile("bank" + i + ".proto", bankProto.replace("package sample_bank_account;", "package bank" + i + ";"));
+      }
+      Configuration.Builder builder = new Configuration.Builder()
+            .setLogOutOfSequenceReads(false)
+            .setLogOutOfSequenceWrites(false);
+      if (!parallel) {
+         builder.setParserExecutor(null);
+      }
+      configuration = builder.build();
+   }
+
+   @Benchmark
+   public SerializationContext registerInNewContext() throws IOException {
+      SerializationContext ctx = ProtobufUtil.newSerializationContext(configuration);
+      ctx.registerProtoFiles(source);
+      return ctx;
+   }
+}
@@ -0,0 +1,103 @@
+package org.infinispan.protostream.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.annotations.ProtoSchemaBuilder;
+import org.infinispan.protostream.benchmarks.domain.AnnotatedAddress;
+import org.infinispan.protostream.benchmarks.domain.AnnotatedUser;
+import org.infinispan.protostream.sampledomain.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the marshallers generated by {@link ProtoSchemaBuilder} with the hand written ones of the sample domain,
+ * for the same user data.
+ *
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeneratedMarshallerBenchmark {
+
+   private SerializationContext handWrittenCtx;
+
+   private SerializationContext generatedCtx;
+
+   private User user;
+
+   private AnnotatedUser annotatedUser;
+
+   private byte[] userBytes;
+
+   private byte[] annotatedUserBytes;
+
+   @Setup
+   public void setup() throws Exception {
+      handWrittenCtx = SampleData.createContext();
+      generatedCtx = ProtobufUtil.newSerializationContext(SampleData.createConfiguration());
+      new ProtoSchemaBuilder()
+            .fileName("benchmark_generated.proto")
+            .packageName("benchmark_generated")
+            .addClass(AnnotatedUser.class)
+            .addClass(AnnotatedAddress.class)
+            .build(generatedCtx);
+
+      user = SampleData.createUser();
+      annotatedUser = createAnnotatedUser(user);
+      userBytes = ProtobufUtil.toByteArray(handWrittenCtx, user);
+      annotatedUserBytes = ProtobufUtil.toByteArray(generatedCtx, annotatedUser);
+   }
+
+   private static AnnotatedUser createAnnotatedUser(User user) {
+      AnnotatedUser annotatedUser = new AnnotatedUser();
+      annotatedUser.setId(user.getId());
+      annotatedUser.setName(user.getName());
+      annotatedUser.setSurname(user.getSurname());
+      annotatedUser.setAge(user.getAge());
+      annotatedUser.setAccountIds(new HashSet<>(user.getAccountIds()));
+      List<AnnotatedAddress> addresses = new ArrayList<>();
+      addresses.add(new AnnotatedAddress("Old Street", "XYZ42", -12));
+      addresses.add(new AnnotatedAddress("Bond Street", "QQ42", 312));
+      annotatedUser.setAddresses(addresses);
+      annotatedUser.setNotes(user.getNotes());
+      return annotatedUser;
+   }
+
+   @Benchmark
+   public byte[] writeHandWritten() throws IOException {
+      return ProtobufUtil.toByteArray(handWrittenCtx, user);
+   }
+
+   @Benchmark
+   public byte[] writeGenerated() throws IOException {
+      return ProtobufUtil.toByteArray(generatedCtx, annotatedUser);
+   }
+
+   @Benchmark
+   public User readHandWritten() throws IOException {
+      return ProtobufUtil.fromByteArray(handWrittenCtx, userBytes, User.class);
+   }
+
+   @Benchmark
+   public AnnotatedUser readGenerated() throws IOException {
+      return ProtobufUtil.fromByteArray(generatedCtx, annotatedUserBytes, AnnotatedUser.class);
+   }
+}
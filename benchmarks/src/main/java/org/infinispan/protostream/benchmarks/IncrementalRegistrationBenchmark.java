@@ -0,0 +1,111 @@
+package org.infinispan.protostream.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.protostream.FileDescriptorSource;
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the registration of a single file in a context that already has many files, all importing a common one.
+ * Only the registered file and the files importing it should be resolved, so registering or replacing a file that no
+ * other file imports is expected to take about the same time regardless of the number of files in the context. For the
+ * same reason registering all the files one by one into a new context is expected to take linear time.
+ *
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IncrementalRegistrationBenchmark {
+
+   private static final String BASE_FILE = "benchmark/base.proto";
+
+   private static final String BASE_PROTO = "package benchmark;\n" +
+         "message Base {\n" +
+         "   optional string name = 1;\n" +
+         "}\n";
+
+   @Param({"1000", "10000"})
+   public int fileCount;
+
+   private SerializationContext ctx;
+
+   private String leafFile;
+
+   private String leafProto;
+
+   private String extraProto;
+
+   private FileDescriptorSource[] singleFileSources;
+
+   private static String makeFile(int i) {
+      return "benchmark/file" + i + ".proto";
+   }
+
+   private static String makeProto(String packageName, int typeId) {
+      return "package " + packageName + ";\n" +
+            "import \"" + BASE_FILE + "\";\n" +
+            "/* @TypeId(" + typeId + ") */\n" +
+            "message Leaf {\n" +
+            "   optional benchmark.Base base = 1;\n" +
+            "   optional int32 value = 2;\n" +
+            "}\n";
+   }
+
+   @Setup
+   public void setup() throws IOException {
+      ctx = ProtobufUtil.newSerializationContext(SampleData.createConfiguration());
+      FileDescriptorSource source = FileDescriptorSource.fromString(BASE_FILE, BASE_PROTO);
+      singleFileSources = new FileDescriptorSource[fileCount];
+      for (int i = 0; i < fileCount; i++) {
+         String proto = makeProto("benchmark.p" + i, i + 1);
+         source.addProtoFile(makeFile(i), proto);
+         singleFileSources[i] = FileDescriptorSource.fromString(makeFile(i), proto);
+      }
+      ctx.registerProtoFiles(source);
+      leafFile = makeFile(fileCount / 2);
+      leafProto = makeProto("benchmark.p" + fileCount / 2, fileCount / 2 + 1);
+      extraProto = makeProto("benchmark.extra", fileCount + 1);
+   }
+
+   @Benchmark
+   public SerializationContext replaceLeafFile() throws IOException {
+      ctx.registerProtoFiles(FileDescriptorSource.fromString(leafFile, leafProto));
+      return ctx;
+   }
+
+   @Benchmark
+   public SerializationContext registerAndUnregisterNewFile() throws IOException {
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("benchmark/extra.proto", extraProto));
+      ctx.unregisterProtoFile("benchmark/extra.proto");
+      return ctx;
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.SingleShotTime)
+   @OutputTimeUnit(TimeUnit.MILLISECONDS)
+   public SerializationContext registerFilesOneByOne() throws IOException {
+      SerializationContext newCtx = ProtobufUtil.newSerializationContext(SampleData.createConfiguration());
+      newCtx.registerProtoFiles(FileDescriptorSource.fromString(BASE_FILE, BASE_PROTO));
+      for (FileDescriptorSource source : singleFileSources) {
+         newCtx.registerProtoFiles(source);
+      }
+      return newCtx;
+   }
+}
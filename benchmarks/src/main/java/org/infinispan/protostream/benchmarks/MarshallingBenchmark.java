@@ -0,0 +1,109 @@
+package org.infinispan.protostream.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.sampledomain.Account;
+import org.infinispan.protostream.sampledomain.Transaction;
+import org.infinispan.protostream.sampledomain.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ProtobufUtil#toByteArray} and {@link ProtobufUtil#fromByteArray} and their wrapped counterparts with
+ * the hand written marshallers of the sample domain. Run with {@code -prof gc} to also get the allocation rate
+ * ({@code gc.alloc.rate.norm}).
+ *
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarshallingBenchmark {
+
+   private SerializationContext ctx;
+
+   private User user;
+
+   private Account account;
+
+   private Transaction transaction;
+
+   private byte[] userBytes;
+
+   private byte[] accountBytes;
+
+   private byte[] transactionBytes;
+
+   private byte[] wrappedUserBytes;
+
+   @Setup
+   public void setup() throws IOException {
+      ctx = SampleData.createContext();
+      user = SampleData.createUser();
+      account = SampleData.createAccount();
+      transaction = SampleData.createTransaction();
+      userBytes = ProtobufUtil.toByteArray(ctx, user);
+      accountBytes = ProtobufUtil.toByteArray(ctx, account);
+      transactionBytes = ProtobufUtil.toByteArray(ctx, transaction);
+      wrappedUserBytes = ProtobufUtil.toWrappedByteArray(ctx, user);
+   }
+
+   @Benchmark
+   public byte[] writeUser() throws IOException {
+      return ProtobufUtil.toByteArray(ctx, user);
+   }
+
+   @Benchmark
+   public User readUser() throws IOException {
+      return ProtobufUtil.fromByteArray(ctx, userBytes, User.class);
+   }
+
+   @Benchmark
+   public byte[] writeAccount() throws IOException {
+      return ProtobufUtil.toByteArray(ctx, account);
+   }
+
+   @Benchmark
+   public Account readAccount() throws IOException {
+      return ProtobufUtil.fromByteArray(ctx, accountBytes, Account.class);
+   }
+
+   @Benchmark
+   public byte[] writeTransaction() throws IOException {
+      return ProtobufUtil.toByteArray(ctx, transaction);
+   }
+
+   @Benchmark
+   public Transaction readTransaction() throws IOException {
+      return ProtobufUtil.fromByteArray(ctx, transactionBytes, Transaction.class);
+   }
+
+   @Benchmark
+   public byte[] writeWrappedUser() throws IOException {
+      return ProtobufUtil.toWrappedByteArray(ctx, user);
+   }
+
+   @Benchmark
+   public Object readWrappedUser() throws IOException {
+      return ProtobufUtil.fromWrappedByteArray(ctx, wrappedUserBytes);
+   }
+
+   @Benchmark
+   public Object wrappedRoundTrip() throws IOException {
+      return ProtobufUtil.fromWrappedByteArray(ctx, ProtobufUtil.toWrappedByteArray(ctx, user));
+   }
+}
@@ -0,0 +1,98 @@
+package org.infinispan.protostream.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.protostream.MarshallingSession;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
+import org.infinispan.protostream.sampledomain.Address;
+import org.infinispan.protostream.sampledomain.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the marshalling of a {@link User} with a number of nested {@link Address}es, into a reused byte array, a
+ * reused direct buffer and a new byte array. Long streets make the addresses and the user need multi-byte length
+ * prefixes. Run with {@code -prof gc}: writing into the reused targets is expected to allocate next to nothing per
+ * user ({@code gc.alloc.rate.norm}), as nested messages are written in place instead of through temporary buffers.
+ *
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NestedMessageBenchmark {
+
+   @Param({"2", "50"})
+   public int addressCount;
+
+   @Param({"10", "200"})
+   public int streetLength;
+
+   private MarshallingSession session;
+
+   private User user;
+
+   private byte[] array;
+
+   private ByteBuffer directBuffer;
+
+   @Setup
+   public void setup() throws IOException {
+      SerializationContext ctx = SampleData.createContext();
+      session = ctx.openMarshallingSession();
+      user = SampleData.createUser();
+      char[] street = new char[streetLength];
+      Arrays.fill(street, 's');
+      List<Address> addresses = new ArrayList<>(addressCount);
+      for (int i = 0; i < addressCount; i++) {
+         addresses.add(new Address(new String(street), "XYZ42", i));
+      }
+      user.setAddresses(addresses);
+      int size = session.toByteArray(user).length;
+      // room for the length prefix too
+      array = new byte[size + 5];
+      directBuffer = ByteBuffer.allocateDirect(size + 5);
+   }
+
+   @TearDown
+   public void tearDown() {
+      session.close();
+   }
+
+   @Benchmark
+   public byte[] writeToArray() throws IOException {
+      session.writeDelimitedTo(RawProtoStreamWriterImpl.newInstance(array), user);
+      return array;
+   }
+
+   @Benchmark
+   public ByteBuffer writeToDirectBuffer() throws IOException {
+      directBuffer.clear();
+      session.writeDelimitedTo(RawProtoStreamWriterImpl.newInstance(directBuffer), user);
+      return directBuffer;
+   }
+
+   @Benchmark
+   public byte[] toByteArray() throws IOException {
+      return session.toByteArray(user);
+   }
+}
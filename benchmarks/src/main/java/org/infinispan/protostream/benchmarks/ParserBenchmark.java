@@ -0,0 +1,182 @@
+package org.infinispan.protostream.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.protostream.FieldProjection;
+import org.infinispan.protostream.ProtobufParser;
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.TagHandler;
+import org.infinispan.protostream.TypedTagHandler;
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
+import org.infinispan.protostream.descriptors.JavaType;
+import org.infinispan.protostream.descriptors.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the parsing of an encoded message with {@link ProtobufParser}, reporting all tags to a {@link TagHandler}
+ * or to a {@link TypedTagHandler} that just consumes them. The difference is the cost of boxing the scalar values. The
+ * projected variant parses only two of the fields, skipping the rest.
+ *
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+   private Descriptor userDescriptor;
+
+   private Descriptor accountDescriptor;
+
+   private byte[] userBytes;
+
+   private byte[] accountBytes;
+
+   private FieldProjection userProjection;
+
+   @Setup
+   public void setup() throws IOException {
+      SerializationContext ctx = SampleData.createContext();
+      userDescriptor = ctx.getMessageDescriptor("sample_bank_account.User");
+      accountDescriptor = ctx.getMessageDescriptor("sample_bank_account.Account");
+      userBytes = ProtobufUtil.toByteArray(ctx, SampleData.createUser());
+      accountBytes = ProtobufUtil.toByteArray(ctx, SampleData.createAccount());
+      userProjection = FieldProjection.compile(userDescriptor, "name", "addresses.postCode");
+   }
+
+   @Benchmark
+   public void parseUser(Blackhole blackhole) throws IOException {
+      ProtobufParser.INSTANCE.parse(new ConsumingTagHandler(blackhole), userDescriptor, userBytes);
+   }
+
+   @Benchmark
+   public void parseAccount(Blackhole blackhole) throws IOException {
+      ProtobufParser.INSTANCE.parse(new ConsumingTagHandler(blackhole), accountDescriptor, accountBytes);
+   }
+
+   @Benchmark
+   public void parseUserTyped(Blackhole blackhole) throws IOException {
+      ProtobufParser.INSTANCE.parse(new ConsumingTypedTagHandler(blackhole), userDescriptor, userBytes);
+   }
+
+   @Benchmark
+   public void parseAccountTyped(Blackhole blackhole) throws IOException {
+      ProtobufParser.INSTANCE.parse(new ConsumingTypedTagHandler(blackhole), accountDescriptor, accountBytes);
+   }
+
+   @Benchmark
+   public void parseUserProjected(Blackhole blackhole) throws IOException {
+      ProtobufParser.INSTANCE.parse(new ConsumingTypedTagHandler(blackhole), userProjection, userBytes);
+   }
+
+   private static final class ConsumingTagHandler implements TagHandler {
+
+      private final Blackhole blackhole;
+
+      ConsumingTagHandler(Blackhole blackhole) {
+         this.blackhole = blackhole;
+      }
+
+      @Override
+      public void onStart() {
+      }
+
+      @Override
+      public void onTag(int fieldNumber, String fieldName, Type type, JavaType javaType, Object tagValue) {
+         blackhole.consume(fieldNumber);
+         blackhole.consume(tagValue);
+      }
+
+      @Override
+      public void onStartNested(int fieldNumber, String fieldName, Descriptor messageDescriptor) {
+         blackhole.consume(fieldNumber);
+      }
+
+      @Override
+      public void onEndNested(int fieldNumber, String fieldName, Descriptor messageDescriptor) {
+         blackhole.consume(fieldNumber);
+      }
+
+      @Override
+      public void onEnd() {
+      }
+   }
+
+   private static final class ConsumingTypedTagHandler implements TypedTagHandler {
+
+      private final Blackhole blackhole;
+
+      ConsumingTypedTagHandler(Blackhole blackhole) {
+         this.blackhole = blackhole;
+      }
+
+      @Override
+      public void onStart() {
+      }
+
+      @Override
+      public void onInt(int fieldNumber, FieldDescriptor fieldDescriptor, int value) {
+         blackhole.consume(value);
+      }
+
+      @Override
+      public void onLong(int fieldNumber, FieldDescriptor fieldDescriptor, long value) {
+         blackhole.consume(value);
+      }
+
+      @Override
+      public void onDouble(int fieldNumber, FieldDescriptor fieldDescriptor, double value) {
+         blackhole.consume(value);
+      }
+
+      @Override
+      public void onFloat(int fieldNumber, FieldDescriptor fieldDescriptor, float value) {
+         blackhole.consume(value);
+      }
+
+      @Override
+      public void onBool(int fieldNumber, FieldDescriptor fieldDescriptor, boolean value) {
+         blackhole.consume(value);
+      }
+
+      @Override
+      public void onString(int fieldNumber, FieldDescriptor fieldDescriptor, String value) {
+         blackhole.consume(value);
+      }
+
+      @Override
+      public void onBytes(int fieldNumber, FieldDescriptor fieldDescriptor, byte[] value) {
+         blackhole.consume(value);
+      }
+
+      @Override
+      public void onStartNested(int fieldNumber, FieldDescriptor fieldDescriptor, Descriptor messageDescriptor) {
+         blackhole.consume(fieldNumber);
+      }
+
+      @Override
+      public void onEndNested(int fieldNumber, FieldDescriptor fieldDescriptor, Descriptor messageDescriptor) {
+         blackhole.consume(fieldNumber);
+      }
+
+      @Override
+      public void onEnd() {
+      }
+   }
+}
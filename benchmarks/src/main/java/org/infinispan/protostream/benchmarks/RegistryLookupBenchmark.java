@@ -0,0 +1,102 @@
+package org.infinispan.protostream.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.protostream.FileDescriptorSource;
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the type lookups of a {@link SerializationContext} shared by all threads, which are performed for every
+ * wrapped message. The lookups do not contend with each other so the total throughput is expected to grow linearly
+ * with the number of threads. Compare the results of a single thread with those of all the available cores:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar RegistryLookupBenchmark -t 1
+ * java -jar benchmarks/target/benchmarks.jar RegistryLookupBenchmark -t max
+ * </pre>
+ * The {@code readWhileRegistering} group measures the lookups while another thread keeps registering a schema.
+ *
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(Threads.MAX)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryLookupBenchmark {
+
+   private static final String USER_TYPE = "sample_bank_account.User";
+
+   private static final int USER_TYPE_ID = 42;
+
+   private static final String EXTRA_PROTO = "package benchmark_extra;\n" +
+         "message Extra {\n" +
+         "   optional string name = 1;\n" +
+         "}\n";
+
+   private SerializationContext ctx;
+
+   private byte[] wrappedUser;
+
+   @Setup
+   public void setup() throws IOException {
+      ctx = SampleData.createContext();
+      wrappedUser = ProtobufUtil.toWrappedByteArray(ctx, SampleData.createUser());
+   }
+
+   @Benchmark
+   public Integer getTypeIdByName() {
+      return ctx.getTypeIdByName(USER_TYPE);
+   }
+
+   @Benchmark
+   public String getTypeNameById() {
+      return ctx.getTypeNameById(USER_TYPE_ID);
+   }
+
+   @Benchmark
+   public Descriptor getMessageDescriptor() {
+      return ctx.getMessageDescriptor(USER_TYPE);
+   }
+
+   @Benchmark
+   public boolean canMarshall() {
+      return ctx.canMarshall(USER_TYPE);
+   }
+
+   @Benchmark
+   public Object wrappedRoundTrip() throws IOException {
+      return ProtobufUtil.fromWrappedByteArray(ctx, wrappedUser);
+   }
+
+   @Benchmark
+   @Group("readWhileRegistering")
+   @GroupThreads(3)
+   public String lookup() {
+      return ctx.getTypeNameById(USER_TYPE_ID);
+   }
+
+   @Benchmark
+   @Group("readWhileRegistering")
+   @GroupThreads(1)
+   public void register() throws IOException {
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("benchmark_extra.proto", EXTRA_PROTO));
+   }
+}
@@ -0,0 +1,85 @@
+package org.infinispan.protostream.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.config.Configuration;
+import org.infinispan.protostream.sampledomain.Account;
+import org.infinispan.protostream.sampledomain.Address;
+import org.infinispan.protostream.sampledomain.Transaction;
+import org.infinispan.protostream.sampledomain.User;
+import org.infinispan.protostream.sampledomain.marshallers.MarshallerRegistration;
+
+/**
+ * The sample bank domain objects used by all benchmarks.
+ *
+ * @since 3.1
+ */
+final class SampleData {
+
+   private SampleData() {
+   }
+
+   /**
+    * Creates a context having bank.proto and the hand written marshallers of the sample domain registered.
+    */
+   static SerializationContext createContext() throws IOException {
+      SerializationContext ctx = ProtobufUtil.newSerializationContext(createConfiguration());
+      MarshallerRegistration.registerMarshallers(ctx);
+      return ctx;
+   }
+
+   static Configuration createConfiguration() {
+      return new Configuration.Builder()
+            .setLogOutOfSequenceReads(false)
+            .setLogOutOfSequenceWrites(false)
+            .build();
+   }
+
+   static User createUser() {
+      User user = new User();
+      user.setId(1);
+      user.setName("John");
+      user.setSurname("Batman");
+      user.setGender(User.Gender.MALE);
+      user.setAge(22);
+      user.setAccountIds(new HashSet<>(Arrays.asList(1, 3, 12)));
+      List<Address> addresses = new ArrayList<>();
+      addresses.add(new Address("Old Street", "XYZ42", -12));
+      addresses.add(new Address("Bond Street", "QQ42", 312));
+      user.setAddresses(addresses);
+      user.setNotes("Lorem ipsum dolor sit amet");
+      return user;
+   }
+
+   static Account createAccount() {
+      Account.Limits limits = new Account.Limits();
+      limits.setMaxDailyLimit(1500.0);
+      limits.setMaxTransactionLimit(800.0);
+      Account account = new Account();
+      account.setId(3);
+      account.setDescription("Checking account");
+      account.setCreationDate(new Date(1500000000000L));
+      account.setLimits(limits);
+      account.setBlurb(Arrays.asList(new byte[32], new byte[]{1, 2, 3}));
+      return account;
+   }
+
+   static Transaction createTransaction() {
+      Transaction transaction = new Transaction();
+      transaction.setId(42);
+      transaction.setDescription("Hotel stay");
+      transaction.setAccountId(3);
+      transaction.setDate(new Date(1500000000000L));
+      transaction.setAmount(139.5);
+      transaction.setDebit(true);
+      transaction.setValid(true);
+      return transaction;
+   }
+}
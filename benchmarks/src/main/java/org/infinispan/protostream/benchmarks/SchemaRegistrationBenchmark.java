@@ -0,0 +1,63 @@
+package org.infinispan.protostream.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.protostream.FileDescriptorSource;
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.sampledomain.marshallers.MarshallerRegistration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link SerializationContext#registerProtoFiles} with the bank.proto schema, both in a new context and as a
+ * replacement of the same file in a context that already has it.
+ *
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchemaRegistrationBenchmark {
+
+   private String bankProto;
+
+   private SerializationContext ctx;
+
+   @Setup
+   public void setup() throws IOException {
+      // read the resource once so the benchmark does not measure class path access
+      FileDescriptorSource source = FileDescriptorSource.fromResources(MarshallerRegistration.PROTOBUF_RES);
+      bankProto = new String(source.getFileDescriptors().values().iterator().next());
+      ctx = SampleData.createContext();
+   }
+
+   private FileDescriptorSource bankSource() {
+      return FileDescriptorSource.fromString("sample_bank_account/bank.proto", bankProto);
+   }
+
+   @Benchmark
+   public SerializationContext registerInNewContext() throws IOException {
+      SerializationContext newCtx = ProtobufUtil.newSerializationContext(SampleData.createConfiguration());
+      newCtx.registerProtoFiles(bankSource());
+      return newCtx;
+   }
+
+   @Benchmark
+   public SerializationContext reregister() throws IOException {
+      ctx.registerProtoFiles(bankSource());
+      return ctx;
+   }
+}
@@ -0,0 +1,78 @@
+package org.infinispan.protostream.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.RawProtoStreamWriter;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.impl.ByteArrayOutputStreamEx;
+import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
+import org.infinispan.protostream.sampledomain.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading and writing a User that was written by a newer version of the schema. The fields unknown to the
+ * reader end up in the {@link org.infinispan.protostream.UnknownFieldSet} of the User and are written back when the
+ * User is marshalled again.
+ *
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnknownFieldSetBenchmark {
+
+   private SerializationContext ctx;
+
+   private byte[] userBytes;
+
+   private User user;
+
+   @Setup
+   public void setup() throws IOException {
+      ctx = SampleData.createContext();
+
+      // append the fields of a newer schema version, unknown to the current User marshaller
+      byte[] knownFields = ProtobufUtil.toByteArray(ctx, SampleData.createUser());
+      ByteArrayOutputStreamEx baos = new ByteArrayOutputStreamEx();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      out.writeString(100, "an unknown string");
+      out.writeInt64(101, 1234567890123L);
+      out.writeFixed32(102, 7);
+      out.writeBytes(103, new byte[64]);
+      out.flush();
+      userBytes = new byte[knownFields.length + baos.size()];
+      System.arraycopy(knownFields, 0, userBytes, 0, knownFields.length);
+      System.arraycopy(baos.toByteArray(), 0, userBytes, knownFields.length, baos.size());
+
+      user = ProtobufUtil.fromByteArray(ctx, userBytes, User.class);
+   }
+
+   @Benchmark
+   public User readWithUnknownFields() throws IOException {
+      return ProtobufUtil.fromByteArray(ctx, userBytes, User.class);
+   }
+
+   @Benchmark
+   public byte[] writeWithUnknownFields() throws IOException {
+      return ProtobufUtil.toByteArray(ctx, user);
+   }
+
+   @Benchmark
+   public byte[] roundTripWithUnknownFields() throws IOException {
+      return ProtobufUtil.toByteArray(ctx, ProtobufUtil.fromByteArray(ctx, userBytes, User.class));
+   }
+}
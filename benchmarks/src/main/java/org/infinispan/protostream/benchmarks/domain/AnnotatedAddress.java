@@ -0,0 +1,53 @@
+package org.infinispan.protostream.benchmarks.domain;
+
+import org.infinispan.protostream.annotations.ProtoField;
+
+/**
+ * Same as {@link org.infinispan.protostream.sampledomain.Address} but having a generated marshaller.
+ *
+ * @since 3.1
+ */
+public class AnnotatedAddress {
+
+   private String street;
+
+   private String postCode;
+
+   private int number;
+
+   public AnnotatedAddress() {
+   }
+
+   public AnnotatedAddress(String street, String postCode, int number) {
+      this.street = street;
+      this.postCode = postCode;
+      this.number = number;
+   }
+
+   @ProtoField(number = 1, required = true)
+   public String getStreet() {
+      return street;
+   }
+
+   public void setStreet(String street) {
+      this.street = street;
+   }
+
+   @ProtoField(number = 2, required = true)
+   public String getPostCode() {
+      return postCode;
+   }
+
+   public void setPostCode(String postCode) {
+      this.postCode = postCode;
+   }
+
+   @ProtoField(number = 3, required = true)
+   public int getNumber() {
+      return number;
+   }
+
+   public void setNumber(int number) {
+      this.number = number;
+   }
+}
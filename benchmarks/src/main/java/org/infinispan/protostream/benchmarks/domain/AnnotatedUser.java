@@ -0,0 +1,93 @@
+package org.infinispan.protostream.benchmarks.domain;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.infinispan.protostream.annotations.ProtoField;
+
+/**
+ * Same as {@link org.infinispan.protostream.sampledomain.User}, minus the gender, but having a generated marshaller.
+ *
+ * @since 3.1
+ */
+public class AnnotatedUser {
+
+   private int id;
+
+   private Set<Integer> accountIds;
+
+   private String name;
+
+   private String surname;
+
+   private List<AnnotatedAddress> addresses;
+
+   private Integer age;
+
+   private String notes;
+
+   @ProtoField(number = 1, required = true)
+   public int getId() {
+      return id;
+   }
+
+   public void setId(int id) {
+      this.id = id;
+   }
+
+   @ProtoField(number = 2, collectionImplementation = HashSet.class)
+   public Set<Integer> getAccountIds() {
+      return accountIds;
+   }
+
+   public void setAccountIds(Set<Integer> accountIds) {
+      this.accountIds = accountIds;
+   }
+
+   @ProtoField(number = 3, required = true)
+   public String getName() {
+      return name;
+   }
+
+   public void setName(String name) {
+      this.name = name;
+   }
+
+   @ProtoField(number = 4, required = true)
+   public String getSurname() {
+      return surname;
+   }
+
+   public void setSurname(String surname) {
+      this.surname = surname;
+   }
+
+   @ProtoField(number = 5, collectionImplementation = ArrayList.class)
+   public List<AnnotatedAddress> getAddresses() {
+      return addresses;
+   }
+
+   public void setAddresses(List<AnnotatedAddress> addresses) {
+      this.addresses = addresses;
+   }
+
+   @ProtoField(number = 6)
+   public Integer getAge() {
+      return age;
+   }
+
+   public void setAge(Integer age) {
+      this.age = age;
+   }
+
+   @ProtoField(number = 8)
+   public String getNotes() {
+      return notes;
+   }
+
+   public void setNotes(String notes) {
+      this.notes = notes;
+   }
+}
@@ -0,0 +1,109 @@
+package org.infinispan.protostream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * The output of marshalling an object to direct memory, as a sequence of direct {@link ByteBuffer}s borrowed from a
+ * {@link DirectBufferPool}. The buffers are ready to be read, so they can be passed as they are to a {@link
+ * GatheringByteChannel}. The chain must be {@link #close() closed} once written, to return the buffers to the pool.
+ * <p>
+ * A chain is not thread-safe.
+ *
+ * @since 3.1
+ */
+public final class ByteBufferChain implements AutoCloseable {
+
+   private final ByteBuffer[] buffers;
+
+   private final int count;
+
+   private final DirectBufferPool pool;
+
+   /**
+    * The index of the first buffer that was not completely written to a channel yet.
+    */
+   private int first = 0;
+
+   private boolean closed = false;
+
+   /**
+    * Creates a chain from buffers that are ready to be read. The first {@code count} elements of the array are owned by
+    * the chain from now on and will be released to the given pool on close.
+    */
+   public ByteBufferChain(ByteBuffer[] buffers, int count, DirectBufferPool pool) {
+      this.buffers = buffers;
+      this.count = count;
+      this.pool = pool;
+   }
+
+   /**
+    * Gets the buffers of this chain. Reading from them advances their position, which is reflected in {@link
+    * #remaining()}.
+    */
+   public ByteBuffer[] getBuffers() {
+      checkOpen();
+      ByteBuffer[] result = new ByteBuffer[count];
+      System.arraycopy(buffers, 0, result, 0, count);
+      return result;
+   }
+
+   /**
+    * Gets the total number of bytes remaining to be read from all buffers.
+    */
+   public long remaining() {
+      long remaining = 0;
+      for (int i = first; i < count; i++) {
+         remaining += buffers[i].remaining();
+      }
+      return remaining;
+   }
+
+   public boolean hasRemaining() {
+      for (int i = first; i < count; i++) {
+         if (buffers[i].hasRemaining()) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Writes the remaining bytes to a channel with a single gathering write. A blocking channel writes everything, while
+    * a non-blocking one may write less, in which case this method should be invoked again once the channel is ready.
+    *
+    * @return the number of bytes written
+    */
+   public long writeTo(GatheringByteChannel channel) throws IOException {
+      checkOpen();
+      while (first < count && !buffers[first].hasRemaining()) {
+         first++;
+      }
+      if (first == count) {
+         return 0;
+      }
+      return channel.write(buffers, first, count - first);
+   }
+
+   private void checkOpen() {
+      if (closed) {
+         throw new IllegalStateException("The chain was already closed");
+      }
+   }
+
+   /**
+    * Releases the buffers to the pool. The buffers must not be used afterwards.
+    */
+   @Override
+   public void close() {
+      if (!closed) {
+         closed = true;
+         first = count;
+         for (int i = 0; i < count; i++) {
+            pool.release(buffers[i]);
+            buffers[i] = null;
+         }
+      }
+   }
+}
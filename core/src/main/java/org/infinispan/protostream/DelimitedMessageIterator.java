@@ -0,0 +1,70 @@
+package org.infinispan.protostream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily reads a sequence of length delimited messages from an input, one message per call to {@link #next()}. All
+ * messages are read with the same {@link MarshallingSession} and the same reader, which is limited to the length of the
+ * current message. The session is returned to the pool once the input is exhausted or a read fails. Failures are
+ * reported as {@link UncheckedIOException}s.
+ *
+ * @since 3.1
+ */
+final class DelimitedMessageIterator<A> implements Iterator<A> {
+
+   private final RawProtoStreamReader in;
+
+   /**
+    * The type of the messages or {@code null} if they are wrapped.
+    */
+   private final Class<A> clazz;
+
+   private MarshallingSession session;
+
+   DelimitedMessageIterator(SerializationContext ctx, RawProtoStreamReader in, Class<A> clazz) {
+      this.in = in;
+      this.clazz = clazz;
+      session = ctx.openMarshallingSession();
+   }
+
+   @Override
+   public boolean hasNext() {
+      if (session == null) {
+         return false;
+      }
+      try {
+         if (in.isAtEnd()) {
+            close();
+            return false;
+         }
+         return true;
+      } catch (IOException e) {
+         close();
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   @Override
+   @SuppressWarnings("unchecked")
+   public A next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      try {
+         return clazz == null ? (A) session.readWrappedDelimitedFrom(in) : session.readDelimitedFrom(in, clazz);
+      } catch (IOException e) {
+         close();
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private void close() {
+      if (session != null) {
+         session.close();
+         session = null;
+      }
+   }
+}
@@ -0,0 +1,86 @@
+package org.infinispan.protostream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of equally sized direct {@link ByteBuffer}s, used as the chunks of a {@link ByteBufferChain}. Allocating and
+ * freeing direct memory is expensive, so the buffers are recycled instead of being left to the garbage collector. The
+ * pool is thread-safe and never blocks: when it is empty a new buffer is allocated and when it is full a released
+ * buffer is dropped.
+ *
+ * @since 3.1
+ */
+public final class DirectBufferPool {
+
+   public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+   public static final int DEFAULT_MAX_POOLED_CHUNKS = 16 * Runtime.getRuntime().availableProcessors();
+
+   private static final DirectBufferPool DEFAULT = new DirectBufferPool(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED_CHUNKS);
+
+   private final int chunkSize;
+
+   private final AtomicReferenceArray<ByteBuffer> chunks;
+
+   /**
+    * @param chunkSize       the capacity of each buffer
+    * @param maxPooledChunks the maximum number of idle buffers kept in the pool
+    */
+   public DirectBufferPool(int chunkSize, int maxPooledChunks) {
+      if (chunkSize < 16) {
+         throw new IllegalArgumentException("chunkSize must be at least 16");
+      }
+      if (maxPooledChunks < 0) {
+         throw new IllegalArgumentException("maxPooledChunks cannot be negative");
+      }
+      this.chunkSize = chunkSize;
+      this.chunks = new AtomicReferenceArray<>(maxPooledChunks);
+   }
+
+   /**
+    * Gets a pool shared by all users that do not need a pool of their own.
+    */
+   public static DirectBufferPool getDefault() {
+      return DEFAULT;
+   }
+
+   public int getChunkSize() {
+      return chunkSize;
+   }
+
+   /**
+    * Obtains an empty buffer, having the position set to zero and the limit set to its capacity.
+    */
+   public ByteBuffer acquire() {
+      int length = chunks.length();
+      int start = length == 0 ? 0 : (int) (Thread.currentThread().getId() % length);
+      for (int i = 0; i < length; i++) {
+         int slot = (start + i) % length;
+         ByteBuffer buffer = chunks.get(slot);
+         if (buffer != null && chunks.compareAndSet(slot, buffer, null)) {
+            buffer.clear();
+            return buffer;
+         }
+      }
+      return ByteBuffer.allocateDirect(chunkSize);
+   }
+
+   /**
+    * Returns a buffer previously obtained from {@link #acquire()}. The buffer must not be used afterwards. Buffers that
+    * were not allocated by a pool having the same chunk size are ignored.
+    */
+   public void release(ByteBuffer buffer) {
+      if (buffer == null || !buffer.isDirect() || buffer.isReadOnly() || buffer.capacity() != chunkSize) {
+         return;
+      }
+      int length = chunks.length();
+      int start = length == 0 ? 0 : (int) (Thread.currentThread().getId() % length);
+      for (int i = 0; i < length; i++) {
+         int slot = (start + i) % length;
+         if (chunks.get(slot) == null && chunks.compareAndSet(slot, null, buffer)) {
+            return;
+         }
+      }
+   }
+}
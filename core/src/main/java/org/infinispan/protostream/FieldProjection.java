@@ -0,0 +1,135 @@
+package org.infinispan.protostream;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
+import org.infinispan.protostream.descriptors.Type;
+
+/**
+ * A set of field paths resolved against a message {@link Descriptor}, used for parsing only the selected fields of a
+ * message with {@link ProtobufParser#parse(TypedTagHandler, FieldProjection, byte[])}. A path is a sequence of field
+ * names separated by dots, for example {@code "addresses.street"}. Every field except the last one must be of a message
+ * type. Selecting a field of a message type selects all its nested fields. The parser skips all other fields without
+ * decoding them and does not descend into nested messages that have no selected fields.
+ * <p>
+ * Projections are immutable and can be shared by any number of threads.
+ *
+ * @since 3.1
+ */
+public final class FieldProjection {
+
+   /**
+    * A message in the projection tree. A node that has no children selects all the fields of its message.
+    */
+   static final class Node {
+
+      private static final int[] NO_NUMBERS = new int[0];
+
+      private static final Node[] NO_NODES = new Node[0];
+
+      final Descriptor messageDescriptor;
+
+      private int[] fieldNumbers = NO_NUMBERS;
+
+      private Node[] children = NO_NODES;
+
+      /**
+       * Whether all the fields of the message are selected.
+       */
+      private boolean all;
+
+      Node(Descriptor messageDescriptor, boolean all) {
+         this.messageDescriptor = messageDescriptor;
+         this.all = all;
+      }
+
+      boolean isAll() {
+         return all;
+      }
+
+      /**
+       * Finds the node of a selected field. The selected fields are usually just a few so a linear search is the
+       * fastest.
+       *
+       * @return the node or {@code null} if the field is not selected
+       */
+      Node findChild(int fieldNumber) {
+         for (int i = 0; i < fieldNumbers.length; i++) {
+            if (fieldNumbers[i] == fieldNumber) {
+               return children[i];
+            }
+         }
+         return null;
+      }
+
+      private void add(String path, int pos, Descriptor descriptor) {
+         if (all) {
+            // already selected as a whole
+            return;
+         }
+         int dot = path.indexOf('.', pos);
+         String name = dot < 0 ? path.substring(pos) : path.substring(pos, dot);
+         FieldDescriptor fd = descriptor.findFieldByName(name);
+         if (fd == null) {
+            throw new IllegalArgumentException("Unknown field '" + name + "' in path '" + path + "' of message type " + descriptor.getFullName());
+         }
+         boolean isMessage = fd.getType() == Type.MESSAGE || fd.getType() == Type.GROUP;
+         if (dot >= 0 && !isMessage) {
+            throw new IllegalArgumentException("Field '" + name + "' in path '" + path + "' is not of a message type");
+         }
+         Node child = findChild(fd.getNumber());
+         if (child == null) {
+            child = new Node(isMessage ? fd.getMessageType() : null, dot < 0);
+            fieldNumbers = Arrays.copyOf(fieldNumbers, fieldNumbers.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            fieldNumbers[fieldNumbers.length - 1] = fd.getNumber();
+            children[children.length - 1] = child;
+         } else if (dot < 0) {
+            child.all = true;
+         }
+         if (dot >= 0) {
+            child.add(path, dot + 1, fd.getMessageType());
+         }
+      }
+   }
+
+   private final Node root;
+
+   private FieldProjection(Node root) {
+      this.root = root;
+   }
+
+   public static FieldProjection compile(Descriptor messageDescriptor, String... paths) {
+      return compile(messageDescriptor, Arrays.asList(paths));
+   }
+
+   /**
+    * Resolves the given paths against a message descriptor.
+    *
+    * @throws IllegalArgumentException if a path refers to an unknown field or passes through a field that is not of a
+    *                                  message type
+    */
+   public static FieldProjection compile(Descriptor messageDescriptor, Collection<String> paths) {
+      if (messageDescriptor == null) {
+         throw new IllegalArgumentException("messageDescriptor cannot be null");
+      }
+      Node root = new Node(messageDescriptor, false);
+      for (String path : paths) {
+         if (path == null || path.isEmpty()) {
+            throw new IllegalArgumentException("Field paths cannot be null or empty");
+         }
+         root.add(path, 0, messageDescriptor);
+      }
+      return new FieldProjection(root);
+   }
+
+   public Descriptor getMessageDescriptor() {
+      return root.messageDescriptor;
+   }
+
+   Node getRoot() {
+      return root;
+   }
+}
@@ -12,6 +12,8 @@ import java.io.Reader;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.infinispan.protostream.descriptors.FileDescriptorSnapshot;
+
 /**
  * Aggregator for source protofiles.
  *
@@ -28,6 +30,8 @@ public final class FileDescriptorSource {
 
    private ProgressCallback progressCallback;
 
+   private FileDescriptorSnapshot snapshot;
+
    public interface ProgressCallback {
 
       void handleError(String fileName, DescriptorParserException exception);
@@ -40,6 +44,17 @@ public final class FileDescriptorSource {
       return this;
    }
 
+   /**
+    * Sets a snapshot of previously parsed files. The files that did not change since the snapshot was taken are
+    * restored from it instead of being parsed.
+    *
+    * @since 3.1
+    */
+   public FileDescriptorSource withSnapshot(FileDescriptorSnapshot snapshot) {
+      this.snapshot = snapshot;
+      return this;
+   }
+
    public FileDescriptorSource addProtoFiles(String... classpathResources) throws IOException {
       return addProtoFiles(null, classpathResources);
    }
@@ -134,6 +149,13 @@ public final class FileDescriptorSource {
       return progressCallback;
    }
 
+   /**
+    * @since 3.1
+    */
+   public FileDescriptorSnapshot getSnapshot() {
+      return snapshot;
+   }
+
    private char[] toCharArray(File file) throws IOException {
       FileInputStream is = new FileInputStream(file);
       try {
@@ -0,0 +1,327 @@
+package org.infinispan.protostream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import org.infinispan.protostream.impl.RawProtoStreamReaderImpl;
+
+/**
+ * Reads a file of length delimited messages, as written by {@link ProtobufUtil#writeDelimitedTo} or {@link
+ * ProtobufUtil#writeWrappedDelimitedTo}, by memory mapping it instead of streaming it through an {@link
+ * java.io.InputStream}. A single mapping cannot exceed 2GB, so the file is split in segments that contain only whole
+ * messages, each one decoded directly from its own mapping. Segments are independent of each other and can be decoded
+ * in parallel, see {@link #readDelimitedSpliterator}.
+ * <p>
+ * The channel is not closed by this class.
+ *
+ * @since 3.1
+ */
+public final class MappedDelimitedFile {
+
+   public static final int DEFAULT_MAX_SEGMENT_SIZE = 1 << 30;
+
+   /**
+    * A region of the file that starts at a message boundary and contains only whole messages.
+    */
+   public static final class Segment {
+
+      private final long offset;
+
+      private final int length;
+
+      private final int messageCount;
+
+      Segment(long offset, int length, int messageCount) {
+         this.offset = offset;
+         this.length = length;
+         this.messageCount = messageCount;
+      }
+
+      public long getOffset() {
+         return offset;
+      }
+
+      public int getLength() {
+         return length;
+      }
+
+      public int getMessageCount() {
+         return messageCount;
+      }
+
+      @Override
+      public String toString() {
+         return "Segment{offset=" + offset + ", length=" + length + ", messageCount=" + messageCount + '}';
+      }
+   }
+
+   private final FileChannel channel;
+
+   private final int maxSegmentSize;
+
+   public MappedDelimitedFile(FileChannel channel) {
+      this(channel, DEFAULT_MAX_SEGMENT_SIZE);
+   }
+
+   /**
+    * @param channel        the file, which must be open for reading
+    * @param maxSegmentSize the maximum size of a segment, which must be larger than the largest message
+    */
+   public MappedDelimitedFile(FileChannel channel, int maxSegmentSize) {
+      if (maxSegmentSize <= 0) {
+         throw new IllegalArgumentException("maxSegmentSize must be positive");
+      }
+      this.channel = channel;
+      this.maxSegmentSize = maxSegmentSize;
+   }
+
+   private ByteBuffer map(long offset, int length) throws IOException {
+      return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+   }
+
+   /**
+    * Finds the largest segment starting at the given offset by walking the length prefixes of the messages in a
+    * mapping of the file. Only the length prefixes are read.
+    */
+   private Segment scan(long offset, long fileSize, ByteBuffer window) throws IOException {
+      int windowSize = window.limit();
+      int pos = 0;
+      int count = 0;
+      scan:
+      while (pos < windowSize) {
+         int p = pos;
+         int length = 0;
+         for (int shift = 0; ; shift += 7) {
+            if (p == windowSize) {
+               break scan;
+            }
+            if (shift == 35) {
+               throw new IOException("Malformed length prefix at offset " + (offset + pos));
+            }
+            byte b = window.get(p++);
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+               break;
+            }
+         }
+         if (length < 0) {
+            throw new IOException("Negative length prefix at offset " + (offset + pos));
+         }
+         if ((long) p + length > windowSize) {
+            break;
+         }
+         pos = p + length;
+         count++;
+      }
+      if (count == 0) {
+         if (offset + windowSize == fileSize) {
+            throw new IOException("Truncated message at offset " + offset);
+         }
+         throw new IOException("The message at offset " + offset + " is larger than the maximum segment size " + maxSegmentSize);
+      }
+      return new Segment(offset, pos, count);
+   }
+
+   private int windowSize(long offset, long fileSize) {
+      return (int) Math.min(maxSegmentSize, fileSize - offset);
+   }
+
+   /**
+    * Splits the whole file in segments, in file order.
+    */
+   public List<Segment> split() throws IOException {
+      long fileSize = channel.size();
+      List<Segment> segments = new ArrayList<>();
+      long offset = 0;
+      while (offset < fileSize) {
+         Segment segment = scan(offset, fileSize, map(offset, windowSize(offset, fileSize)));
+         segments.add(segment);
+         offset += segment.length;
+      }
+      return segments;
+   }
+
+   /**
+    * Creates a reader for the messages of a segment.
+    */
+   public RawProtoStreamReader newReader(Segment segment) throws IOException {
+      return RawProtoStreamReaderImpl.newInstance(map(segment.offset, segment.length));
+   }
+
+   private static RawProtoStreamReader newReader(SerializationContext ctx, ByteBuffer buffer) {
+      return RawProtoStreamReaderImpl.newInstance(buffer, ctx.getConfiguration().zeroCopyByteBuffers());
+   }
+
+   /**
+    * Lazily reads all the messages of the file, in order. Each mapping is used both for finding the end of the segment
+    * and for decoding it, so the file is read only once.
+    */
+   public <A> Iterator<A> readDelimitedIterator(SerializationContext ctx, Class<A> clazz) {
+      if (clazz == null) {
+         throw new IllegalArgumentException("clazz cannot be null");
+      }
+      return new SegmentRolloverIterator<>(ctx, clazz);
+   }
+
+   /**
+    * Same as {@link #readDelimitedIterator} but for the wrapped encoding. The elements can be {@code null}.
+    */
+   public Iterator<Object> readWrappedDelimitedIterator(SerializationContext ctx) {
+      return new SegmentRolloverIterator<>(ctx, null);
+   }
+
+   /**
+    * Reads all the messages of the file by segment. The file is {@link #split()} upfront and the returned spliterator
+    * splits on segment boundaries, so a parallel stream decodes several segments at once. The order of the messages is
+    * preserved.
+    */
+   public <A> Spliterator<A> readDelimitedSpliterator(SerializationContext ctx, Class<A> clazz) throws IOException {
+      if (clazz == null) {
+         throw new IllegalArgumentException("clazz cannot be null");
+      }
+      return new SegmentSpliterator<>(ctx, clazz, split(), Spliterator.NONNULL);
+   }
+
+   /**
+    * Same as {@link #readDelimitedSpliterator} but for the wrapped encoding. The elements can be {@code null}.
+    */
+   public Spliterator<Object> readWrappedDelimitedSpliterator(SerializationContext ctx) throws IOException {
+      return new SegmentSpliterator<>(ctx, null, split(), 0);
+   }
+
+   private final class SegmentRolloverIterator<A> implements Iterator<A> {
+
+      private final SerializationContext ctx;
+
+      private final Class<A> clazz;
+
+      private long offset = 0;
+
+      private Iterator<A> current = Collections.emptyIterator();
+
+      SegmentRolloverIterator(SerializationContext ctx, Class<A> clazz) {
+         this.ctx = ctx;
+         this.clazz = clazz;
+      }
+
+      @Override
+      public boolean hasNext() {
+         try {
+            while (!current.hasNext()) {
+               long fileSize = channel.size();
+               if (offset >= fileSize) {
+                  return false;
+               }
+               ByteBuffer window = map(offset, windowSize(offset, fileSize));
+               Segment segment = scan(offset, fileSize, window);
+               window.limit(segment.length);
+               current = new DelimitedMessageIterator<>(ctx, newReader(ctx, window), clazz);
+               offset += segment.length;
+            }
+            return true;
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }
+
+      @Override
+      public A next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         return current.next();
+      }
+   }
+
+   private final class SegmentSpliterator<A> implements Spliterator<A> {
+
+      private final SerializationContext ctx;
+
+      private final Class<A> clazz;
+
+      private final List<Segment> segments;
+
+      private final int extraCharacteristics;
+
+      /**
+       * The range of segments not started yet.
+       */
+      private int next;
+
+      private final int end;
+
+      private Iterator<A> current = Collections.emptyIterator();
+
+      /**
+       * The number of messages left in the current segment.
+       */
+      private int currentRemaining = 0;
+
+      SegmentSpliterator(SerializationContext ctx, Class<A> clazz, List<Segment> segments, int extraCharacteristics) {
+         this(ctx, clazz, segments, 0, segments.size(), extraCharacteristics);
+      }
+
+      private SegmentSpliterator(SerializationContext ctx, Class<A> clazz, List<Segment> segments, int next, int end, int extraCharacteristics) {
+         this.ctx = ctx;
+         this.clazz = clazz;
+         this.segments = segments;
+         this.next = next;
+         this.end = end;
+         this.extraCharacteristics = extraCharacteristics;
+      }
+
+      @Override
+      public boolean tryAdvance(Consumer<? super A> action) {
+         while (!current.hasNext()) {
+            if (next == end) {
+               return false;
+            }
+            Segment segment = segments.get(next++);
+            try {
+               current = new DelimitedMessageIterator<>(ctx, newReader(ctx, map(segment.offset, segment.length)), clazz);
+            } catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+            currentRemaining = segment.messageCount;
+         }
+         currentRemaining--;
+         action.accept(current.next());
+         return true;
+      }
+
+      @Override
+      public Spliterator<A> trySplit() {
+         int mid = (next + end) >>> 1;
+         if (mid == next || current.hasNext()) {
+            // a prefix cannot be split off while a segment is in progress, as that would break the encounter order
+            return null;
+         }
+         Spliterator<A> prefix = new SegmentSpliterator<>(ctx, clazz, segments, next, mid, extraCharacteristics);
+         next = mid;
+         return prefix;
+      }
+
+      @Override
+      public long estimateSize() {
+         long size = currentRemaining;
+         for (int i = next; i < end; i++) {
+            size += segments.get(i).messageCount;
+         }
+         return size;
+      }
+
+      @Override
+      public int characteristics() {
+         return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.IMMUTABLE | extraCharacteristics;
+      }
+   }
+}
@@ -0,0 +1,88 @@
+package org.infinispan.protostream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable marshalling session obtained from {@link SerializationContext#openMarshallingSession()}. A session keeps
+ * its output buffer, readers, writers and message contexts across calls instead of allocating them for each object
+ * being marshalled, so it is the preferred way of marshalling many objects in a row.
+ * <p>
+ * A session is not thread-safe and must be confined to one thread until it is {@link #close() closed}. Closing
+ * returns it to the pool of its {@link SerializationContext} and the session must not be used afterwards.
+ *
+ * @since 3.1
+ */
+public interface MarshallingSession extends AutoCloseable {
+
+   SerializationContext getSerializationContext();
+
+   /**
+    * Computes the exact number of bytes {@link #toByteArray} produces for an object, by running its marshaller without
+    * encoding anything.
+    *
+    * @return the size in bytes or -1 if it cannot be known in advance, because the object has fields that are written
+    * from an {@link java.io.InputStream}
+    */
+   int computeSize(Object t) throws IOException;
+
+   byte[] toByteArray(Object t) throws IOException;
+
+   /**
+    * Marshalls an object to a chain of direct buffers taken from the given pool. The chain must be closed after being
+    * written out, to return the buffers to the pool.
+    */
+   ByteBufferChain toByteBufferChain(Object t, DirectBufferPool pool) throws IOException;
+
+   /**
+    * Writes an object prefixed by its length as a varint32, so that a sequence of objects can be written to the same
+    * output and read back one by one with {@link #readDelimitedFrom}. The output is not flushed.
+    */
+   void writeDelimitedTo(RawProtoStreamWriter out, Object t) throws IOException;
+
+   /**
+    * Reads an object written by {@link #writeDelimitedTo}. The caller is expected to check {@link
+    * RawProtoStreamReader#isAtEnd()} before reading the next object.
+    */
+   <A> A readDelimitedFrom(RawProtoStreamReader in, Class<A> clazz) throws IOException;
+
+   <A> A fromByteArray(byte[] bytes, Class<A> clazz) throws IOException;
+
+   <A> A fromByteArray(byte[] bytes, int offset, int length, Class<A> clazz) throws IOException;
+
+   <A> A fromByteBuffer(ByteBuffer byteBuffer, Class<A> clazz) throws IOException;
+
+   /**
+    * Same as {@link #computeSize} but for {@link #toWrappedByteArray}.
+    */
+   int computeWrappedSize(Object t) throws IOException;
+
+   byte[] toWrappedByteArray(Object t) throws IOException;
+
+   /**
+    * Same as {@link #toByteBufferChain} but for the wrapped encoding.
+    */
+   ByteBufferChain toWrappedByteBufferChain(Object t, DirectBufferPool pool) throws IOException;
+
+   /**
+    * Same as {@link #writeDelimitedTo} but for the wrapped encoding.
+    */
+   void writeWrappedDelimitedTo(RawProtoStreamWriter out, Object t) throws IOException;
+
+   /**
+    * Same as {@link #readDelimitedFrom} but for the wrapped encoding.
+    */
+   Object readWrappedDelimitedFrom(RawProtoStreamReader in) throws IOException;
+
+   Object fromWrappedByteArray(byte[] bytes) throws IOException;
+
+   Object fromWrappedByteArray(byte[] bytes, int offset, int length) throws IOException;
+
+   Object fromWrappedByteBuffer(ByteBuffer byteBuffer) throws IOException;
+
+   /**
+    * Returns this session to the pool it was obtained from.
+    */
+   @Override
+   void close();
+}
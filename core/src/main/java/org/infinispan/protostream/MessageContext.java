@@ -13,24 +13,40 @@ public class MessageContext<E extends MessageContext> {
    /**
     * The context of the outer message or null if this is a top level message.
     */
-   private final E parentContext;
+   private E parentContext;
 
    /**
     * If this is a nested context this is the name of the outer field being processed. This is null for root context.
     */
-   private final String fieldName;
+   private String fieldName;
 
    private String fullFieldName;
 
    /**
     * The descriptor of the current message.
     */
-   private final Descriptor messageDescriptor;
+   private Descriptor messageDescriptor;
 
    private final BitSet seenFields;      //todo [anistor] need a sparse bitset here
    private int maxSeenFieldNumber = 0;
 
    public MessageContext(E parentContext, String fieldName, Descriptor messageDescriptor) {
+      init(parentContext, fieldName, messageDescriptor);
+      seenFields = new BitSet(messageDescriptor.getFields().size() + messageDescriptor.getOneOfs().size());
+   }
+
+   /**
+    * Re-initializes this context so it can be reused for another message instead of allocating a new one. All
+    * previously marked fields are cleared.
+    */
+   protected void reset(E parentContext, String fieldName, Descriptor messageDescriptor) {
+      init(parentContext, fieldName, messageDescriptor);
+      fullFieldName = null;
+      seenFields.clear();
+      maxSeenFieldNumber = 0;
+   }
+
+   private void init(E parentContext, String fieldName, Descriptor messageDescriptor) {
       if (messageDescriptor == null) {
          throw new IllegalArgumentException("messageDescriptor cannot be null");
       }
@@ -44,8 +60,6 @@ public class MessageContext<E extends MessageContext> {
       this.parentContext = parentContext;
       this.fieldName = fieldName;
       this.messageDescriptor = messageDescriptor;
-
-      seenFields = new BitSet(messageDescriptor.getFields().size() + messageDescriptor.getOneOfs().size());
    }
 
    public E getParentContext() {
@@ -2,9 +2,13 @@ package org.infinispan.protostream;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Date;
 
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
+
 /**
  * @author anistor@redhat.com
  * @since 1.0
@@ -18,6 +22,11 @@ public interface MessageMarshaller<T> extends BaseMarshaller<T> {
    /**
     * An high-level interface for the wire encoding of a protobuf stream that allows reading named and typed message
     * fields.
+    * <p>
+    * Each method comes in two flavours: one that identifies the field by name and one that takes a {@link
+    * FieldDescriptor} of the message type being read. The latter (since 3.1) avoids looking up the field by name on
+    * every call, so marshallers of large messages should resolve the descriptors once (see {@link
+    * Descriptor#findFieldByName}) and reuse them.
     */
    interface ProtoStreamReader {
 
@@ -29,69 +38,226 @@ public interface MessageMarshaller<T> extends BaseMarshaller<T> {
        */
       Integer readInt(String fieldName) throws IOException;
 
+      Integer readInt(FieldDescriptor fieldDescriptor) throws IOException;
+
       Long readLong(String fieldName) throws IOException;
 
+      Long readLong(FieldDescriptor fieldDescriptor) throws IOException;
+
       Date readDate(String fieldName) throws IOException;
 
+      Date readDate(FieldDescriptor fieldDescriptor) throws IOException;
+
       Float readFloat(String fieldName) throws IOException;
 
+      Float readFloat(FieldDescriptor fieldDescriptor) throws IOException;
+
       Double readDouble(String fieldName) throws IOException;
 
+      Double readDouble(FieldDescriptor fieldDescriptor) throws IOException;
+
       Boolean readBoolean(String fieldName) throws IOException;
 
+      Boolean readBoolean(FieldDescriptor fieldDescriptor) throws IOException;
+
       String readString(String fieldName) throws IOException;
 
+      String readString(FieldDescriptor fieldDescriptor) throws IOException;
+
       byte[] readBytes(String fieldName) throws IOException;
 
+      byte[] readBytes(FieldDescriptor fieldDescriptor) throws IOException;
+
       InputStream readBytesAsInputStream(String fieldName) throws IOException;
 
+      InputStream readBytesAsInputStream(FieldDescriptor fieldDescriptor) throws IOException;
+
+      /**
+       * Reads a bytes field as a read-only buffer. If the source is a {@link java.nio.ByteBuffer} and zero copy was
+       * enabled in the {@link org.infinispan.protostream.config.Configuration} the returned buffer is a slice of the
+       * source, otherwise it wraps a copy of the bytes.
+       *
+       * @since 3.1
+       */
+      ByteBuffer readByteBuffer(String fieldName) throws IOException;
+
+      /**
+       * @since 3.1
+       */
+      ByteBuffer readByteBuffer(FieldDescriptor fieldDescriptor) throws IOException;
+
       <E extends Enum<E>> E readEnum(String fieldName, Class<E> clazz) throws IOException;
 
+      <E extends Enum<E>> E readEnum(FieldDescriptor fieldDescriptor, Class<E> clazz) throws IOException;
+
       <E> E readObject(String fieldName, Class<E> clazz) throws IOException;
 
+      <E> E readObject(FieldDescriptor fieldDescriptor, Class<E> clazz) throws IOException;
+
       <E, C extends Collection<? super E>> C readCollection(String fieldName, C collection, Class<E> elementClass) throws IOException;
 
+      <E, C extends Collection<? super E>> C readCollection(FieldDescriptor fieldDescriptor, C collection, Class<E> elementClass) throws IOException;
+
       <E> E[] readArray(String fieldName, Class<? extends E> elementClass) throws IOException;
+
+      <E> E[] readArray(FieldDescriptor fieldDescriptor, Class<? extends E> elementClass) throws IOException;
+
+      /**
+       * Reads a repeated field of a 32 bit integer type into a primitive array, without boxing the elements. An empty
+       * array is returned if the field is not present.
+       *
+       * @since 3.1
+       */
+      int[] readInts(String fieldName) throws IOException;
+
+      int[] readInts(FieldDescriptor fieldDescriptor) throws IOException;
+
+      /**
+       * Reads a repeated field of a 64 bit integer type into a primitive array, without boxing the elements. An empty
+       * array is returned if the field is not present.
+       *
+       * @since 3.1
+       */
+      long[] readLongs(String fieldName) throws IOException;
+
+      long[] readLongs(FieldDescriptor fieldDescriptor) throws IOException;
+
+      /**
+       * Reads a repeated {@code double} field into a primitive array, without boxing the elements. An empty array is
+       * returned if the field is not present.
+       *
+       * @since 3.1
+       */
+      double[] readDoubles(String fieldName) throws IOException;
+
+      double[] readDoubles(FieldDescriptor fieldDescriptor) throws IOException;
+
+      /**
+       * Reads a repeated {@code float} field into a primitive array, without boxing the elements. An empty array is
+       * returned if the field is not present.
+       *
+       * @since 3.1
+       */
+      float[] readFloats(String fieldName) throws IOException;
+
+      float[] readFloats(FieldDescriptor fieldDescriptor) throws IOException;
    }
 
+   /**
+    * An high-level interface for the wire encoding of a protobuf stream that allows writing named and typed message
+    * fields. Fields can be identified either by name or by a pre-resolved {@link FieldDescriptor}, as for {@link
+    * ProtoStreamReader}.
+    */
    interface ProtoStreamWriter {
 
       SerializationContext getSerializationContext();
 
       void writeInt(String fieldName, Integer value) throws IOException;
 
+      void writeInt(FieldDescriptor fieldDescriptor, Integer value) throws IOException;
+
       void writeInt(String fieldName, int value) throws IOException;
 
+      void writeInt(FieldDescriptor fieldDescriptor, int value) throws IOException;
+
       void writeLong(String fieldName, long value) throws IOException;
 
+      void writeLong(FieldDescriptor fieldDescriptor, long value) throws IOException;
+
       void writeLong(String fieldName, Long value) throws IOException;
 
+      void writeLong(FieldDescriptor fieldDescriptor, Long value) throws IOException;
+
       void writeDate(String fieldName, Date value) throws IOException;
 
+      void writeDate(FieldDescriptor fieldDescriptor, Date value) throws IOException;
+
       void writeDouble(String fieldName, double value) throws IOException;
 
+      void writeDouble(FieldDescriptor fieldDescriptor, double value) throws IOException;
+
       void writeDouble(String fieldName, Double value) throws IOException;
 
+      void writeDouble(FieldDescriptor fieldDescriptor, Double value) throws IOException;
+
       void writeFloat(String fieldName, float value) throws IOException;
 
+      void writeFloat(FieldDescriptor fieldDescriptor, float value) throws IOException;
+
       void writeFloat(String fieldName, Float value) throws IOException;
 
+      void writeFloat(FieldDescriptor fieldDescriptor, Float value) throws IOException;
+
       void writeBoolean(String fieldName, boolean value) throws IOException;
 
+      void writeBoolean(FieldDescriptor fieldDescriptor, boolean value) throws IOException;
+
       void writeBoolean(String fieldName, Boolean value) throws IOException;
 
+      void writeBoolean(FieldDescriptor fieldDescriptor, Boolean value) throws IOException;
+
       void writeString(String fieldName, String value) throws IOException;
 
+      void writeString(FieldDescriptor fieldDescriptor, String value) throws IOException;
+
       void writeBytes(String fieldName, byte[] value) throws IOException;
 
+      void writeBytes(FieldDescriptor fieldDescriptor, byte[] value) throws IOException;
+
       void writeBytes(String fieldName, InputStream input) throws IOException;
 
+      void writeBytes(FieldDescriptor fieldDescriptor, InputStream input) throws IOException;
+
       <E> void writeObject(String fieldName, E value, Class<? extends E> clazz) throws IOException;
 
+      <E> void writeObject(FieldDescriptor fieldDescriptor, E value, Class<? extends E> clazz) throws IOException;
+
       <E extends Enum<E>> void writeEnum(String fieldName, E value, Class<E> clazz) throws IOException;
 
+      <E extends Enum<E>> void writeEnum(FieldDescriptor fieldDescriptor, E value, Class<E> clazz) throws IOException;
+
       <E> void writeCollection(String fieldName, Collection<? super E> collection, Class<E> elementClass) throws IOException;
 
+      <E> void writeCollection(FieldDescriptor fieldDescriptor, Collection<? super E> collection, Class<E> elementClass) throws IOException;
+
       <E> void writeArray(String fieldName, E[] array, Class<? extends E> elementClass) throws IOException;
+
+      <E> void writeArray(FieldDescriptor fieldDescriptor, E[] array, Class<? extends E> elementClass) throws IOException;
+
+      /**
+       * Writes a repeated field of a 32 bit integer type from a primitive array. A {@code null} array is not written.
+       *
+       * @since 3.1
+       */
+      void writeInts(String fieldName, int[] values) throws IOException;
+
+      void writeInts(FieldDescriptor fieldDescriptor, int[] values) throws IOException;
+
+      /**
+       * Writes a repeated field of a 64 bit integer type from a primitive array. A {@code null} array is not written.
+       *
+       * @since 3.1
+       */
+      void writeLongs(String fieldName, long[] values) throws IOException;
+
+      void writeLongs(FieldDescriptor fieldDescriptor, long[] values) throws IOException;
+
+      /**
+       * Writes a repeated {@code double} field from a primitive array. A {@code null} array is not written.
+       *
+       * @since 3.1
+       */
+      void writeDoubles(String fieldName, double[] values) throws IOException;
+
+      void writeDoubles(FieldDescriptor fieldDescriptor, double[] values) throws IOException;
+
+      /**
+       * Writes a repeated {@code float} field from a primitive array. A {@code null} array is not written.
+       *
+       * @since 3.1
+       */
+      void writeFloats(String fieldName, float[] values) throws IOException;
+
+      void writeFloats(FieldDescriptor fieldDescriptor, float[] values) throws IOException;
    }
 }
@@ -0,0 +1,85 @@
+package org.infinispan.protostream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.infinispan.protostream.descriptors.Descriptor;
+
+/**
+ * A read-only view of an encoded message that only requires its {@link Descriptor}, not a Java class or a marshaller.
+ * Nothing is decoded upfront. The locations of the fields are indexed on the first access and each getter then decodes
+ * just the requested value. Nested messages are returned as further views over the same bytes.
+ * <p>
+ * Getters for a field that is not present return the declared default value if there is one, otherwise zero, false or
+ * {@code null}. If a non-repeated field occurs more than once the last occurrence wins. A view is not thread safe and
+ * the bytes it was created from must not be modified while it is in use.
+ *
+ * @since 3.1
+ */
+public interface MessageView {
+
+   Descriptor getDescriptor();
+
+   /**
+    * Checks if the field has at least one value in the message.
+    *
+    * @throws IllegalArgumentException if the message type does not declare the field
+    */
+   boolean hasField(String fieldName) throws IOException;
+
+   /**
+    * Returns the number of values of a field. This is at most 1 for a non-repeated field.
+    */
+   int getCount(String fieldName) throws IOException;
+
+   /**
+    * Reads a field of type int32, uint32, sint32, fixed32, sfixed32 or enum.
+    */
+   int getInt(String fieldName) throws IOException;
+
+   int getInt(String fieldName, int index) throws IOException;
+
+   /**
+    * Reads a field of any integral type, or enum.
+    */
+   long getLong(String fieldName) throws IOException;
+
+   long getLong(String fieldName, int index) throws IOException;
+
+   float getFloat(String fieldName) throws IOException;
+
+   float getFloat(String fieldName, int index) throws IOException;
+
+   /**
+    * Reads a field of type double or float.
+    */
+   double getDouble(String fieldName) throws IOException;
+
+   double getDouble(String fieldName, int index) throws IOException;
+
+   boolean getBoolean(String fieldName) throws IOException;
+
+   boolean getBoolean(String fieldName, int index) throws IOException;
+
+   String getString(String fieldName) throws IOException;
+
+   String getString(String fieldName, int index) throws IOException;
+
+   byte[] getBytes(String fieldName) throws IOException;
+
+   byte[] getBytes(String fieldName, int index) throws IOException;
+
+   /**
+    * Returns a read-only slice of the underlying bytes, without copying.
+    */
+   ByteBuffer getByteBuffer(String fieldName) throws IOException;
+
+   ByteBuffer getByteBuffer(String fieldName, int index) throws IOException;
+
+   /**
+    * Returns a view of a nested message (or group), or {@code null} if the field is not present.
+    */
+   MessageView getMessage(String fieldName) throws IOException;
+
+   MessageView getMessage(String fieldName, int index) throws IOException;
+}
@@ -5,7 +5,6 @@ import java.io.InputStream;
 
 import org.infinispan.protostream.descriptors.Descriptor;
 import org.infinispan.protostream.descriptors.FieldDescriptor;
-import org.infinispan.protostream.descriptors.JavaType;
 import org.infinispan.protostream.descriptors.Type;
 import org.infinispan.protostream.impl.RawProtoStreamReaderImpl;
 import org.infinispan.protostream.impl.WireFormat;
@@ -19,6 +18,25 @@ public final class ProtobufParser {
    public static final ProtobufParser INSTANCE = new ProtobufParser();
 
    public void parse(TagHandler tagHandler, Descriptor messageDescriptor, InputStream input) throws IOException {
+      parse(new TagHandlerAdapter(tagHandler), messageDescriptor, input);
+   }
+
+   public void parse(TagHandler tagHandler, Descriptor messageDescriptor, byte[] buf, int off, int len) throws IOException {
+      parse(new TagHandlerAdapter(tagHandler), messageDescriptor, buf, off, len);
+   }
+
+   public void parse(TagHandler tagHandler, Descriptor messageDescriptor, byte[] buf) throws IOException {
+      parse(new TagHandlerAdapter(tagHandler), messageDescriptor, buf);
+   }
+
+   public void parse(TagHandler tagHandler, Descriptor messageDescriptor, RawProtoStreamReader in) throws IOException {
+      parse(new TagHandlerAdapter(tagHandler), messageDescriptor, in);
+   }
+
+   /**
+    * @since 3.1
+    */
+   public void parse(TypedTagHandler tagHandler, Descriptor messageDescriptor, InputStream input) throws IOException {
       if (messageDescriptor == null) {
          throw new IllegalArgumentException("messageDescriptor cannot be null");
       }
@@ -27,7 +45,10 @@ public final class ProtobufParser {
       parseInternal(tagHandler, messageDescriptor, in);
    }
 
-   public void parse(TagHandler tagHandler, Descriptor messageDescriptor, byte[] buf, int off, int len) throws IOException {
+   /**
+    * @since 3.1
+    */
+   public void parse(TypedTagHandler tagHandler, Descriptor messageDescriptor, byte[] buf, int off, int len) throws IOException {
       if (messageDescriptor == null) {
          throw new IllegalArgumentException("messageDescriptor cannot be null");
       }
@@ -36,7 +57,10 @@ public final class ProtobufParser {
       parseInternal(tagHandler, messageDescriptor, in);
    }
 
-   public void parse(TagHandler tagHandler, Descriptor messageDescriptor, byte[] buf) throws IOException {
+   /**
+    * @since 3.1
+    */
+   public void parse(TypedTagHandler tagHandler, Descriptor messageDescriptor, byte[] buf) throws IOException {
       if (messageDescriptor == null) {
          throw new IllegalArgumentException("messageDescriptor cannot be null");
       }
@@ -45,7 +69,10 @@ public final class ProtobufParser {
       parseInternal(tagHandler, messageDescriptor, in);
    }
 
-   public void parse(TagHandler tagHandler, Descriptor messageDescriptor, RawProtoStreamReader in) throws IOException {
+   /**
+    * @since 3.1
+    */
+   public void parse(TypedTagHandler tagHandler, Descriptor messageDescriptor, RawProtoStreamReader in) throws IOException {
       if (messageDescriptor == null) {
          throw new IllegalArgumentException("messageDescriptor cannot be null");
       }
@@ -53,124 +80,192 @@ public final class ProtobufParser {
       parseInternal(tagHandler, messageDescriptor, in);
    }
 
-   private void parseInternal(TagHandler tagHandler, Descriptor messageDescriptor, RawProtoStreamReader in) throws IOException {
+   /**
+    * Parses only the fields selected by a projection, skipping all others without decoding them.
+    *
+    * @since 3.1
+    */
+   public void parse(TypedTagHandler tagHandler, FieldProjection projection, InputStream input) throws IOException {
+      parseInternal(tagHandler, projection, RawProtoStreamReaderImpl.newInstance(input));
+   }
+
+   /**
+    * @since 3.1
+    */
+   public void parse(TypedTagHandler tagHandler, FieldProjection projection, byte[] buf, int off, int len) throws IOException {
+      parseInternal(tagHandler, projection, RawProtoStreamReaderImpl.newInstance(buf, off, len));
+   }
+
+   /**
+    * @since 3.1
+    */
+   public void parse(TypedTagHandler tagHandler, FieldProjection projection, byte[] buf) throws IOException {
+      parseInternal(tagHandler, projection, RawProtoStreamReaderImpl.newInstance(buf));
+   }
+
+   /**
+    * @since 3.1
+    */
+   public void parse(TypedTagHandler tagHandler, FieldProjection projection, RawProtoStreamReader in) throws IOException {
+      parseInternal(tagHandler, projection, in);
+   }
+
+   private void parseInternal(TypedTagHandler tagHandler, Descriptor messageDescriptor, RawProtoStreamReader in) throws IOException {
       tagHandler.onStart();
-      parseMessage(tagHandler, messageDescriptor, in);
+      parseMessage(tagHandler, messageDescriptor, null, in);
       tagHandler.onEnd();
    }
 
-   private void parseMessage(TagHandler tagHandler, Descriptor messageDescriptor, RawProtoStreamReader in) throws IOException {
+   private void parseInternal(TypedTagHandler tagHandler, FieldProjection projection, RawProtoStreamReader in) throws IOException {
+      if (projection == null) {
+         throw new IllegalArgumentException("projection cannot be null");
+      }
+      tagHandler.onStart();
+      FieldProjection.Node root = projection.getRoot();
+      parseMessage(tagHandler, root.messageDescriptor, root.isAll() ? null : root, in);
+      tagHandler.onEnd();
+   }
+
+   /**
+    * Parses the fields of a message until the end of the input or until an end group tag.
+    *
+    * @param projection the selected fields of the message or {@code null} if all fields are to be parsed
+    */
+   private void parseMessage(TypedTagHandler tagHandler, Descriptor messageDescriptor, FieldProjection.Node projection, RawProtoStreamReader in) throws IOException {
       int tag;
       while ((tag = in.readTag()) != 0) {
          final int fieldNumber = WireFormat.getTagFieldNumber(tag);
          final int wireType = WireFormat.getTagWireType(tag);
+         // the projection of a nested message field, if only some of its fields are selected
+         FieldProjection.Node nestedProjection = null;
+         if (projection != null) {
+            nestedProjection = projection.findChild(fieldNumber);
+            if (nestedProjection == null) {
+               if (!in.skipField(tag)) {
+                  return;
+               }
+               continue;
+            }
+            if (nestedProjection.isAll()) {
+               nestedProjection = null;
+            }
+         }
          final FieldDescriptor fd = messageDescriptor != null ? messageDescriptor.findFieldByNumber(fieldNumber) : null;
 
          switch (wireType) {
             case WireFormat.WIRETYPE_LENGTH_DELIMITED: {
-               if (fd == null) {
-                  byte[] value = in.readByteArray();
-                  tagHandler.onTag(fieldNumber, null, Type.BYTES, JavaType.BYTE_STRING, value);
+               if (fd == null || fd.getType() == Type.BYTES) {
+                  tagHandler.onBytes(fieldNumber, fd, in.readByteArray());
                } else if (fd.getType() == Type.STRING) {
-                  String value = in.readString();
-                  tagHandler.onTag(fieldNumber, fd.getName(), fd.getType(), fd.getJavaType(), value);
-               } else if (fd.getType() == Type.BYTES) {
-                  byte[] value = in.readByteArray();
-                  tagHandler.onTag(fieldNumber, fd.getName(), fd.getType(), fd.getJavaType(), value);
+                  tagHandler.onString(fieldNumber, fd, in.readString());
                } else if (fd.getType() == Type.MESSAGE) {
                   int length = in.readRawVarint32();
                   int oldLimit = in.pushLimit(length);
-                  tagHandler.onStartNested(fieldNumber, fd.getName(), fd.getMessageType());
-                  parseMessage(tagHandler, fd.getMessageType(), in);
-                  tagHandler.onEndNested(fieldNumber, fd.getName(), fd.getMessageType());
+                  tagHandler.onStartNested(fieldNumber, fd, fd.getMessageType());
+                  parseMessage(tagHandler, fd.getMessageType(), nestedProjection, in);
+                  tagHandler.onEndNested(fieldNumber, fd, fd.getMessageType());
                   in.checkLastTagWas(0);
                   in.popLimit(oldLimit);
+               } else if (fd.getType().isPackable()) {
+                  // packed repeated field, report each element individually
+                  int length = in.readRawVarint32();
+                  int oldLimit = in.pushLimit(length);
+                  while (!in.isAtEnd()) {
+                     readScalar(tagHandler, fieldNumber, fd, in);
+                  }
+                  in.popLimit(oldLimit);
                }
                break;
             }
 
             case WireFormat.WIRETYPE_START_GROUP: {
-               if (fd != null) {
-                  tagHandler.onStartNested(fieldNumber, null, null);
-                  parseMessage(tagHandler, null, in);
-                  in.checkLastTagWas(WireFormat.makeTag(fieldNumber, WireFormat.WIRETYPE_END_GROUP));
-                  tagHandler.onEndNested(fieldNumber, null, null);
-               } else {
-                  tagHandler.onStartNested(fieldNumber, fd.getName(), fd.getMessageType());
-                  parseMessage(tagHandler, fd.getMessageType(), in);
-                  in.checkLastTagWas(WireFormat.makeTag(fieldNumber, WireFormat.WIRETYPE_END_GROUP));
-                  tagHandler.onEndNested(fieldNumber, fd.getName(), fd.getMessageType());
-               }
+               Descriptor groupDescriptor = fd != null ? fd.getMessageType() : null;
+               tagHandler.onStartNested(fieldNumber, fd, groupDescriptor);
+               parseMessage(tagHandler, groupDescriptor, nestedProjection, in);
+               in.checkLastTagWas(WireFormat.makeTag(fieldNumber, WireFormat.WIRETYPE_END_GROUP));
+               tagHandler.onEndNested(fieldNumber, fd, groupDescriptor);
                break;
             }
 
             case WireFormat.WIRETYPE_FIXED32:
+               if (fd == null) {
+                  tagHandler.onInt(fieldNumber, null, in.readFixed32());
+               } else {
+                  readScalar(tagHandler, fieldNumber, fd, in);
+               }
+               break;
+
             case WireFormat.WIRETYPE_FIXED64:
-            case WireFormat.WIRETYPE_VARINT: {
                if (fd == null) {
-                  if (wireType == WireFormat.WIRETYPE_FIXED32) {
-                     tagHandler.onTag(fieldNumber, null, null, null, in.readFixed32());
-                  } else if (wireType == WireFormat.WIRETYPE_FIXED64) {
-                     tagHandler.onTag(fieldNumber, null, null, null, in.readFixed64());
-                  } else if (wireType == WireFormat.WIRETYPE_VARINT) {
-                     tagHandler.onTag(fieldNumber, null, null, null, in.readRawVarint64());
-                  }
+                  tagHandler.onLong(fieldNumber, null, in.readFixed64());
                } else {
-                  Object value;
-                  switch (fd.getType()) {
-                     case DOUBLE:
-                        value = in.readDouble();
-                        break;
-                     case FLOAT:
-                        value = in.readFloat();
-                        break;
-                     case BOOL:
-                        value = in.readBool();
-                        break;
-                     case INT32:
-                        value = in.readInt32();
-                        break;
-                     case SFIXED32:
-                        value = in.readSFixed32();
-                        break;
-                     case FIXED32:
-                        value = in.readFixed32();
-                        break;
-                     case UINT32:
-                        value = in.readUInt32();
-                        break;
-                     case SINT32:
-                        value = in.readSInt32();
-                        break;
-                     case INT64:
-                        value = in.readInt64();
-                        break;
-                     case UINT64:
-                        value = in.readUInt64();
-                        break;
-                     case FIXED64:
-                        value = in.readFixed64();
-                        break;
-                     case SFIXED64:
-                        value = in.readSFixed64();
-                        break;
-                     case SINT64:
-                        value = in.readSInt64();
-                        break;
-                     case ENUM:
-                        value = in.readEnum();
-                        break;
-                     default:
-                        throw new IOException("Unexpected field type : " + fd.getType());
-                  }
-                  tagHandler.onTag(fieldNumber, fd.getName(), fd.getType(), fd.getJavaType(), value);
+                  readScalar(tagHandler, fieldNumber, fd, in);
                }
                break;
-            }
+
+            case WireFormat.WIRETYPE_VARINT:
+               if (fd == null) {
+                  tagHandler.onLong(fieldNumber, null, in.readRawVarint64());
+               } else {
+                  readScalar(tagHandler, fieldNumber, fd, in);
+               }
+               break;
+
+            case WireFormat.WIRETYPE_END_GROUP:
+               return;
 
             default:
                throw new IOException("Found tag with invalid wire type : " + tag);
          }
       }
    }
+
+   private void readScalar(TypedTagHandler tagHandler, int fieldNumber, FieldDescriptor fd, RawProtoStreamReader in) throws IOException {
+      switch (fd.getType()) {
+         case DOUBLE:
+            tagHandler.onDouble(fieldNumber, fd, in.readDouble());
+            break;
+         case FLOAT:
+            tagHandler.onFloat(fieldNumber, fd, in.readFloat());
+            break;
+         case BOOL:
+            tagHandler.onBool(fieldNumber, fd, in.readBool());
+            break;
+         case INT32:
+            tagHandler.onInt(fieldNumber, fd, in.readInt32());
+            break;
+         case SFIXED32:
+            tagHandler.onInt(fieldNumber, fd, in.readSFixed32());
+            break;
+         case FIXED32:
+            tagHandler.onInt(fieldNumber, fd, in.readFixed32());
+            break;
+         case UINT32:
+            tagHandler.onInt(fieldNumber, fd, in.readUInt32());
+            break;
+         case SINT32:
+            tagHandler.onInt(fieldNumber, fd, in.readSInt32());
+            break;
+         case INT64:
+            tagHandler.onLong(fieldNumber, fd, in.readInt64());
+            break;
+         case UINT64:
+            tagHandler.onLong(fieldNumber, fd, in.readUInt64());
+            break;
+         case FIXED64:
+            tagHandler.onLong(fieldNumber, fd, in.readFixed64());
+            break;
+         case SFIXED64:
+            tagHandler.onLong(fieldNumber, fd, in.readSFixed64());
+            break;
+         case SINT64:
+            tagHandler.onLong(fieldNumber, fd, in.readSInt64());
+            break;
+         case ENUM:
+            tagHandler.onInt(fieldNumber, fd, in.readEnum());
+            break;
+         default:
+            throw new IOException("Unexpected field type : " + fd.getType());
+      }
+   }
 }
@@ -0,0 +1,479 @@
+package org.infinispan.protostream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
+import org.infinispan.protostream.descriptors.Type;
+import org.infinispan.protostream.impl.WireFormat;
+
+/**
+ * An incremental variant of {@link ProtobufParser} for input that arrives in fragments, as is the case with
+ * non-blocking network IO. Chunks of any size are pushed to the parser with {@link #feed(ByteBuffer)} as soon as they
+ * are available and the {@link TypedTagHandler} (or {@link TagHandler}) is notified of each field as soon as the field is complete. The parser never
+ * blocks and never needs the whole message: varints and fixed size values are decoded byte by byte across chunk
+ * boundaries and nested messages are tracked by their end positions, so the only bytes ever retained are those of a
+ * single string or bytes field in progress.
+ * <p>
+ * The buffer of a string or bytes field grows as its bytes arrive, so a bogus length prefix cannot make the parser
+ * allocate more memory than it actually received. Fields longer than a maximum field size and messages longer than a
+ * maximum message size fail the parsing as soon as their length is known.
+ * <p>
+ * The events are the same as the ones produced by {@link ProtobufParser}. A parser instance handles a single top-level
+ * message and is not thread-safe.
+ *
+ * @since 3.1
+ */
+public final class ProtobufPushParser {
+
+   public static final int DEFAULT_MAX_FIELD_SIZE = 64 * 1024 * 1024;
+
+   public static final long DEFAULT_MAX_MESSAGE_SIZE = Long.MAX_VALUE;
+
+   /**
+    * The initial capacity of the buffer of a string or bytes field, unless the field is shorter.
+    */
+   private static final int INITIAL_PAYLOAD_CAPACITY = 4096;
+
+   private enum State {
+      TAG, VARINT, FIXED32, FIXED64, LENGTH, PAYLOAD, FINISHED
+   }
+
+   /**
+    * A nested message, group or packed repeated field that is being parsed.
+    */
+   private static final class Frame {
+
+      int fieldNumber;
+
+      FieldDescriptor fd;
+
+      Descriptor messageDescriptor;
+
+      boolean packed;
+
+      /**
+       * The position after the last byte of the frame, or -1 for groups and for the top-level message, which end with a
+       * tag or with the input.
+       */
+      long end;
+   }
+
+   private final TypedTagHandler tagHandler;
+
+   private final int maxFieldSize;
+
+   private final long maxMessageSize;
+
+   private Frame[] frames = new Frame[8];
+
+   private int depth = 0;
+
+   private State state = State.TAG;
+
+   private boolean started = false;
+
+   /**
+    * Whether the parser is positioned between fields (or elements of a packed field).
+    */
+   private boolean atBoundary = true;
+
+   /**
+    * The number of bytes consumed so far.
+    */
+   private long position = 0;
+
+   private int fieldNumber;
+
+   /**
+    * The descriptor of the current field or {@code null} if the field is unknown.
+    */
+   private FieldDescriptor fd;
+
+   private long varint;
+
+   private int varintShift;
+
+   private long fixed;
+
+   private int fixedBytes;
+
+   /**
+    * The bytes of the current string or bytes field received so far. Grows up to {@link #payloadLength}.
+    */
+   private byte[] payload;
+
+   private int payloadLength;
+
+   private int payloadPos;
+
+   public ProtobufPushParser(TagHandler tagHandler, Descriptor messageDescriptor) {
+      this(new TagHandlerAdapter(tagHandler), messageDescriptor);
+   }
+
+   public ProtobufPushParser(TypedTagHandler tagHandler, Descriptor messageDescriptor) {
+      this(tagHandler, messageDescriptor, DEFAULT_MAX_FIELD_SIZE, DEFAULT_MAX_MESSAGE_SIZE);
+   }
+
+   public ProtobufPushParser(TagHandler tagHandler, Descriptor messageDescriptor, int maxFieldSize, long maxMessageSize) {
+      this(new TagHandlerAdapter(tagHandler), messageDescriptor, maxFieldSize, maxMessageSize);
+   }
+
+   /**
+    * @param tagHandler        the handler to notify
+    * @param messageDescriptor the type of the top-level message
+    * @param maxFieldSize      the maximum length of a string or bytes field
+    * @param maxMessageSize    the maximum length of the whole message
+    */
+   public ProtobufPushParser(TypedTagHandler tagHandler, Descriptor messageDescriptor, int maxFieldSize, long maxMessageSize) {
+      if (messageDescriptor == null) {
+         throw new IllegalArgumentException("messageDescriptor cannot be null");
+      }
+      if (maxFieldSize < 0) {
+         throw new IllegalArgumentException("maxFieldSize cannot be negative");
+      }
+      if (maxMessageSize < 0) {
+         throw new IllegalArgumentException("maxMessageSize cannot be negative");
+      }
+      this.tagHandler = tagHandler;
+      this.maxFieldSize = maxFieldSize;
+      this.maxMessageSize = maxMessageSize;
+      Frame root = new Frame();
+      root.messageDescriptor = messageDescriptor;
+      root.end = -1;
+      frames[0] = root;
+   }
+
+   /**
+    * Parses all remaining bytes of the given chunk, advancing its position to its limit.
+    */
+   public void feed(ByteBuffer chunk) throws IOException {
+      if (state == State.FINISHED) {
+         throw new IllegalStateException("The parser was already finished");
+      }
+      if (!started) {
+         started = true;
+         tagHandler.onStart();
+      }
+      if (chunk.remaining() > maxMessageSize - position) {
+         throw new IOException("The message exceeds the maximum size of " + maxMessageSize + " bytes");
+      }
+      while (true) {
+         endCompletedFrames();
+         if (!chunk.hasRemaining()) {
+            return;
+         }
+         switch (state) {
+            case TAG:
+               if (readVarint(chunk)) {
+                  onTag((int) varint);
+               }
+               break;
+            case VARINT:
+               if (readVarint(chunk)) {
+                  onValue(WireFormat.WIRETYPE_VARINT, varint);
+               }
+               break;
+            case FIXED32:
+               if (readFixed(chunk, WireFormat.FIXED_32_SIZE)) {
+                  onValue(WireFormat.WIRETYPE_FIXED32, fixed);
+               }
+               break;
+            case FIXED64:
+               if (readFixed(chunk, WireFormat.FIXED_64_SIZE)) {
+                  onValue(WireFormat.WIRETYPE_FIXED64, fixed);
+               }
+               break;
+            case LENGTH:
+               if (readVarint(chunk)) {
+                  onLength(varint);
+               }
+               break;
+            case PAYLOAD:
+               if (readPayload(chunk)) {
+                  onPayload();
+               }
+               break;
+         }
+      }
+   }
+
+   public void feed(byte[] buf, int off, int len) throws IOException {
+      feed(ByteBuffer.wrap(buf, off, len));
+   }
+
+   /**
+    * Signals the end of the input. Fails if the input ended in the middle of a field or of a nested message.
+    */
+   public void finish() throws IOException {
+      if (state == State.FINISHED) {
+         return;
+      }
+      if (!started) {
+         started = true;
+         tagHandler.onStart();
+      }
+      endCompletedFrames();
+      if (depth != 0 || !atBoundary) {
+         throw new IOException("The input ended in the middle of a field or nested message at position " + position);
+      }
+      state = State.FINISHED;
+      tagHandler.onEnd();
+   }
+
+   private Frame top() {
+      return frames[depth];
+   }
+
+   private Frame push() {
+      if (++depth == frames.length) {
+         frames = Arrays.copyOf(frames, depth * 2);
+      }
+      Frame frame = frames[depth];
+      if (frame == null) {
+         frame = frames[depth] = new Frame();
+      }
+      return frame;
+   }
+
+   /**
+    * Pops all nested messages and packed fields whose last byte was consumed.
+    */
+   private void endCompletedFrames() {
+      while (atBoundary && depth > 0 && top().end == position) {
+         Frame frame = frames[depth--];
+         if (!frame.packed) {
+            tagHandler.onEndNested(frame.fieldNumber, frame.fd, frame.messageDescriptor);
+         }
+         state = State.TAG;
+      }
+   }
+
+   private boolean readVarint(ByteBuffer chunk) throws IOException {
+      atBoundary = false;
+      while (chunk.hasRemaining()) {
+         if (varintShift >= 64) {
+            throw new IOException("Malformed varint at position " + position);
+         }
+         byte b = chunk.get();
+         position++;
+         varint |= (long) (b & 0x7F) << varintShift;
+         varintShift += 7;
+         if (b >= 0) {
+            varintShift = 0;
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private boolean readFixed(ByteBuffer chunk, int size) {
+      atBoundary = false;
+      while (chunk.hasRemaining()) {
+         fixed |= (long) (chunk.get() & 0xFF) << (fixedBytes * 8);
+         position++;
+         if (++fixedBytes == size) {
+            fixedBytes = 0;
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private boolean readPayload(ByteBuffer chunk) {
+      int n = Math.min(payloadLength - payloadPos, chunk.remaining());
+      if (n > payload.length - payloadPos) {
+         // grow geometrically but never beyond the length of the field, so the last growth yields the exact size
+         payload = Arrays.copyOf(payload, (int) Math.min(payloadLength, Math.max(2L * payload.length, payloadPos + n)));
+      }
+      chunk.get(payload, payloadPos, n);
+      payloadPos += n;
+      position += n;
+      return payloadPos == payloadLength;
+   }
+
+   /**
+    * Checks that the value just completed did not overflow the enclosing frame.
+    */
+   private void checkWithinFrame() throws IOException {
+      long end = top().end;
+      if (end >= 0 && position > end) {
+         throw new IOException("A field overflows the length of its enclosing message at position " + position);
+      }
+   }
+
+   private void fieldDone() throws IOException {
+      checkWithinFrame();
+      varint = 0;
+      fixed = 0;
+      payload = null;
+      atBoundary = true;
+      Frame frame = top();
+      state = frame.packed ? valueState(frame.fd.getType().getWireType()) : State.TAG;
+   }
+
+   private static State valueState(int wireType) {
+      switch (wireType) {
+         case WireFormat.WIRETYPE_VARINT:
+            return State.VARINT;
+         case WireFormat.WIRETYPE_FIXED32:
+            return State.FIXED32;
+         case WireFormat.WIRETYPE_FIXED64:
+            return State.FIXED64;
+         default:
+            return State.LENGTH;
+      }
+   }
+
+   private void onTag(int tag) throws IOException {
+      varint = 0;
+      checkWithinFrame();
+      fieldNumber = WireFormat.getTagFieldNumber(tag);
+      if (fieldNumber == 0) {
+         throw new IOException("Protocol message contained an invalid tag (zero).");
+      }
+      int wireType = WireFormat.getTagWireType(tag);
+      Descriptor messageDescriptor = top().messageDescriptor;
+      fd = messageDescriptor != null ? messageDescriptor.findFieldByNumber(fieldNumber) : null;
+      switch (wireType) {
+         case WireFormat.WIRETYPE_VARINT:
+         case WireFormat.WIRETYPE_FIXED32:
+         case WireFormat.WIRETYPE_FIXED64:
+         case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+            state = valueState(wireType);
+            break;
+         case WireFormat.WIRETYPE_START_GROUP: {
+            Frame frame = push();
+            frame.fieldNumber = fieldNumber;
+            frame.fd = fd;
+            frame.messageDescriptor = fd != null ? fd.getMessageType() : null;
+            frame.packed = false;
+            frame.end = -1;
+            tagHandler.onStartNested(fieldNumber, fd, frame.messageDescriptor);
+            fieldDone();
+            break;
+         }
+         case WireFormat.WIRETYPE_END_GROUP: {
+            Frame frame = top();
+            if (depth == 0 || frame.end != -1 || frame.fieldNumber != fieldNumber) {
+               throw new IOException("Unexpected end group tag : " + tag);
+            }
+            depth--;
+            tagHandler.onEndNested(fieldNumber, frame.fd, frame.messageDescriptor);
+            fieldDone();
+            break;
+         }
+         default:
+            throw new IOException("Found tag with invalid wire type : " + tag);
+      }
+   }
+
+   private void onValue(int wireType, long value) throws IOException {
+      if (fd == null) {
+         if (wireType == WireFormat.WIRETYPE_FIXED32) {
+            tagHandler.onInt(fieldNumber, null, (int) value);
+         } else {
+            tagHandler.onLong(fieldNumber, null, value);
+         }
+      } else {
+         if (fd.getType().getWireType() != wireType) {
+            throw new IOException("Unexpected wire type " + wireType + " for field " + fd.getFullName());
+         }
+         onScalar(value);
+      }
+      fieldDone();
+   }
+
+   private void onScalar(long value) throws IOException {
+      switch (fd.getType()) {
+         case DOUBLE:
+            tagHandler.onDouble(fieldNumber, fd, Double.longBitsToDouble(value));
+            break;
+         case FLOAT:
+            tagHandler.onFloat(fieldNumber, fd, Float.intBitsToFloat((int) value));
+            break;
+         case BOOL:
+            tagHandler.onBool(fieldNumber, fd, value != 0);
+            break;
+         case INT32:
+         case SFIXED32:
+         case FIXED32:
+         case UINT32:
+         case ENUM:
+            tagHandler.onInt(fieldNumber, fd, (int) value);
+            break;
+         case SINT32:
+            tagHandler.onInt(fieldNumber, fd, ((int) value >>> 1) ^ -((int) value & 1));
+            break;
+         case INT64:
+         case UINT64:
+         case FIXED64:
+         case SFIXED64:
+            tagHandler.onLong(fieldNumber, fd, value);
+            break;
+         case SINT64:
+            tagHandler.onLong(fieldNumber, fd, (value >>> 1) ^ -(value & 1));
+            break;
+         default:
+            throw new IOException("Unexpected field type : " + fd.getType());
+      }
+   }
+
+   private void onLength(long value) throws IOException {
+      varint = 0;
+      if (value < 0 || value > Integer.MAX_VALUE) {
+         throw new IOException("Invalid length " + value + " at position " + position);
+      }
+      int length = (int) value;
+      long end = top().end;
+      if (end >= 0 && position + length > end) {
+         throw new IOException("A field overflows the length of its enclosing message at position " + position);
+      }
+      if (length > maxMessageSize - position) {
+         throw new IOException("The message exceeds the maximum size of " + maxMessageSize + " bytes");
+      }
+      if (fd != null && fd.getType() == Type.MESSAGE) {
+         Frame frame = push();
+         frame.fieldNumber = fieldNumber;
+         frame.fd = fd;
+         frame.messageDescriptor = fd.getMessageType();
+         frame.packed = false;
+         frame.end = position + length;
+         tagHandler.onStartNested(fieldNumber, fd, frame.messageDescriptor);
+         fieldDone();
+      } else if (fd != null && fd.getType().isPackable()) {
+         Frame frame = push();
+         frame.fieldNumber = fieldNumber;
+         frame.fd = fd;
+         frame.messageDescriptor = null;
+         frame.packed = true;
+         frame.end = position + length;
+         fieldDone();
+      } else if (fd == null || fd.getType() == Type.STRING || fd.getType() == Type.BYTES) {
+         if (length > maxFieldSize) {
+            throw new IOException("The length " + length + " at position " + position + " exceeds the maximum field size of " + maxFieldSize + " bytes");
+         }
+         payload = new byte[Math.min(length, INITIAL_PAYLOAD_CAPACITY)];
+         payloadLength = length;
+         payloadPos = 0;
+         state = State.PAYLOAD;
+         if (length == 0) {
+            onPayload();
+         }
+      } else {
+         throw new IOException("Unexpected length delimited value for field " + fd.getFullName());
+      }
+   }
+
+   private void onPayload() throws IOException {
+      if (fd != null && fd.getType() == Type.STRING) {
+         tagHandler.onString(fieldNumber, fd, new String(payload, StandardCharsets.UTF_8));
+      } else {
+         tagHandler.onBytes(fieldNumber, fd, payload);
+      }
+      fieldDone();
+   }
+}
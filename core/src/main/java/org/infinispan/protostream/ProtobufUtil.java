@@ -1,15 +1,16 @@
 package org.infinispan.protostream;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
 
 import org.infinispan.protostream.config.Configuration;
 import org.infinispan.protostream.impl.BaseMarshallerDelegate;
-import org.infinispan.protostream.impl.ByteArrayOutputStreamEx;
+import org.infinispan.protostream.impl.MessageViewImpl;
 import org.infinispan.protostream.impl.RawProtoStreamReaderImpl;
 import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
 import org.infinispan.protostream.impl.SerializationContextImpl;
@@ -51,16 +52,107 @@ public final class ProtobufUtil {
       writeTo(ctx, RawProtoStreamWriterImpl.newInstance(out), t);
    }
 
+   /**
+    * Computes the exact size of the encoding of an object, without actually encoding it.
+    *
+    * @return the size in bytes or -1 if it cannot be known in advance, because the object has fields that are written
+    * from an {@link InputStream}
+    * @since 3.1
+    */
+   public static int computeSize(SerializationContext ctx, Object t) throws IOException {
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.computeSize(t);
+      }
+   }
+
+   /**
+    * Same as {@link #computeSize} but for the wrapped encoding produced by {@link #toWrappedByteArray}.
+    *
+    * @since 3.1
+    */
+   public static int computeWrappedSize(SerializationContext ctx, Object t) throws IOException {
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.computeWrappedSize(t);
+      }
+   }
+
    public static byte[] toByteArray(SerializationContext ctx, Object t) throws IOException {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      writeTo(ctx, baos, t);
-      return baos.toByteArray();
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.toByteArray(t);
+      }
    }
 
    public static ByteBuffer toByteBuffer(SerializationContext ctx, Object t) throws IOException {
-      ByteArrayOutputStreamEx baos = new ByteArrayOutputStreamEx();
-      writeTo(ctx, baos, t);
-      return baos.getByteBuffer();
+      return ByteBuffer.wrap(toByteArray(ctx, t));
+   }
+
+   /**
+    * Marshalls an object to direct memory, using buffers from the {@link DirectBufferPool#getDefault() default pool}.
+    * The returned chain must be closed after being written out.
+    *
+    * @since 3.1
+    */
+   public static ByteBufferChain toByteBufferChain(SerializationContext ctx, Object t) throws IOException {
+      return toByteBufferChain(ctx, t, DirectBufferPool.getDefault());
+   }
+
+   /**
+    * Marshalls an object to direct memory, using buffers from the given pool. The returned chain must be closed after
+    * being written out.
+    *
+    * @since 3.1
+    */
+   public static ByteBufferChain toByteBufferChain(SerializationContext ctx, Object t, DirectBufferPool pool) throws IOException {
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.toByteBufferChain(t, pool);
+      }
+   }
+
+   /**
+    * Writes an object prefixed by its length, so that a sequence of objects can be written to the same output. The
+    * output is not flushed.
+    *
+    * @since 3.1
+    */
+   public static void writeDelimitedTo(SerializationContext ctx, RawProtoStreamWriter out, Object t) throws IOException {
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         session.writeDelimitedTo(out, t);
+      }
+   }
+
+   /**
+    * Reads one object written by {@link #writeDelimitedTo}. The caller is expected to check {@link
+    * RawProtoStreamReader#isAtEnd()} before reading the next one.
+    *
+    * @since 3.1
+    */
+   public static <A> A readDelimitedFrom(SerializationContext ctx, RawProtoStreamReader in, Class<A> clazz) throws IOException {
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.readDelimitedFrom(in, clazz);
+      }
+   }
+
+   /**
+    * Lazily reads all the objects written by {@link #writeDelimitedTo} until the end of the input. Read failures are
+    * thrown as {@link java.io.UncheckedIOException}s.
+    *
+    * @since 3.1
+    */
+   public static <A> Iterator<A> readDelimitedIterator(SerializationContext ctx, RawProtoStreamReader in, Class<A> clazz) {
+      if (clazz == null) {
+         throw new IllegalArgumentException("clazz cannot be null");
+      }
+      return new DelimitedMessageIterator<>(ctx, in, clazz);
+   }
+
+   /**
+    * Same as {@link #readDelimitedIterator} but as a sequential {@link Spliterator}, for use with {@link
+    * java.util.stream.StreamSupport#stream(Spliterator, boolean)}.
+    *
+    * @since 3.1
+    */
+   public static <A> Spliterator<A> readDelimitedSpliterator(SerializationContext ctx, RawProtoStreamReader in, Class<A> clazz) {
+      return Spliterators.spliteratorUnknownSize(readDelimitedIterator(ctx, in, clazz), Spliterator.ORDERED | Spliterator.NONNULL);
    }
 
    private static <A> A readFrom(SerializationContext ctx, RawProtoStreamReader in, Class<A> clazz) throws IOException {
@@ -73,16 +165,22 @@ public final class ProtobufUtil {
    }
 
    public static <A> A fromByteArray(SerializationContext ctx, byte[] bytes, Class<A> clazz) throws IOException {
-      return readFrom(ctx, RawProtoStreamReaderImpl.newInstance(bytes), clazz);
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.fromByteArray(bytes, clazz);
+      }
    }
 
    //todo [anistor] what happens with remaining trailing bytes? signal error?
    public static <A> A fromByteArray(SerializationContext ctx, byte[] bytes, int offset, int length, Class<A> clazz) throws IOException {
-      return readFrom(ctx, RawProtoStreamReaderImpl.newInstance(bytes, offset, length), clazz);
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.fromByteArray(bytes, offset, length, clazz);
+      }
    }
 
    public static <A> A fromByteBuffer(SerializationContext ctx, ByteBuffer byteBuffer, Class<A> clazz) throws IOException {
-      return readFrom(ctx, RawProtoStreamReaderImpl.newInstance(byteBuffer), clazz);
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.fromByteBuffer(byteBuffer, clazz);
+      }
    }
 
    /**
@@ -99,23 +197,112 @@ public final class ProtobufUtil {
    }
 
    public static Object fromWrappedByteArray(SerializationContext ctx, byte[] bytes, int offset, int length) throws IOException {
-      ByteArrayInputStream bais = new ByteArrayInputStream(bytes, offset, length);
-      return WrappedMessage.readMessage(ctx, RawProtoStreamReaderImpl.newInstance(bais));
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.fromWrappedByteArray(bytes, offset, length);
+      }
    }
 
    public static Object fromWrappedByteBuffer(SerializationContext ctx, ByteBuffer byteBuffer) throws IOException {
-      return WrappedMessage.readMessage(ctx, RawProtoStreamReaderImpl.newInstance(byteBuffer));
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.fromWrappedByteBuffer(byteBuffer);
+      }
+   }
+
+   /**
+    * Creates a lazily decoded view of a message that only requires the message type to be known to the context, not a
+    * marshaller.
+    *
+    * @since 3.1
+    */
+   public static MessageView newMessageView(SerializationContext ctx, String typeName, byte[] bytes) {
+      return MessageViewImpl.newInstance(ctx.getMessageDescriptor(typeName), bytes);
+   }
+
+   public static MessageView newMessageView(SerializationContext ctx, String typeName, ByteBuffer byteBuffer) {
+      return MessageViewImpl.newInstance(ctx.getMessageDescriptor(typeName), byteBuffer);
+   }
+
+   /**
+    * Same as {@link #newMessageView} but for the wrapped encoding. The type of the message is taken from the encoding.
+    *
+    * @return the view or {@code null} if the wrapped value is not a message
+    * @since 3.1
+    */
+   public static MessageView newWrappedMessageView(SerializationContext ctx, byte[] bytes) throws IOException {
+      return MessageViewImpl.newWrappedInstance(ctx, ByteBuffer.wrap(bytes));
+   }
+
+   public static MessageView newWrappedMessageView(SerializationContext ctx, ByteBuffer byteBuffer) throws IOException {
+      return MessageViewImpl.newWrappedInstance(ctx, byteBuffer);
    }
 
    public static byte[] toWrappedByteArray(SerializationContext ctx, Object t) throws IOException {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      WrappedMessage.writeMessage(ctx, RawProtoStreamWriterImpl.newInstance(baos), t);
-      return baos.toByteArray();
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.toWrappedByteArray(t);
+      }
+   }
+
+   /**
+    * Same as {@link #writeDelimitedTo} but for the wrapped encoding.
+    *
+    * @since 3.1
+    */
+   public static void writeWrappedDelimitedTo(SerializationContext ctx, RawProtoStreamWriter out, Object t) throws IOException {
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         session.writeWrappedDelimitedTo(out, t);
+      }
+   }
+
+   /**
+    * Same as {@link #readDelimitedFrom} but for the wrapped encoding.
+    *
+    * @since 3.1
+    */
+   public static Object readWrappedDelimitedFrom(SerializationContext ctx, RawProtoStreamReader in) throws IOException {
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.readWrappedDelimitedFrom(in);
+      }
+   }
+
+   /**
+    * Same as {@link #readDelimitedIterator} but for the wrapped encoding. The elements can be {@code null}.
+    *
+    * @since 3.1
+    */
+   public static Iterator<Object> readWrappedDelimitedIterator(SerializationContext ctx, RawProtoStreamReader in) {
+      return new DelimitedMessageIterator<>(ctx, in, null);
+   }
+
+   /**
+    * Same as {@link #readDelimitedSpliterator} but for the wrapped encoding. The elements can be {@code null}.
+    *
+    * @since 3.1
+    */
+   public static Spliterator<Object> readWrappedDelimitedSpliterator(SerializationContext ctx, RawProtoStreamReader in) {
+      return Spliterators.spliteratorUnknownSize(readWrappedDelimitedIterator(ctx, in), Spliterator.ORDERED);
    }
 
    public static ByteBuffer toWrappedByteBuffer(SerializationContext ctx, Object t) throws IOException {
-      ByteArrayOutputStreamEx baos = new ByteArrayOutputStreamEx();
-      WrappedMessage.writeMessage(ctx, RawProtoStreamWriterImpl.newInstance(baos), t);
-      return baos.getByteBuffer();
+      return ByteBuffer.wrap(toWrappedByteArray(ctx, t));
+   }
+
+   /**
+    * Same as {@link #toByteBufferChain(SerializationContext, Object)} but for the wrapped encoding.
+    *
+    * @since 3.1
+    */
+   public static ByteBufferChain toWrappedByteBufferChain(SerializationContext ctx, Object t) throws IOException {
+      return toWrappedByteBufferChain(ctx, t, DirectBufferPool.getDefault());
+   }
+
+   /**
+    * Same as {@link #toByteBufferChain(SerializationContext, Object, DirectBufferPool)} but for the wrapped encoding.
+    *
+    * @since 3.1
+    */
+   public static ByteBufferChain toWrappedByteBufferChain(SerializationContext ctx, Object t, DirectBufferPool pool) throws IOException {
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         return session.toWrappedByteBufferChain(t, pool);
+      }
    }
 }
@@ -56,4 +56,9 @@ public interface RawProtoStreamReader {
    int pushLimit(int byteLimit) throws IOException;
 
    void popLimit(int oldLimit);
+
+   /**
+    * Checks if the end of the input or the current limit was reached.
+    */
+   boolean isAtEnd() throws IOException;
 }
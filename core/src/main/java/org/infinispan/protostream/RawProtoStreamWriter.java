@@ -17,6 +17,10 @@ public interface RawProtoStreamWriter {
 
    void writeUInt64NoTag(long value) throws IOException;
 
+   void writeFixed32NoTag(int value) throws IOException;
+
+   void writeFixed64NoTag(long value) throws IOException;
+
    void writeString(int number, String value) throws IOException;
 
    void writeInt32(int number, int value) throws IOException;
@@ -85,4 +85,12 @@ public interface SerializationContext { //todo [anistor] split this into separat
     * @throws IllegalArgumentException if the given type name is unknown
     */
    Integer getTypeIdByName(String descriptorFullName);
+
+   /**
+    * Obtains a {@link MarshallingSession} from a pool of reusable sessions, or a new one if the pool is empty. The
+    * session must be closed after use to return it to the pool.
+    *
+    * @return a session confined to the calling thread until closed
+    */
+   MarshallingSession openMarshallingSession();
 }
@@ -0,0 +1,30 @@
+package org.infinispan.protostream;
+
+import java.io.IOException;
+
+/**
+ * Registers a Protocol Buffers schema and the marshallers of its types with a {@link SerializationContext}.
+ * Implementations are usually generated at compile time from {@link org.infinispan.protostream.annotations.ProtoField}
+ * annotated classes, see {@link org.infinispan.protostream.annotations.AutoProtoSchemaBuilder}.
+ *
+ * @since 3.1
+ */
+public interface SerializationContextInitializer {
+
+   /**
+    * The name under which the schema is registered.
+    */
+   String getProtoFileName();
+
+   /**
+    * The text of the schema.
+    */
+   String getProtoFile();
+
+   /**
+    * Registers the schema. This must be done before registering the marshallers.
+    */
+   void registerSchema(SerializationContext serCtx) throws IOException;
+
+   void registerMarshallers(SerializationContext serCtx);
+}
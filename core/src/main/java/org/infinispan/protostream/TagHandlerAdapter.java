@@ -0,0 +1,87 @@
+package org.infinispan.protostream;
+
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
+import org.infinispan.protostream.descriptors.JavaType;
+import org.infinispan.protostream.descriptors.Type;
+
+/**
+ * Forwards the events of a {@link TypedTagHandler} to a {@link TagHandler}, boxing the values.
+ *
+ * @since 3.1
+ */
+final class TagHandlerAdapter implements TypedTagHandler {
+
+   private final TagHandler tagHandler;
+
+   TagHandlerAdapter(TagHandler tagHandler) {
+      this.tagHandler = tagHandler;
+   }
+
+   private void onTag(int fieldNumber, FieldDescriptor fd, Object value) {
+      if (fd == null) {
+         tagHandler.onTag(fieldNumber, null, null, null, value);
+      } else {
+         tagHandler.onTag(fieldNumber, fd.getName(), fd.getType(), fd.getJavaType(), value);
+      }
+   }
+
+   @Override
+   public void onStart() {
+      tagHandler.onStart();
+   }
+
+   @Override
+   public void onInt(int fieldNumber, FieldDescriptor fieldDescriptor, int value) {
+      onTag(fieldNumber, fieldDescriptor, value);
+   }
+
+   @Override
+   public void onLong(int fieldNumber, FieldDescriptor fieldDescriptor, long value) {
+      onTag(fieldNumber, fieldDescriptor, value);
+   }
+
+   @Override
+   public void onDouble(int fieldNumber, FieldDescriptor fieldDescriptor, double value) {
+      onTag(fieldNumber, fieldDescriptor, value);
+   }
+
+   @Override
+   public void onFloat(int fieldNumber, FieldDescriptor fieldDescriptor, float value) {
+      onTag(fieldNumber, fieldDescriptor, value);
+   }
+
+   @Override
+   public void onBool(int fieldNumber, FieldDescriptor fieldDescriptor, boolean value) {
+      onTag(fieldNumber, fieldDescriptor, value);
+   }
+
+   @Override
+   public void onString(int fieldNumber, FieldDescriptor fieldDescriptor, String value) {
+      onTag(fieldNumber, fieldDescriptor, value);
+   }
+
+   @Override
+   public void onBytes(int fieldNumber, FieldDescriptor fieldDescriptor, byte[] value) {
+      if (fieldDescriptor == null) {
+         tagHandler.onTag(fieldNumber, null, Type.BYTES, JavaType.BYTE_STRING, value);
+      } else {
+         onTag(fieldNumber, fieldDescriptor, value);
+      }
+   }
+
+   @Override
+   public void onStartNested(int fieldNumber, FieldDescriptor fieldDescriptor, Descriptor messageDescriptor) {
+      tagHandler.onStartNested(fieldNumber, fieldDescriptor != null ? fieldDescriptor.getName() : null, messageDescriptor);
+   }
+
+   @Override
+   public void onEndNested(int fieldNumber, FieldDescriptor fieldDescriptor, Descriptor messageDescriptor) {
+      tagHandler.onEndNested(fieldNumber, fieldDescriptor != null ? fieldDescriptor.getName() : null, messageDescriptor);
+   }
+
+   @Override
+   public void onEnd() {
+      tagHandler.onEnd();
+   }
+}
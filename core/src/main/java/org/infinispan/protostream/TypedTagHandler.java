@@ -0,0 +1,46 @@
+package org.infinispan.protostream;
+
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
+
+/**
+ * An event based interface for consuming (read only) protobuf streams, having a separate callback for each kind of
+ * value so that scalars are delivered without boxing. This is the preferred alternative to {@link TagHandler}, which
+ * remains supported by {@link ProtobufParser} and {@link ProtobufPushParser} through an adapter.
+ * <p>
+ * The field descriptor is {@code null} for fields that are not defined by the message descriptor. Unknown varint and
+ * fixed64 fields are reported by {@link #onLong}, unknown fixed32 fields by {@link #onInt} and unknown length delimited
+ * fields by {@link #onBytes}.
+ *
+ * @since 3.1
+ */
+public interface TypedTagHandler {
+
+   void onStart();
+
+   /**
+    * Receives int32, uint32, sint32, fixed32, sfixed32 and enum values.
+    */
+   void onInt(int fieldNumber, FieldDescriptor fieldDescriptor, int value);
+
+   /**
+    * Receives int64, uint64, sint64, fixed64 and sfixed64 values.
+    */
+   void onLong(int fieldNumber, FieldDescriptor fieldDescriptor, long value);
+
+   void onDouble(int fieldNumber, FieldDescriptor fieldDescriptor, double value);
+
+   void onFloat(int fieldNumber, FieldDescriptor fieldDescriptor, float value);
+
+   void onBool(int fieldNumber, FieldDescriptor fieldDescriptor, boolean value);
+
+   void onString(int fieldNumber, FieldDescriptor fieldDescriptor, String value);
+
+   void onBytes(int fieldNumber, FieldDescriptor fieldDescriptor, byte[] value);
+
+   void onStartNested(int fieldNumber, FieldDescriptor fieldDescriptor, Descriptor messageDescriptor);
+
+   void onEndNested(int fieldNumber, FieldDescriptor fieldDescriptor, Descriptor messageDescriptor);
+
+   void onEnd();
+}
@@ -72,9 +72,10 @@ public final class WrappedMessage {
          out.writeBytes(WRAPPED_BYTES, (byte[]) t);
       } else if (t instanceof Enum) {
          // use an enum encoder
-         EnumMarshaller enumMarshaller = (EnumMarshaller) ctx.getMarshaller((Class<Enum>) t.getClass());
+         BaseMarshallerDelegate marshallerDelegate = ((SerializationContextImpl) ctx).getMarshallerDelegate(t.getClass());
+         EnumMarshaller enumMarshaller = (EnumMarshaller) marshallerDelegate.getMarshaller();
          int encodedEnum = enumMarshaller.encode((Enum) t);
-         Integer typeId = ctx.getTypeIdByName(enumMarshaller.getTypeName());
+         Integer typeId = marshallerDelegate.getTypeId();
          if (typeId == null) {
             out.writeString(WRAPPED_DESCRIPTOR_FULL_NAME, enumMarshaller.getTypeName());
          } else {
@@ -85,27 +86,36 @@ public final class WrappedMessage {
          // this is either an unknown primitive type or a message type
          // try to use a message marshaller
          BaseMarshallerDelegate marshallerDelegate = ((SerializationContextImpl) ctx).getMarshallerDelegate(t.getClass());
-         ByteArrayOutputStreamEx buffer = new ByteArrayOutputStreamEx();
-         RawProtoStreamWriter nestedOut = RawProtoStreamWriterImpl.newInstance(buffer);
-         marshallerDelegate.marshall(null, t, null, nestedOut);
-         nestedOut.flush();
-
-         Integer typeId = ctx.getTypeIdByName(marshallerDelegate.getMarshaller().getTypeName());
+         Integer typeId = marshallerDelegate.getTypeId();
          if (typeId == null) {
             out.writeString(WRAPPED_DESCRIPTOR_FULL_NAME, marshallerDelegate.getMarshaller().getTypeName());
          } else {
             out.writeInt32(WRAPPED_DESCRIPTOR_ID, typeId);
          }
-         out.writeBytes(WRAPPED_MESSAGE_BYTES, buffer.getByteBuffer());
+
+         if (out instanceof RawProtoStreamWriterImpl) {
+            // write it in place and fill in the length prefix afterwards
+            RawProtoStreamWriterImpl outImpl = (RawProtoStreamWriterImpl) out;
+            int handle = outImpl.startNested(WRAPPED_MESSAGE_BYTES);
+            marshallerDelegate.marshall(null, t, null, outImpl);
+            outImpl.endNested(handle);
+         } else {
+            ByteArrayOutputStreamEx buffer = new ByteArrayOutputStreamEx();
+            RawProtoStreamWriter nestedOut = RawProtoStreamWriterImpl.newInstance(buffer);
+            marshallerDelegate.marshall(null, t, null, nestedOut);
+            nestedOut.flush();
+            out.writeBytes(WRAPPED_MESSAGE_BYTES, buffer.getByteBuffer());
+         }
       }
       out.flush();
    }
 
    public static Object readMessage(SerializationContext ctx, RawProtoStreamReader in) throws IOException {
       String descriptorFullName = null;
-      Integer typeId = null;
+      boolean hasTypeId = false;
+      int typeId = 0;
       int enumValue = -1;
-      byte[] messageBytes = null;
+      RawProtoStreamReader messageInput = null;
       Object value = null;
       int readTags = 0;
 
@@ -118,12 +128,14 @@ public final class WrappedMessage {
                break;
             case WRAPPED_DESCRIPTOR_ID << 3 | WireFormat.WIRETYPE_VARINT:
                typeId = in.readInt32();
+               hasTypeId = true;
                break;
             case WRAPPED_ENUM << 3 | WireFormat.WIRETYPE_VARINT:
                enumValue = in.readEnum();
                break;
             case WRAPPED_MESSAGE_BYTES << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED:
-               messageBytes = in.readByteArray();
+               messageInput = in instanceof RawProtoStreamReaderImpl ? ((RawProtoStreamReaderImpl) in).readNestedReader()
+                     : RawProtoStreamReaderImpl.newInstance(in.readByteArray());
                break;
             case WRAPPED_STRING << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED:
                value = in.readString();
@@ -175,7 +187,7 @@ public final class WrappedMessage {
          }
       }
 
-      if (value == null && descriptorFullName == null && typeId == null && messageBytes == null) {
+      if (value == null && descriptorFullName == null && !hasTypeId && messageInput == null) {
          return null;
       }
 
@@ -186,18 +198,15 @@ public final class WrappedMessage {
          return value;
       }
 
-      if (descriptorFullName == null && typeId == null || descriptorFullName != null && typeId != null || readTags != 2) {
+      if (descriptorFullName == null && !hasTypeId || descriptorFullName != null && hasTypeId || readTags != 2) {
          throw new IOException("Invalid message encoding.");
       }
 
-      if (typeId != null) {
-         descriptorFullName = ctx.getTypeNameById(typeId);
-      }
-      BaseMarshallerDelegate marshallerDelegate = ((SerializationContextImpl) ctx).getMarshallerDelegate(descriptorFullName);
-      if (messageBytes != null) {
+      BaseMarshallerDelegate marshallerDelegate = hasTypeId ? ((SerializationContextImpl) ctx).getMarshallerDelegate(typeId)
+            : ((SerializationContextImpl) ctx).getMarshallerDelegate(descriptorFullName);
+      if (messageInput != null) {
          // it's a Message type
-         RawProtoStreamReader nestedInput = RawProtoStreamReaderImpl.newInstance(messageBytes);
-         return marshallerDelegate.unmarshall(null, null, nestedInput);
+         return marshallerDelegate.unmarshall(null, null, messageInput);
       } else {
          // it's an Enum
          EnumMarshaller marshaller = (EnumMarshaller) marshallerDelegate.getMarshaller();
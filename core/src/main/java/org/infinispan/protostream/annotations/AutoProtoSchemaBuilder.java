@@ -0,0 +1,43 @@
+package org.infinispan.protostream.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a Protocol Buffers schema and the marshallers of a set of {@link ProtoField} annotated classes at compile
+ * time, instead of at runtime as {@link ProtoSchemaBuilder} does. The annotation processor of the
+ * {@code protostream-processor} artifact must be present on the compile time classpath.
+ * <p>
+ * The annotated type must be an interface or an abstract class that extends {@link
+ * org.infinispan.protostream.SerializationContextInitializer}. The processor generates a concrete implementation of it
+ * in the same package, plus the schema file as a resource of the same name and one marshaller source per type.
+ *
+ * @since 3.1
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.CLASS)
+public @interface AutoProtoSchemaBuilder {
+
+   /**
+    * The simple name of the generated class. If missing, the name of the annotated type suffixed with {@code Impl}.
+    */
+   String className() default "";
+
+   /**
+    * The name of the generated schema file, also used as the resource name relative to the package of the annotated
+    * type.
+    */
+   String schemaFileName();
+
+   /**
+    * The Protobuf package of the generated schema, if any.
+    */
+   String schemaPackageName() default "";
+
+   /**
+    * The annotated classes and enums to process. The types they refer to are included too.
+    */
+   Class<?>[] includeClasses();
+}
@@ -35,4 +35,13 @@ public @interface ProtoField {
    Class<?> javaType() default void.class;
 
    Class<? extends Collection> collectionImplementation() default Collection.class;
+
+   /**
+    * Use the packed encoding for a repeated field of a scalar numeric, boolean or enum type. All elements are then
+    * written as a single length-delimited record instead of one tagged record per element. Must not be used on other
+    * kinds of fields.
+    *
+    * @since 3.1
+    */
+   boolean packed() default false;
 }
@@ -4,7 +4,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Properties;
 import java.util.Set;
 
@@ -41,7 +41,7 @@ public final class ProtoSchemaBuilder {
 
    private String packageName;
 
-   private final Set<Class<?>> classes = new HashSet<>();
+   private final Set<Class<?>> classes = new LinkedHashSet<>();
 
    public static void main(String[] args) throws Exception {
       Option f = new Option("f", "file", true, "output file name");
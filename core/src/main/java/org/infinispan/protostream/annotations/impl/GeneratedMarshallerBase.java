@@ -38,6 +38,17 @@ public class GeneratedMarshallerBase {
     * Invoked by generated code.
     */
    protected final <T> void writeNestedMessage(BaseMarshallerDelegate<T> marshallerDelegate, RawProtoStreamWriter out, int fieldNumber, T message) throws IOException {
+      if (out instanceof RawProtoStreamWriterImpl) {
+         // write it in place and fill in the length prefix afterwards
+         if (message == null) {
+            throw new IllegalArgumentException("Object to marshall cannot be null");
+         }
+         RawProtoStreamWriterImpl outImpl = (RawProtoStreamWriterImpl) out;
+         int handle = outImpl.startNested(fieldNumber);
+         marshallerDelegate.marshall(null, message, null, outImpl);
+         outImpl.endNested(handle);
+         return;
+      }
       ByteArrayOutputStreamEx baos = new ByteArrayOutputStreamEx();
       RawProtoStreamWriter nested = RawProtoStreamWriterImpl.newInstance(baos);
       writeMessage(marshallerDelegate, nested, message);
@@ -12,6 +12,7 @@ import org.infinispan.protostream.RawProtobufMarshaller;
 import org.infinispan.protostream.SerializationContext;
 import org.infinispan.protostream.annotations.ProtoSchemaBuilderException;
 import org.infinispan.protostream.descriptors.JavaType;
+import org.infinispan.protostream.descriptors.Type;
 import org.infinispan.protostream.impl.BaseMarshallerDelegate;
 import org.infinispan.protostream.impl.EnumMarshallerDelegate;
 import org.infinispan.protostream.impl.Log;
@@ -171,6 +172,20 @@ final class MarshallerCodeGenerator {
       return "__c$" + fieldMetadata.getName();
    }
 
+   private String makeArraySizeLocalVar(ProtoFieldMetadata fieldMetadata) {
+      return "__n$" + fieldMetadata.getName();
+   }
+
+   /**
+    * Repeated fields mapped to arrays of these primitive types are accumulated directly into a primitive array
+    * during unmarshalling instead of going through a collection of boxed values.
+    */
+   private boolean isUnboxedArray(ProtoFieldMetadata fieldMetadata) {
+      Class<?> javaType = fieldMetadata.getJavaType();
+      return fieldMetadata.isArray()
+            && (javaType == Integer.TYPE || javaType == Long.TYPE || javaType == Double.TYPE || javaType == Float.TYPE);
+   }
+
    private String makeMarshallerDelegateFieldName(ProtoFieldMetadata fieldMetadata) {
       return "__md$" + fieldMetadata.getJavaType().getCanonicalName().replace('.', '$');
    }
@@ -260,7 +275,10 @@ final class MarshallerCodeGenerator {
          if (fieldMetadata.isRequired() || fieldMetadata.getDefaultValue() != null) {
             iw.append("boolean ").append(makeFieldWasSetFlag(fieldMetadata)).append(" = false;\n");
          }
-         if (fieldMetadata.isRepeated()) {
+         if (isUnboxedArray(fieldMetadata)) {
+            iw.append(fieldMetadata.getJavaType().getName()).append("[] ").append(makeCollectionLocalVar(fieldMetadata)).append(" = null;\n");
+            iw.append("int ").append(makeArraySizeLocalVar(fieldMetadata)).append(" = 0;\n");
+         } else if (fieldMetadata.isRepeated()) {
             String c = makeCollectionLocalVar(fieldMetadata);
             String collectionImpl = fieldMetadata.isArray() ? "java.util.ArrayList" : fieldMetadata.getCollectionImplementation().getName();
             iw.append(collectionImpl).append(' ').append(c).append(" = null;\n");
@@ -280,79 +298,28 @@ final class MarshallerCodeGenerator {
       for (ProtoFieldMetadata fieldMetadata : messageTypeMetadata.getFields().values()) {
          iw.append("case ").append(String.valueOf(fieldMetadata.getNumber() << 3 | fieldMetadata.getProtobufType().getWireType())).append(":\n");
          iw.inc();
-         switch (fieldMetadata.getProtobufType()) {
-            case DOUBLE:
-            case FLOAT:
-            case INT64:
-            case UINT64:
-            case INT32:
-            case FIXED64:
-            case FIXED32:
-            case BOOL:
-            case STRING:
-            case BYTES:
-            case UINT32:
-            case SFIXED32:
-            case SFIXED64:
-            case SINT32:
-            case SINT64:
-               iw.append("{\n");
-               iw.inc();
-               iw.append(fieldMetadata.getJavaType().getName()).append(" v = ").append(box("$2." + makeStreamIOMethodName(fieldMetadata, false) + "()", fieldMetadata.getJavaType())).append(";\n");
-               genSetField(iw, fieldMetadata);
-               iw.dec();
-               iw.append("}\n");
-               break;
-            case GROUP:
-               iw.append("{\n");
-               iw.inc();
-               initMarshallerDelegateField(iw, fieldMetadata);
-               iw.append(fieldMetadata.getJavaType().getName()).append(" v = (").append(fieldMetadata.getJavaType().getName()).append(") readMessage(").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(", $2);\n");
-               iw.append("$2.checkLastTagWas(").append(String.valueOf(fieldMetadata.getNumber() << 3 | org.infinispan.protostream.impl.WireFormat.WIRETYPE_END_GROUP)).append(");\n");
-               genSetField(iw, fieldMetadata);
-               iw.dec();
-               iw.append("}\n");
-               break;
-            case MESSAGE:
-               iw.append("{\n");
-               iw.inc();
-               initMarshallerDelegateField(iw, fieldMetadata);
-               iw.append("int length = $2.readRawVarint32();\n");
-               iw.append("int oldLimit = $2.pushLimit(length);\n");
-               iw.append(fieldMetadata.getJavaType().getName()).append(" v = (").append(fieldMetadata.getJavaType().getName()).append(") readMessage(").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(", $2);\n");
-               iw.append("$2.checkLastTagWas(0);\n");
-               iw.append("$2.popLimit(oldLimit);\n");
-               genSetField(iw, fieldMetadata);
-               iw.dec();
-               iw.append("}\n");
-               break;
-            case ENUM:
-               iw.append("{\n");
-               iw.inc();
-               initMarshallerDelegateField(iw, fieldMetadata);
-               iw.append("int enumVal = $2.readEnum();\n");
-               iw.append(fieldMetadata.getJavaType().getName()).append(" v = (").append(fieldMetadata.getJavaType().getName()).append(") ((").append(PROTOSTREAM_PACKAGE).append(".EnumMarshaller) $1.getMarshaller(").append(fieldMetadata.getJavaType().getName()).append(".class)).decode(enumVal);\n");
-               iw.append("if (v == null) {\n");
-               if (getUnknownFieldSetFieldStatement != null) {
-                  iw.inc();
-                  iw.append(PROTOSTREAM_PACKAGE).append(".UnknownFieldSet u = ").append(getUnknownFieldSetFieldStatement).append(";\n");
-                  iw.append("if (u == null) { u = new ").append(PROTOSTREAM_PACKAGE).append(".impl.UnknownFieldSetImpl(); ").append(setUnknownFieldSetFieldStatement).append("; }\n");
-                  iw.append("u.putVarintField(").append(String.valueOf(fieldMetadata.getNumber())).append(", enumVal);\n");
-                  iw.dec();
-               }
-               iw.append("} else {\n");
-               iw.inc();
-               genSetField(iw, fieldMetadata);
-               iw.dec();
-               iw.append("}\n");
-               iw.dec();
-               iw.append("}\n");
-               break;
-            default:
-               throw new IllegalStateException("Unknown field type " + fieldMetadata.getProtobufType());
-         }
+         genReadField(iw, fieldMetadata, getUnknownFieldSetFieldStatement, setUnknownFieldSetFieldStatement);
          iw.append("break;\n");
          iw.dec();
+         if (fieldMetadata.isRepeated() && fieldMetadata.getProtobufType().isPackable()) {
+            // packed input is accepted even if the field was not declared packed
+            iw.append("case ").append(String.valueOf(fieldMetadata.getNumber() << 3 | org.infinispan.protostream.impl.WireFormat.WIRETYPE_LENGTH_DELIMITED)).append(":\n");
+            iw.inc();
+            iw.append("{\n");
+            iw.inc();
+            iw.append("int length = $2.readRawVarint32();\n");
+            iw.append("int oldLimit = $2.pushLimit(length);\n");
+            iw.append("while (!$2.isAtEnd()) {\n");
+            iw.inc();
+            genReadField(iw, fieldMetadata, getUnknownFieldSetFieldStatement, setUnknownFieldSetFieldStatement);
+            iw.dec();
+            iw.append("}\n");
+            iw.append("$2.popLimit(oldLimit);\n");
+            iw.dec();
+            iw.append("}\n");
+            iw.append("break;\n");
+            iw.dec();
+         }
       }
       iw.append("default:\n");
       iw.inc();
@@ -393,7 +360,9 @@ final class MarshallerCodeGenerator {
             } else {
                v = defaultValue.toString();
             }
-            if (fieldMetadata.isRepeated()) {
+            if (isUnboxedArray(fieldMetadata)) {
+               genAddToArray(iw, fieldMetadata, v);
+            } else if (fieldMetadata.isRepeated()) {
                String c = makeCollectionLocalVar(fieldMetadata);
                String collectionImpl = fieldMetadata.isArray() ? "java.util.ArrayList" : fieldMetadata.getCollectionImplementation().getName();
                iw.append("if (").append(c).append(" == null) ").append(c).append(" = new ").append(collectionImpl).append("();\n");
@@ -406,7 +375,17 @@ final class MarshallerCodeGenerator {
          }
       }
       for (ProtoFieldMetadata fieldMetadata : messageTypeMetadata.getFields().values()) {
-         if (fieldMetadata.isRepeated()) {
+         if (isUnboxedArray(fieldMetadata)) {
+            String c = makeCollectionLocalVar(fieldMetadata);
+            String n = makeArraySizeLocalVar(fieldMetadata);
+            String elementType = fieldMetadata.getJavaType().getName();
+            iw.append("if (").append(c).append(" != null) { ");
+            iw.append("if (").append(n).append(" < ").append(c).append(".length) { ")
+                  .append(elementType).append("[] _c = new ").append(elementType).append("[").append(n).append("]; ")
+                  .append("System.arraycopy(").append(c).append(", 0, _c, 0, ").append(n).append("); ")
+                  .append(c).append(" = _c; } ");
+            iw.append("o.").append(createSetter(fieldMetadata, c)).append("; }\n");
+         } else if (fieldMetadata.isRepeated()) {
             String c = makeCollectionLocalVar(fieldMetadata);
             if (fieldMetadata.isArray()) {
                iw.append("if (").append(c).append(" != null) { ");
@@ -457,8 +436,84 @@ final class MarshallerCodeGenerator {
       return iw.toString();
    }
 
+   private void genReadField(IndentWriter iw, ProtoFieldMetadata fieldMetadata, String getUnknownFieldSetFieldStatement, String setUnknownFieldSetFieldStatement) {
+      switch (fieldMetadata.getProtobufType()) {
+         case DOUBLE:
+         case FLOAT:
+         case INT64:
+         case UINT64:
+         case INT32:
+         case FIXED64:
+         case FIXED32:
+         case BOOL:
+         case STRING:
+         case BYTES:
+         case UINT32:
+         case SFIXED32:
+         case SFIXED64:
+         case SINT32:
+         case SINT64:
+            iw.append("{\n");
+            iw.inc();
+            iw.append(fieldMetadata.getJavaType().getName()).append(" v = ").append(box("$2." + makeStreamIOMethodName(fieldMetadata, false) + "()", fieldMetadata.getJavaType())).append(";\n");
+            genSetField(iw, fieldMetadata);
+            iw.dec();
+            iw.append("}\n");
+            break;
+         case GROUP:
+            iw.append("{\n");
+            iw.inc();
+            initMarshallerDelegateField(iw, fieldMetadata);
+            iw.append(fieldMetadata.getJavaType().getName()).append(" v = (").append(fieldMetadata.getJavaType().getName()).append(") readMessage(").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(", $2);\n");
+            iw.append("$2.checkLastTagWas(").append(String.valueOf(fieldMetadata.getNumber() << 3 | org.infinispan.protostream.impl.WireFormat.WIRETYPE_END_GROUP)).append(");\n");
+            genSetField(iw, fieldMetadata);
+            iw.dec();
+            iw.append("}\n");
+            break;
+         case MESSAGE:
+            iw.append("{\n");
+            iw.inc();
+            initMarshallerDelegateField(iw, fieldMetadata);
+            iw.append("int length = $2.readRawVarint32();\n");
+            iw.append("int oldLimit = $2.pushLimit(length);\n");
+            iw.append(fieldMetadata.getJavaType().getName()).append(" v = (").append(fieldMetadata.getJavaType().getName()).append(") readMessage(").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(", $2);\n");
+            iw.append("$2.checkLastTagWas(0);\n");
+            iw.append("$2.popLimit(oldLimit);\n");
+            genSetField(iw, fieldMetadata);
+            iw.dec();
+            iw.append("}\n");
+            break;
+         case ENUM:
+            iw.append("{\n");
+            iw.inc();
+            initMarshallerDelegateField(iw, fieldMetadata);
+            iw.append("int enumVal = $2.readEnum();\n");
+            iw.append(fieldMetadata.getJavaType().getName()).append(" v = (").append(fieldMetadata.getJavaType().getName()).append(") ((").append(PROTOSTREAM_PACKAGE).append(".EnumMarshaller) $1.getMarshaller(").append(fieldMetadata.getJavaType().getName()).append(".class)).decode(enumVal);\n");
+            iw.append("if (v == null) {\n");
+            if (getUnknownFieldSetFieldStatement != null) {
+               iw.inc();
+               iw.append(PROTOSTREAM_PACKAGE).append(".UnknownFieldSet u = ").append(getUnknownFieldSetFieldStatement).append(";\n");
+               iw.append("if (u == null) { u = new ").append(PROTOSTREAM_PACKAGE).append(".impl.UnknownFieldSetImpl(); ").append(setUnknownFieldSetFieldStatement).append("; }\n");
+               iw.append("u.putVarintField(").append(String.valueOf(fieldMetadata.getNumber())).append(", enumVal);\n");
+               iw.dec();
+            }
+            iw.append("} else {\n");
+            iw.inc();
+            genSetField(iw, fieldMetadata);
+            iw.dec();
+            iw.append("}\n");
+            iw.dec();
+            iw.append("}\n");
+            break;
+         default:
+            throw new IllegalStateException("Unknown field type " + fieldMetadata.getProtobufType());
+      }
+   }
+
    private void genSetField(IndentWriter iw, ProtoFieldMetadata fieldMetadata) {
-      if (fieldMetadata.isRepeated()) {
+      if (isUnboxedArray(fieldMetadata)) {
+         genAddToArray(iw, fieldMetadata, "v");
+      } else if (fieldMetadata.isRepeated()) {
          String c = makeCollectionLocalVar(fieldMetadata);
          String collectionImpl = fieldMetadata.isArray() ? "java.util.ArrayList" : fieldMetadata.getCollectionImplementation().getName();
          iw.append("if (").append(c).append(" == null) ").append(c).append(" = new ").append(collectionImpl).append("();\n");
@@ -471,6 +526,28 @@ final class MarshallerCodeGenerator {
       }
    }
 
+   /**
+    * Appends a value to the primitive array of a repeated field, doubling its capacity when full.
+    */
+   private void genAddToArray(IndentWriter iw, ProtoFieldMetadata fieldMetadata, String v) {
+      String c = makeCollectionLocalVar(fieldMetadata);
+      String n = makeArraySizeLocalVar(fieldMetadata);
+      String elementType = fieldMetadata.getJavaType().getName();
+      iw.append("if (").append(c).append(" == null) {\n");
+      iw.inc();
+      iw.append(c).append(" = new ").append(elementType).append("[16];\n");
+      iw.dec();
+      iw.append("} else if (").append(n).append(" == ").append(c).append(".length) {\n");
+      iw.inc();
+      iw.append(elementType).append("[] _c = new ").append(elementType).append("[").append(n).append(" * 2];\n");
+      iw.append("System.arraycopy(").append(c).append(", 0, _c, 0, ").append(n).append(");\n");
+      iw.append(c).append(" = _c;\n");
+      iw.dec();
+      iw.append("}\n");
+      iw.append(c).append("[").append(n).append("] = ").append(v).append(";\n");
+      iw.append(n).append(" = ").append(n).append(" + 1;\n");
+   }
+
    private String generateWriteToMethod(ProtoMessageTypeMetadata messageTypeMetadata) {
       String getUnknownFieldSetFieldStatement = null;
       if (messageTypeMetadata.getUnknownFieldSetField() != null) {
@@ -514,6 +591,12 @@ final class MarshallerCodeGenerator {
                iw.append("if (").append(v).append(" != null) ");
             }
          }
+         if (fieldMetadata.isPacked()) {
+            genWritePacked(iw, fieldMetadata);
+            iw.dec();
+            iw.append("}\n");
+            continue;
+         }
          if (fieldMetadata.isRepeated()) {
             iw.append('\n');
             iw.inc();
@@ -596,6 +679,98 @@ final class MarshallerCodeGenerator {
       return iw.toString();
    }
 
+   /**
+    * Writes all elements of a repeated field as a single length-delimited record. The payload size is computed upfront
+    * in a first pass over the elements so the values can be written straight to the output in a second pass.
+    */
+   private void genWritePacked(IndentWriter iw, ProtoFieldMetadata fieldMetadata) {
+      iw.append("{\n");
+      iw.inc();
+      if (fieldMetadata.getProtobufType() == Type.ENUM) {
+         initMarshallerDelegateField(iw, fieldMetadata);
+      }
+      iw.append("final int n = ").append(fieldMetadata.isArray() ? "c.length" : "c.size()").append(";\n");
+      iw.append("if (n > 0) {\n");
+      iw.inc();
+      String x = unbox("v", fieldMetadata.getJavaType());
+      String writeStatement = null;
+      String varint = null;
+      switch (fieldMetadata.getProtobufType()) {
+         case DOUBLE:
+            iw.append("final int size = n * 8;\n");
+            writeStatement = "$2.writeFixed64NoTag(Double.doubleToRawLongBits(" + x + "));\n";
+            break;
+         case FIXED64:
+         case SFIXED64:
+            iw.append("final int size = n * 8;\n");
+            writeStatement = "$2.writeFixed64NoTag(" + x + ");\n";
+            break;
+         case FLOAT:
+            iw.append("final int size = n * 4;\n");
+            writeStatement = "$2.writeFixed32NoTag(Float.floatToRawIntBits(" + x + "));\n";
+            break;
+         case FIXED32:
+         case SFIXED32:
+            iw.append("final int size = n * 4;\n");
+            writeStatement = "$2.writeFixed32NoTag(" + x + ");\n";
+            break;
+         case BOOL:
+            iw.append("final int size = n;\n");
+            writeStatement = "$2.writeUInt32NoTag(" + x + " ? 1 : 0);\n";
+            break;
+         case INT32:
+         case INT64:
+         case UINT64:
+            varint = "(long) " + x;
+            break;
+         case UINT32:
+            varint = "((long) " + x + ") & 0xFFFFFFFFL";
+            break;
+         case SINT32:
+            varint = "((long) (((int) " + x + " << 1) ^ ((int) " + x + " >> 31))) & 0xFFFFFFFFL";
+            break;
+         case SINT64:
+            varint = "((long) " + x + " << 1) ^ ((long) " + x + " >> 63)";
+            break;
+         case ENUM:
+            varint = "(long) " + makeMarshallerDelegateFieldName(fieldMetadata) + ".getMarshaller().encode(v)";
+            break;
+         default:
+            throw new IllegalStateException("Field type " + fieldMetadata.getProtobufType() + " cannot be packed");
+      }
+      if (varint != null) {
+         iw.append("int size = 0;\n");
+         genPackedLoop(iw, fieldMetadata, "i1", "it1");
+         iw.append("size += ").append(PROTOSTREAM_PACKAGE).append(".impl.RawProtoStreamWriterImpl.computeVarint64Size(").append(varint).append(");\n");
+         iw.dec();
+         iw.append("}\n");
+         writeStatement = "$2.writeUInt64NoTag(" + varint + ");\n";
+      }
+      iw.append("$2.writeTag(").append(String.valueOf(fieldMetadata.getNumber())).append(", ").append(PROTOSTREAM_PACKAGE).append(".impl.WireFormat.WIRETYPE_LENGTH_DELIMITED);\n");
+      iw.append("$2.writeUInt32NoTag(size);\n");
+      genPackedLoop(iw, fieldMetadata, "i2", "it2");
+      iw.append(writeStatement);
+      iw.dec();
+      iw.append("}\n");
+      iw.dec();
+      iw.append("}\n");
+      iw.dec();
+      iw.append("}\n");
+   }
+
+   private void genPackedLoop(IndentWriter iw, ProtoFieldMetadata fieldMetadata, String index, String iterator) {
+      String javaType = fieldMetadata.getJavaType().getName();
+      if (fieldMetadata.isArray()) {
+         iw.append("for (int ").append(index).append(" = 0; ").append(index).append(" < n; ").append(index).append("++) {\n");
+         iw.inc();
+         iw.append("final ").append(javaType).append(" v = c[").append(index).append("];\n");
+      } else {
+         iw.append("for (java.util.Iterator ").append(iterator).append(" = c.iterator(); ").append(iterator).append(".hasNext(); ) {\n");
+         iw.inc();
+         iw.append("final ").append(javaType).append(" v = (").append(javaType).append(") ").append(iterator).append(".next();\n");
+      }
+   }
+
    private void initMarshallerDelegateField(IndentWriter iw, ProtoFieldMetadata fieldMetadata) {
       iw.append("if (").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(" == null) ")
             .append(makeMarshallerDelegateFieldName(fieldMetadata)).append(" = ");
@@ -24,6 +24,7 @@ final class ProtoFieldMetadata {
    private final boolean isRequired;
    private final boolean isRepeated;
    private final boolean isArray;
+   private final boolean isPacked;
    private final Object defaultValue;
 
    private final String propertyName;
@@ -33,7 +34,7 @@ final class ProtoFieldMetadata {
 
    public ProtoFieldMetadata(Class<?> declaringClass, int number, String name, Class<?> javaType,
                              Class<?> collectionImplementation, Type protobufType, ProtoTypeMetadata protoTypeMetadata,
-                             boolean isRequired, boolean isRepeated, boolean isArray, Object defaultValue,
+                             boolean isRequired, boolean isRepeated, boolean isArray, boolean isPacked, Object defaultValue,
                              Field field) {
       this.declaringClass = declaringClass;
       this.number = number;
@@ -44,6 +45,7 @@ final class ProtoFieldMetadata {
       this.isRequired = isRequired;
       this.isRepeated = isRepeated;
       this.isArray = isArray;
+      this.isPacked = isPacked;
       this.defaultValue = defaultValue;
       this.protobufType = protobufType;
       this.propertyName = field.getName();
@@ -55,7 +57,7 @@ final class ProtoFieldMetadata {
 
    public ProtoFieldMetadata(Class<?> declaringClass, int number, String name, Class<?> javaType,
                              Class<?> collectionImplementation, Type protobufType, ProtoTypeMetadata protoTypeMetadata,
-                             boolean isRequired, boolean isRepeated, boolean isArray, Object defaultValue,
+                             boolean isRequired, boolean isRepeated, boolean isArray, boolean isPacked, Object defaultValue,
                              String propertyName, Method getter, Method setter) {
       this.declaringClass = declaringClass;
       this.number = number;
@@ -66,6 +68,7 @@ final class ProtoFieldMetadata {
       this.isRequired = isRequired;
       this.isRepeated = isRepeated;
       this.isArray = isArray;
+      this.isPacked = isPacked;
       this.defaultValue = defaultValue;
       this.protobufType = protobufType;
       this.field = null;
@@ -119,6 +122,10 @@ final class ProtoFieldMetadata {
       return isArray;
    }
 
+   public boolean isPacked() {
+      return isPacked;
+   }
+
    public Object getDefaultValue() {
       return defaultValue;
    }
@@ -212,7 +219,13 @@ final class ProtoFieldMetadata {
                ((ProtoEnumValueMetadata) defaultValue).getProtoName() :
                (defaultValue instanceof Date ?
                       Long.toString(((Date) defaultValue).getTime()) : defaultValue.toString());
-         iw.append(" [default = ").append(v).append(']');
+         iw.append(" [default = ").append(v);
+         if (isPacked) {
+            iw.append(", packed = true");
+         }
+         iw.append(']');
+      } else if (isPacked) {
+         iw.append(" [packed = true]");
       }
 
       if (ProtoSchemaBuilder.generateSchemaDebugComments) {
@@ -9,6 +9,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -36,7 +37,7 @@ final class ProtoMessageTypeMetadata extends ProtoTypeMetadata {
 
    private Method unknownFieldSetSetter;
 
-   private final Map<Class<?>, ProtoTypeMetadata> innerTypes = new HashMap<>();
+   private final Map<Class<?>, ProtoTypeMetadata> innerTypes = new LinkedHashMap<>();
 
    public ProtoMessageTypeMetadata(ProtoSchemaGenerator protoSchemaGenerator, Class<?> messageClass) {
       super(getProtoName(messageClass), messageClass);
@@ -214,8 +215,12 @@ final class ProtoMessageTypeMetadata extends ProtoTypeMetadata {
                if (protobufType == Type.ENUM || protobufType == Type.MESSAGE || protobufType == Type.GROUP) {
                   protoTypeMetadata = protoSchemaGenerator.scanAnnotations(javaType);
                }
+               boolean isPacked = annotation.packed();
+               if (isPacked && (!isRepeated || !protobufType.isPackable())) {
+                  throw new ProtoSchemaBuilderException("Field '" + fieldName + "' of " + clazz + " cannot be marked packed. Only repeated fields of scalar numeric, boolean or enum types can be packed.");
+               }
                ProtoFieldMetadata fieldMetadata = new ProtoFieldMetadata(clazz, annotation.number(), fieldName, javaType, collectionImplementation,
-                                                                         protobufType, protoTypeMetadata, isRequired, isRepeated, isArray, defaultValue, field);
+                                                                         protobufType, protoTypeMetadata, isRequired, isRepeated, isArray, isPacked, defaultValue, field);
 
                ProtoFieldMetadata existing = fieldsByNumber.get(annotation.number());
                if (existing != null) {
@@ -335,9 +340,13 @@ final class ProtoMessageTypeMetadata extends ProtoTypeMetadata {
                if (protobufType == Type.ENUM || protobufType == Type.MESSAGE || protobufType == Type.GROUP) {
                   protoTypeMetadata = protoSchemaGenerator.scanAnnotations(javaType);
                }
+               boolean isPacked = annotation.packed();
+               if (isPacked && (!isRepeated || !protobufType.isPackable())) {
+                  throw new ProtoSchemaBuilderException("Field '" + fieldName + "' of " + clazz + " cannot be marked packed. Only repeated fields of scalar numeric, boolean or enum types can be packed.");
+               }
 
                ProtoFieldMetadata fieldMetadata = new ProtoFieldMetadata(clazz, annotation.number(), fieldName, javaType, collectionImplementation,
-                                                                         protobufType, protoTypeMetadata, isRequired, isRepeated, isArray, defaultValue,
+                                                                         protobufType, protoTypeMetadata, isRequired, isRepeated, isArray, isPacked, defaultValue,
                                                                          propertyName, getter, setter);
 
                ProtoFieldMetadata existing = fieldsByNumber.get(annotation.number());
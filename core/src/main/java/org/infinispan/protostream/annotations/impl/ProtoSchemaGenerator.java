@@ -3,7 +3,8 @@ package org.infinispan.protostream.annotations.impl;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -21,6 +22,8 @@ import javassist.ClassPool;
 import javassist.LoaderClassPath;
 
 /**
+ * Types are kept in discovery order so the generated schema does not change between runs.
+ *
  * @author anistor@redhat.com
  * @since 3.0
  */
@@ -36,9 +39,9 @@ public final class ProtoSchemaGenerator {
 
    private final Set<Class<?>> classes;
 
-   private final Set<String> imports = new HashSet<>();
+   private final Set<String> imports = new LinkedHashSet<>();
 
-   private final Map<Class<?>, ProtoTypeMetadata> metadataByClass = new HashMap<>();
+   private final Map<Class<?>, ProtoTypeMetadata> metadataByClass = new LinkedHashMap<>();
 
    private final Map<String, ProtoTypeMetadata> metadataByTypeName = new HashMap<>();
 
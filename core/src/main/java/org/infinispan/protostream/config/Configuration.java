@@ -3,6 +3,8 @@ package org.infinispan.protostream.config;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import org.infinispan.protostream.AnnotationMetadataCreator;
 import org.infinispan.protostream.descriptors.AnnotationElement;
@@ -22,16 +24,23 @@ public final class Configuration {
 
    private final boolean logOutOfSequenceWrites;
 
+   private final boolean zeroCopyByteBuffers;
+
+   private final Executor parserExecutor;
+
    private final Map<String, AnnotationConfig<Descriptor>> messageAnnotations;
    private final Map<String, AnnotationConfig<FieldDescriptor>> fieldAnnotations;
    private final Map<String, AnnotationConfig<EnumDescriptor>> enumAnnotations;
 
-   private Configuration(boolean logOutOfSequenceReads, boolean logOutOfSequenceWrites,
+   private Configuration(boolean logOutOfSequenceReads, boolean logOutOfSequenceWrites, boolean zeroCopyByteBuffers,
+                         Executor parserExecutor,
                          Map<String, AnnotationConfig<Descriptor>> messageAnnotations,
                          Map<String, AnnotationConfig<FieldDescriptor>> fieldAnnotations,
                          Map<String, AnnotationConfig<EnumDescriptor>> enumAnnotations) {
       this.logOutOfSequenceReads = logOutOfSequenceReads;
       this.logOutOfSequenceWrites = logOutOfSequenceWrites;
+      this.zeroCopyByteBuffers = zeroCopyByteBuffers;
+      this.parserExecutor = parserExecutor;
       this.messageAnnotations = Collections.unmodifiableMap(messageAnnotations);
       this.fieldAnnotations = Collections.unmodifiableMap(fieldAnnotations);
       this.enumAnnotations = Collections.unmodifiableMap(enumAnnotations);
@@ -45,6 +54,26 @@ public final class Configuration {
       return logOutOfSequenceWrites;
    }
 
+   /**
+    * Indicates if messages unmarshalled from a {@link java.nio.ByteBuffer} get their bytes fields and nested wrapped
+    * messages as read-only slices of that buffer instead of copies.
+    *
+    * @since 3.1
+    */
+   public boolean zeroCopyByteBuffers() {
+      return zeroCopyByteBuffers;
+   }
+
+   /**
+    * The executor used for parsing the files of a multi-file {@link org.infinispan.protostream.FileDescriptorSource}
+    * in parallel, or {@code null} if files are parsed sequentially on the calling thread.
+    *
+    * @since 3.1
+    */
+   public Executor parserExecutor() {
+      return parserExecutor;
+   }
+
    public Map<String, AnnotationConfig<Descriptor>> messageAnnotations() {
       return messageAnnotations;
    }
@@ -62,6 +91,8 @@ public final class Configuration {
       return "Configuration{" +
             "logOutOfSequenceReads=" + logOutOfSequenceReads +
             ", logOutOfSequenceWrites=" + logOutOfSequenceWrites +
+            ", zeroCopyByteBuffers=" + zeroCopyByteBuffers +
+            ", parserExecutor=" + parserExecutor +
             ", messageAnnotations=" + messageAnnotations +
             ", fieldAnnotations=" + fieldAnnotations +
             ", enumAnnotations=" + enumAnnotations +
@@ -74,6 +105,10 @@ public final class Configuration {
 
       private boolean logOutOfSequenceWrites = true;
 
+      private boolean zeroCopyByteBuffers = false;
+
+      private Executor parserExecutor = ForkJoinPool.commonPool();
+
       private final Map<String, AnnotationConfig.Builder<Descriptor>> messageAnnotationBuilders = new HashMap<>();
       private final Map<String, AnnotationConfig.Builder<FieldDescriptor>> fieldAnnotationBuilders = new HashMap<>();
       private final Map<String, AnnotationConfig.Builder<EnumDescriptor>> enumAnnotationBuilders = new HashMap<>();
@@ -99,6 +134,39 @@ public final class Configuration {
          return this;
       }
 
+      public boolean isZeroCopyByteBuffers() {
+         return zeroCopyByteBuffers;
+      }
+
+      /**
+       * Enables reading bytes fields from a {@link java.nio.ByteBuffer} without copying them. The slices handed out keep
+       * referring to the source buffer, so the buffer must not be modified or recycled while they are in use.
+       *
+       * @since 3.1
+       */
+      public Builder setZeroCopyByteBuffers(boolean zeroCopyByteBuffers) {
+         this.zeroCopyByteBuffers = zeroCopyByteBuffers;
+         return this;
+      }
+
+      public Executor getParserExecutor() {
+         return parserExecutor;
+      }
+
+      /**
+       * Sets the executor used for parsing in parallel the files of a multi-file
+       * {@link org.infinispan.protostream.FileDescriptorSource}. Defaults to {@link ForkJoinPool#commonPool()}. The
+       * calling thread also takes part in parsing, so a busy or even a direct executor cannot cause a deadlock. A
+       * {@code null} executor makes all files be parsed sequentially on the calling thread. Resolution of imports and
+       * types always happens on the calling thread after all files were parsed.
+       *
+       * @since 3.1
+       */
+      public Builder setParserExecutor(Executor parserExecutor) {
+         this.parserExecutor = parserExecutor;
+         return this;
+      }
+
       public AnnotationConfig.Builder<Descriptor> messageAnnotation(String annotationName) {
          AnnotationConfig.Builder<Descriptor> builder = new AnnotationConfig.Builder<>(this, annotationName);
          messageAnnotationBuilders.put(annotationName, builder);
@@ -155,7 +223,7 @@ public final class Configuration {
             enumAnnotations.put(annotationConfig.name(), annotationConfig);
          }
 
-         return new Configuration(logOutOfSequenceReads, logOutOfSequenceWrites, messageAnnotations, fieldAnnotations, enumAnnotations);
+         return new Configuration(logOutOfSequenceReads, logOutOfSequenceWrites, zeroCopyByteBuffers, parserExecutor, messageAnnotations, fieldAnnotations, enumAnnotations);
       }
    }
 }
@@ -2,6 +2,7 @@ package org.infinispan.protostream.descriptors;
 
 import static java.util.Collections.unmodifiableList;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -20,27 +21,76 @@ import org.infinispan.protostream.impl.AnnotatedDescriptorImpl;
  */
 public final class Descriptor extends AnnotatedDescriptorImpl implements GenericDescriptor {
 
+   /**
+    * Fields numbered up to this value are always looked up in a table indexed by number.
+    */
+   private static final int MIN_DENSE_TABLE_SIZE = 64;
+
+   /**
+    * Above {@link #MIN_DENSE_TABLE_SIZE}, a table indexed by number is used only if it has at most this many slots per
+    * field. Sparser numberings use a binary search instead.
+    */
+   private static final int DENSE_TABLE_FACTOR = 4;
+
    private Integer typeId;
    private final List<Option> options;
    private final List<FieldDescriptor> fields;
    private final List<OneOfDescriptor> oneofs;
    private final List<Descriptor> nestedTypes;
    private final List<EnumDescriptor> enumTypes;
-   private final Map<Integer, FieldDescriptor> fieldsByNumber = new HashMap<>();
    private final Map<String, FieldDescriptor> fieldsByName = new HashMap<>();
+
+   /**
+    * The fields indexed by number, if the numbering is dense enough. Otherwise {@code null} and fields are looked up by
+    * a binary search in {@link #sortedFieldNumbers}.
+    */
+   private final FieldDescriptor[] fieldsByNumber;
+
+   /**
+    * The field numbers in ascending order, used only if {@link #fieldsByNumber} is {@code null}.
+    */
+   private final int[] sortedFieldNumbers;
+
+   /**
+    * The fields in the same order as {@link #sortedFieldNumbers}.
+    */
+   private final FieldDescriptor[] sortedFields;
    private FileDescriptor fileDescriptor;
    private Descriptor containingType;
 
    private Descriptor(Builder builder) {
-      super(builder.name, builder.fullName, builder.documentation);
+      super(builder.name, builder.fullName, builder.documentation, builder.annotations);
       this.options = unmodifiableList(builder.options);
       this.fields = unmodifiableList(builder.fields);
-      addFields(builder.fields);
+      Map<Integer, FieldDescriptor> fieldMap = new HashMap<>();
+      addFields(builder.fields, fieldMap);
       this.oneofs = unmodifiableList(builder.oneofs);
       for (OneOfDescriptor oneof : oneofs) {
-         addFields(oneof.getFields());
+         addFields(oneof.getFields(), fieldMap);
          oneof.setContainingMessage(this);
       }
+      int[] numbers = new int[fieldMap.size()];
+      int i = 0;
+      for (Integer number : fieldMap.keySet()) {
+         numbers[i++] = number;
+      }
+      Arrays.sort(numbers);
+      int maxNumber = numbers.length == 0 ? 0 : numbers[numbers.length - 1];
+      if (numbers.length == 0 || (numbers[0] >= 0 && maxNumber <= Math.max(MIN_DENSE_TABLE_SIZE, DENSE_TABLE_FACTOR * numbers.length))) {
+         fieldsByNumber = new FieldDescriptor[maxNumber + 1];
+         for (FieldDescriptor fieldDescriptor : fieldMap.values()) {
+            fieldsByNumber[fieldDescriptor.getNumber()] = fieldDescriptor;
+         }
+         sortedFieldNumbers = null;
+         sortedFields = null;
+      } else {
+         fieldsByNumber = null;
+         sortedFieldNumbers = numbers;
+         sortedFields = new FieldDescriptor[numbers.length];
+         for (i = 0; i < numbers.length; i++) {
+            sortedFields[i] = fieldMap.get(numbers[i]);
+         }
+      }
       this.nestedTypes = unmodifiableList(builder.nestedTypes);
       this.enumTypes = unmodifiableList(builder.enumTypes);
       for (Descriptor nested : nestedTypes) {
@@ -51,7 +101,7 @@ public final class Descriptor extends AnnotatedDescriptorImpl implements Generic
       }
    }
 
-   private void addFields(List<FieldDescriptor> fields) {
+   private void addFields(List<FieldDescriptor> fields, Map<Integer, FieldDescriptor> fieldsByNumber) {
       for (FieldDescriptor fieldDescriptor : fields) {
          FieldDescriptor existing = fieldsByNumber.put(fieldDescriptor.getNumber(), fieldDescriptor);
          if (existing != null) {
@@ -94,7 +144,11 @@ public final class Descriptor extends AnnotatedDescriptorImpl implements Generic
    }
 
    public FieldDescriptor findFieldByNumber(int number) {
-      return fieldsByNumber.get(number);
+      if (fieldsByNumber != null) {
+         return number >= 0 && number < fieldsByNumber.length ? fieldsByNumber[number] : null;
+      }
+      int i = Arrays.binarySearch(sortedFieldNumbers, number);
+      return i >= 0 ? sortedFields[i] : null;
    }
 
    public FieldDescriptor findFieldByName(String name) {
@@ -106,6 +160,11 @@ public final class Descriptor extends AnnotatedDescriptorImpl implements Generic
       for (FieldDescriptor fieldDescriptor : fields) {
          fieldDescriptor.setFileDescriptor(fileDescriptor);
       }
+      for (OneOfDescriptor oneof : oneofs) {
+         for (FieldDescriptor fieldDescriptor : oneof.getFields()) {
+            fieldDescriptor.setFileDescriptor(fileDescriptor);
+         }
+      }
       for (Descriptor nested : nestedTypes) {
          nested.setFileDescriptor(fileDescriptor);
       }
@@ -163,6 +222,7 @@ public final class Descriptor extends AnnotatedDescriptorImpl implements Generic
       private List<Descriptor> nestedTypes = new LinkedList<>();
       private List<EnumDescriptor> enumTypes;
       private String documentation;
+      private Map<String, AnnotationElement.Annotation> annotations;
 
       public Builder withName(String name) {
          this.name = name;
@@ -204,6 +264,14 @@ public final class Descriptor extends AnnotatedDescriptorImpl implements Generic
          return this;
       }
 
+      /**
+       * Sets the annotations already parsed from the documentation, used when restoring a {@link FileDescriptorSnapshot}.
+       */
+      Builder withAnnotations(Map<String, AnnotationElement.Annotation> annotations) {
+         this.annotations = annotations;
+         return this;
+      }
+
       public Descriptor build() {
          return new Descriptor(this);
       }
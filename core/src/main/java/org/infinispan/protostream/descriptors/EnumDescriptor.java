@@ -28,7 +28,7 @@ public final class EnumDescriptor extends AnnotatedDescriptorImpl implements Gen
    private Descriptor containingType;
 
    private EnumDescriptor(Builder builder) {
-      super(builder.name, builder.fullName, builder.documentation);
+      super(builder.name, builder.fullName, builder.documentation, builder.annotations);
       this.options = Collections.unmodifiableList(builder.options);
       this.values = Collections.unmodifiableList(builder.values);
       for (EnumValueDescriptor value : values) {
@@ -98,6 +98,7 @@ public final class EnumDescriptor extends AnnotatedDescriptorImpl implements Gen
       private List<Option> options;
       private List<EnumValueDescriptor> values;
       private String documentation;
+      private Map<String, AnnotationElement.Annotation> annotations;
 
       public Builder withName(String name) {
          this.name = name;
@@ -124,6 +125,14 @@ public final class EnumDescriptor extends AnnotatedDescriptorImpl implements Gen
          return this;
       }
 
+      /**
+       * Sets the annotations already parsed from the documentation, used when restoring a {@link FileDescriptorSnapshot}.
+       */
+      Builder withAnnotations(Map<String, AnnotationElement.Annotation> annotations) {
+         this.annotations = annotations;
+         return this;
+      }
+
       public EnumDescriptor build() {
          return new EnumDescriptor(this);
       }
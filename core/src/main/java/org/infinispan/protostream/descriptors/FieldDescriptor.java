@@ -33,7 +33,7 @@ public final class FieldDescriptor extends AnnotatedDescriptorImpl implements An
    private EnumDescriptor enumType;
 
    private FieldDescriptor(Builder builder) {
-      super(builder.name, null, builder.documentation);
+      super(builder.name, null, builder.documentation, builder.annotations);
       this.number = builder.number;
       this.label = builder.label;
       this.options = unmodifiableList(builder.options);
@@ -81,14 +81,24 @@ public final class FieldDescriptor extends AnnotatedDescriptorImpl implements An
       return label.equals(Label.REPEATED);
    }
 
+   /**
+    * Indicates if this is a repeated field of a packable type that was declared with the {@code [packed=true]} option.
+    */
    public boolean isPacked() {
-      return optionByName.containsKey(PACKED);
+      return isRepeated() && type != null && type.isPackable() && Boolean.parseBoolean(String.valueOf(optionByName.get(PACKED)));
    }
 
+   /**
+    * The declared default value, converted to the Java type of the field. For an enum field this is the {@link
+    * EnumValueDescriptor} of the declared value, or {@code null} if the enum has no value with that name.
+    */
    public Object getDefaultValue() {
       if (!hasDefaultValue()) {
          return null;
       }
+      if (type == Type.ENUM) {
+         return enumType.findValueByName(defaultValue);
+      }
       if (!getJavaType().isScalar()) {
          throw new UnsupportedOperationException("FieldDescriptor.getDefaultValue() called on an embedded message field.");
       }
@@ -103,6 +113,13 @@ public final class FieldDescriptor extends AnnotatedDescriptorImpl implements An
       return defaultValue != null;
    }
 
+   /**
+    * The default value, as it was declared.
+    */
+   String getDefaultValueAsString() {
+      return defaultValue;
+   }
+
    public JavaType getJavaType() {
       return getType().getJavaType();
    }
@@ -156,6 +173,7 @@ public final class FieldDescriptor extends AnnotatedDescriptorImpl implements An
       private String defaultValue;
       private boolean isExtension;
       private String documentation;
+      private Map<String, AnnotationElement.Annotation> annotations;
 
       public Builder withNumber(int number) {
          this.number = number;
@@ -197,6 +215,14 @@ public final class FieldDescriptor extends AnnotatedDescriptorImpl implements An
          return this;
       }
 
+      /**
+       * Sets the annotations already parsed from the documentation, used when restoring a {@link FileDescriptorSnapshot}.
+       */
+      Builder withAnnotations(Map<String, AnnotationElement.Annotation> annotations) {
+         this.annotations = annotations;
+         return this;
+      }
+
       public FieldDescriptor build() {
          FieldDescriptor fieldDescriptor = new FieldDescriptor(this);
          try {
@@ -87,8 +87,16 @@ public final class FileDescriptor {
       return status == Status.RESOLVED;
    }
 
+   /**
+    * Discards the results of the resolution, which must be performed again because one of the imported files changed.
+    */
    public void markUnresolved() {
       status = Status.UNRESOLVED;
+      typeRegistry.clear();
+      exportedTypes.clear();
+      types.clear();
+      extendDescriptors.clear();
+      dependants.clear();
    }
 
    public void clearErrors() {
@@ -266,8 +274,21 @@ public final class FileDescriptor {
    }
 
    private void resolveTypes(Descriptor descriptor) {
-      for (FieldDescriptor fieldDescriptor : descriptor.getFields()) {
-         if (fieldDescriptor.getType() == null) {
+      resolveTypes(descriptor, descriptor.getFields());
+      for (OneOfDescriptor oneof : descriptor.getOneOfs()) {
+         resolveTypes(descriptor, oneof.getFields());
+      }
+
+      for (Descriptor nested : descriptor.getNestedTypes()) {
+         resolveTypes(nested);
+      }
+   }
+
+   private void resolveTypes(Descriptor descriptor, List<FieldDescriptor> fields) {
+      for (FieldDescriptor fieldDescriptor : fields) {
+         // types resolved previously are resolved again because the imported files may have been replaced since
+         Type type = fieldDescriptor.getType();
+         if (type == null || type == Type.MESSAGE || type == Type.ENUM) {
             GenericDescriptor res = searchType(fieldDescriptor.getTypeName(), descriptor);
             if (res instanceof EnumDescriptor) {
                fieldDescriptor.setEnumType((EnumDescriptor) res);
@@ -278,10 +299,6 @@ public final class FileDescriptor {
             }
          }
       }
-
-      for (Descriptor nested : descriptor.getNestedTypes()) {
-         resolveTypes(nested);
-      }
    }
 
    private String getScopedName(String name) {
@@ -326,6 +343,20 @@ public final class FileDescriptor {
       return packageName;
    }
 
+   /**
+    * The names of the imported files.
+    */
+   public List<String> getDependencies() {
+      return dependencies;
+   }
+
+   /**
+    * The names of the publicly imported files.
+    */
+   public List<String> getPublicDependencies() {
+      return publicDependencies;
+   }
+
    public List<Option> getOptions() {
       return options;
    }
@@ -0,0 +1,639 @@
+package org.infinispan.protostream.descriptors;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.infinispan.protostream.AnnotationParserException;
+import org.infinispan.protostream.FileDescriptorSource;
+import org.infinispan.protostream.impl.Log;
+import org.infinispan.protostream.impl.parser.AnnotationParser;
+
+/**
+ * A compact binary form of parsed {@link FileDescriptor}s, which allows registering them again without parsing their
+ * text. A snapshot is created after the files were registered and is later handed to {@link
+ * FileDescriptorSource#withSnapshot} together with the same files. Each file is stored along with a fingerprint of its
+ * text, so only the files that did not change since the snapshot was taken are restored from it while the others are
+ * parsed as usual. The annotations found in the documentation comments are stored already parsed.
+ * <p>
+ * Instances are immutable and thread-safe. The files are only decoded when requested.
+ *
+ * @since 3.1
+ */
+public final class FileDescriptorSnapshot {
+
+   private static final Log log = Log.LogFactory.getLog(FileDescriptorSnapshot.class);
+
+   private static final int MAGIC = 0x50534e50;
+
+   /**
+    * Must be incremented on each incompatible change of the format. Snapshots having a different version are ignored.
+    */
+   private static final int VERSION = 1;
+
+   // the tags of the option values and annotation literals
+   private static final byte NULL = 0;
+   private static final byte STRING = 1;
+   private static final byte BOOLEAN = 2;
+   private static final byte INTEGER = 3;
+   private static final byte LONG = 4;
+   private static final byte FLOAT = 5;
+   private static final byte DOUBLE = 6;
+   private static final byte CHARACTER = 7;
+   private static final byte LIST = 8;
+   private static final byte MAP = 9;
+
+   // the tags of the annotation values
+   private static final byte ANNOTATION = 1;
+   private static final byte IDENTIFIER = 2;
+   private static final byte ARRAY = 3;
+   private static final byte LITERAL = 4;
+
+   private static final class Entry {
+
+      /**
+       * The length of the text of the file.
+       */
+      final int length;
+
+      final long fingerprint;
+
+      final byte[] bytes;
+
+      Entry(int length, long fingerprint, byte[] bytes) {
+         this.length = length;
+         this.fingerprint = fingerprint;
+         this.bytes = bytes;
+      }
+   }
+
+   private final Map<String, Entry> entries;
+
+   private FileDescriptorSnapshot(Map<String, Entry> entries) {
+      this.entries = entries;
+   }
+
+   /**
+    * Creates a snapshot of the files of the given source. Files missing from the given descriptors are skipped, and so
+    * are the few files having options that cannot be stored.
+    *
+    * @param source          the text of the files
+    * @param fileDescriptors the descriptors obtained from the source, usually {@link org.infinispan.protostream.SerializationContext#getFileDescriptors}
+    */
+   public static FileDescriptorSnapshot create(FileDescriptorSource source, Map<String, FileDescriptor> fileDescriptors) {
+      Map<String, Entry> entries = new LinkedHashMap<>();
+      for (Map.Entry<String, char[]> e : source.getFileDescriptors().entrySet()) {
+         FileDescriptor fileDescriptor = fileDescriptors.get(e.getKey());
+         if (fileDescriptor != null) {
+            byte[] bytes;
+            try {
+               ByteArrayOutputStream baos = new ByteArrayOutputStream();
+               DataOutputStream out = new DataOutputStream(baos);
+               writeFileDescriptor(out, fileDescriptor);
+               out.flush();
+               bytes = baos.toByteArray();
+            } catch (IOException | IllegalArgumentException ex) {
+               log.debugf("File %s is not included in the snapshot : %s", e.getKey(), ex.getMessage());
+               continue;
+            }
+            char[] text = e.getValue();
+            entries.put(e.getKey(), new Entry(text.length, fingerprint(text), bytes));
+         }
+      }
+      return new FileDescriptorSnapshot(entries);
+   }
+
+   /**
+    * Reads a snapshot previously written by {@link #writeTo}. A snapshot written by an incompatible version of this
+    * library is ignored, in which case the returned snapshot is empty. The stream is not closed.
+    */
+   public static FileDescriptorSnapshot readFrom(InputStream in) throws IOException {
+      DataInputStream dis = new DataInputStream(in);
+      if (dis.readInt() != MAGIC) {
+         throw new IOException("Not a file descriptor snapshot");
+      }
+      int version = dis.readInt();
+      if (version != VERSION) {
+         log.debugf("Ignoring file descriptor snapshot having version %d", version);
+         return new FileDescriptorSnapshot(Collections.<String, Entry>emptyMap());
+      }
+      int count = dis.readInt();
+      Map<String, Entry> entries = new LinkedHashMap<>(count);
+      for (int i = 0; i < count; i++) {
+         String fileName = readString(dis);
+         int length = dis.readInt();
+         long fingerprint = dis.readLong();
+         byte[] bytes = new byte[dis.readInt()];
+         dis.readFully(bytes);
+         entries.put(fileName, new Entry(length, fingerprint, bytes));
+      }
+      return new FileDescriptorSnapshot(entries);
+   }
+
+   /**
+    * Writes the snapshot. The stream is flushed but not closed.
+    */
+   public void writeTo(OutputStream out) throws IOException {
+      DataOutputStream dos = new DataOutputStream(out);
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeInt(entries.size());
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+         Entry entry = e.getValue();
+         writeString(dos, e.getKey());
+         dos.writeInt(entry.length);
+         dos.writeLong(entry.fingerprint);
+         dos.writeInt(entry.bytes.length);
+         dos.write(entry.bytes);
+      }
+      dos.flush();
+   }
+
+   /**
+    * The names of the files included in the snapshot.
+    */
+   public Set<String> getFileNames() {
+      return Collections.unmodifiableSet(entries.keySet());
+   }
+
+   /**
+    * Restores an unresolved descriptor of the given file, if the snapshot includes it and its text did not change.
+    *
+    * @param fileName the name of the file
+    * @param text     the current text of the file
+    * @return a new descriptor or {@code null} if the file must be parsed
+    */
+   public FileDescriptor getFileDescriptor(String fileName, char[] text) {
+      Entry entry = entries.get(fileName);
+      if (entry == null || entry.length != text.length || entry.fingerprint != fingerprint(text)) {
+         return null;
+      }
+      try {
+         return readFileDescriptor(new DataInputStream(new ByteArrayInputStream(entry.bytes)), fileName);
+      } catch (IOException | RuntimeException e) {
+         log.debugf("Failed to restore %s from the snapshot : %s", fileName, e.getMessage());
+         return null;
+      }
+   }
+
+   /**
+    * A 64-bit FNV-1a hash of the text.
+    */
+   private static long fingerprint(char[] text) {
+      long h = 0xcbf29ce484222325L;
+      for (char c : text) {
+         h ^= c;
+         h *= 0x100000001b3L;
+      }
+      return h;
+   }
+
+   private static void writeFileDescriptor(DataOutput out, FileDescriptor fileDescriptor) throws IOException {
+      writeString(out, fileDescriptor.getPackage());
+      writeStrings(out, fileDescriptor.getDependencies());
+      writeStrings(out, fileDescriptor.getPublicDependencies());
+      writeOptions(out, fileDescriptor.getOptions());
+      out.writeInt(fileDescriptor.getEnumTypes().size());
+      for (EnumDescriptor enumDescriptor : fileDescriptor.getEnumTypes()) {
+         writeEnumDescriptor(out, enumDescriptor);
+      }
+      out.writeInt(fileDescriptor.getMessageTypes().size());
+      for (Descriptor descriptor : fileDescriptor.getMessageTypes()) {
+         writeDescriptor(out, descriptor);
+      }
+      out.writeInt(fileDescriptor.getExtensionsTypes().size());
+      for (ExtendDescriptor extendDescriptor : fileDescriptor.getExtensionsTypes()) {
+         writeString(out, extendDescriptor.getName());
+         writeString(out, extendDescriptor.getFullName());
+         writeFieldDescriptors(out, extendDescriptor.getFields());
+      }
+   }
+
+   private static FileDescriptor readFileDescriptor(DataInput in, String fileName) throws IOException {
+      String packageName = readString(in);
+      List<String> dependencies = readStrings(in);
+      List<String> publicDependencies = readStrings(in);
+      List<Option> options = readOptions(in);
+      int count = in.readInt();
+      List<EnumDescriptor> enumTypes = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         enumTypes.add(readEnumDescriptor(in));
+      }
+      count = in.readInt();
+      List<Descriptor> messageTypes = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         messageTypes.add(readDescriptor(in));
+      }
+      count = in.readInt();
+      List<ExtendDescriptor> extendDescriptors = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         extendDescriptors.add(new ExtendDescriptor.Builder()
+               .withName(readString(in))
+               .withFullName(readString(in))
+               .withFields(readFieldDescriptors(in))
+               .build());
+      }
+      return new FileDescriptor.Builder()
+            .withName(fileName)
+            .withPackageName(packageName)
+            .withDependencies(dependencies)
+            .withPublicDependencies(publicDependencies)
+            .withOptions(options)
+            .withEnumTypes(enumTypes)
+            .withMessageTypes(messageTypes)
+            .withExtendDescriptors(extendDescriptors)
+            .build();
+   }
+
+   private static void writeDescriptor(DataOutput out, Descriptor descriptor) throws IOException {
+      writeString(out, descriptor.getName());
+      writeString(out, descriptor.getFullName());
+      writeDocumentation(out, descriptor.getDocumentation());
+      writeOptions(out, descriptor.getOptions());
+      writeFieldDescriptors(out, descriptor.getFields());
+      out.writeInt(descriptor.getOneOfs().size());
+      for (OneOfDescriptor oneOf : descriptor.getOneOfs()) {
+         writeString(out, oneOf.getName());
+         writeString(out, oneOf.getDocumentation());
+         writeFieldDescriptors(out, oneOf.getFields());
+      }
+      out.writeInt(descriptor.getNestedTypes().size());
+      for (Descriptor nested : descriptor.getNestedTypes()) {
+         writeDescriptor(out, nested);
+      }
+      out.writeInt(descriptor.getEnumTypes().size());
+      for (EnumDescriptor enumDescriptor : descriptor.getEnumTypes()) {
+         writeEnumDescriptor(out, enumDescriptor);
+      }
+   }
+
+   private static Descriptor readDescriptor(DataInput in) throws IOException {
+      Descriptor.Builder builder = new Descriptor.Builder()
+            .withName(readString(in))
+            .withFullName(readString(in));
+      String documentation = readString(in);
+      builder.withDocumentation(documentation)
+            .withAnnotations(readAnnotations(in, documentation))
+            .withOptions(readOptions(in))
+            .withFields(readFieldDescriptors(in));
+      int count = in.readInt();
+      List<OneOfDescriptor> oneOfs = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         oneOfs.add(new OneOfDescriptor.Builder()
+               .withName(readString(in))
+               .withDocumentation(readString(in))
+               .withFields(readFieldDescriptors(in))
+               .build());
+      }
+      count = in.readInt();
+      List<Descriptor> nestedTypes = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         nestedTypes.add(readDescriptor(in));
+      }
+      count = in.readInt();
+      List<EnumDescriptor> enumTypes = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         enumTypes.add(readEnumDescriptor(in));
+      }
+      return builder.withOneOfs(oneOfs)
+            .withNestedTypes(nestedTypes)
+            .withEnumTypes(enumTypes)
+            .build();
+   }
+
+   private static void writeFieldDescriptors(DataOutput out, List<FieldDescriptor> fields) throws IOException {
+      out.writeInt(fields.size());
+      for (FieldDescriptor field : fields) {
+         writeString(out, field.getName());
+         out.writeInt(field.getNumber());
+         writeString(out, field.getTypeName());
+         writeString(out, field.getLabel() == null ? null : field.getLabel().name());
+         writeString(out, field.getDefaultValueAsString());
+         out.writeBoolean(field.isExtension());
+         writeDocumentation(out, field.getDocumentation());
+         writeOptions(out, field.getOptions());
+      }
+   }
+
+   private static List<FieldDescriptor> readFieldDescriptors(DataInput in) throws IOException {
+      int count = in.readInt();
+      List<FieldDescriptor> fields = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         FieldDescriptor.Builder builder = new FieldDescriptor.Builder()
+               .withName(readString(in))
+               .withNumber(in.readInt())
+               .withTypeName(readString(in));
+         String label = readString(in);
+         builder.withLabel(label == null ? null : Label.valueOf(label))
+               .withDefaultValue(readString(in))
+               .withIsExtension(in.readBoolean());
+         String documentation = readString(in);
+         fields.add(builder.withDocumentation(documentation)
+               .withAnnotations(readAnnotations(in, documentation))
+               .withOptions(readOptions(in))
+               .build());
+      }
+      return fields;
+   }
+
+   private static void writeEnumDescriptor(DataOutput out, EnumDescriptor enumDescriptor) throws IOException {
+      writeString(out, enumDescriptor.getName());
+      writeString(out, enumDescriptor.getFullName());
+      writeDocumentation(out, enumDescriptor.getDocumentation());
+      writeOptions(out, enumDescriptor.getOptions());
+      out.writeInt(enumDescriptor.getValues().size());
+      for (EnumValueDescriptor value : enumDescriptor.getValues()) {
+         writeString(out, value.getName());
+         out.writeInt(value.getNumber());
+         writeString(out, value.getDocumentation());
+         writeOptions(out, value.getOptions());
+      }
+   }
+
+   private static EnumDescriptor readEnumDescriptor(DataInput in) throws IOException {
+      EnumDescriptor.Builder builder = new EnumDescriptor.Builder()
+            .withName(readString(in))
+            .withFullName(readString(in));
+      String documentation = readString(in);
+      builder.withDocumentation(documentation)
+            .withAnnotations(readAnnotations(in, documentation))
+            .withOptions(readOptions(in));
+      int count = in.readInt();
+      List<EnumValueDescriptor> values = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         values.add(new EnumValueDescriptor.Builder()
+               .withName(readString(in))
+               .withTag(in.readInt())
+               .withDocumentation(readString(in))
+               .withOptions(readOptions(in))
+               .build());
+      }
+      return builder.withValues(values).build();
+   }
+
+   /**
+    * Writes the documentation followed by the annotations parsed from it. Documentation that fails to parse is stored
+    * without annotations, so the error surfaces again when the annotations are first needed.
+    */
+   private static void writeDocumentation(DataOutput out, String documentation) throws IOException {
+      writeString(out, documentation);
+      if (documentation == null) {
+         return;
+      }
+      Map<String, AnnotationElement.Annotation> annotations;
+      try {
+         annotations = new AnnotationParser(documentation).parse();
+      } catch (AnnotationParserException e) {
+         out.writeBoolean(false);
+         return;
+      }
+      out.writeBoolean(true);
+      out.writeInt(annotations.size());
+      for (AnnotationElement.Annotation annotation : annotations.values()) {
+         writeAnnotationValue(out, annotation);
+      }
+   }
+
+   /**
+    * Reads the annotations written after non-null documentation by {@link #writeDocumentation}.
+    *
+    * @return the annotations or {@code null} if they must be parsed from the documentation
+    */
+   private static Map<String, AnnotationElement.Annotation> readAnnotations(DataInput in, String documentation) throws IOException {
+      if (documentation == null || !in.readBoolean()) {
+         return null;
+      }
+      int count = in.readInt();
+      // must be mutable, like the one produced by the parser
+      Map<String, AnnotationElement.Annotation> annotations = new LinkedHashMap<>(count);
+      for (int i = 0; i < count; i++) {
+         AnnotationElement.Value value = readAnnotationValue(in);
+         if (!(value instanceof AnnotationElement.Annotation)) {
+            throw new IOException("Annotation expected");
+         }
+         AnnotationElement.Annotation annotation = (AnnotationElement.Annotation) value;
+         annotations.put(annotation.getName(), annotation);
+      }
+      return annotations;
+   }
+
+   private static void writeAnnotationValue(DataOutput out, AnnotationElement.Value value) throws IOException {
+      out.writeLong(value.position);
+      if (value instanceof AnnotationElement.Annotation) {
+         AnnotationElement.Annotation annotation = (AnnotationElement.Annotation) value;
+         out.writeByte(ANNOTATION);
+         writeString(out, annotation.getName());
+         out.writeInt(annotation.getAttributes().size());
+         for (AnnotationElement.Attribute attribute : annotation.getAttributes().values()) {
+            out.writeLong(attribute.position);
+            writeString(out, attribute.getName());
+            writeAnnotationValue(out, attribute.getValue());
+         }
+      } else if (value instanceof AnnotationElement.Identifier) {
+         out.writeByte(IDENTIFIER);
+         writeString(out, ((AnnotationElement.Identifier) value).getIdentifier());
+      } else if (value instanceof AnnotationElement.Array) {
+         List<AnnotationElement.Value> values = ((AnnotationElement.Array) value).getValues();
+         out.writeByte(ARRAY);
+         out.writeInt(values.size());
+         for (AnnotationElement.Value v : values) {
+            writeAnnotationValue(out, v);
+         }
+      } else {
+         out.writeByte(LITERAL);
+         writeValue(out, value.getValue());
+      }
+   }
+
+   private static AnnotationElement.Value readAnnotationValue(DataInput in) throws IOException {
+      long position = in.readLong();
+      byte tag = in.readByte();
+      switch (tag) {
+         case ANNOTATION: {
+            String name = readString(in);
+            int count = in.readInt();
+            // must be mutable, the attributes are normalized when the annotation is processed
+            Map<String, AnnotationElement.Attribute> attributes = new LinkedHashMap<>(count);
+            for (int i = 0; i < count; i++) {
+               long attributePosition = in.readLong();
+               String attributeName = readString(in);
+               attributes.put(attributeName, new AnnotationElement.Attribute(attributePosition, attributeName, readAnnotationValue(in)));
+            }
+            return new AnnotationElement.Annotation(position, name, attributes);
+         }
+         case IDENTIFIER:
+            return new AnnotationElement.Identifier(position, readString(in));
+         case ARRAY: {
+            int count = in.readInt();
+            List<AnnotationElement.Value> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+               values.add(readAnnotationValue(in));
+            }
+            return new AnnotationElement.Array(position, values);
+         }
+         case LITERAL:
+            return new AnnotationElement.Literal(position, readValue(in));
+         default:
+            throw new IOException("Unexpected annotation value tag : " + tag);
+      }
+   }
+
+   private static void writeOptions(DataOutput out, List<Option> options) throws IOException {
+      out.writeInt(options.size());
+      for (Option option : options) {
+         writeString(out, option.getName());
+         writeValue(out, option.getValue());
+      }
+   }
+
+   private static List<Option> readOptions(DataInput in) throws IOException {
+      int count = in.readInt();
+      List<Option> options = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         options.add(new Option(readString(in), readValue(in)));
+      }
+      return options;
+   }
+
+   /**
+    * Writes an option value or an annotation literal.
+    *
+    * @throws IllegalArgumentException if the type of the value is not supported
+    */
+   private static void writeValue(DataOutput out, Object value) throws IOException {
+      if (value == null) {
+         out.writeByte(NULL);
+      } else if (value instanceof String) {
+         out.writeByte(STRING);
+         writeString(out, (String) value);
+      } else if (value instanceof Boolean) {
+         out.writeByte(BOOLEAN);
+         out.writeBoolean((Boolean) value);
+      } else if (value instanceof Integer) {
+         out.writeByte(INTEGER);
+         out.writeInt((Integer) value);
+      } else if (value instanceof Long) {
+         out.writeByte(LONG);
+         out.writeLong((Long) value);
+      } else if (value instanceof Float) {
+         out.writeByte(FLOAT);
+         out.writeFloat((Float) value);
+      } else if (value instanceof Double) {
+         out.writeByte(DOUBLE);
+         out.writeDouble((Double) value);
+      } else if (value instanceof Character) {
+         out.writeByte(CHARACTER);
+         out.writeChar((Character) value);
+      } else if (value instanceof List) {
+         List<?> list = (List<?>) value;
+         out.writeByte(LIST);
+         out.writeInt(list.size());
+         for (Object o : list) {
+            writeValue(out, o);
+         }
+      } else if (value instanceof Map) {
+         Map<?, ?> map = (Map<?, ?>) value;
+         out.writeByte(MAP);
+         out.writeInt(map.size());
+         for (Map.Entry<?, ?> e : map.entrySet()) {
+            writeValue(out, e.getKey());
+            writeValue(out, e.getValue());
+         }
+      } else {
+         throw new IllegalArgumentException("Unsupported value type : " + value.getClass().getName());
+      }
+   }
+
+   private static Object readValue(DataInput in) throws IOException {
+      byte tag = in.readByte();
+      switch (tag) {
+         case NULL:
+            return null;
+         case STRING:
+            return readString(in);
+         case BOOLEAN:
+            return in.readBoolean();
+         case INTEGER:
+            return in.readInt();
+         case LONG:
+            return in.readLong();
+         case FLOAT:
+            return in.readFloat();
+         case DOUBLE:
+            return in.readDouble();
+         case CHARACTER:
+            return in.readChar();
+         case LIST: {
+            int count = in.readInt();
+            List<Object> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+               list.add(readValue(in));
+            }
+            return list;
+         }
+         case MAP: {
+            int count = in.readInt();
+            Map<Object, Object> map = new LinkedHashMap<>(count);
+            for (int i = 0; i < count; i++) {
+               map.put(readValue(in), readValue(in));
+            }
+            return map;
+         }
+         default:
+            throw new IOException("Unexpected value tag : " + tag);
+      }
+   }
+
+   private static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+      out.writeInt(strings.size());
+      for (String s : strings) {
+         writeString(out, s);
+      }
+   }
+
+   private static List<String> readStrings(DataInput in) throws IOException {
+      int count = in.readInt();
+      List<String> strings = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         strings.add(readString(in));
+      }
+      return strings;
+   }
+
+   /**
+    * Strings are written as UTF-8 preceded by their length, which is -1 for {@code null}. Unlike {@link
+    * DataOutput#writeUTF} this has no length limit.
+    */
+   private static void writeString(DataOutput out, String s) throws IOException {
+      if (s == null) {
+         out.writeInt(-1);
+      } else {
+         byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+   }
+
+   private static String readString(DataInput in) throws IOException {
+      int length = in.readInt();
+      if (length < 0) {
+         return null;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+}
@@ -63,4 +63,14 @@ public enum Type {
    public int getWireType() {
       return wireType;
    }
+
+   /**
+    * Indicates if repeated fields of this type can use the packed encoding. Only the scalar numeric types, bool and
+    * enums qualify.
+    */
+   public boolean isPackable() {
+      return wireType == WireFormat.WIRETYPE_VARINT
+            || wireType == WireFormat.WIRETYPE_FIXED32
+            || wireType == WireFormat.WIRETYPE_FIXED64;
+   }
 }
@@ -0,0 +1,195 @@
+package org.infinispan.protostream.filter;
+
+import java.util.Arrays;
+
+/**
+ * A condition on the fields of a message, to be compiled into a {@link MessageFilter}. Fields are identified by paths
+ * of field names separated by dots, for example {@code "addresses.postCode"}. If a path has several values, because it
+ * goes through a repeated field, a comparison is satisfied if any of the values satisfies it and {@link #isNull} is
+ * satisfied only if there is no value at all.
+ * <p>
+ * Values are compared according to the type of the field: integral values (including enums, given either as numbers or
+ * as names) as signed or unsigned numbers, floating point values numerically, booleans only for equality, strings by
+ * Unicode code point and bytes as unsigned bytes.
+ *
+ * @since 3.1
+ */
+public abstract class Condition {
+
+   Condition() {
+   }
+
+   public static Condition eq(String path, Object value) {
+      return new In(path, new Object[]{value});
+   }
+
+   public static Condition in(String path, Object... values) {
+      return new In(path, values.clone());
+   }
+
+   public static Condition lt(String path, Object value) {
+      return new Range(path, null, false, value, false);
+   }
+
+   public static Condition lte(String path, Object value) {
+      return new Range(path, null, false, value, true);
+   }
+
+   public static Condition gt(String path, Object value) {
+      return new Range(path, value, false, null, false);
+   }
+
+   public static Condition gte(String path, Object value) {
+      return new Range(path, value, true, null, false);
+   }
+
+   /**
+    * A range condition. A {@code null} bound means the range is unbounded on that side.
+    */
+   public static Condition between(String path, Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+      return new Range(path, lower, lowerInclusive, upper, upperInclusive);
+   }
+
+   public static Condition isNull(String path) {
+      return new IsNull(path);
+   }
+
+   public static Condition and(Condition... conditions) {
+      return new Junction(true, conditions.clone());
+   }
+
+   public static Condition or(Condition... conditions) {
+      return new Junction(false, conditions.clone());
+   }
+
+   public static Condition not(Condition condition) {
+      return new Not(condition);
+   }
+
+   /**
+    * A condition on the values of a single field path.
+    */
+   abstract static class Leaf extends Condition {
+
+      final String path;
+
+      Leaf(String path) {
+         if (path == null || path.isEmpty()) {
+            throw new IllegalArgumentException("path cannot be null or empty");
+         }
+         this.path = path;
+      }
+   }
+
+   static final class In extends Leaf {
+
+      final Object[] values;
+
+      In(String path, Object[] values) {
+         super(path);
+         if (values.length == 0) {
+            throw new IllegalArgumentException("At least one value is required");
+         }
+         for (Object value : values) {
+            if (value == null) {
+               throw new IllegalArgumentException("Values cannot be null, use isNull instead");
+            }
+         }
+         this.values = values;
+      }
+
+      @Override
+      public String toString() {
+         return values.length == 1 ? path + " = " + values[0] : path + " IN " + Arrays.toString(values);
+      }
+   }
+
+   static final class Range extends Leaf {
+
+      final Object lower;
+
+      final boolean lowerInclusive;
+
+      final Object upper;
+
+      final boolean upperInclusive;
+
+      Range(String path, Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+         super(path);
+         if (lower == null && upper == null) {
+            throw new IllegalArgumentException("At least one bound is required");
+         }
+         this.lower = lower;
+         this.lowerInclusive = lowerInclusive;
+         this.upper = upper;
+         this.upperInclusive = upperInclusive;
+      }
+
+      @Override
+      public String toString() {
+         return path + " IN " + (lower == null ? "(*" : (lowerInclusive ? "[" : "(") + lower) + ", "
+               + (upper == null ? "*)" : upper + (upperInclusive ? "]" : ")"));
+      }
+   }
+
+   static final class IsNull extends Leaf {
+
+      IsNull(String path) {
+         super(path);
+      }
+
+      @Override
+      public String toString() {
+         return path + " IS NULL";
+      }
+   }
+
+   static final class Junction extends Condition {
+
+      final boolean isConjunction;
+
+      final Condition[] conditions;
+
+      Junction(boolean isConjunction, Condition[] conditions) {
+         if (conditions.length == 0) {
+            throw new IllegalArgumentException("At least one condition is required");
+         }
+         for (Condition c : conditions) {
+            if (c == null) {
+               throw new IllegalArgumentException("Conditions cannot be null");
+            }
+         }
+         this.isConjunction = isConjunction;
+         this.conditions = conditions;
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder sb = new StringBuilder("(");
+         for (int i = 0; i < conditions.length; i++) {
+            if (i > 0) {
+               sb.append(isConjunction ? " AND " : " OR ");
+            }
+            sb.append(conditions[i]);
+         }
+         return sb.append(')').toString();
+      }
+   }
+
+   static final class Not extends Condition {
+
+      final Condition condition;
+
+      Not(Condition condition) {
+         if (condition == null) {
+            throw new IllegalArgumentException("condition cannot be null");
+         }
+         this.condition = condition;
+      }
+
+      @Override
+      public String toString() {
+         return "NOT " + condition;
+      }
+   }
+}
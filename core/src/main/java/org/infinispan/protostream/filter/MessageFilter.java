@@ -0,0 +1,681 @@
+package org.infinispan.protostream.filter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.infinispan.protostream.RawProtoStreamReader;
+import org.infinispan.protostream.WrappedMessage;
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.EnumValueDescriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
+import org.infinispan.protostream.descriptors.Type;
+import org.infinispan.protostream.impl.RawProtoStreamReaderImpl;
+import org.infinispan.protostream.impl.WireFormat;
+
+/**
+ * A {@link Condition} compiled against a message {@link Descriptor}, that is evaluated directly over the encoded bytes
+ * of messages. No object is unmarshalled and no string is decoded; only the fields the condition refers to are looked
+ * at, nested messages that contain none of them are skipped, and the evaluation stops as soon as the outcome is known.
+ * <p>
+ * Filters are immutable and can be shared by any number of threads.
+ *
+ * @since 3.1
+ */
+public final class MessageFilter {
+
+   private static final byte UNKNOWN = 0;
+
+   private static final byte TRUE = 1;
+
+   private static final byte FALSE = 2;
+
+   /**
+    * A node of the tree of boolean operators, evaluated in three-valued logic while some leaves are still unknown.
+    */
+   private abstract static class Expr {
+
+      abstract byte eval(byte[] states);
+   }
+
+   private static final class LeafExpr extends Expr {
+
+      private final int index;
+
+      LeafExpr(int index) {
+         this.index = index;
+      }
+
+      @Override
+      byte eval(byte[] states) {
+         return states[index];
+      }
+   }
+
+   private static final class JunctionExpr extends Expr {
+
+      private final boolean isConjunction;
+
+      private final Expr[] children;
+
+      JunctionExpr(boolean isConjunction, Expr[] children) {
+         this.isConjunction = isConjunction;
+         this.children = children;
+      }
+
+      @Override
+      byte eval(byte[] states) {
+         // the value that decides the outcome alone
+         byte decisive = isConjunction ? FALSE : TRUE;
+         byte result = isConjunction ? TRUE : FALSE;
+         for (Expr child : children) {
+            byte value = child.eval(states);
+            if (value == decisive) {
+               return decisive;
+            }
+            if (value == UNKNOWN) {
+               result = UNKNOWN;
+            }
+         }
+         return result;
+      }
+   }
+
+   private static final class NotExpr extends Expr {
+
+      private final Expr child;
+
+      NotExpr(Expr child) {
+         this.child = child;
+      }
+
+      @Override
+      byte eval(byte[] states) {
+         byte value = child.eval(states);
+         return value == TRUE ? FALSE : value == FALSE ? TRUE : UNKNOWN;
+      }
+   }
+
+   /**
+    * How the values of a field are compared.
+    */
+   private enum ValueKind {
+      LONG, UNSIGNED_LONG, DOUBLE, BYTES
+   }
+
+   /**
+    * A compiled {@link Condition.Leaf}. A comparison becomes true as soon as a value of the field matches and false at
+    * the end of the message, while an is-null condition becomes false as soon as the field is present and true at the
+    * end of the message.
+    */
+   private static final class Matcher {
+
+      final int index;
+
+      final boolean isNull;
+
+      final ValueKind kind;
+
+      /**
+       * The values of an IN (or equality) condition, or {@code null} for a range.
+       */
+      long[] longs;
+
+      double[] doubles;
+
+      byte[][] bytes;
+
+      /**
+       * The bounds of a range, in the first two elements of the arrays for the value kind.
+       */
+      boolean hasLower, lowerInclusive, hasUpper, upperInclusive;
+
+      Matcher(int index, boolean isNull, ValueKind kind) {
+         this.index = index;
+         this.isNull = isNull;
+         this.kind = kind;
+      }
+
+      private boolean inRange(int cmpLower, int cmpUpper) {
+         return (!hasLower || cmpLower > 0 || cmpLower == 0 && lowerInclusive) && (!hasUpper || cmpUpper < 0 || cmpUpper == 0 && upperInclusive);
+      }
+
+      boolean matchLong(long value) {
+         if (hasLower || hasUpper) {
+            if (kind == ValueKind.UNSIGNED_LONG) {
+               return inRange(Long.compareUnsigned(value, longs[0]), Long.compareUnsigned(value, longs[1]));
+            }
+            return inRange(Long.compare(value, longs[0]), Long.compare(value, longs[1]));
+         }
+         for (long v : longs) {
+            if (v == value) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      boolean matchDouble(double value) {
+         if (hasLower || hasUpper) {
+            return inRange(Double.compare(value, doubles[0]), Double.compare(value, doubles[1]));
+         }
+         for (double v : doubles) {
+            if (Double.compare(v, value) == 0) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      boolean matchBytes(ByteBuffer value) {
+         if (hasLower || hasUpper) {
+            return inRange(hasLower ? compare(value, bytes[0]) : 0, hasUpper ? compare(value, bytes[1]) : 0);
+         }
+         for (byte[] v : bytes) {
+            if (v.length == value.remaining() && compare(value, v) == 0) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      /**
+       * Compares as unsigned bytes, which for UTF-8 is the same as comparing by code point.
+       */
+      private static int compare(ByteBuffer value, byte[] constant) {
+         int pos = value.position();
+         int length = value.remaining();
+         int n = Math.min(length, constant.length);
+         for (int i = 0; i < n; i++) {
+            int d = (value.get(pos + i) & 0xFF) - (constant[i] & 0xFF);
+            if (d != 0) {
+               return d;
+            }
+         }
+         return length - constant.length;
+      }
+   }
+
+   /**
+    * The fields of a message that are referred to by the condition.
+    */
+   private static final class PathNode {
+
+      int[] numbers = new int[0];
+
+      FieldDescriptor[] fields = new FieldDescriptor[0];
+
+      /**
+       * The referred fields of the nested message, for message fields that are not just tested for presence.
+       */
+      PathNode[] nested = new PathNode[0];
+
+      Matcher[][] matchers = new Matcher[0][];
+
+      int indexOf(int number) {
+         for (int i = 0; i < numbers.length; i++) {
+            if (numbers[i] == number) {
+               return i;
+            }
+         }
+         return -1;
+      }
+
+      int add(FieldDescriptor fd) {
+         int i = indexOf(fd.getNumber());
+         if (i < 0) {
+            i = numbers.length;
+            numbers = Arrays.copyOf(numbers, i + 1);
+            fields = Arrays.copyOf(fields, i + 1);
+            nested = Arrays.copyOf(nested, i + 1);
+            matchers = Arrays.copyOf(matchers, i + 1);
+            numbers[i] = fd.getNumber();
+            fields[i] = fd;
+            matchers[i] = new Matcher[0];
+         }
+         return i;
+      }
+   }
+
+   private final Descriptor messageDescriptor;
+
+   private final byte[] messageTypeName;
+
+   private final PathNode rootNode = new PathNode();
+
+   private final List<Matcher> matchers = new ArrayList<>();
+
+   private final Expr root;
+
+   private MessageFilter(Descriptor messageDescriptor, Condition condition) {
+      this.messageDescriptor = messageDescriptor;
+      this.messageTypeName = messageDescriptor.getFullName().getBytes(StandardCharsets.UTF_8);
+      this.root = compile(condition);
+   }
+
+   /**
+    * Compiles a condition.
+    *
+    * @throws IllegalArgumentException if a path does not exist or if a value does not suit the type of its field
+    */
+   public static MessageFilter compile(Descriptor messageDescriptor, Condition condition) {
+      if (messageDescriptor == null) {
+         throw new IllegalArgumentException("messageDescriptor cannot be null");
+      }
+      if (condition == null) {
+         throw new IllegalArgumentException("condition cannot be null");
+      }
+      return new MessageFilter(messageDescriptor, condition);
+   }
+
+   public Descriptor getMessageDescriptor() {
+      return messageDescriptor;
+   }
+
+   private Expr compile(Condition condition) {
+      if (condition instanceof Condition.Junction) {
+         Condition.Junction junction = (Condition.Junction) condition;
+         Expr[] children = new Expr[junction.conditions.length];
+         for (int i = 0; i < children.length; i++) {
+            children[i] = compile(junction.conditions[i]);
+         }
+         return new JunctionExpr(junction.isConjunction, children);
+      }
+      if (condition instanceof Condition.Not) {
+         return new NotExpr(compile(((Condition.Not) condition).condition));
+      }
+      return new LeafExpr(compileLeaf((Condition.Leaf) condition));
+   }
+
+   private int compileLeaf(Condition.Leaf leaf) {
+      String[] names = leaf.path.split("\\.", -1);
+      PathNode node = rootNode;
+      Descriptor descriptor = messageDescriptor;
+      for (int i = 0; ; i++) {
+         FieldDescriptor fd = descriptor.findFieldByName(names[i]);
+         if (fd == null) {
+            throw new IllegalArgumentException("Unknown field '" + names[i] + "' in path '" + leaf.path + "' of message type " + descriptor.getFullName());
+         }
+         if (fd.getType() == Type.GROUP) {
+            throw new IllegalArgumentException("Groups are not supported, found in path '" + leaf.path + "'");
+         }
+         int fieldIndex = node.add(fd);
+         if (i == names.length - 1) {
+            Matcher matcher = newMatcher(leaf, fd);
+            Matcher[] fieldMatchers = node.matchers[fieldIndex];
+            fieldMatchers = Arrays.copyOf(fieldMatchers, fieldMatchers.length + 1);
+            fieldMatchers[fieldMatchers.length - 1] = matcher;
+            node.matchers[fieldIndex] = fieldMatchers;
+            matchers.add(matcher);
+            return matcher.index;
+         }
+         if (fd.getType() != Type.MESSAGE) {
+            throw new IllegalArgumentException("Field '" + names[i] + "' in path '" + leaf.path + "' is not of a message type");
+         }
+         if (node.nested[fieldIndex] == null) {
+            node.nested[fieldIndex] = new PathNode();
+         }
+         node = node.nested[fieldIndex];
+         descriptor = fd.getMessageType();
+      }
+   }
+
+   private static ValueKind valueKind(FieldDescriptor fd) {
+      switch (fd.getType()) {
+         case DOUBLE:
+         case FLOAT:
+            return ValueKind.DOUBLE;
+         case UINT64:
+         case FIXED64:
+            return ValueKind.UNSIGNED_LONG;
+         case STRING:
+         case BYTES:
+            return ValueKind.BYTES;
+         case MESSAGE:
+            return null;
+         default:
+            return ValueKind.LONG;
+      }
+   }
+
+   private Matcher newMatcher(Condition.Leaf leaf, FieldDescriptor fd) {
+      int index = matchers.size();
+      ValueKind kind = valueKind(fd);
+      if (leaf instanceof Condition.IsNull) {
+         return new Matcher(index, true, kind);
+      }
+      if (kind == null) {
+         throw new IllegalArgumentException("Only IS NULL conditions are supported on message field '" + leaf.path + "'");
+      }
+      Matcher matcher = new Matcher(index, false, kind);
+      Object[] values;
+      if (leaf instanceof Condition.In) {
+         values = ((Condition.In) leaf).values;
+      } else {
+         Condition.Range range = (Condition.Range) leaf;
+         values = new Object[]{range.lower, range.upper};
+         matcher.hasLower = range.lower != null;
+         matcher.lowerInclusive = range.lowerInclusive;
+         matcher.hasUpper = range.upper != null;
+         matcher.upperInclusive = range.upperInclusive;
+      }
+      switch (kind) {
+         case LONG:
+         case UNSIGNED_LONG:
+            matcher.longs = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+               if (values[i] != null) {
+                  matcher.longs[i] = toLong(leaf, fd, values[i]);
+               }
+            }
+            break;
+         case DOUBLE:
+            matcher.doubles = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+               if (values[i] != null) {
+                  matcher.doubles[i] = toDouble(leaf, fd, values[i]);
+               }
+            }
+            break;
+         case BYTES:
+            matcher.bytes = new byte[values.length][];
+            for (int i = 0; i < values.length; i++) {
+               if (values[i] != null) {
+                  matcher.bytes[i] = toBytes(leaf, fd, values[i]);
+               }
+            }
+            break;
+      }
+      return matcher;
+   }
+
+   private static IllegalArgumentException badValue(Condition.Leaf leaf, FieldDescriptor fd, Object value) {
+      return new IllegalArgumentException("Value " + value + " of condition '" + leaf + "' does not suit field type " + fd.getType());
+   }
+
+   private static long toLong(Condition.Leaf leaf, FieldDescriptor fd, Object value) {
+      if (fd.getType() == Type.BOOL) {
+         if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+         }
+         throw badValue(leaf, fd, value);
+      }
+      if (fd.getType() == Type.ENUM && value instanceof String) {
+         EnumValueDescriptor enumValue = fd.getEnumType().findValueByName((String) value);
+         if (enumValue == null) {
+            throw badValue(leaf, fd, value);
+         }
+         return enumValue.getNumber();
+      }
+      if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+         return ((Number) value).longValue();
+      }
+      throw badValue(leaf, fd, value);
+   }
+
+   private static double toDouble(Condition.Leaf leaf, FieldDescriptor fd, Object value) {
+      if (!(value instanceof Number)) {
+         throw badValue(leaf, fd, value);
+      }
+      // float fields are compared with the constant rounded the same way
+      return fd.getType() == Type.FLOAT ? ((Number) value).floatValue() : ((Number) value).doubleValue();
+   }
+
+   private static byte[] toBytes(Condition.Leaf leaf, FieldDescriptor fd, Object value) {
+      if (fd.getType() == Type.STRING && value instanceof String) {
+         return ((String) value).getBytes(StandardCharsets.UTF_8);
+      }
+      if (fd.getType() == Type.BYTES && value instanceof byte[]) {
+         return ((byte[]) value).clone();
+      }
+      throw badValue(leaf, fd, value);
+   }
+
+   public boolean test(byte[] bytes) throws IOException {
+      return test(bytes, 0, bytes.length);
+   }
+
+   public boolean test(byte[] bytes, int offset, int length) throws IOException {
+      return test(ByteBuffer.wrap(bytes, offset, length));
+   }
+
+   /**
+    * Evaluates the condition over a message encoded in the remaining bytes of a buffer. The position of the buffer is
+    * not altered.
+    */
+   public boolean test(ByteBuffer buffer) throws IOException {
+      return evaluate(RawProtoStreamReaderImpl.newInstance(buffer, true));
+   }
+
+   public boolean testWrapped(byte[] bytes) throws IOException {
+      return testWrapped(bytes, 0, bytes.length);
+   }
+
+   public boolean testWrapped(byte[] bytes, int offset, int length) throws IOException {
+      return testWrapped(ByteBuffer.wrap(bytes, offset, length));
+   }
+
+   /**
+    * Evaluates the condition over a {@link WrappedMessage}. The result is false if the wrapped value is not a message of
+    * the type this filter was compiled for.
+    */
+   public boolean testWrapped(ByteBuffer buffer) throws IOException {
+      RawProtoStreamReaderImpl in = (RawProtoStreamReaderImpl) RawProtoStreamReaderImpl.newInstance(buffer, true);
+      Integer typeId = messageDescriptor.getTypeId();
+      boolean typeMatches = false;
+      boolean result = false;
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+         switch (WireFormat.getTagFieldNumber(tag)) {
+            case WrappedMessage.WRAPPED_DESCRIPTOR_FULL_NAME:
+               // the buffer is a view of the input, so the name is compared in place
+               if (Matcher.compare(in.readByteBuffer(), messageTypeName) != 0) {
+                  return false;
+               }
+               typeMatches = true;
+               break;
+            case WrappedMessage.WRAPPED_DESCRIPTOR_ID:
+               if (typeId == null || typeId != in.readInt32()) {
+                  return false;
+               }
+               typeMatches = true;
+               break;
+            case WrappedMessage.WRAPPED_MESSAGE_BYTES:
+               result = evaluate(in.readNestedReader());
+               break;
+            default:
+               if (!in.skipField(tag)) {
+                  return false;
+               }
+         }
+      }
+      return typeMatches && result;
+   }
+
+   private boolean evaluate(RawProtoStreamReader in) throws IOException {
+      byte[] states = new byte[matchers.size()];
+      byte result = scanMessage(in, rootNode, states);
+      if (result != UNKNOWN) {
+         return result == TRUE;
+      }
+      // the end of the message was reached, so the conditions that are still unknown get their final value
+      for (Matcher matcher : matchers) {
+         if (states[matcher.index] == UNKNOWN) {
+            states[matcher.index] = matcher.isNull ? TRUE : FALSE;
+         }
+      }
+      return root.eval(states) == TRUE;
+   }
+
+   /**
+    * Scans the fields of a message until the outcome of the condition is known or until the end of the message.
+    *
+    * @return the outcome or {@link #UNKNOWN} if the end of the message was reached before knowing it
+    */
+   private byte scanMessage(RawProtoStreamReader in, PathNode node, byte[] states) throws IOException {
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+         int i = node.indexOf(WireFormat.getTagFieldNumber(tag));
+         if (i < 0) {
+            if (!in.skipField(tag)) {
+               break;
+            }
+            continue;
+         }
+         FieldDescriptor fd = node.fields[i];
+         Matcher[] fieldMatchers = node.matchers[i];
+         byte result;
+         if (fd.getType() == Type.MESSAGE) {
+            result = onPresent(fieldMatchers, states);
+            if (result != UNKNOWN) {
+               return result;
+            }
+            PathNode nested = node.nested[i];
+            if (nested == null) {
+               in.skipField(tag);
+            } else {
+               int oldLimit = in.pushLimit(in.readRawVarint32());
+               result = scanMessage(in, nested, states);
+               if (result != UNKNOWN) {
+                  return result;
+               }
+               in.popLimit(oldLimit);
+            }
+         } else if (allDecided(fieldMatchers, states)) {
+            in.skipField(tag);
+         } else if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED && fd.getType().isPackable()) {
+            int oldLimit = in.pushLimit(in.readRawVarint32());
+            while (!in.isAtEnd()) {
+               result = onValue(fd, fieldMatchers, in, states);
+               if (result != UNKNOWN) {
+                  return result;
+               }
+            }
+            in.popLimit(oldLimit);
+         } else {
+            result = onValue(fd, fieldMatchers, in, states);
+            if (result != UNKNOWN) {
+               return result;
+            }
+         }
+      }
+      return UNKNOWN;
+   }
+
+   private static boolean allDecided(Matcher[] fieldMatchers, byte[] states) {
+      for (Matcher matcher : fieldMatchers) {
+         if (states[matcher.index] == UNKNOWN) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Records the presence of a message field, which is all that matters for its matchers.
+    */
+   private byte onPresent(Matcher[] fieldMatchers, byte[] states) {
+      boolean changed = false;
+      for (Matcher matcher : fieldMatchers) {
+         if (states[matcher.index] == UNKNOWN) {
+            states[matcher.index] = FALSE;
+            changed = true;
+         }
+      }
+      return changed ? root.eval(states) : UNKNOWN;
+   }
+
+   /**
+    * Reads one value of a field and tests it against the matchers of the field.
+    */
+   private byte onValue(FieldDescriptor fd, Matcher[] fieldMatchers, RawProtoStreamReader in, byte[] states) throws IOException {
+      long longValue = 0;
+      double doubleValue = 0;
+      ByteBuffer bytesValue = null;
+      switch (fd.getType()) {
+         case DOUBLE:
+            doubleValue = in.readDouble();
+            break;
+         case FLOAT:
+            doubleValue = in.readFloat();
+            break;
+         case BOOL:
+            longValue = in.readBool() ? 1 : 0;
+            break;
+         case INT32:
+            longValue = in.readInt32();
+            break;
+         case SINT32:
+            longValue = in.readSInt32();
+            break;
+         case SFIXED32:
+            longValue = in.readSFixed32();
+            break;
+         case UINT32:
+            longValue = in.readUInt32() & 0xFFFFFFFFL;
+            break;
+         case FIXED32:
+            longValue = in.readFixed32() & 0xFFFFFFFFL;
+            break;
+         case ENUM:
+            longValue = in.readEnum();
+            break;
+         case INT64:
+            longValue = in.readInt64();
+            break;
+         case UINT64:
+            longValue = in.readUInt64();
+            break;
+         case SINT64:
+            longValue = in.readSInt64();
+            break;
+         case FIXED64:
+            longValue = in.readFixed64();
+            break;
+         case SFIXED64:
+            longValue = in.readSFixed64();
+            break;
+         case STRING:
+         case BYTES:
+            bytesValue = in.readByteBuffer();
+            break;
+         default:
+            throw new IOException("Unexpected field type : " + fd.getType());
+      }
+      boolean changed = false;
+      for (Matcher matcher : fieldMatchers) {
+         if (states[matcher.index] != UNKNOWN) {
+            continue;
+         }
+         if (matcher.isNull) {
+            states[matcher.index] = FALSE;
+            changed = true;
+         } else {
+            boolean matches;
+            switch (matcher.kind) {
+               case DOUBLE:
+                  matches = matcher.matchDouble(doubleValue);
+                  break;
+               case BYTES:
+                  matches = matcher.matchBytes(bytesValue);
+                  break;
+               default:
+                  matches = matcher.matchLong(longValue);
+            }
+            if (matches) {
+               states[matcher.index] = TRUE;
+               changed = true;
+            }
+         }
+      }
+      return changed ? root.eval(states) : UNKNOWN;
+   }
+
+   @Override
+   public String toString() {
+      return "MessageFilter{messageDescriptor=" + messageDescriptor.getFullName() + '}';
+   }
+}
@@ -0,0 +1,4 @@
+/**
+ * Filtering of encoded messages without unmarshalling them.
+ */
+package org.infinispan.protostream.filter;
@@ -24,13 +24,24 @@ public abstract class AnnotatedDescriptorImpl implements AnnotatedDescriptor {
    protected Map<String, AnnotationElement.Annotation> annotations = null;
    protected Map<String, Object> parsedAnnotations = null;
 
+   /**
+    * The annotations parsed from the documentation, if they are already known (ie. they were restored from a {@link
+    * org.infinispan.protostream.descriptors.FileDescriptorSnapshot}). They are not yet validated or processed.
+    */
+   private Map<String, AnnotationElement.Annotation> preparsedAnnotations;
+
    protected AnnotatedDescriptorImpl(String name, String fullName, String documentation) {
+      this(name, fullName, documentation, null);
+   }
+
+   protected AnnotatedDescriptorImpl(String name, String fullName, String documentation, Map<String, AnnotationElement.Annotation> preparsedAnnotations) {
       if (name.indexOf('.') != -1) {
          throw new DescriptorParserException("Definition names should not be qualified : " + name);
       }
       this.name = name;
       this.fullName = fullName;
       this.documentation = documentation;
+      this.preparsedAnnotations = preparsedAnnotations;
    }
 
    @Override
@@ -51,8 +62,11 @@ public abstract class AnnotatedDescriptorImpl implements AnnotatedDescriptor {
    private void processAnnotations() throws AnnotationParserException {
       if (annotations == null) {
          if (documentation != null) {
-            AnnotationParser parser = new AnnotationParser(documentation);
-            Map<String, AnnotationElement.Annotation> _annotations = parser.parse();
+            Map<String, AnnotationElement.Annotation> _annotations = preparsedAnnotations;
+            if (_annotations == null) {
+               AnnotationParser parser = new AnnotationParser(documentation);
+               _annotations = parser.parse();
+            }
             Map<String, Object> _parsedAnnotations = new LinkedHashMap<>();
             for (AnnotationElement.Annotation annotation : _annotations.values()) {
                AnnotationConfig annotationConfig = getAnnotationConfig(annotation.getName());
@@ -71,6 +85,7 @@ public abstract class AnnotatedDescriptorImpl implements AnnotatedDescriptor {
             }
             annotations = _annotations;
             parsedAnnotations = _parsedAnnotations;
+            preparsedAnnotations = null;
          } else {
             annotations = Collections.emptyMap();
             parsedAnnotations = Collections.emptyMap();
@@ -25,6 +25,40 @@ public interface BaseMarshallerDelegate<T> {
     */
    BaseMarshaller<T> getMarshaller();
 
+   /**
+    * Gets the type id of the marshalled type, cached here so that writing a {@link org.infinispan.protostream.WrappedMessage}
+    * does not need to look it up by name.
+    *
+    * @return the type id or {@code null} if the type does not have one
+    * @since 3.1
+    */
+   Integer getTypeId();
+
+   /**
+    * Updates the cached type id. Invoked by the {@link SerializationContextImpl} every time the registered types or
+    * marshallers change.
+    *
+    * @since 3.1
+    */
+   void setTypeId(Integer typeId);
+
+   /**
+    * Indicates that an object of this type was recently found to encode to more bytes than a marshalling session keeps
+    * in its reusable output buffer. Such objects are marshalled to byte arrays by computing their exact size first,
+    * which avoids growing and then copying a large buffer.
+    *
+    * @since 3.1
+    */
+   boolean isLarge();
+
+   /**
+    * Updates the hint returned by {@link #isLarge()}. Invoked by the marshalling session after every object of this type
+    * it marshalled to a byte array.
+    *
+    * @since 3.1
+    */
+   void setLarge(boolean large);
+
    /**
     * Marshalls an object.
     *
@@ -8,7 +8,6 @@ import java.util.Set;
 import org.infinispan.protostream.EnumMarshaller;
 import org.infinispan.protostream.RawProtoStreamReader;
 import org.infinispan.protostream.RawProtoStreamWriter;
-import org.infinispan.protostream.UnknownFieldSet;
 import org.infinispan.protostream.descriptors.EnumDescriptor;
 import org.infinispan.protostream.descriptors.EnumValueDescriptor;
 import org.infinispan.protostream.descriptors.FieldDescriptor;
@@ -25,6 +24,8 @@ public final class EnumMarshallerDelegate<T extends Enum<T>> implements BaseMars
 
    private final Set<Integer> definedValues;
 
+   private volatile Integer typeId;
+
    public EnumMarshallerDelegate(EnumMarshaller<T> enumMarshaller, EnumDescriptor enumDescriptor) {
       this.enumMarshaller = enumMarshaller;
       this.enumDescriptor = enumDescriptor;
@@ -40,6 +41,26 @@ public final class EnumMarshallerDelegate<T extends Enum<T>> implements BaseMars
       return enumMarshaller;
    }
 
+   @Override
+   public Integer getTypeId() {
+      return typeId;
+   }
+
+   @Override
+   public void setTypeId(Integer typeId) {
+      this.typeId = typeId;
+   }
+
+   @Override
+   public boolean isLarge() {
+      // an enum value is encoded as a single varint
+      return false;
+   }
+
+   @Override
+   public void setLarge(boolean large) {
+   }
+
    public EnumDescriptor getEnumDescriptor() {
       return enumDescriptor;
    }
@@ -63,21 +84,26 @@ public final class EnumMarshallerDelegate<T extends Enum<T>> implements BaseMars
    public T unmarshall(FieldDescriptor fieldDescriptor, ProtoStreamReaderImpl reader, RawProtoStreamReader in) throws IOException {
       final int expectedTag = WireFormat.makeTag(fieldDescriptor.getNumber(), WireFormat.WIRETYPE_VARINT);
       int enumValue;
-      UnknownFieldSet unknownFieldSet = reader.getUnknownFieldSet();
-      Object o = unknownFieldSet.consumeTag(expectedTag);
-      if (o != null) {
-         enumValue = ((Long) o).intValue();
+      ReadMessageContext messageContext = reader.getMessageContext();
+      RawProtoStreamReader skipped = messageContext.consumeSkippedField(expectedTag);
+      if (skipped != null) {
+         enumValue = skipped.readEnum();
       } else {
-         while (true) {
-            int tag = in.readTag();
-            if (tag == 0) {
-               return null;
-            }
-            if (tag == expectedTag) {
-               enumValue = in.readEnum();
-               break;
+         Object o = messageContext.unknownFieldSet.consumeTag(expectedTag);
+         if (o != null) {
+            enumValue = ((Long) o).intValue();
+         } else {
+            while (true) {
+               int tag = in.readTag();
+               if (tag == 0) {
+                  return null;
+               }
+               if (tag == expectedTag) {
+                  enumValue = in.readEnum();
+                  break;
+               }
+               messageContext.skipField(tag);
             }
-            unknownFieldSet.readSingleField(tag, in);
          }
       }
 
@@ -85,7 +111,7 @@ public final class EnumMarshallerDelegate<T extends Enum<T>> implements BaseMars
 
       if (decoded == null) {
          // the enum value was not recognized by the decoder so rather than discarding it we add it to the unknown
-         unknownFieldSet.putVarintField(expectedTag, enumValue);
+         messageContext.unknownFieldSet.putVarintField(expectedTag, enumValue);
       }
 
       return decoded;
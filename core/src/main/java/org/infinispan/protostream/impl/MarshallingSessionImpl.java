@@ -0,0 +1,498 @@
+package org.infinispan.protostream.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.infinispan.protostream.ByteBufferChain;
+import org.infinispan.protostream.DirectBufferPool;
+import org.infinispan.protostream.MarshallingSession;
+import org.infinispan.protostream.RawProtoStreamReader;
+import org.infinispan.protostream.RawProtoStreamWriter;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.WrappedMessage;
+
+/**
+ * A {@link MarshallingSession} that owns one instance of each of the objects needed for marshalling and unmarshalling
+ * and reuses them for every call. Objects are marshalled to byte arrays in one pass, into the reusable output buffer,
+ * and then copied out. The types of objects that turned out larger than the buffer is allowed to stay are remembered
+ * and their objects are marshalled in two passes instead: the first one just computes the exact size and the length
+ * of every nested message and the second one writes in place into an array of that size, filling in each length
+ * prefix up front. Output to a chain of direct buffers always uses two passes, so bytes never have to be moved to fill
+ * in a length prefix.
+ *
+ * @since 3.1
+ */
+final class MarshallingSessionImpl implements MarshallingSession {
+
+   /**
+    * An output buffer that grew beyond this size is dropped after use, to avoid pinning large buffers in the pool.
+    */
+   private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+   private final SerializationContextImpl ctx;
+
+   private ByteArrayOutputStreamEx buffer;
+
+   private RawProtoStreamWriterImpl out;
+
+   private ProtoStreamWriterImpl writer;
+
+   private final RawProtoStreamWriterImpl.SizeCounter sizeCounter = new RawProtoStreamWriterImpl.SizeCounter();
+
+   private ProtoStreamReaderImpl reader;
+
+   private RawProtoStreamReaderImpl in;
+
+   /**
+    * Whether this session is currently idle in the pool. Guards against returning the same session twice.
+    */
+   boolean pooled;
+
+   MarshallingSessionImpl(SerializationContextImpl ctx) {
+      this.ctx = ctx;
+      resetOutput();
+      writer = new ProtoStreamWriterImpl(ctx);
+      reader = new ProtoStreamReaderImpl(ctx);
+   }
+
+   private void resetOutput() {
+      buffer = new ByteArrayOutputStreamEx();
+      out = (RawProtoStreamWriterImpl) RawProtoStreamWriterImpl.newInstance(buffer);
+   }
+
+   /**
+    * Replaces all reused objects after a call that did not complete normally, as they may be left in an inconsistent
+    * state (pending nested fields, unpopped message contexts).
+    */
+   private void discardState() {
+      resetOutput();
+      writer = new ProtoStreamWriterImpl(ctx);
+      reader = new ProtoStreamReaderImpl(ctx);
+      in = null;
+   }
+
+   private byte[] takeOutput() {
+      byte[] bytes = buffer.toByteArray();
+      if (bytes.length > MAX_RETAINED_BUFFER_SIZE) {
+         resetOutput();
+      } else {
+         buffer.reset();
+      }
+      return bytes;
+   }
+
+   /**
+    * Points the reused reader to an empty input so a pooled session does not keep the caller's bytes reachable.
+    */
+   private void releaseInput() {
+      in = RawProtoStreamReaderImpl.reset(in, RawProtoStreamReaderImpl.EMPTY_BYTES, 0, 0);
+   }
+
+   @Override
+   public SerializationContext getSerializationContext() {
+      return ctx;
+   }
+
+   /**
+    * Checks that the second pass wrote exactly as many bytes as computed by the first one. A marshaller that does not
+    * produce the same output every time it is invoked for the same object would otherwise leave trailing zeros.
+    */
+   private static void checkExactSize(RawProtoStreamWriterImpl.ArrayEncoder encoder, Object t) {
+      if (encoder.spaceLeft() != 0) {
+         throw new IllegalStateException("The marshaller of " + t.getClass().getName() + " wrote less than the computed size of the object");
+      }
+   }
+
+   /**
+    * Checks that an encoder advanced by exactly the computed size since the given position. Otherwise a length prefix
+    * that was written up front does not match what follows it.
+    */
+   private static void checkExactSize(RawProtoStreamWriterImpl encoder, long start, int size, Object t) {
+      if (encoder.getWrittenBytes() - start != size) {
+         throw new IllegalStateException("The marshaller of " + t.getClass().getName() + " did not write the computed size of the object");
+      }
+   }
+
+   /**
+    * Creates an encoder for the object that was just measured by {@link #sizeCounter}.
+    */
+   private RawProtoStreamWriterImpl.ChainEncoder newChainEncoder(DirectBufferPool pool) {
+      return new RawProtoStreamWriterImpl.ChainEncoder(pool, sizeCounter.getNestedLengths(), sizeCounter.getNestedCount());
+   }
+
+   @Override
+   public int computeSize(Object t) throws IOException {
+      if (t == null) {
+         throw new IllegalArgumentException("Object to marshall cannot be null");
+      }
+      BaseMarshallerDelegate marshallerDelegate = ctx.getMarshallerDelegate(t.getClass());
+      boolean completed = false;
+      try {
+         sizeCounter.reset();
+         marshallerDelegate.marshall(null, t, writer, sizeCounter);
+         completed = true;
+         return sizeCounter.getSize();
+      } finally {
+         if (!completed) {
+            discardState();
+         }
+      }
+   }
+
+   @Override
+   public byte[] toByteArray(Object t) throws IOException {
+      if (t == null) {
+         throw new IllegalArgumentException("Object to marshall cannot be null");
+      }
+      return marshallToByteArray(ctx.getMarshallerDelegate(t.getClass()), t, false);
+   }
+
+   /**
+    * Marshalls an object, wrapped or not, in two passes if its type is known to be large or else in one pass to the
+    * output buffer. The size of the result decides how the next object of the same type is marshalled.
+    *
+    * @param marshallerDelegate the delegate for the class of the object or {@code null} if the object is wrapped and
+    *                           does not have a marshaller (scalars)
+    */
+   private byte[] marshallToByteArray(BaseMarshallerDelegate marshallerDelegate, Object t, boolean wrapped) throws IOException {
+      boolean completed = false;
+      try {
+         byte[] bytes = null;
+         if (marshallerDelegate != null && marshallerDelegate.isLarge()) {
+            bytes = marshallInPlace(marshallerDelegate, t, wrapped);
+         }
+         if (bytes == null) {
+            bytes = marshallToBuffer(marshallerDelegate, t, wrapped);
+         }
+         if (marshallerDelegate != null) {
+            boolean large = bytes.length > MAX_RETAINED_BUFFER_SIZE;
+            if (large != marshallerDelegate.isLarge()) {
+               marshallerDelegate.setLarge(large);
+            }
+         }
+         completed = true;
+         return bytes;
+      } finally {
+         if (!completed) {
+            discardState();
+         }
+      }
+   }
+
+   /**
+    * Marshalls an object in one pass to the output buffer and copies it out.
+    */
+   private byte[] marshallToBuffer(BaseMarshallerDelegate marshallerDelegate, Object t, boolean wrapped) throws IOException {
+      boolean completed = false;
+      try {
+         marshall(marshallerDelegate, t, wrapped, out);
+         out.flush();
+         completed = true;
+         return takeOutput();
+      } finally {
+         if (!completed) {
+            discardState();
+         }
+      }
+   }
+
+   /**
+    * Computes the size of an object and then writes it in place into an array of exactly that size.
+    *
+    * @return the array or {@code null} if the size of the object cannot be computed in advance
+    */
+   private byte[] marshallInPlace(BaseMarshallerDelegate marshallerDelegate, Object t, boolean wrapped) throws IOException {
+      sizeCounter.reset();
+      marshall(marshallerDelegate, t, wrapped, sizeCounter);
+      int size = sizeCounter.getSize();
+      if (size < 0) {
+         return null;
+      }
+      byte[] bytes = new byte[size];
+      RawProtoStreamWriterImpl.ArrayEncoder encoder = new RawProtoStreamWriterImpl.ArrayEncoder(bytes, 0, size, sizeCounter.getNestedLengths(), sizeCounter.getNestedCount());
+      marshall(marshallerDelegate, t, wrapped, encoder);
+      checkExactSize(encoder, t);
+      return bytes;
+   }
+
+   private void marshall(BaseMarshallerDelegate marshallerDelegate, Object t, boolean wrapped, RawProtoStreamWriterImpl out) throws IOException {
+      if (wrapped) {
+         WrappedMessage.writeMessage(ctx, out, t);
+      } else {
+         marshallerDelegate.marshall(null, t, writer, out);
+      }
+   }
+
+   @Override
+   public ByteBufferChain toByteBufferChain(Object t, DirectBufferPool pool) throws IOException {
+      int size = computeSize(t);
+      BaseMarshallerDelegate marshallerDelegate = ctx.getMarshallerDelegate(t.getClass());
+      if (size < 0) {
+         return copyToChain(marshallToBuffer(marshallerDelegate, t, false), pool);
+      }
+      RawProtoStreamWriterImpl.ChainEncoder encoder = newChainEncoder(pool);
+      boolean completed = false;
+      try {
+         marshallerDelegate.marshall(null, t, writer, encoder);
+         checkExactSize(encoder, 0, size, t);
+         completed = true;
+         return encoder.finish();
+      } finally {
+         if (!completed) {
+            encoder.release();
+            discardState();
+         }
+      }
+   }
+
+   /**
+    * Copies the output of an object whose size could not be computed in advance.
+    */
+   private static ByteBufferChain copyToChain(byte[] bytes, DirectBufferPool pool) {
+      RawProtoStreamWriterImpl.ChainEncoder encoder = new RawProtoStreamWriterImpl.ChainEncoder(pool, null, 0);
+      encoder.writeRawBytes(bytes, 0, bytes.length);
+      return encoder.finish();
+   }
+
+   @Override
+   public void writeDelimitedTo(RawProtoStreamWriter out, Object t) throws IOException {
+      if (t == null) {
+         throw new IllegalArgumentException("Object to marshall cannot be null");
+      }
+      BaseMarshallerDelegate marshallerDelegate = ctx.getMarshallerDelegate(t.getClass());
+      if (out instanceof RawProtoStreamWriterImpl) {
+         int size = computeSize(t);
+         if (size >= 0) {
+            RawProtoStreamWriterImpl outImpl = (RawProtoStreamWriterImpl) out;
+            boolean completed = false;
+            try {
+               outImpl.writeUInt32NoTag(size);
+               long start = outImpl.getWrittenBytes();
+               marshallerDelegate.marshall(null, t, writer, outImpl);
+               checkExactSize(outImpl, start, size, t);
+               completed = true;
+            } finally {
+               if (!completed) {
+                  discardState();
+               }
+            }
+            return;
+         }
+      }
+      byte[] bytes = marshallToBuffer(marshallerDelegate, t, false);
+      out.writeUInt32NoTag(bytes.length);
+      out.writeRawBytes(bytes, 0, bytes.length);
+   }
+
+   @Override
+   public <A> A readDelimitedFrom(RawProtoStreamReader in, Class<A> clazz) throws IOException {
+      BaseMarshallerDelegate<A> marshallerDelegate = ctx.getMarshallerDelegate(clazz);
+      int oldLimit = in.pushLimit(in.readRawVarint32());
+      boolean completed = false;
+      try {
+         A a = marshallerDelegate.unmarshall(null, reader, in);
+         checkConsumed(in);
+         in.popLimit(oldLimit);
+         completed = true;
+         return a;
+      } finally {
+         if (!completed) {
+            discardState();
+         }
+      }
+   }
+
+   private static void checkConsumed(RawProtoStreamReader in) throws IOException {
+      if (!in.isAtEnd()) {
+         throw new IOException("The delimited message was not fully consumed");
+      }
+   }
+
+   @Override
+   public <A> A fromByteArray(byte[] bytes, Class<A> clazz) throws IOException {
+      return fromByteArray(bytes, 0, bytes.length, clazz);
+   }
+
+   @Override
+   public <A> A fromByteArray(byte[] bytes, int offset, int length, Class<A> clazz) throws IOException {
+      BaseMarshallerDelegate<A> marshallerDelegate = ctx.getMarshallerDelegate(clazz);
+      in = RawProtoStreamReaderImpl.reset(in, bytes, offset, length);
+      boolean completed = false;
+      try {
+         A a = marshallerDelegate.unmarshall(null, reader, in);
+         completed = true;
+         return a;
+      } finally {
+         if (completed) {
+            releaseInput();
+         } else {
+            discardState();
+         }
+      }
+   }
+
+   /**
+    * Obtains a reader for the remaining bytes of a buffer, reusing the reader of this session for heap buffers.
+    */
+   private RawProtoStreamReaderImpl input(ByteBuffer byteBuffer) {
+      boolean zeroCopy = ctx.getConfiguration().zeroCopyByteBuffers();
+      if (byteBuffer.hasArray()) {
+         in = RawProtoStreamReaderImpl.reset(in, byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining(), zeroCopy);
+         return in;
+      }
+      return (RawProtoStreamReaderImpl) RawProtoStreamReaderImpl.newInstance(byteBuffer, zeroCopy);
+   }
+
+   @Override
+   public <A> A fromByteBuffer(ByteBuffer byteBuffer, Class<A> clazz) throws IOException {
+      BaseMarshallerDelegate<A> marshallerDelegate = ctx.getMarshallerDelegate(clazz);
+      RawProtoStreamReaderImpl input = input(byteBuffer);
+      boolean completed = false;
+      try {
+         A a = marshallerDelegate.unmarshall(null, reader, input);
+         completed = true;
+         return a;
+      } finally {
+         if (completed) {
+            releaseInput();
+         } else {
+            discardState();
+         }
+      }
+   }
+
+   @Override
+   public int computeWrappedSize(Object t) throws IOException {
+      boolean completed = false;
+      try {
+         sizeCounter.reset();
+         WrappedMessage.writeMessage(ctx, sizeCounter, t);
+         completed = true;
+         return sizeCounter.getSize();
+      } finally {
+         if (!completed) {
+            discardState();
+         }
+      }
+   }
+
+   @Override
+   public byte[] toWrappedByteArray(Object t) throws IOException {
+      return marshallToByteArray(t == null ? null : ctx.findMarshallerDelegate(t.getClass()), t, true);
+   }
+
+   @Override
+   public ByteBufferChain toWrappedByteBufferChain(Object t, DirectBufferPool pool) throws IOException {
+      int size = computeWrappedSize(t);
+      if (size < 0) {
+         return copyToChain(marshallToBuffer(null, t, true), pool);
+      }
+      RawProtoStreamWriterImpl.ChainEncoder encoder = newChainEncoder(pool);
+      boolean completed = false;
+      try {
+         WrappedMessage.writeMessage(ctx, encoder, t);
+         if (t != null) {
+            checkExactSize(encoder, 0, size, t);
+         }
+         completed = true;
+         return encoder.finish();
+      } finally {
+         if (!completed) {
+            encoder.release();
+            discardState();
+         }
+      }
+   }
+
+   @Override
+   public void writeWrappedDelimitedTo(RawProtoStreamWriter out, Object t) throws IOException {
+      if (out instanceof RawProtoStreamWriterImpl) {
+         int size = computeWrappedSize(t);
+         if (size >= 0) {
+            RawProtoStreamWriterImpl outImpl = (RawProtoStreamWriterImpl) out;
+            boolean completed = false;
+            try {
+               outImpl.writeUInt32NoTag(size);
+               long start = outImpl.getWrittenBytes();
+               WrappedMessage.writeMessage(ctx, outImpl, t);
+               if (t != null) {
+                  checkExactSize(outImpl, start, size, t);
+               }
+               completed = true;
+            } finally {
+               if (!completed) {
+                  discardState();
+               }
+            }
+            return;
+         }
+      }
+      byte[] bytes = marshallToBuffer(null, t, true);
+      out.writeUInt32NoTag(bytes.length);
+      out.writeRawBytes(bytes, 0, bytes.length);
+   }
+
+   @Override
+   public Object readWrappedDelimitedFrom(RawProtoStreamReader in) throws IOException {
+      int oldLimit = in.pushLimit(in.readRawVarint32());
+      boolean completed = false;
+      try {
+         Object o = WrappedMessage.readMessage(ctx, in);
+         checkConsumed(in);
+         in.popLimit(oldLimit);
+         completed = true;
+         return o;
+      } finally {
+         if (!completed) {
+            discardState();
+         }
+      }
+   }
+
+   @Override
+   public Object fromWrappedByteArray(byte[] bytes) throws IOException {
+      return fromWrappedByteArray(bytes, 0, bytes.length);
+   }
+
+   @Override
+   public Object fromWrappedByteArray(byte[] bytes, int offset, int length) throws IOException {
+      in = RawProtoStreamReaderImpl.reset(in, bytes, offset, length);
+      boolean completed = false;
+      try {
+         Object o = WrappedMessage.readMessage(ctx, in);
+         completed = true;
+         return o;
+      } finally {
+         if (completed) {
+            releaseInput();
+         } else {
+            discardState();
+         }
+      }
+   }
+
+   @Override
+   public Object fromWrappedByteBuffer(ByteBuffer byteBuffer) throws IOException {
+      RawProtoStreamReaderImpl input = input(byteBuffer);
+      boolean completed = false;
+      try {
+         Object o = WrappedMessage.readMessage(ctx, input);
+         completed = true;
+         return o;
+      } finally {
+         if (completed) {
+            releaseInput();
+         } else {
+            discardState();
+         }
+      }
+   }
+
+   @Override
+   public void close() {
+      if (!pooled) {
+         pooled = true;
+         ctx.releaseMarshallingSession(this);
+      }
+   }
+}
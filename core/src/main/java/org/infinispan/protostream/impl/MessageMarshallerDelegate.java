@@ -30,6 +30,10 @@ final class MessageMarshallerDelegate<T> implements BaseMarshallerDelegate<T> {
 
    private final Map<String, FieldDescriptor> fieldsByName;
 
+   private volatile Integer typeId;
+
+   private volatile boolean large;
+
    public MessageMarshallerDelegate(SerializationContextImpl ctx, MessageMarshaller<T> marshaller, Descriptor messageDescriptor) {
       this.ctx = ctx;
       this.marshaller = marshaller;
@@ -47,6 +51,26 @@ final class MessageMarshallerDelegate<T> implements BaseMarshallerDelegate<T> {
       return marshaller;
    }
 
+   @Override
+   public Integer getTypeId() {
+      return typeId;
+   }
+
+   @Override
+   public void setTypeId(Integer typeId) {
+      this.typeId = typeId;
+   }
+
+   @Override
+   public boolean isLarge() {
+      return large;
+   }
+
+   @Override
+   public void setLarge(boolean large) {
+      this.large = large;
+   }
+
    public Descriptor getMessageDescriptor() {
       return messageDescriptor;
    }
@@ -63,6 +87,18 @@ final class MessageMarshallerDelegate<T> implements BaseMarshallerDelegate<T> {
       return fd;
    }
 
+   /**
+    * Validates a field descriptor that a marshaller resolved in advance. The descriptor is expected to belong to the
+    * message type of this delegate, so this is just a reference comparison. A descriptor coming from a different
+    * message type or from a schema that was registered again in the meantime is looked up again by its name.
+    */
+   public FieldDescriptor resolveField(FieldDescriptor fieldDescriptor) throws IOException {
+      if (fieldDescriptor.getContainingMessage() == messageDescriptor) {
+         return fieldDescriptor;
+      }
+      return getFieldByName(fieldDescriptor.getName());
+   }
+
    @Override
    public void marshall(FieldDescriptor fieldDescriptor, T message, ProtoStreamWriterImpl writer, RawProtoStreamWriter out) throws IOException {
       if (writer == null) {
@@ -112,7 +148,7 @@ final class MessageMarshallerDelegate<T> implements BaseMarshallerDelegate<T> {
 
       T message = marshaller.readFrom(reader);
 
-      messageContext.unknownFieldSet.readAllFields(in);
+      messageContext.readUnknownFields();
 
       if (!messageContext.unknownFieldSet.isEmpty()) {
          if (marshaller instanceof UnknownFieldSetHandler) {
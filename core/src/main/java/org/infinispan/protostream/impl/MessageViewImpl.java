@@ -0,0 +1,513 @@
+package org.infinispan.protostream.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.infinispan.protostream.MessageView;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.WrappedMessage;
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.EnumDescriptor;
+import org.infinispan.protostream.descriptors.EnumValueDescriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
+import org.infinispan.protostream.descriptors.JavaType;
+import org.infinispan.protostream.descriptors.Type;
+
+/**
+ * A {@link MessageView} over a random access input. The first access scans the tags of the message once, skipping all
+ * values, and records where each value of a known field is located. Values are decoded from there by a reader for just
+ * their region of the input. Packed repeated fields are split into their elements on the first access to that field.
+ *
+ * @since 3.1
+ */
+public final class MessageViewImpl implements MessageView {
+
+   /**
+    * The locations of the values of a field, as triplets of ints: the wire type, the absolute position of the value and
+    * the absolute position where it ends. A length delimited value starts with its length prefix and a group ends before
+    * its end tag.
+    */
+   private static final class FieldValues {
+
+      private static final int ENTRY_SIZE = 3;
+
+      int[] entries = new int[2 * ENTRY_SIZE];
+
+      /**
+       * The number of used array elements.
+       */
+      int size = 0;
+
+      /**
+       * Indicates that some entries are packed repeated values that were not split into elements yet.
+       */
+      boolean hasPacked = false;
+
+      void add(int wireType, int start, int end) {
+         if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+         }
+         entries[size] = wireType;
+         entries[size + 1] = start;
+         entries[size + 2] = end;
+         size += ENTRY_SIZE;
+      }
+
+      int count() {
+         return size / ENTRY_SIZE;
+      }
+   }
+
+   private final Descriptor descriptor;
+
+   /**
+    * Scans the message once, then only serves as the source of the regions of the values.
+    */
+   private final RawProtoStreamReaderImpl in;
+
+   /**
+    * The values of the fields present in the message, by field number. Created on the first access.
+    */
+   private Map<Integer, FieldValues> fields;
+
+   /**
+    * Reused for decoding the scalar values.
+    */
+   private RawProtoStreamReaderImpl valueReader;
+
+   private MessageViewImpl(Descriptor descriptor, RawProtoStreamReaderImpl in) {
+      this.descriptor = descriptor;
+      this.in = in;
+   }
+
+   public static MessageView newInstance(Descriptor descriptor, byte[] bytes) {
+      return newInstance(descriptor, bytes, 0, bytes.length);
+   }
+
+   public static MessageView newInstance(Descriptor descriptor, byte[] bytes, int offset, int length) {
+      return newInstance(descriptor, ByteBuffer.wrap(bytes, offset, length));
+   }
+
+   /**
+    * Creates a view of the message encoded in the remaining bytes of a buffer. The position of the buffer is not
+    * altered.
+    */
+   public static MessageView newInstance(Descriptor descriptor, ByteBuffer buffer) {
+      if (descriptor == null) {
+         throw new IllegalArgumentException("descriptor cannot be null");
+      }
+      return new MessageViewImpl(descriptor, (RawProtoStreamReaderImpl) RawProtoStreamReaderImpl.newInstance(buffer, true));
+   }
+
+   /**
+    * Creates a view of the message contained in a {@link WrappedMessage} encoded in the remaining bytes of a buffer. The
+    * type of the message is looked up in the given context.
+    *
+    * @return the view or {@code null} if the wrapped value is not a message
+    */
+   public static MessageView newWrappedInstance(SerializationContext ctx, ByteBuffer buffer) throws IOException {
+      RawProtoStreamReaderImpl in = (RawProtoStreamReaderImpl) RawProtoStreamReaderImpl.newInstance(buffer, true);
+      String typeName = null;
+      RawProtoStreamReaderImpl messageReader = null;
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+         switch (tag) {
+            case WrappedMessage.WRAPPED_DESCRIPTOR_FULL_NAME << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED:
+               typeName = in.readString();
+               break;
+            case WrappedMessage.WRAPPED_DESCRIPTOR_ID << 3 | WireFormat.WIRETYPE_VARINT:
+               typeName = ctx.getTypeNameById(in.readInt32());
+               break;
+            case WrappedMessage.WRAPPED_MESSAGE_BYTES << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED:
+               messageReader = (RawProtoStreamReaderImpl) in.readNestedReader();
+               break;
+            default:
+               if (!in.skipField(tag)) {
+                  throw new IOException("Unexpected end group tag");
+               }
+         }
+      }
+      if (messageReader == null) {
+         return null;
+      }
+      if (typeName == null) {
+         throw new IOException("Invalid WrappedMessage encoding: the message type is missing");
+      }
+      return new MessageViewImpl(ctx.getMessageDescriptor(typeName), messageReader);
+   }
+
+   @Override
+   public Descriptor getDescriptor() {
+      return descriptor;
+   }
+
+   private Map<Integer, FieldValues> index() throws IOException {
+      if (fields == null) {
+         Map<Integer, FieldValues> index = new HashMap<>();
+         int tag;
+         while ((tag = in.readTag()) != 0) {
+            int start = in.getPosition();
+            if (!in.skipField(tag)) {
+               throw new IOException("Unexpected end group tag");
+            }
+            int fieldNumber = WireFormat.getTagFieldNumber(tag);
+            if (descriptor.findFieldByNumber(fieldNumber) == null) {
+               continue;
+            }
+            int wireType = WireFormat.getTagWireType(tag);
+            int end = in.getPosition();
+            if (wireType == WireFormat.WIRETYPE_START_GROUP) {
+               end -= RawProtoStreamWriterImpl.computeVarint32Size(WireFormat.makeTag(fieldNumber, WireFormat.WIRETYPE_END_GROUP));
+            }
+            FieldValues values = index.get(fieldNumber);
+            if (values == null) {
+               values = new FieldValues();
+               index.put(fieldNumber, values);
+            }
+            values.add(wireType, start, end);
+            if (wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED && descriptor.findFieldByNumber(fieldNumber).getType().isPackable()) {
+               values.hasPacked = true;
+            }
+         }
+         fields = index;
+      }
+      return fields;
+   }
+
+   private FieldDescriptor field(String fieldName, JavaType javaType1, JavaType javaType2, JavaType javaType3) {
+      FieldDescriptor fd = descriptor.findFieldByName(fieldName);
+      if (fd == null) {
+         throw new IllegalArgumentException("Unknown field : " + fieldName + " of message type " + descriptor.getFullName());
+      }
+      JavaType javaType = fd.getJavaType();
+      if (javaType != javaType1 && javaType != javaType2 && javaType != javaType3) {
+         throw new IllegalArgumentException("Declared field type is not of the expected type : " + fd.getFullName());
+      }
+      return fd;
+   }
+
+   private FieldDescriptor field(String fieldName, JavaType javaType) {
+      return field(fieldName, javaType, javaType, javaType);
+   }
+
+   /**
+    * Obtains the values of a field, with the packed ones split into elements.
+    *
+    * @return the values or {@code null} if the field is not present
+    */
+   private FieldValues values(FieldDescriptor fd) throws IOException {
+      FieldValues values = index().get(fd.getNumber());
+      if (values != null && values.hasPacked) {
+         FieldValues elements = new FieldValues();
+         int elementWireType = fd.getType().getWireType();
+         for (int i = 0; i < values.size; i += FieldValues.ENTRY_SIZE) {
+            if (values.entries[i] != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+               elements.add(values.entries[i], values.entries[i + 1], values.entries[i + 2]);
+               continue;
+            }
+            RawProtoStreamReaderImpl packed = in.region(values.entries[i + 1], values.entries[i + 2], null);
+            packed.readRawVarint32();
+            while (!packed.isAtEnd()) {
+               int start = packed.getPosition();
+               switch (elementWireType) {
+                  case WireFormat.WIRETYPE_VARINT:
+                     packed.readRawVarint64();
+                     break;
+                  case WireFormat.WIRETYPE_FIXED32:
+                     packed.skipRawBytes(WireFormat.FIXED_32_SIZE);
+                     break;
+                  case WireFormat.WIRETYPE_FIXED64:
+                     packed.skipRawBytes(WireFormat.FIXED_64_SIZE);
+                     break;
+                  default:
+                     throw new IOException("Unexpected wire type of packed field : " + fd.getFullName());
+               }
+               elements.add(elementWireType, start, packed.getPosition());
+            }
+         }
+         fields.put(fd.getNumber(), elements);
+         values = elements;
+      }
+      return values;
+   }
+
+   /**
+    * Locates a value of a field.
+    *
+    * @param index the index of the value or -1 for the last value of a non-repeated field
+    * @return the array index of the entry or -1 if a non-repeated field is not present
+    */
+   private int entry(FieldValues values, FieldDescriptor fd, int index) {
+      int count = values == null ? 0 : values.count();
+      if (index < 0) {
+         if (count == 0) {
+            return -1;
+         }
+         index = count - 1;
+      } else if (index >= count) {
+         throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for field " + fd.getFullName() + " having " + count + " values");
+      }
+      return index * FieldValues.ENTRY_SIZE;
+   }
+
+   /**
+    * Positions the value reader at a value of a field.
+    *
+    * @param index the index of the value or -1 for the last value of a non-repeated field
+    * @return the reader or {@code null} if a non-repeated field is not present
+    */
+   private RawProtoStreamReaderImpl valueReader(FieldDescriptor fd, int index) throws IOException {
+      FieldValues values = values(fd);
+      int i = entry(values, fd, index);
+      if (i < 0) {
+         return null;
+      }
+      valueReader = in.region(values.entries[i + 1], values.entries[i + 2], valueReader);
+      return valueReader;
+   }
+
+   @Override
+   public boolean hasField(String fieldName) throws IOException {
+      return getCount(fieldName) > 0;
+   }
+
+   @Override
+   public int getCount(String fieldName) throws IOException {
+      FieldDescriptor fd = descriptor.findFieldByName(fieldName);
+      if (fd == null) {
+         throw new IllegalArgumentException("Unknown field : " + fieldName + " of message type " + descriptor.getFullName());
+      }
+      FieldValues values = values(fd);
+      if (values == null) {
+         return 0;
+      }
+      return fd.isRepeated() ? values.count() : 1;
+   }
+
+   @Override
+   public int getInt(String fieldName) throws IOException {
+      return getInt(field(fieldName, JavaType.INT, JavaType.ENUM, JavaType.ENUM), -1);
+   }
+
+   @Override
+   public int getInt(String fieldName, int index) throws IOException {
+      return getInt(field(fieldName, JavaType.INT, JavaType.ENUM, JavaType.ENUM), checkIndex(index));
+   }
+
+   private int getInt(FieldDescriptor fd, int index) throws IOException {
+      RawProtoStreamReaderImpl reader = valueReader(fd, index);
+      if (reader == null) {
+         return (int) defaultIntegral(fd);
+      }
+      switch (fd.getType()) {
+         case INT32:
+            return reader.readInt32();
+         case UINT32:
+            return reader.readUInt32();
+         case SINT32:
+            return reader.readSInt32();
+         case FIXED32:
+            return reader.readFixed32();
+         case SFIXED32:
+            return reader.readSFixed32();
+         case ENUM:
+            return reader.readEnum();
+         default:
+            throw new IllegalStateException("Unexpected field type : " + fd.getType());
+      }
+   }
+
+   @Override
+   public long getLong(String fieldName) throws IOException {
+      return getLong(field(fieldName, JavaType.LONG, JavaType.INT, JavaType.ENUM), -1);
+   }
+
+   @Override
+   public long getLong(String fieldName, int index) throws IOException {
+      return getLong(field(fieldName, JavaType.LONG, JavaType.INT, JavaType.ENUM), checkIndex(index));
+   }
+
+   private long getLong(FieldDescriptor fd, int index) throws IOException {
+      switch (fd.getType()) {
+         case UINT32:
+         case FIXED32:
+            return getInt(fd, index) & 0xFFFFFFFFL;
+         case INT64:
+         case UINT64:
+         case SINT64:
+         case FIXED64:
+         case SFIXED64:
+            break;
+         default:
+            return getInt(fd, index);
+      }
+      RawProtoStreamReaderImpl reader = valueReader(fd, index);
+      if (reader == null) {
+         return defaultIntegral(fd);
+      }
+      switch (fd.getType()) {
+         case INT64:
+            return reader.readInt64();
+         case UINT64:
+            return reader.readUInt64();
+         case SINT64:
+            return reader.readSInt64();
+         case FIXED64:
+            return reader.readFixed64();
+         default:
+            return reader.readSFixed64();
+      }
+   }
+
+   private static long defaultIntegral(FieldDescriptor fd) {
+      if (fd.getType() == Type.ENUM) {
+         EnumValueDescriptor defaultValue = (EnumValueDescriptor) fd.getDefaultValue();
+         if (defaultValue != null) {
+            return defaultValue.getNumber();
+         }
+         // otherwise the first value is the default of an enum
+         EnumDescriptor enumType = fd.getEnumType();
+         return enumType.getValues().isEmpty() ? 0 : enumType.getValues().get(0).getNumber();
+      }
+      return fd.hasDefaultValue() ? ((Number) fd.getDefaultValue()).longValue() : 0;
+   }
+
+   @Override
+   public float getFloat(String fieldName) throws IOException {
+      return getFloat(field(fieldName, JavaType.FLOAT), -1);
+   }
+
+   @Override
+   public float getFloat(String fieldName, int index) throws IOException {
+      return getFloat(field(fieldName, JavaType.FLOAT), checkIndex(index));
+   }
+
+   private float getFloat(FieldDescriptor fd, int index) throws IOException {
+      RawProtoStreamReaderImpl reader = valueReader(fd, index);
+      if (reader == null) {
+         return fd.hasDefaultValue() ? (Float) fd.getDefaultValue() : 0;
+      }
+      return reader.readFloat();
+   }
+
+   @Override
+   public double getDouble(String fieldName) throws IOException {
+      return getDouble(field(fieldName, JavaType.DOUBLE, JavaType.FLOAT, JavaType.FLOAT), -1);
+   }
+
+   @Override
+   public double getDouble(String fieldName, int index) throws IOException {
+      return getDouble(field(fieldName, JavaType.DOUBLE, JavaType.FLOAT, JavaType.FLOAT), checkIndex(index));
+   }
+
+   private double getDouble(FieldDescriptor fd, int index) throws IOException {
+      if (fd.getType() == Type.FLOAT) {
+         return getFloat(fd, index);
+      }
+      RawProtoStreamReaderImpl reader = valueReader(fd, index);
+      if (reader == null) {
+         return fd.hasDefaultValue() ? (Double) fd.getDefaultValue() : 0;
+      }
+      return reader.readDouble();
+   }
+
+   @Override
+   public boolean getBoolean(String fieldName) throws IOException {
+      return getBoolean(field(fieldName, JavaType.BOOLEAN), -1);
+   }
+
+   @Override
+   public boolean getBoolean(String fieldName, int index) throws IOException {
+      return getBoolean(field(fieldName, JavaType.BOOLEAN), checkIndex(index));
+   }
+
+   private boolean getBoolean(FieldDescriptor fd, int index) throws IOException {
+      RawProtoStreamReaderImpl reader = valueReader(fd, index);
+      if (reader == null) {
+         return fd.hasDefaultValue() && (Boolean) fd.getDefaultValue();
+      }
+      return reader.readBool();
+   }
+
+   @Override
+   public String getString(String fieldName) throws IOException {
+      return getString(field(fieldName, JavaType.STRING), -1);
+   }
+
+   @Override
+   public String getString(String fieldName, int index) throws IOException {
+      return getString(field(fieldName, JavaType.STRING), checkIndex(index));
+   }
+
+   private String getString(FieldDescriptor fd, int index) throws IOException {
+      RawProtoStreamReaderImpl reader = valueReader(fd, index);
+      if (reader == null) {
+         return fd.hasDefaultValue() ? (String) fd.getDefaultValue() : null;
+      }
+      return reader.readString();
+   }
+
+   @Override
+   public byte[] getBytes(String fieldName) throws IOException {
+      RawProtoStreamReaderImpl reader = valueReader(field(fieldName, JavaType.BYTE_STRING), -1);
+      return reader == null ? null : reader.readByteArray();
+   }
+
+   @Override
+   public byte[] getBytes(String fieldName, int index) throws IOException {
+      return valueReader(field(fieldName, JavaType.BYTE_STRING), checkIndex(index)).readByteArray();
+   }
+
+   @Override
+   public ByteBuffer getByteBuffer(String fieldName) throws IOException {
+      RawProtoStreamReaderImpl reader = valueReader(field(fieldName, JavaType.BYTE_STRING), -1);
+      return reader == null ? null : reader.readByteBuffer();
+   }
+
+   @Override
+   public ByteBuffer getByteBuffer(String fieldName, int index) throws IOException {
+      return valueReader(field(fieldName, JavaType.BYTE_STRING), checkIndex(index)).readByteBuffer();
+   }
+
+   @Override
+   public MessageView getMessage(String fieldName) throws IOException {
+      return getMessage(field(fieldName, JavaType.MESSAGE), -1);
+   }
+
+   @Override
+   public MessageView getMessage(String fieldName, int index) throws IOException {
+      return getMessage(field(fieldName, JavaType.MESSAGE), checkIndex(index));
+   }
+
+   private MessageView getMessage(FieldDescriptor fd, int index) throws IOException {
+      FieldValues values = values(fd);
+      int i = entry(values, fd, index);
+      if (i < 0) {
+         return null;
+      }
+      int start = values.entries[i + 1];
+      int end = values.entries[i + 2];
+      // the region of a group does not include its end tag, while that of a message starts with its length
+      if (values.entries[i] == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+         valueReader = in.region(start, end, valueReader);
+         valueReader.readRawVarint32();
+         start = valueReader.getPosition();
+      }
+      return new MessageViewImpl(fd.getMessageType(), in.region(start, end, null));
+   }
+
+   private static int checkIndex(int index) {
+      if (index < 0) {
+         throw new IndexOutOfBoundsException("Index cannot be negative : " + index);
+      }
+      return index;
+   }
+
+   @Override
+   public String toString() {
+      return "MessageViewImpl{descriptor=" + descriptor.getFullName() + '}';
+   }
+}
@@ -0,0 +1,210 @@
+package org.infinispan.protostream.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable map from primitive int keys to non null values. Adding or removing a key returns a new map that shares
+ * all but O(log n) of its nodes with the old one, so a snapshot can be updated one entry at a time without copying it
+ * and without disturbing the readers of the old snapshot.
+ * <p>
+ * The keys are stored in a hash array mapped trie that consumes 5 bits of the key per level, starting from the least
+ * significant ones. A node only has slots for its non empty children, located by the population count of a bitmap. A
+ * key sits in a leaf as high in the trie as it can be told apart from the other keys.
+ *
+ * @since 3.1
+ */
+final class PersistentIntMap<V> {
+
+   private static final int BITS_PER_LEVEL = 5;
+
+   private static final PersistentIntMap<?> EMPTY = new PersistentIntMap<>(null, 0);
+
+   /**
+    * Either {@code null}, a {@link Leaf} or a {@link Node}.
+    */
+   private final Object root;
+
+   private final int size;
+
+   private PersistentIntMap(Object root, int size) {
+      this.root = root;
+      this.size = size;
+   }
+
+   @SuppressWarnings("unchecked")
+   static <V> PersistentIntMap<V> empty() {
+      return (PersistentIntMap<V>) EMPTY;
+   }
+
+   int size() {
+      return size;
+   }
+
+   @SuppressWarnings("unchecked")
+   V get(int key) {
+      Object n = root;
+      int shift = 0;
+      while (n instanceof Node) {
+         Node node = (Node) n;
+         int bit = bit(key, shift);
+         if ((node.bitmap & bit) == 0) {
+            return null;
+         }
+         n = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+         shift += BITS_PER_LEVEL;
+      }
+      if (n != null) {
+         Leaf leaf = (Leaf) n;
+         if (leaf.key == key) {
+            return (V) leaf.value;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Returns a map that also maps the given key to the given value, replacing the previous value of the key if any.
+    */
+   PersistentIntMap<V> with(int key, V value) {
+      if (value == null) {
+         throw new IllegalArgumentException("value cannot be null");
+      }
+      Object newRoot = with(root, key, value, 0);
+      if (newRoot == root) {
+         return this;
+      }
+      return new PersistentIntMap<>(newRoot, get(key) == null ? size + 1 : size);
+   }
+
+   /**
+    * Returns a map that does not contain the given key.
+    */
+   PersistentIntMap<V> without(int key) {
+      if (get(key) == null) {
+         return this;
+      }
+      return new PersistentIntMap<>(without(root, key, 0), size - 1);
+   }
+
+   /**
+    * Collects the values, in no particular order.
+    */
+   @SuppressWarnings("unchecked")
+   List<V> values() {
+      List<V> values = new ArrayList<>(size);
+      collectValues(root, (List<Object>) values);
+      return values;
+   }
+
+   private static void collectValues(Object n, List<Object> values) {
+      if (n instanceof Node) {
+         for (Object child : ((Node) n).slots) {
+            collectValues(child, values);
+         }
+      } else if (n != null) {
+         values.add(((Leaf) n).value);
+      }
+   }
+
+   private static int bit(int key, int shift) {
+      return 1 << ((key >>> shift) & 31);
+   }
+
+   private static Object with(Object n, int key, Object value, int shift) {
+      if (n == null) {
+         return new Leaf(key, value);
+      }
+      if (n instanceof Leaf) {
+         Leaf leaf = (Leaf) n;
+         if (leaf.key == key) {
+            return leaf.value == value ? leaf : new Leaf(key, value);
+         }
+         return split(leaf, new Leaf(key, value), shift);
+      }
+      Node node = (Node) n;
+      int bit = bit(key, shift);
+      int i = Integer.bitCount(node.bitmap & (bit - 1));
+      if ((node.bitmap & bit) != 0) {
+         Object child = node.slots[i];
+         Object newChild = with(child, key, value, shift + BITS_PER_LEVEL);
+         if (newChild == child) {
+            return node;
+         }
+         Object[] slots = node.slots.clone();
+         slots[i] = newChild;
+         return new Node(node.bitmap, slots);
+      }
+      Object[] slots = new Object[node.slots.length + 1];
+      System.arraycopy(node.slots, 0, slots, 0, i);
+      slots[i] = new Leaf(key, value);
+      System.arraycopy(node.slots, i, slots, i + 1, node.slots.length - i);
+      return new Node(node.bitmap | bit, slots);
+   }
+
+   /**
+    * Creates the nodes needed to tell apart two leaves having different keys that agree on the bits below the shift.
+    * Two different keys differ at the latest in the last level, the one having a shift of 30.
+    */
+   private static Object split(Leaf a, Leaf b, int shift) {
+      int bitA = bit(a.key, shift);
+      int bitB = bit(b.key, shift);
+      if (bitA == bitB) {
+         return new Node(bitA, new Object[]{split(a, b, shift + BITS_PER_LEVEL)});
+      }
+      return new Node(bitA | bitB, Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[]{a, b} : new Object[]{b, a});
+   }
+
+   private static Object without(Object n, int key, int shift) {
+      if (n instanceof Leaf) {
+         return ((Leaf) n).key == key ? null : n;
+      }
+      Node node = (Node) n;
+      int bit = bit(key, shift);
+      int i = Integer.bitCount(node.bitmap & (bit - 1));
+      Object newChild = without(node.slots[i], key, shift + BITS_PER_LEVEL);
+      if (newChild == null) {
+         if (node.slots.length == 1) {
+            return null;
+         }
+         if (node.slots.length == 2 && node.slots[1 - i] instanceof Leaf) {
+            // a single leaf does not need a node to be told apart from its siblings
+            return node.slots[1 - i];
+         }
+         Object[] slots = new Object[node.slots.length - 1];
+         System.arraycopy(node.slots, 0, slots, 0, i);
+         System.arraycopy(node.slots, i + 1, slots, i, slots.length - i);
+         return new Node(node.bitmap & ~bit, slots);
+      }
+      if (node.slots.length == 1 && newChild instanceof Leaf) {
+         return newChild;
+      }
+      Object[] slots = node.slots.clone();
+      slots[i] = newChild;
+      return new Node(node.bitmap, slots);
+   }
+
+   private static final class Node {
+
+      final int bitmap;
+
+      final Object[] slots;
+
+      Node(int bitmap, Object[] slots) {
+         this.bitmap = bitmap;
+         this.slots = slots;
+      }
+   }
+
+   private static final class Leaf {
+
+      final int key;
+
+      final Object value;
+
+      Leaf(int key, Object value) {
+         this.key = key;
+         this.value = value;
+      }
+   }
+}
@@ -0,0 +1,145 @@
+package org.infinispan.protostream.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable map with non null keys and values, updated by {@link #with} and {@link #without} in the manner of
+ * {@link PersistentIntMap}, which holds its entries keyed by the hash code of their key. Entries having keys with the
+ * same hash code are chained. The mutators inherited from {@link AbstractMap} throw
+ * {@link UnsupportedOperationException}, so it can be handed out as a read only {@link Map}.
+ *
+ * @since 3.1
+ */
+final class PersistentMap<K, V> extends AbstractMap<K, V> {
+
+   private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(PersistentIntMap.<Bucket<Object, Object>>empty(), 0);
+
+   private final PersistentIntMap<Bucket<K, V>> buckets;
+
+   private final int size;
+
+   private PersistentMap(PersistentIntMap<Bucket<K, V>> buckets, int size) {
+      this.buckets = buckets;
+      this.size = size;
+   }
+
+   @SuppressWarnings("unchecked")
+   static <K, V> PersistentMap<K, V> empty() {
+      return (PersistentMap<K, V>) EMPTY;
+   }
+
+   @Override
+   public int size() {
+      return size;
+   }
+
+   @Override
+   public V get(Object key) {
+      for (Bucket<K, V> b = buckets.get(hash(key)); b != null; b = b.next) {
+         if (b.getKey().equals(key)) {
+            return b.getValue();
+         }
+      }
+      return null;
+   }
+
+   @Override
+   public boolean containsKey(Object key) {
+      return get(key) != null;
+   }
+
+   /**
+    * Returns a map that also maps the given key to the given value, replacing the previous value of the key if any.
+    */
+   PersistentMap<K, V> with(K key, V value) {
+      if (value == null) {
+         throw new IllegalArgumentException("value cannot be null");
+      }
+      int hash = hash(key);
+      Bucket<K, V> first = buckets.get(hash);
+      Bucket<K, V> rest = remove(first, key);
+      return new PersistentMap<>(buckets.with(hash, new Bucket<>(key, value, rest)), rest == first ? size + 1 : size);
+   }
+
+   /**
+    * Returns a map that does not contain the given key.
+    */
+   PersistentMap<K, V> without(Object key) {
+      int hash = hash(key);
+      Bucket<K, V> first = buckets.get(hash);
+      Bucket<K, V> rest = remove(first, key);
+      if (rest == first) {
+         return this;
+      }
+      return new PersistentMap<>(rest == null ? buckets.without(hash) : buckets.with(hash, rest), size - 1);
+   }
+
+   @Override
+   public Set<Entry<K, V>> entrySet() {
+      return new AbstractSet<Entry<K, V>>() {
+
+         @Override
+         public Iterator<Entry<K, V>> iterator() {
+            List<Entry<K, V>> entries = new ArrayList<>(size);
+            for (Bucket<K, V> first : buckets.values()) {
+               for (Bucket<K, V> b = first; b != null; b = b.next) {
+                  entries.add(b);
+               }
+            }
+            final Iterator<Entry<K, V>> it = entries.iterator();
+            // do not let remove() through
+            return new Iterator<Entry<K, V>>() {
+               @Override
+               public boolean hasNext() {
+                  return it.hasNext();
+               }
+
+               @Override
+               public Entry<K, V> next() {
+                  return it.next();
+               }
+            };
+         }
+
+         @Override
+         public int size() {
+            return size;
+         }
+      };
+   }
+
+   private static int hash(Object key) {
+      int h = key.hashCode();
+      return h ^ (h >>> 16);
+   }
+
+   /**
+    * Returns the chain without the entry having the given key, or the same chain if there is no such entry.
+    */
+   private static <K, V> Bucket<K, V> remove(Bucket<K, V> b, Object key) {
+      if (b == null) {
+         return null;
+      }
+      if (b.getKey().equals(key)) {
+         return b.next;
+      }
+      Bucket<K, V> next = remove(b.next, key);
+      return next == b.next ? b : new Bucket<>(b.getKey(), b.getValue(), next);
+   }
+
+   private static final class Bucket<K, V> extends SimpleImmutableEntry<K, V> {
+
+      final Bucket<K, V> next;
+
+      Bucket(K key, V value, Bucket<K, V> next) {
+         super(key, value);
+         this.next = next;
+      }
+   }
+}
@@ -5,7 +5,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
@@ -14,7 +16,6 @@ import java.util.List;
 import org.infinispan.protostream.MessageMarshaller;
 import org.infinispan.protostream.RawProtoStreamReader;
 import org.infinispan.protostream.SerializationContext;
-import org.infinispan.protostream.UnknownFieldSet;
 import org.infinispan.protostream.descriptors.FieldDescriptor;
 import org.infinispan.protostream.descriptors.JavaType;
 import org.infinispan.protostream.descriptors.Type;
@@ -49,25 +50,42 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
 
    private ReadMessageContext messageContext;
 
+   /**
+    * A finished root context, kept for reuse by the next top level message.
+    */
+   private ReadMessageContext spareRootContext;
+
    ProtoStreamReaderImpl(SerializationContextImpl ctx) {
       this.ctx = ctx;
    }
 
    ReadMessageContext pushContext(FieldDescriptor fd, MessageMarshallerDelegate<?> marshallerDelegate, RawProtoStreamReader in) {
-      messageContext = new ReadMessageContext(messageContext, fd == null ? null : fd.getName(), marshallerDelegate, in);
-      return messageContext;
+      String fieldName = fd == null ? null : fd.getName();
+      ReadMessageContext context = messageContext == null ? spareRootContext : messageContext.spareChild;
+      if (context == null) {
+         context = new ReadMessageContext(messageContext, fieldName, marshallerDelegate, in);
+         if (messageContext == null) {
+            spareRootContext = context;
+         } else {
+            messageContext.spareChild = context;
+         }
+      } else {
+         context.reset(messageContext, fieldName, marshallerDelegate, in);
+      }
+      messageContext = context;
+      return context;
    }
 
    void popContext() {
       messageContext = messageContext.getParentContext();
    }
 
-   UnknownFieldSet getUnknownFieldSet() {
-      return messageContext.unknownFieldSet;
+   ReadMessageContext getMessageContext() {
+      return messageContext;
    }
 
-   private Object readPrimitive(String fieldName, JavaType javaType) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+   private Object readPrimitive(FieldDescriptor fieldDescriptor, JavaType javaType) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
       final Type type = fd.getType();
       if (type == Type.ENUM
             || type == Type.GROUP
@@ -80,6 +98,10 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
       checkFieldRead(fd, false);
       final int expectedTag = WireFormat.makeTag(fd.getNumber(), type.getWireType());
 
+      RawProtoStreamReader skipped = messageContext.consumeSkippedField(expectedTag);
+      if (skipped != null) {
+         return readPrimitiveValue(type, skipped);
+      }
       Object o = messageContext.unknownFieldSet.consumeTag(expectedTag);
       if (o != null) {
          return convertWireTypeToJavaType(type, o);
@@ -127,7 +149,7 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
                   throw new IOException("Unexpected field type : " + type);
             }
          }
-         messageContext.unknownFieldSet.readSingleField(tag, in);
+         messageContext.skipField(tag);
       }
 
       if (fd.hasDefaultValue()) {
@@ -152,9 +174,11 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
       } else if (type == Type.BYTES) {
          o = (byte[]) o;
       } else if (type == Type.INT32
-            || type == Type.UINT32
-            || type == Type.SINT32) {
+            || type == Type.UINT32) {
          o = ((Long) o).intValue();
+      } else if (type == Type.SINT32) {
+         int n = ((Long) o).intValue();
+         o = (n >>> 1) ^ -(n & 1);
       } else if (type == Type.FIXED32
             || type == Type.SFIXED32) {
          //o is an Integer
@@ -162,10 +186,12 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
       } else if (type == Type.INT64
             || type == Type.UINT64
             || type == Type.FIXED64
-            || type == Type.SFIXED64
-            || type == Type.SINT64) {
+            || type == Type.SFIXED64) {
          //o is a Long
          o = (Long) o;
+      } else if (type == Type.SINT64) {
+         long n = (Long) o;
+         o = (n >>> 1) ^ -(n & 1);
       } else if (type == Type.BOOL) {
          o = ((Long) o) != 0;
       } else if (type == Type.FLOAT) {
@@ -183,59 +209,164 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
 
    @Override
    public Integer readInt(String fieldName) throws IOException {
-      return (Integer) readPrimitive(fieldName, JavaType.INT);
+      return readInt(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public Integer readInt(FieldDescriptor fieldDescriptor) throws IOException {
+      return (Integer) readPrimitive(fieldDescriptor, JavaType.INT);
    }
 
    @Override
    public Long readLong(String fieldName) throws IOException {
-      return (Long) readPrimitive(fieldName, JavaType.LONG);
+      return readLong(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public Long readLong(FieldDescriptor fieldDescriptor) throws IOException {
+      return (Long) readPrimitive(fieldDescriptor, JavaType.LONG);
    }
 
    @Override
    public Date readDate(String fieldName) throws IOException {
-      Long tstamp = readLong(fieldName);
+      return readDate(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public Date readDate(FieldDescriptor fieldDescriptor) throws IOException {
+      Long tstamp = readLong(fieldDescriptor);
       return tstamp == null ? null : new Date(tstamp);
    }
 
    @Override
    public Float readFloat(String fieldName) throws IOException {
-      return (Float) readPrimitive(fieldName, JavaType.FLOAT);
+      return readFloat(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public Float readFloat(FieldDescriptor fieldDescriptor) throws IOException {
+      return (Float) readPrimitive(fieldDescriptor, JavaType.FLOAT);
    }
 
    @Override
    public Double readDouble(String fieldName) throws IOException {
-      return (Double) readPrimitive(fieldName, JavaType.DOUBLE);
+      return readDouble(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public Double readDouble(FieldDescriptor fieldDescriptor) throws IOException {
+      return (Double) readPrimitive(fieldDescriptor, JavaType.DOUBLE);
    }
 
    @Override
    public Boolean readBoolean(String fieldName) throws IOException {
-      return (Boolean) readPrimitive(fieldName, JavaType.BOOLEAN);
+      return readBoolean(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public Boolean readBoolean(FieldDescriptor fieldDescriptor) throws IOException {
+      return (Boolean) readPrimitive(fieldDescriptor, JavaType.BOOLEAN);
    }
 
    @Override
    public String readString(String fieldName) throws IOException {
-      return (String) readPrimitive(fieldName, JavaType.STRING);
+      return readString(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public String readString(FieldDescriptor fieldDescriptor) throws IOException {
+      return (String) readPrimitive(fieldDescriptor, JavaType.STRING);
    }
 
    @Override
    public byte[] readBytes(String fieldName) throws IOException {
-      return (byte[]) readPrimitive(fieldName, JavaType.BYTE_STRING);
+      return readBytes(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public byte[] readBytes(FieldDescriptor fieldDescriptor) throws IOException {
+      return (byte[]) readPrimitive(fieldDescriptor, JavaType.BYTE_STRING);
    }
 
    @Override
    public InputStream readBytesAsInputStream(String fieldName) throws IOException {
-      byte[] bytes = readBytes(fieldName);
+      return readBytesAsInputStream(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public InputStream readBytesAsInputStream(FieldDescriptor fieldDescriptor) throws IOException {
+      byte[] bytes = readBytes(fieldDescriptor);
       return bytes != null ? new ByteArrayInputStream(bytes) : null;
    }
 
+   @Override
+   public ByteBuffer readByteBuffer(String fieldName) throws IOException {
+      return readByteBuffer(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public ByteBuffer readByteBuffer(FieldDescriptor fieldDescriptor) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
+      if (fd.getType() != Type.BYTES) {
+         throw new IllegalArgumentException("Declared field type is not of the expected type : " + fd.getFullName());
+      }
+      checkFieldRead(fd, false);
+      final int expectedTag = WireFormat.makeTag(fd.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+      RawProtoStreamReader skipped = messageContext.consumeSkippedField(expectedTag);
+      if (skipped != null) {
+         return readOnly(skipped.readByteBuffer());
+      }
+      Object o = messageContext.unknownFieldSet.consumeTag(expectedTag);
+      if (o != null) {
+         return ByteBuffer.wrap((byte[]) o).asReadOnlyBuffer();
+      }
+
+      RawProtoStreamReader in = messageContext.in;
+      while (true) {
+         int tag = in.readTag();
+         if (tag == 0) {
+            break;
+         }
+         if (tag == expectedTag) {
+            return readOnly(in.readByteBuffer());
+         }
+         messageContext.skipField(tag);
+      }
+
+      if (fd.hasDefaultValue()) {
+         return ByteBuffer.wrap((byte[]) fd.getDefaultValue()).asReadOnlyBuffer();
+      }
+
+      if (fd.isRequired()) {
+         throw new IOException("Field " + fd.getFullName() + " is required but is not present in the stream");
+      }
+
+      return null;
+   }
+
+   private static ByteBuffer readOnly(ByteBuffer buffer) {
+      return buffer.isReadOnly() ? buffer : buffer.asReadOnlyBuffer();
+   }
+
    @Override
    public <E extends Enum<E>> E readEnum(String fieldName, Class<E> clazz) throws IOException {
-      return readObject(fieldName, clazz);
+      return readEnum(messageContext.marshallerDelegate.getFieldByName(fieldName), clazz);
+   }
+
+   @Override
+   public <E extends Enum<E>> E readEnum(FieldDescriptor fieldDescriptor, Class<E> clazz) throws IOException {
+      return readObject(fieldDescriptor, clazz);
    }
 
    @Override
    public <E> E readObject(String fieldName, Class<E> clazz) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      return readObject(messageContext.marshallerDelegate.getFieldByName(fieldName), clazz);
+   }
+
+   @Override
+   public <E> E readObject(FieldDescriptor fieldDescriptor, Class<E> clazz) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
       checkFieldRead(fd, false);
 
       if (fd.getType() == Type.ENUM) {
@@ -244,6 +375,10 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
 
       //todo validate type is compatible with readObject
       final int expectedTag = WireFormat.makeTag(fd.getNumber(), fd.getType().getWireType());
+      RawProtoStreamReader skipped = messageContext.consumeSkippedField(expectedTag);
+      if (skipped != null) {
+         return readNestedObject(fd, clazz, skipped, -1);
+      }
       Object o = messageContext.unknownFieldSet.consumeTag(expectedTag);
       if (o != null) {
          byte[] byteArray = (byte[]) o;
@@ -258,7 +393,7 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
          if (tag == expectedTag) {
             return readNestedObject(fd, clazz, messageContext.in, -1);
          }
-         messageContext.unknownFieldSet.readSingleField(tag, messageContext.in);
+         messageContext.skipField(tag);
       }
 
       return null;
@@ -291,7 +426,12 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
 
    @Override
    public <E, C extends Collection<? super E>> C readCollection(String fieldName, C collection, Class<E> elementClass) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      return readCollection(messageContext.marshallerDelegate.getFieldByName(fieldName), collection, elementClass);
+   }
+
+   @Override
+   public <E, C extends Collection<? super E>> C readCollection(FieldDescriptor fieldDescriptor, C collection, Class<E> elementClass) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
       checkFieldRead(fd, true);
 
       if (primitiveTypes.contains(fd.getType())) {
@@ -302,6 +442,13 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
       //todo validate type is compatible with readCollection
       final int expectedTag = WireFormat.makeTag(fd.getNumber(), fd.getType().getWireType());
 
+      while (true) {
+         RawProtoStreamReader skipped = messageContext.consumeSkippedField(expectedTag);
+         if (skipped == null) {
+            break;
+         }
+         collection.add(readNestedObject(fd, elementClass, skipped, -1));
+      }
       while (true) {
          Object o = messageContext.unknownFieldSet.consumeTag(expectedTag);
          if (o == null) {
@@ -320,7 +467,7 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
          if (tag == expectedTag) {
             collection.add(readNestedObject(fd, elementClass, messageContext.in, -1));
          } else {
-            messageContext.unknownFieldSet.readSingleField(tag, messageContext.in);
+            messageContext.skipField(tag);
          }
       }
       return collection;
@@ -329,7 +476,29 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
    private void readPrimitiveCollection(FieldDescriptor fd, Collection<? super Object> collection, Class elementClass) throws IOException {
       final int expectedTag = WireFormat.makeTag(fd.getNumber(), fd.getType().getWireType());
       Type type = fd.getType();
+      // packed input must be accepted even if the field is not declared packed
+      final int packedTag = type.isPackable() ? WireFormat.makeTag(fd.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED) : 0;
 
+      while (true) {
+         RawProtoStreamReader skipped = messageContext.consumeSkippedField(expectedTag);
+         if (skipped == null) {
+            break;
+         }
+         collection.add(readPrimitiveValue(type, skipped));
+      }
+      if (packedTag != 0) {
+         while (true) {
+            RawProtoStreamReader skipped = messageContext.consumeSkippedField(packedTag);
+            if (skipped == null) {
+               break;
+            }
+            // the reader ends where the packed field ends
+            skipped.readRawVarint32();
+            while (!skipped.isAtEnd()) {
+               collection.add(readPrimitiveValue(type, skipped));
+            }
+         }
+      }
       while (true) {
          Object o = messageContext.unknownFieldSet.consumeTag(expectedTag);
          if (o == null) {
@@ -337,76 +506,422 @@ final class ProtoStreamReaderImpl implements MessageMarshaller.ProtoStreamReader
          }
          collection.add(convertWireTypeToJavaType(type, o));   //todo check that (o.getClass() == elementClass)
       }
+      if (packedTag != 0) {
+         while (true) {
+            byte[] packedBytes = (byte[]) messageContext.unknownFieldSet.consumeTag(packedTag);
+            if (packedBytes == null) {
+               break;
+            }
+            RawProtoStreamReader in = RawProtoStreamReaderImpl.newInstance(packedBytes);
+            while (!in.isAtEnd()) {
+               collection.add(readPrimitiveValue(type, in));
+            }
+         }
+      }
 
+      final RawProtoStreamReader in = messageContext.in;
       while (true) {
-         int tag = messageContext.in.readTag();
+         int tag = in.readTag();
          if (tag == 0) {
             break;
          }
          if (tag == expectedTag) {
-            Object value;
-            switch (type) {
-               case DOUBLE:
-                  value = messageContext.in.readDouble();
-                  break;
-               case FLOAT:
-                  value = messageContext.in.readFloat();
-                  break;
-               case BOOL:
-                  value = messageContext.in.readBool();
-                  break;
-               case STRING:
-                  value = messageContext.in.readString();
-                  break;
-               case BYTES:
-                  value = messageContext.in.readByteArray();
-                  break;
-               case INT64:
-                  value = messageContext.in.readInt64();
-                  break;
-               case UINT64:
-                  value = messageContext.in.readUInt64();
-                  break;
-               case FIXED64:
-                  value = messageContext.in.readFixed64();
-                  break;
-               case SFIXED64:
-                  value = messageContext.in.readSFixed64();
-                  break;
-               case SINT64:
-                  value = messageContext.in.readSInt64();
-                  break;
-               case INT32:
-                  value = messageContext.in.readInt32();
-                  break;
-               case FIXED32:
-                  value = messageContext.in.readFixed32();
-                  break;
-               case UINT32:
-                  value = messageContext.in.readUInt32();
-                  break;
-               case SFIXED32:
-                  value = messageContext.in.readSFixed32();
-                  break;
-               case SINT32:
-                  value = messageContext.in.readSInt32();
-                  break;
-               default:
-                  throw new IllegalStateException("Unexpected field type : " + type);
+            collection.add(readPrimitiveValue(type, in));
+         } else if (tag == packedTag) {
+            int length = in.readRawVarint32();
+            int oldLimit = in.pushLimit(length);
+            while (!in.isAtEnd()) {
+               collection.add(readPrimitiveValue(type, in));
             }
-            collection.add(value);
+            in.popLimit(oldLimit);
          } else {
-            messageContext.unknownFieldSet.readSingleField(tag, messageContext.in);
+            messageContext.skipField(tag);
          }
       }
    }
 
+   private Object readPrimitiveValue(Type type, RawProtoStreamReader in) throws IOException {
+      switch (type) {
+         case DOUBLE:
+            return in.readDouble();
+         case FLOAT:
+            return in.readFloat();
+         case BOOL:
+            return in.readBool();
+         case STRING:
+            return in.readString();
+         case BYTES:
+            return in.readByteArray();
+         case INT64:
+            return in.readInt64();
+         case UINT64:
+            return in.readUInt64();
+         case FIXED64:
+            return in.readFixed64();
+         case SFIXED64:
+            return in.readSFixed64();
+         case SINT64:
+            return in.readSInt64();
+         case INT32:
+            return in.readInt32();
+         case FIXED32:
+            return in.readFixed32();
+         case UINT32:
+            return in.readUInt32();
+         case SFIXED32:
+            return in.readSFixed32();
+         case SINT32:
+            return in.readSInt32();
+         default:
+            throw new IllegalStateException("Unexpected field type : " + type);
+      }
+   }
+
    @Override
    public <E> E[] readArray(String fieldName, Class<? extends E> elementClass) throws IOException {
-      List<E> list = readCollection(fieldName, new ArrayList<E>(), elementClass);
+      return readArray(messageContext.marshallerDelegate.getFieldByName(fieldName), elementClass);
+   }
+
+   @Override
+   public <E> E[] readArray(FieldDescriptor fieldDescriptor, Class<? extends E> elementClass) throws IOException {
+      List<E> list = readCollection(fieldDescriptor, new ArrayList<E>(), elementClass);
       return list.toArray((E[]) Array.newInstance(elementClass, list.size()));
    }
 
+   @Override
+   public int[] readInts(String fieldName) throws IOException {
+      return readInts(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public int[] readInts(FieldDescriptor fieldDescriptor) throws IOException {
+      IntArrayBuilder builder = new IntArrayBuilder();
+      readPrimitiveArray(fieldDescriptor, JavaType.INT, builder);
+      return builder.toArray();
+   }
+
+   @Override
+   public long[] readLongs(String fieldName) throws IOException {
+      return readLongs(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public long[] readLongs(FieldDescriptor fieldDescriptor) throws IOException {
+      LongArrayBuilder builder = new LongArrayBuilder();
+      readPrimitiveArray(fieldDescriptor, JavaType.LONG, builder);
+      return builder.toArray();
+   }
+
+   @Override
+   public double[] readDoubles(String fieldName) throws IOException {
+      return readDoubles(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public double[] readDoubles(FieldDescriptor fieldDescriptor) throws IOException {
+      DoubleArrayBuilder builder = new DoubleArrayBuilder();
+      readPrimitiveArray(fieldDescriptor, JavaType.DOUBLE, builder);
+      return builder.toArray();
+   }
+
+   @Override
+   public float[] readFloats(String fieldName) throws IOException {
+      return readFloats(messageContext.marshallerDelegate.getFieldByName(fieldName));
+   }
+
+   @Override
+   public float[] readFloats(FieldDescriptor fieldDescriptor) throws IOException {
+      FloatArrayBuilder builder = new FloatArrayBuilder();
+      readPrimitiveArray(fieldDescriptor, JavaType.FLOAT, builder);
+      return builder.toArray();
+   }
+
+   /**
+    * Same as {@link #readPrimitiveCollection} but the elements are accumulated in a primitive array, so no boxing
+    * happens unless the elements were already buffered in the unknown field set by an out of sequence read from an input
+    * that does not support random access.
+    */
+   private void readPrimitiveArray(FieldDescriptor fieldDescriptor, JavaType javaType, PrimitiveArrayBuilder builder) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
+      if (fd.getJavaType() != javaType) {
+         throw new IllegalArgumentException("Declared field type is not of the expected type : " + fd.getFullName());
+      }
+      checkFieldRead(fd, true);
+
+      final Type type = fd.getType();
+      final int expectedTag = WireFormat.makeTag(fd.getNumber(), type.getWireType());
+      final int packedTag = WireFormat.makeTag(fd.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+      while (true) {
+         RawProtoStreamReader skipped = messageContext.consumeSkippedField(expectedTag);
+         if (skipped == null) {
+            break;
+         }
+         builder.read(type, skipped);
+      }
+      while (true) {
+         RawProtoStreamReader skipped = messageContext.consumeSkippedField(packedTag);
+         if (skipped == null) {
+            break;
+         }
+         readPackedArray(type, skipped, builder);
+      }
+      while (true) {
+         Object o = messageContext.unknownFieldSet.consumeTag(expectedTag);
+         if (o == null) {
+            break;
+         }
+         builder.add(convertWireTypeToJavaType(type, o));
+      }
+      while (true) {
+         byte[] packedBytes = (byte[]) messageContext.unknownFieldSet.consumeTag(packedTag);
+         if (packedBytes == null) {
+            break;
+         }
+         RawProtoStreamReader in = RawProtoStreamReaderImpl.newInstance(packedBytes);
+         while (!in.isAtEnd()) {
+            builder.read(type, in);
+         }
+      }
+
+      final RawProtoStreamReader in = messageContext.in;
+      while (true) {
+         int tag = in.readTag();
+         if (tag == 0) {
+            break;
+         }
+         if (tag == expectedTag) {
+            builder.read(type, in);
+         } else if (tag == packedTag) {
+            readPackedArray(type, in, builder);
+         } else {
+            messageContext.skipField(tag);
+         }
+      }
+   }
+
+   /**
+    * Reads the length and the elements of a packed field. The tag was already read.
+    */
+   private void readPackedArray(Type type, RawProtoStreamReader in, PrimitiveArrayBuilder builder) throws IOException {
+      int length = in.readRawVarint32();
+      if (type.getWireType() == WireFormat.WIRETYPE_FIXED32) {
+         builder.ensureCapacity(builder.size + length / WireFormat.FIXED_32_SIZE);
+      } else if (type.getWireType() == WireFormat.WIRETYPE_FIXED64) {
+         builder.ensureCapacity(builder.size + length / WireFormat.FIXED_64_SIZE);
+      }
+      int oldLimit = in.pushLimit(length);
+      while (!in.isAtEnd()) {
+         builder.read(type, in);
+      }
+      in.popLimit(oldLimit);
+   }
+
+   /**
+    * Accumulates the elements of a repeated field of a numeric type into a growable primitive array.
+    */
+   private abstract static class PrimitiveArrayBuilder {
+
+      private static final int INITIAL_CAPACITY = 16;
+
+      int size = 0;
+
+      /**
+       * Reads one element from the stream.
+       */
+      abstract void read(Type type, RawProtoStreamReader in) throws IOException;
+
+      /**
+       * Adds one element that was already decoded.
+       */
+      abstract void add(Object value);
+
+      abstract int capacity();
+
+      abstract void resize(int newCapacity);
+
+      final void ensureCapacity(int minCapacity) {
+         int capacity = capacity();
+         if (minCapacity > capacity) {
+            resize(Math.max(minCapacity, Math.max(INITIAL_CAPACITY, capacity << 1)));
+         }
+      }
+   }
+
+   private static final class IntArrayBuilder extends PrimitiveArrayBuilder {
+
+      private static final int[] EMPTY = new int[0];
+
+      private int[] values = EMPTY;
+
+      @Override
+      void read(Type type, RawProtoStreamReader in) throws IOException {
+         int v;
+         switch (type) {
+            case INT32:
+               v = in.readInt32();
+               break;
+            case SFIXED32:
+               v = in.readSFixed32();
+               break;
+            case FIXED32:
+               v = in.readFixed32();
+               break;
+            case UINT32:
+               v = in.readUInt32();
+               break;
+            case SINT32:
+               v = in.readSInt32();
+               break;
+            default:
+               throw new IllegalStateException("Unexpected field type : " + type);
+         }
+         ensureCapacity(size + 1);
+         values[size++] = v;
+      }
+
+      @Override
+      void add(Object value) {
+         ensureCapacity(size + 1);
+         values[size++] = (Integer) value;
+      }
+
+      @Override
+      int capacity() {
+         return values.length;
+      }
+
+      @Override
+      void resize(int newCapacity) {
+         values = Arrays.copyOf(values, newCapacity);
+      }
+
+      int[] toArray() {
+         return size == values.length ? values : Arrays.copyOf(values, size);
+      }
+   }
+
+   private static final class LongArrayBuilder extends PrimitiveArrayBuilder {
+
+      private static final long[] EMPTY = new long[0];
+
+      private long[] values = EMPTY;
+
+      @Override
+      void read(Type type, RawProtoStreamReader in) throws IOException {
+         long v;
+         switch (type) {
+            case INT64:
+               v = in.readInt64();
+               break;
+            case UINT64:
+               v = in.readUInt64();
+               break;
+            case FIXED64:
+               v = in.readFixed64();
+               break;
+            case SFIXED64:
+               v = in.readSFixed64();
+               break;
+            case SINT64:
+               v = in.readSInt64();
+               break;
+            default:
+               throw new IllegalStateException("Unexpected field type : " + type);
+         }
+         ensureCapacity(size + 1);
+         values[size++] = v;
+      }
+
+      @Override
+      void add(Object value) {
+         ensureCapacity(size + 1);
+         values[size++] = (Long) value;
+      }
+
+      @Override
+      int capacity() {
+         return values.length;
+      }
+
+      @Override
+      void resize(int newCapacity) {
+         values = Arrays.copyOf(values, newCapacity);
+      }
+
+      long[] toArray() {
+         return size == values.length ? values : Arrays.copyOf(values, size);
+      }
+   }
+
+   private static final class DoubleArrayBuilder extends PrimitiveArrayBuilder {
+
+      private static final double[] EMPTY = new double[0];
+
+      private double[] values = EMPTY;
+
+      @Override
+      void read(Type type, RawProtoStreamReader in) throws IOException {
+         double v = in.readDouble();
+         ensureCapacity(size + 1);
+         values[size++] = v;
+      }
+
+      @Override
+      void add(Object value) {
+         ensureCapacity(size + 1);
+         values[size++] = (Double) value;
+      }
+
+      @Override
+      int capacity() {
+         return values.length;
+      }
+
+      @Override
+      void resize(int newCapacity) {
+         values = Arrays.copyOf(values, newCapacity);
+      }
+
+      double[] toArray() {
+         return size == values.length ? values : Arrays.copyOf(values, size);
+      }
+   }
+
+   private static final class FloatArrayBuilder extends PrimitiveArrayBuilder {
+
+      private static final float[] EMPTY = new float[0];
+
+      private float[] values = EMPTY;
+
+      @Override
+      void read(Type type, RawProtoStreamReader in) throws IOException {
+         float v = in.readFloat();
+         ensureCapacity(size + 1);
+         values[size++] = v;
+      }
+
+      @Override
+      void add(Object value) {
+         ensureCapacity(size + 1);
+         values[size++] = (Float) value;
+      }
+
+      @Override
+      int capacity() {
+         return values.length;
+      }
+
+      @Override
+      void resize(int newCapacity) {
+         values = Arrays.copyOf(values, newCapacity);
+      }
+
+      float[] toArray() {
+         return size == values.length ? values : Arrays.copyOf(values, size);
+      }
+   }
+
    private void checkFieldRead(FieldDescriptor fd, boolean expectRepeated) {
       if (expectRepeated) {
          if (!fd.isRepeated()) {
@@ -2,15 +2,15 @@ package org.infinispan.protostream.impl;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
 
 import org.infinispan.protostream.MessageMarshaller;
 import org.infinispan.protostream.RawProtoStreamWriter;
 import org.infinispan.protostream.SerializationContext;
 import org.infinispan.protostream.descriptors.FieldDescriptor;
+import org.infinispan.protostream.descriptors.JavaType;
 import org.infinispan.protostream.descriptors.Type;
 import org.jboss.logging.Logger;
 
@@ -27,13 +27,30 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
    private WriteMessageContext messageContext;
 
+   /**
+    * A finished root context, kept for reuse by the next top level message.
+    */
+   private WriteMessageContext spareRootContext;
+
    ProtoStreamWriterImpl(SerializationContextImpl ctx) {
       this.ctx = ctx;
    }
 
    WriteMessageContext pushContext(FieldDescriptor fd, MessageMarshallerDelegate<?> marshallerDelegate, RawProtoStreamWriter out) {
-      messageContext = new WriteMessageContext(messageContext, fd == null ? null : fd.getName(), marshallerDelegate, out);
-      return messageContext;
+      String fieldName = fd == null ? null : fd.getName();
+      WriteMessageContext context = messageContext == null ? spareRootContext : messageContext.spareChild;
+      if (context == null) {
+         context = new WriteMessageContext(messageContext, fieldName, marshallerDelegate, out);
+         if (messageContext == null) {
+            spareRootContext = context;
+         } else {
+            messageContext.spareChild = context;
+         }
+      } else {
+         context.reset(messageContext, fieldName, marshallerDelegate, out);
+      }
+      messageContext = context;
+      return context;
    }
 
    void popContext() {
@@ -47,21 +64,31 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
    @Override
    public void writeInt(String fieldName, Integer value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeInt(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeInt(FieldDescriptor fieldDescriptor, Integer value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (value == null) {
          if (fd.isRequired()) {
-            throw new IllegalArgumentException("A required field cannot be null : " + fieldName);
+            throw new IllegalArgumentException("A required field cannot be null : " + fd.getName());
          }
          return;
       }
 
-      writeInt(fieldName, value.intValue());
+      writeInt(fd, value.intValue());
    }
 
    @Override
    public void writeInt(String fieldName, int value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeInt(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeInt(FieldDescriptor fieldDescriptor, int value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       checkFieldWrite(fd);
 
@@ -83,13 +110,18 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
             messageContext.out.writeSInt32(fd.getNumber(), value);
             break;
          default:
-            throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fieldName);
+            throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
       }
    }
 
    @Override
    public void writeLong(String fieldName, long value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeLong(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeLong(FieldDescriptor fieldDescriptor, long value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       checkFieldWrite(fd);
 
@@ -111,32 +143,42 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
             messageContext.out.writeSInt64(fd.getNumber(), value);
             break;
          default:
-            throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fieldName);
+            throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
       }
    }
 
    @Override
    public void writeLong(String fieldName, Long value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeLong(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeLong(FieldDescriptor fieldDescriptor, Long value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (value == null) {
          if (fd.isRequired()) {
-            throw new IllegalArgumentException("A required field cannot be null : " + fieldName);
+            throw new IllegalArgumentException("A required field cannot be null : " + fd.getName());
          }
          return;
       }
 
-      writeLong(fieldName, value.longValue());
+      writeLong(fd, value.longValue());
    }
 
    @Override
    public void writeDouble(String fieldName, double value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeDouble(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeDouble(FieldDescriptor fieldDescriptor, double value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       checkFieldWrite(fd);
 
       if (fd.getType() != Type.DOUBLE) {
-         throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fieldName);
+         throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
       }
 
       messageContext.out.writeDouble(fd.getNumber(), value);
@@ -144,26 +186,36 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
    @Override
    public void writeDouble(String fieldName, Double value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeDouble(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeDouble(FieldDescriptor fieldDescriptor, Double value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (value == null) {
          if (fd.isRequired()) {
-            throw new IllegalArgumentException("A required field cannot be null : " + fieldName);
+            throw new IllegalArgumentException("A required field cannot be null : " + fd.getName());
          }
          return;
       }
 
-      writeDouble(fieldName, value.doubleValue());
+      writeDouble(fd, value.doubleValue());
    }
 
    @Override
    public void writeFloat(String fieldName, float value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeFloat(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeFloat(FieldDescriptor fieldDescriptor, float value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       checkFieldWrite(fd);
 
       if (fd.getType() != Type.FLOAT) {
-         throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fieldName);
+         throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
       }
 
       messageContext.out.writeFloat(fd.getNumber(), value);
@@ -171,26 +223,36 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
    @Override
    public void writeFloat(String fieldName, Float value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeFloat(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeFloat(FieldDescriptor fieldDescriptor, Float value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (value == null) {
          if (fd.isRequired()) {
-            throw new IllegalArgumentException("A required field cannot be null : " + fieldName);
+            throw new IllegalArgumentException("A required field cannot be null : " + fd.getName());
          }
          return;
       }
 
-      writeFloat(fieldName, value.floatValue());
+      writeFloat(fd, value.floatValue());
    }
 
    @Override
    public void writeBoolean(String fieldName, boolean value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeBoolean(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeBoolean(FieldDescriptor fieldDescriptor, boolean value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       checkFieldWrite(fd);
 
       if (fd.getType() != Type.BOOL) {
-         throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fieldName);
+         throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
       }
 
       messageContext.out.writeBool(fd.getNumber(), value);
@@ -198,25 +260,35 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
    @Override
    public void writeBoolean(String fieldName, Boolean value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeBoolean(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeBoolean(FieldDescriptor fieldDescriptor, Boolean value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (value == null) {
          if (fd.isRequired()) {
-            throw new IllegalArgumentException("A required field cannot be null : " + fieldName);
+            throw new IllegalArgumentException("A required field cannot be null : " + fd.getName());
          }
          return;
       }
 
-      writeBoolean(fieldName, value.booleanValue());
+      writeBoolean(fd, value.booleanValue());
    }
 
    @Override
    public void writeString(String fieldName, String value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeString(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeString(FieldDescriptor fieldDescriptor, String value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (value == null) {
          if (fd.isRequired()) {
-            throw new IllegalArgumentException("A required field cannot be null : " + fieldName);
+            throw new IllegalArgumentException("A required field cannot be null : " + fd.getName());
          }
          return;
       }
@@ -224,7 +296,7 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
       checkFieldWrite(fd);
 
       if (fd.getType() != Type.STRING) {
-         throw new IllegalArgumentException("Declared field type is not of type String : " + fieldName);
+         throw new IllegalArgumentException("Declared field type is not of type String : " + fd.getName());
       }
 
       messageContext.out.writeString(fd.getNumber(), value);
@@ -232,11 +304,16 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
    @Override
    public void writeBytes(String fieldName, byte[] value) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeBytes(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeBytes(FieldDescriptor fieldDescriptor, byte[] value) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (value == null) {
          if (fd.isRequired()) {
-            throw new IllegalArgumentException("A required field cannot be null : " + fieldName);
+            throw new IllegalArgumentException("A required field cannot be null : " + fd.getName());
          }
          return;
       }
@@ -244,7 +321,7 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
       checkFieldWrite(fd);
 
       if (fd.getType() != Type.BYTES) {
-         throw new IllegalArgumentException("Declared field type is not of type byte[] : " + fieldName);
+         throw new IllegalArgumentException("Declared field type is not of type byte[] : " + fd.getName());
       }
 
       messageContext.out.writeBytes(fd.getNumber(), value);
@@ -252,7 +329,12 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
    @Override
    public void writeBytes(String fieldName, InputStream input) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeBytes(messageContext.marshallerDelegate.getFieldByName(fieldName), input);
+   }
+
+   @Override
+   public void writeBytes(FieldDescriptor fieldDescriptor, InputStream input) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (input == null) {
          throw new IllegalArgumentException("The input stream cannot be null");
@@ -261,35 +343,38 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
       checkFieldWrite(fd);
 
       if (fd.getType() != Type.BYTES) {
-         throw new IllegalArgumentException("Declared field type is not of type byte[] : " + fieldName);
+         throw new IllegalArgumentException("Declared field type is not of type byte[] : " + fd.getName());
+      }
+
+      if (messageContext.out instanceof RawProtoStreamWriterImpl.SizeCounter) {
+         // the stream can be consumed only once, by the actual write
+         ((RawProtoStreamWriterImpl.SizeCounter) messageContext.out).markUnknownSize();
+         return;
       }
 
-      int len = 0;
-      List<byte[]> chunks = new LinkedList<>();
-      int bufLen;
+      ByteArrayOutputStreamEx baos = new ByteArrayOutputStreamEx(CHUNK_SIZE);
       byte[] buffer = new byte[CHUNK_SIZE];
-      while ((bufLen = input.read(buffer)) != -1) {
-         chunks.add(buffer);
-         len += bufLen;
-         buffer = new byte[CHUNK_SIZE];
+      int len;
+      while ((len = input.read(buffer)) != -1) {
+         baos.write(buffer, 0, len);
       }
       input.close();
 
-      RawProtoStreamWriter out = messageContext.out;
-      out.writeTag(fd.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
-      out.writeUInt32NoTag(len);
-      for (byte[] chunk : chunks) {
-         out.writeRawBytes(buffer, 0, chunk == buffer ? bufLen : CHUNK_SIZE);
-      }
+      messageContext.out.writeBytes(fd.getNumber(), baos.getByteBuffer());
    }
 
    @Override
    public <E> void writeObject(String fieldName, E value, Class<? extends E> clazz) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeObject(messageContext.marshallerDelegate.getFieldByName(fieldName), value, clazz);
+   }
+
+   @Override
+   public <E> void writeObject(FieldDescriptor fieldDescriptor, E value, Class<? extends E> clazz) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (value == null) {
          if (fd.isRequired()) {
-            throw new IllegalArgumentException("A required field cannot be null : " + fieldName);
+            throw new IllegalArgumentException("A required field cannot be null : " + fd.getName());
          }
          return;
       }
@@ -303,17 +388,30 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
       } else if (fd.getType() == Type.ENUM) {
          writeEnum(fd, (Enum) value);
       } else {
-         throw new IllegalArgumentException("Declared field type is not a message or an enum : " + fieldName);
+         throw new IllegalArgumentException("Declared field type is not a message or an enum : " + fd.getName());
       }
    }
 
    @Override
    public <E extends Enum<E>> void writeEnum(String fieldName, E value, Class<E> clazz) throws IOException {
-      writeObject(fieldName, value, clazz);
+      writeEnum(messageContext.marshallerDelegate.getFieldByName(fieldName), value, clazz);
+   }
+
+   @Override
+   public <E extends Enum<E>> void writeEnum(FieldDescriptor fieldDescriptor, E value, Class<E> clazz) throws IOException {
+      writeObject(fieldDescriptor, value, clazz);
    }
 
    private void writeMessage(FieldDescriptor fd, Object value, Class clazz) throws IOException {
       BaseMarshallerDelegate marshallerDelegate = ctx.getMarshallerDelegate(clazz);
+      if (messageContext.out instanceof RawProtoStreamWriterImpl) {
+         // write it in place and fill in the length prefix afterwards
+         RawProtoStreamWriterImpl out = (RawProtoStreamWriterImpl) messageContext.out;
+         int handle = out.startNested(fd.getNumber());
+         marshallerDelegate.marshall(fd, value, this, out);
+         out.endNested(handle);
+         return;
+      }
       ByteArrayOutputStreamEx baos = new ByteArrayOutputStreamEx();
       RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
       marshallerDelegate.marshall(fd, value, this, out);
@@ -335,7 +433,12 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
    @Override
    public <E> void writeCollection(String fieldName, Collection<? super E> collection, Class<E> elementClass) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeCollection(messageContext.marshallerDelegate.getFieldByName(fieldName), collection, elementClass);
+   }
+
+   @Override
+   public <E> void writeCollection(FieldDescriptor fieldDescriptor, Collection<? super E> collection, Class<E> elementClass) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (collection == null) {
          // a repeated field is never flagged as required
@@ -344,6 +447,11 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
       checkRepeatedFieldWrite(fd);
 
+      if (fd.isPacked()) {
+         writePacked(fd, collection, elementClass);
+         return;
+      }
+
       final Type type = fd.getType();
       if (type == Type.GROUP) {
          for (Object t : collection) {
@@ -444,7 +552,12 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
    @Override
    public <E> void writeArray(String fieldName, E[] array, Class<? extends E> elementClass) throws IOException {
-      final FieldDescriptor fd = messageContext.marshallerDelegate.getFieldByName(fieldName);
+      writeArray(messageContext.marshallerDelegate.getFieldByName(fieldName), array, elementClass);
+   }
+
+   @Override
+   public <E> void writeArray(FieldDescriptor fieldDescriptor, E[] array, Class<? extends E> elementClass) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
 
       if (array == null) {
          // a repeated field is never flagged as required
@@ -453,6 +566,11 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
 
       checkRepeatedFieldWrite(fd);
 
+      if (fd.isPacked()) {
+         writePacked(fd, Arrays.asList(array), elementClass);
+         return;
+      }
+
       final Type type = fd.getType();
       if (type == Type.GROUP) {
          for (Object t : array) {
@@ -551,10 +669,410 @@ final class ProtoStreamWriterImpl implements MessageMarshaller.ProtoStreamWriter
       }
    }
 
+   /**
+    * Writes the elements of a repeated scalar or enum field using the packed encoding: a single length delimited record
+    * holding all values without their tags. Nothing is written if there are no elements.
+    */
+   private void writePacked(FieldDescriptor fd, Collection<?> values, Class<?> elementClass) throws IOException {
+      if (values.isEmpty()) {
+         return;
+      }
+      final Type type = fd.getType();
+      long[] varints = null;
+      int size = 0;
+      switch (type) {
+         case DOUBLE:
+         case FIXED64:
+         case SFIXED64:
+            size = values.size() * WireFormat.FIXED_64_SIZE;
+            break;
+         case FLOAT:
+         case FIXED32:
+         case SFIXED32:
+            size = values.size() * WireFormat.FIXED_32_SIZE;
+            break;
+         case BOOL:
+            size = values.size();
+            break;
+         default:
+            // varint types are converted once, both for computing the size and for writing
+            EnumMarshallerDelegate enumMarshallerDelegate = type == Type.ENUM ? (EnumMarshallerDelegate) ctx.getMarshallerDelegate(elementClass) : null;
+            varints = new long[values.size()];
+            int i = 0;
+            for (Object value : values) {
+               long v = toPackedVarint(type, value, enumMarshallerDelegate);
+               varints[i++] = v;
+               size += RawProtoStreamWriterImpl.computeVarint64Size(v);
+            }
+      }
+
+      final RawProtoStreamWriter out = messageContext.out;
+      out.writeTag(fd.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      out.writeUInt32NoTag(size);
+      switch (type) {
+         case DOUBLE:
+            for (Object value : values) {
+               out.writeFixed64NoTag(Double.doubleToRawLongBits((Double) value));
+            }
+            break;
+         case FIXED64:
+         case SFIXED64:
+            for (Object value : values) {
+               out.writeFixed64NoTag((Long) value);
+            }
+            break;
+         case FLOAT:
+            for (Object value : values) {
+               out.writeFixed32NoTag(Float.floatToRawIntBits((Float) value));
+            }
+            break;
+         case FIXED32:
+         case SFIXED32:
+            for (Object value : values) {
+               out.writeFixed32NoTag((Integer) value);
+            }
+            break;
+         case BOOL:
+            for (Object value : values) {
+               out.writeUInt32NoTag((Boolean) value ? 1 : 0);
+            }
+            break;
+         default:
+            for (long v : varints) {
+               out.writeUInt64NoTag(v);
+            }
+      }
+   }
+
+   /**
+    * Converts the value of a packed varint field to the unsigned 64 bit number that goes on the wire.
+    */
+   private long toPackedVarint(Type type, Object value, EnumMarshallerDelegate enumMarshallerDelegate) {
+      switch (type) {
+         case INT32:
+            // negative values are sign extended to 64 bits
+            return (Integer) value;
+         case UINT32:
+            return (Integer) value & 0xFFFFFFFFL;
+         case SINT32: {
+            int v = (Integer) value;
+            return ((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL;
+         }
+         case INT64:
+         case UINT64:
+            return (Long) value;
+         case SINT64: {
+            long v = (Long) value;
+            return (v << 1) ^ (v >> 63);
+         }
+         case ENUM: {
+            int enumValue = enumMarshallerDelegate.getMarshaller().encode((Enum) value);
+            if (!enumMarshallerDelegate.getDefinedValues().contains(enumValue)) {
+               throw new IllegalArgumentException("Undefined enum value : " + enumValue);
+            }
+            return enumValue;
+         }
+         default:
+            throw new IllegalStateException("Unexpected field type : " + type);
+      }
+   }
+
+   @Override
+   public void writeInts(String fieldName, int[] values) throws IOException {
+      writeInts(messageContext.marshallerDelegate.getFieldByName(fieldName), values);
+   }
+
+   @Override
+   public void writeInts(FieldDescriptor fieldDescriptor, int[] values) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
+
+      if (values == null) {
+         // a repeated field is never flagged as required
+         return;
+      }
+
+      if (fd.getJavaType() != JavaType.INT) {
+         throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
+      }
+
+      checkRepeatedFieldWrite(fd);
+
+      final RawProtoStreamWriter out = messageContext.out;
+      final int fieldNumber = fd.getNumber();
+      final Type type = fd.getType();
+      if (fd.isPacked()) {
+         if (values.length == 0) {
+            return;
+         }
+         int size = 0;
+         switch (type) {
+            case FIXED32:
+            case SFIXED32:
+               size = values.length * WireFormat.FIXED_32_SIZE;
+               break;
+            case INT32:
+               for (int v : values) {
+                  // negative values are sign extended to 64 bits
+                  size += v >= 0 ? RawProtoStreamWriterImpl.computeVarint32Size(v) : WireFormat.MAX_VARINT_SIZE;
+               }
+               break;
+            case UINT32:
+               for (int v : values) {
+                  size += RawProtoStreamWriterImpl.computeVarint32Size(v);
+               }
+               break;
+            case SINT32:
+               for (int v : values) {
+                  size += RawProtoStreamWriterImpl.computeVarint32Size((v << 1) ^ (v >> 31));
+               }
+               break;
+            default:
+               throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
+         }
+         out.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+         out.writeUInt32NoTag(size);
+         switch (type) {
+            case FIXED32:
+            case SFIXED32:
+               for (int v : values) {
+                  out.writeFixed32NoTag(v);
+               }
+               break;
+            case INT32:
+               for (int v : values) {
+                  out.writeUInt64NoTag(v);
+               }
+               break;
+            case UINT32:
+               for (int v : values) {
+                  out.writeUInt32NoTag(v);
+               }
+               break;
+            case SINT32:
+               for (int v : values) {
+                  out.writeUInt32NoTag((v << 1) ^ (v >> 31));
+               }
+               break;
+         }
+      } else {
+         switch (type) {
+            case INT32:
+               for (int v : values) {
+                  out.writeInt32(fieldNumber, v);
+               }
+               break;
+            case FIXED32:
+               for (int v : values) {
+                  out.writeFixed32(fieldNumber, v);
+               }
+               break;
+            case UINT32:
+               for (int v : values) {
+                  out.writeUInt32(fieldNumber, v);
+               }
+               break;
+            case SFIXED32:
+               for (int v : values) {
+                  out.writeSFixed32(fieldNumber, v);
+               }
+               break;
+            case SINT32:
+               for (int v : values) {
+                  out.writeSInt32(fieldNumber, v);
+               }
+               break;
+            default:
+               throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
+         }
+      }
+   }
+
+   @Override
+   public void writeLongs(String fieldName, long[] values) throws IOException {
+      writeLongs(messageContext.marshallerDelegate.getFieldByName(fieldName), values);
+   }
+
+   @Override
+   public void writeLongs(FieldDescriptor fieldDescriptor, long[] values) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
+
+      if (values == null) {
+         // a repeated field is never flagged as required
+         return;
+      }
+
+      if (fd.getJavaType() != JavaType.LONG) {
+         throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
+      }
+
+      checkRepeatedFieldWrite(fd);
+
+      final RawProtoStreamWriter out = messageContext.out;
+      final int fieldNumber = fd.getNumber();
+      final Type type = fd.getType();
+      if (fd.isPacked()) {
+         if (values.length == 0) {
+            return;
+         }
+         int size = 0;
+         switch (type) {
+            case FIXED64:
+            case SFIXED64:
+               size = values.length * WireFormat.FIXED_64_SIZE;
+               break;
+            case INT64:
+            case UINT64:
+               for (long v : values) {
+                  size += RawProtoStreamWriterImpl.computeVarint64Size(v);
+               }
+               break;
+            case SINT64:
+               for (long v : values) {
+                  size += RawProtoStreamWriterImpl.computeVarint64Size((v << 1) ^ (v >> 63));
+               }
+               break;
+            default:
+               throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
+         }
+         out.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+         out.writeUInt32NoTag(size);
+         switch (type) {
+            case FIXED64:
+            case SFIXED64:
+               for (long v : values) {
+                  out.writeFixed64NoTag(v);
+               }
+               break;
+            case INT64:
+            case UINT64:
+               for (long v : values) {
+                  out.writeUInt64NoTag(v);
+               }
+               break;
+            case SINT64:
+               for (long v : values) {
+                  out.writeUInt64NoTag((v << 1) ^ (v >> 63));
+               }
+               break;
+         }
+      } else {
+         switch (type) {
+            case INT64:
+               for (long v : values) {
+                  out.writeInt64(fieldNumber, v);
+               }
+               break;
+            case UINT64:
+               for (long v : values) {
+                  out.writeUInt64(fieldNumber, v);
+               }
+               break;
+            case FIXED64:
+               for (long v : values) {
+                  out.writeFixed64(fieldNumber, v);
+               }
+               break;
+            case SFIXED64:
+               for (long v : values) {
+                  out.writeSFixed64(fieldNumber, v);
+               }
+               break;
+            case SINT64:
+               for (long v : values) {
+                  out.writeSInt64(fieldNumber, v);
+               }
+               break;
+            default:
+               throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
+         }
+      }
+   }
+
+   @Override
+   public void writeDoubles(String fieldName, double[] values) throws IOException {
+      writeDoubles(messageContext.marshallerDelegate.getFieldByName(fieldName), values);
+   }
+
+   @Override
+   public void writeDoubles(FieldDescriptor fieldDescriptor, double[] values) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
+
+      if (values == null) {
+         // a repeated field is never flagged as required
+         return;
+      }
+
+      if (fd.getJavaType() != JavaType.DOUBLE) {
+         throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
+      }
+
+      checkRepeatedFieldWrite(fd);
+
+      final RawProtoStreamWriter out = messageContext.out;
+      if (fd.isPacked()) {
+         if (values.length == 0) {
+            return;
+         }
+         out.writeTag(fd.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+         out.writeUInt32NoTag(values.length * WireFormat.FIXED_64_SIZE);
+         for (double v : values) {
+            out.writeFixed64NoTag(Double.doubleToRawLongBits(v));
+         }
+      } else {
+         final int fieldNumber = fd.getNumber();
+         for (double v : values) {
+            out.writeDouble(fieldNumber, v);
+         }
+      }
+   }
+
+   @Override
+   public void writeFloats(String fieldName, float[] values) throws IOException {
+      writeFloats(messageContext.marshallerDelegate.getFieldByName(fieldName), values);
+   }
+
+   @Override
+   public void writeFloats(FieldDescriptor fieldDescriptor, float[] values) throws IOException {
+      final FieldDescriptor fd = messageContext.marshallerDelegate.resolveField(fieldDescriptor);
+
+      if (values == null) {
+         // a repeated field is never flagged as required
+         return;
+      }
+
+      if (fd.getJavaType() != JavaType.FLOAT) {
+         throw new IllegalArgumentException("The Protobuf declared field type is not compatible with the written type : " + fd.getName());
+      }
+
+      checkRepeatedFieldWrite(fd);
+
+      final RawProtoStreamWriter out = messageContext.out;
+      if (fd.isPacked()) {
+         if (values.length == 0) {
+            return;
+         }
+         out.writeTag(fd.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+         out.writeUInt32NoTag(values.length * WireFormat.FIXED_32_SIZE);
+         for (float v : values) {
+            out.writeFixed32NoTag(Float.floatToRawIntBits(v));
+         }
+      } else {
+         final int fieldNumber = fd.getNumber();
+         for (float v : values) {
+            out.writeFloat(fieldNumber, v);
+         }
+      }
+   }
+
    @Override
    public void writeDate(String fieldName, Date value) throws IOException {
+      writeDate(messageContext.marshallerDelegate.getFieldByName(fieldName), value);
+   }
+
+   @Override
+   public void writeDate(FieldDescriptor fieldDescriptor, Date value) throws IOException {
       if (value != null) {
-         writeLong(fieldName, value.getTime());
+         writeLong(fieldDescriptor, value.getTime());
       }
    }
 
@@ -3,160 +3,1186 @@ package org.infinispan.protostream.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import org.infinispan.protostream.RawProtoStreamReader;
 
-import com.google.protobuf.CodedInputStream;
-
 /**
+ * Decodes the protobuf wire format directly from a byte array, a {@link ByteBuffer} or an {@link InputStream}. Each
+ * kind of source has its own final implementation so the hot decoding methods stay monomorphic at call sites.
+ *
  * @author anistor@redhat.com
  * @since 3.0
  */
-public final class RawProtoStreamReaderImpl implements RawProtoStreamReader {
+public abstract class RawProtoStreamReaderImpl implements RawProtoStreamReader {
+
+   static final int DEFAULT_BUFFER_SIZE = 4096;
+
+   /**
+    * The default maximum length of a string or bytes field read from an {@link InputStream}.
+    *
+    * @since 3.1
+    */
+   public static final int DEFAULT_MAX_FIELD_SIZE = 64 * 1024 * 1024;
 
-   private final CodedInputStream delegate;
+   static final byte[] EMPTY_BYTES = new byte[0];
 
-   private RawProtoStreamReaderImpl(CodedInputStream delegate) {
-      this.delegate = delegate;
+   /**
+    * The last tag that was read or 0 if the end of the input (or the current limit) was reached.
+    */
+   private int lastTag;
+
+   RawProtoStreamReaderImpl() {
    }
 
    public static RawProtoStreamReader newInstance(InputStream input) {
-      return new RawProtoStreamReaderImpl(CodedInputStream.newInstance(input));
+      return newInstance(input, DEFAULT_BUFFER_SIZE);
+   }
+
+   public static RawProtoStreamReader newInstance(InputStream input, int bufferSize) {
+      return newInstance(input, bufferSize, DEFAULT_MAX_FIELD_SIZE);
+   }
+
+   /**
+    * Creates a reader that decodes a stream through a buffer of the given size. The length of a string or bytes field
+    * comes from the input itself, so a field longer than {@code maxFieldSize} is rejected with an {@link IOException}
+    * before anything is allocated for it.
+    *
+    * @since 3.1
+    */
+   public static RawProtoStreamReader newInstance(InputStream input, int bufferSize, int maxFieldSize) {
+      if (input == null) {
+         throw new IllegalArgumentException("input cannot be null");
+      }
+      if (maxFieldSize < 0) {
+         throw new IllegalArgumentException("maxFieldSize cannot be negative");
+      }
+      return new InputStreamDecoder(input, bufferSize, maxFieldSize);
    }
 
    public static RawProtoStreamReader newInstance(byte[] buf) {
-      return new RawProtoStreamReaderImpl(CodedInputStream.newInstance(buf));
+      return new ArrayDecoder(buf, 0, buf.length);
    }
 
    public static RawProtoStreamReader newInstance(byte[] buf, int off, int len) {
-      return new RawProtoStreamReaderImpl(CodedInputStream.newInstance(buf, off, len));
+      checkBounds(buf, off, len);
+      return new ArrayDecoder(buf, off, len);
+   }
+
+   /**
+    * Points a reader previously obtained from one of the byte array factories to a new input, so it can be reused
+    * instead of allocating a new one. Any other kind of reader cannot be reused and a new one is created instead.
+    */
+   static RawProtoStreamReaderImpl reset(RawProtoStreamReaderImpl reader, byte[] buf, int off, int len) {
+      return reset(reader, buf, off, len, false);
+   }
+
+   /**
+    * Same as {@link #reset(RawProtoStreamReaderImpl, byte[], int, int)}, also setting the zero copy mode of the reader
+    * (see {@link #newInstance(ByteBuffer, boolean)}).
+    */
+   static RawProtoStreamReaderImpl reset(RawProtoStreamReaderImpl reader, byte[] buf, int off, int len, boolean zeroCopy) {
+      checkBounds(buf, off, len);
+      if (reader instanceof ArrayDecoder) {
+         ((ArrayDecoder) reader).reset(buf, off, len, zeroCopy);
+         reader.lastTag = 0;
+         return reader;
+      }
+      return new ArrayDecoder(buf, off, len, zeroCopy);
+   }
+
+   private static void checkBounds(byte[] buf, int off, int len) {
+      if (off < 0 || len < 0 || off + len > buf.length) {
+         throw new IllegalArgumentException("Invalid offset or length : offset=" + off + ", length=" + len + ", buffer size=" + buf.length);
+      }
    }
 
+   /**
+    * Creates a reader that decodes the bytes between the position and the limit of the given buffer. The position of
+    * the buffer is not altered.
+    */
    public static RawProtoStreamReader newInstance(ByteBuffer buf) {
-      return new RawProtoStreamReaderImpl(CodedInputStream.newInstance(buf));
+      return newInstance(buf, false);
    }
 
-   public CodedInputStream getDelegate() {
-      return delegate;
+   /**
+    * Creates a reader that decodes the bytes between the position and the limit of the given buffer. The position of
+    * the buffer is not altered. In zero copy mode {@link #readByteBuffer()} and {@link #readNestedReader()} do not copy
+    * anything but return read-only slices of the given buffer, so the caller must not modify or recycle the buffer for
+    * as long as any of the values read from it are in use.
+    *
+    * @since 3.1
+    */
+   public static RawProtoStreamReader newInstance(ByteBuffer buf, boolean zeroCopy) {
+      if (buf.hasArray()) {
+         return new ArrayDecoder(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), zeroCopy);
+      }
+      return new ByteBufferDecoder(buf, zeroCopy);
    }
 
    @Override
    public int readTag() throws IOException {
-      return delegate.readTag();
+      if (isAtEnd()) {
+         lastTag = 0;
+         return 0;
+      }
+      lastTag = readRawVarint32();
+      if (WireFormat.getTagFieldNumber(lastTag) == 0) {
+         throw new IOException("Protocol message contained an invalid tag (zero).");
+      }
+      return lastTag;
    }
 
    @Override
    public void checkLastTagWas(int tag) throws IOException {
-      delegate.checkLastTagWas(tag);
+      if (lastTag != tag) {
+         throw new IOException("Protocol message end-group tag did not match expected tag.");
+      }
    }
 
    @Override
    public boolean skipField(int tag) throws IOException {
-      return delegate.skipField(tag);
+      switch (WireFormat.getTagWireType(tag)) {
+         case WireFormat.WIRETYPE_VARINT:
+            readRawVarint64();
+            return true;
+         case WireFormat.WIRETYPE_FIXED64:
+            skipRawBytes(WireFormat.FIXED_64_SIZE);
+            return true;
+         case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+            skipRawBytes(readRawVarint32());
+            return true;
+         case WireFormat.WIRETYPE_START_GROUP:
+            skipMessage();
+            checkLastTagWas(WireFormat.makeTag(WireFormat.getTagFieldNumber(tag), WireFormat.WIRETYPE_END_GROUP));
+            return true;
+         case WireFormat.WIRETYPE_END_GROUP:
+            return false;
+         case WireFormat.WIRETYPE_FIXED32:
+            skipRawBytes(WireFormat.FIXED_32_SIZE);
+            return true;
+         default:
+            throw new IOException("Protocol message tag had invalid wire type " + WireFormat.getTagWireType(tag));
+      }
    }
 
-   @Override
-   public double readDouble() throws IOException {
-      return delegate.readDouble();
+   private void skipMessage() throws IOException {
+      while (true) {
+         int tag = readTag();
+         if (tag == 0 || !skipField(tag)) {
+            return;
+         }
+      }
    }
 
    @Override
-   public float readFloat() throws IOException {
-      return delegate.readFloat();
+   public boolean readBool() throws IOException {
+      return readRawVarint64() != 0L;
    }
 
    @Override
-   public long readUInt64() throws IOException {
-      return delegate.readUInt64();
+   public int readEnum() throws IOException {
+      return readRawVarint32();
    }
 
    @Override
-   public long readInt64() throws IOException {
-      return delegate.readInt64();
+   public byte[] readByteArray() throws IOException {
+      return readRawByteArray(readRawVarint32());
    }
 
    @Override
-   public int readInt32() throws IOException {
-      return delegate.readInt32();
+   public ByteBuffer readByteBuffer() throws IOException {
+      return ByteBuffer.wrap(readByteArray());
    }
 
-   @Override
-   public long readFixed64() throws IOException {
-      return delegate.readFixed64();
+   /**
+    * Reads a length delimited value, usually a nested message, and returns a reader for just its bytes. This reader is
+    * advanced past the value. The returned reader shares the input of this reader if it allows random access, only
+    * having narrower bounds, otherwise it reads from a copy of the value.
+    *
+    * @since 3.1
+    */
+   public RawProtoStreamReader readNestedReader() throws IOException {
+      int length = readRawVarint32();
+      int start = getPosition();
+      if (start < 0) {
+         return new ArrayDecoder(readRawByteArray(length), 0, length, false);
+      }
+      skipRawBytes(length);
+      return region(start, start + length, null);
    }
 
    @Override
-   public int readFixed32() throws IOException {
-      return delegate.readFixed32();
+   public double readDouble() throws IOException {
+      return Double.longBitsToDouble(readRawLittleEndian64());
    }
 
    @Override
-   public boolean readBool() throws IOException {
-      return delegate.readBool();
+   public float readFloat() throws IOException {
+      return Float.intBitsToFloat(readRawLittleEndian32());
    }
 
    @Override
-   public String readString() throws IOException {
-      return delegate.readString();
+   public long readInt64() throws IOException {
+      return readRawVarint64();
    }
 
    @Override
-   public byte[] readByteArray() throws IOException {
-      return delegate.readByteArray();
+   public long readUInt64() throws IOException {
+      return readRawVarint64();
    }
 
    @Override
-   public ByteBuffer readByteBuffer() throws IOException {
-      return delegate.readByteBuffer();
+   public long readSInt64() throws IOException {
+      long value = readRawVarint64();
+      return (value >>> 1) ^ -(value & 1);
    }
 
    @Override
-   public int readUInt32() throws IOException {
-      return delegate.readUInt32();
+   public long readFixed64() throws IOException {
+      return readRawLittleEndian64();
    }
 
    @Override
-   public int readEnum() throws IOException {
-      return delegate.readEnum();
+   public long readSFixed64() throws IOException {
+      return readRawLittleEndian64();
    }
 
    @Override
-   public int readSFixed32() throws IOException {
-      return delegate.readSFixed32();
+   public int readInt32() throws IOException {
+      return readRawVarint32();
    }
 
    @Override
-   public long readSFixed64() throws IOException {
-      return delegate.readSFixed64();
+   public int readUInt32() throws IOException {
+      return readRawVarint32();
    }
 
    @Override
    public int readSInt32() throws IOException {
-      return delegate.readSInt32();
+      int value = readRawVarint32();
+      return (value >>> 1) ^ -(value & 1);
    }
 
    @Override
-   public long readSInt64() throws IOException {
-      return delegate.readSInt64();
+   public int readFixed32() throws IOException {
+      return readRawLittleEndian32();
    }
 
    @Override
-   public int readRawVarint32() throws IOException {
-      return delegate.readRawVarint32();
+   public int readSFixed32() throws IOException {
+      return readRawLittleEndian32();
    }
 
    @Override
-   public long readRawVarint64() throws IOException {
-      return delegate.readRawVarint64();
+   public abstract boolean isAtEnd() throws IOException;
+
+   abstract byte readRawByte() throws IOException;
+
+   abstract byte[] readRawByteArray(int length) throws IOException;
+
+   abstract void skipRawBytes(int length) throws IOException;
+
+   abstract int readRawLittleEndian32() throws IOException;
+
+   abstract long readRawLittleEndian64() throws IOException;
+
+   /**
+    * Returns the absolute position of the next byte to be read if the input supports random access, or -1 otherwise.
+    */
+   abstract int getPosition();
+
+   /**
+    * Obtains a reader for the bytes between two absolute positions of the same input, previously obtained from {@link
+    * #getPosition()}. The given reader is repositioned and returned if it is suitable, otherwise a new one is created.
+    * Only supported if the input allows random access.
+    */
+   abstract RawProtoStreamReaderImpl region(int start, int end, RawProtoStreamReaderImpl reader);
+
+   /**
+    * Reads a varint one byte at a time. Used when the fast paths cannot be taken because the remaining input might be
+    * shorter than {@link WireFormat#MAX_VARINT_SIZE}.
+    */
+   final long readRawVarint64SlowPath() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+         byte b = readRawByte();
+         result |= (long) (b & 0x7F) << shift;
+         if (b >= 0) {
+            return result;
+         }
+      }
+      throw malformedVarint();
    }
 
-   @Override
-   public int pushLimit(int byteLimit) throws IOException {
-      return delegate.pushLimit(byteLimit);
+   static IOException negativeSize() {
+      return new IOException("Encountered a length delimited field with negative length.");
    }
 
-   @Override
-   public void popLimit(int oldLimit) {
-      delegate.popLimit(oldLimit);
+   static IOException truncatedMessage() {
+      return new IOException("Input ended unexpectedly in the middle of a field. The message may have been truncated.");
+   }
+
+   static IOException malformedVarint() {
+      return new IOException("Encountered a malformed varint.");
+   }
+
+   static IOException limitExceeded() {
+      return new IOException("A nested message's declared length exceeds the bounds of its enclosing message.");
+   }
+
+   /**
+    * Decodes a varint32 from an array, without any bounds checking. The caller must ensure at least {@link
+    * WireFormat#MAX_VARINT_SIZE} bytes are readable starting at {@code pos}. Values longer than 32 bits (negative int32
+    * encoded as 10 bytes) are truncated.
+    *
+    * @return the decoded value in the lower 32 bits and the new position in the upper 32 bits
+    */
+   static long decodeVarint32(byte[] buf, int pos) throws IOException {
+      int result;
+      byte b;
+      if ((b = buf[pos++]) >= 0) {
+         return ((long) pos << 32) | (b & 0xFFFFFFFFL);
+      }
+      result = b & 0x7F;
+      if ((b = buf[pos++]) >= 0) {
+         result |= b << 7;
+      } else {
+         result |= (b & 0x7F) << 7;
+         if ((b = buf[pos++]) >= 0) {
+            result |= b << 14;
+         } else {
+            result |= (b & 0x7F) << 14;
+            if ((b = buf[pos++]) >= 0) {
+               result |= b << 21;
+            } else {
+               result |= (b & 0x7F) << 21;
+               result |= (b = buf[pos++]) << 28;
+               if (b < 0) {
+                  // discard the upper 32 bits
+                  if (buf[pos++] < 0 && buf[pos++] < 0 && buf[pos++] < 0 && buf[pos++] < 0 && buf[pos++] < 0) {
+                     throw malformedVarint();
+                  }
+               }
+            }
+         }
+      }
+      return ((long) pos << 32) | (result & 0xFFFFFFFFL);
+   }
+
+   /**
+    * A decoder operating on a region of a byte array. No copying of the source array is performed.
+    */
+   private static final class ArrayDecoder extends RawProtoStreamReaderImpl {
+
+      private byte[] buf;
+
+      private int pos;
+
+      /**
+       * The absolute end position of the input.
+       */
+      private int end;
+
+      /**
+       * The absolute position of the current limit, never exceeding {@code end}.
+       */
+      private int limit;
+
+      /**
+       * Whether byte buffer values are returned as slices of {@link #buf} rather than copies.
+       */
+      private boolean zeroCopy;
+
+      /**
+       * A read-only buffer wrapping {@link #buf}, the source of all slices. Created lazily.
+       */
+      private ByteBuffer view;
+
+      ArrayDecoder(byte[] buf, int off, int len) {
+         this(buf, off, len, false);
+      }
+
+      ArrayDecoder(byte[] buf, int off, int len, boolean zeroCopy) {
+         this.buf = buf;
+         this.pos = off;
+         this.end = off + len;
+         this.limit = end;
+         this.zeroCopy = zeroCopy;
+      }
+
+      void reset(byte[] buf, int off, int len, boolean zeroCopy) {
+         if (this.buf != buf) {
+            this.buf = buf;
+            view = null;
+         }
+         this.pos = off;
+         this.end = off + len;
+         this.limit = end;
+         this.zeroCopy = zeroCopy;
+      }
+
+      @Override
+      public ByteBuffer readByteBuffer() throws IOException {
+         if (!zeroCopy) {
+            return super.readByteBuffer();
+         }
+         int length = readRawVarint32();
+         int start = pos;
+         skipRawBytes(length);
+         if (view == null) {
+            view = ByteBuffer.wrap(buf).asReadOnlyBuffer();
+         }
+         view.clear();
+         view.limit(start + length);
+         view.position(start);
+         return view.slice();
+      }
+
+      @Override
+      public boolean isAtEnd() {
+         return pos == limit;
+      }
+
+      @Override
+      public String readString() throws IOException {
+         int length = readRawVarint32();
+         if (length > 0 && length <= limit - pos) {
+            String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+         }
+         if (length == 0) {
+            return "";
+         }
+         if (length < 0) {
+            throw negativeSize();
+         }
+         throw truncatedMessage();
+      }
+
+      @Override
+      public int readRawVarint32() throws IOException {
+         if (limit - pos < WireFormat.MAX_VARINT_SIZE) {
+            return (int) readRawVarint64SlowPath();
+         }
+         long r = decodeVarint32(buf, pos);
+         pos = (int) (r >>> 32);
+         return (int) r;
+      }
+
+      @Override
+      public long readRawVarint64() throws IOException {
+         int p = pos;
+         if (limit - p < WireFormat.MAX_VARINT_SIZE) {
+            return readRawVarint64SlowPath();
+         }
+         byte[] buf = this.buf;
+         long x;
+         int y;
+         if ((y = buf[p++]) >= 0) {
+            pos = p;
+            return y;
+         } else if ((y ^= (buf[p++] << 7)) < 0) {
+            x = y ^ (~0 << 7);
+         } else if ((y ^= (buf[p++] << 14)) >= 0) {
+            x = y ^ ((~0 << 7) ^ (~0 << 14));
+         } else if ((y ^= (buf[p++] << 21)) < 0) {
+            x = y ^ ((~0 << 7) ^ (~0 << 14) ^ (~0 << 21));
+         } else if ((x = y ^ ((long) buf[p++] << 28)) >= 0L) {
+            x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28);
+         } else if ((x ^= ((long) buf[p++] << 35)) < 0L) {
+            x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28) ^ (~0L << 35);
+         } else if ((x ^= ((long) buf[p++] << 42)) >= 0L) {
+            x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28) ^ (~0L << 35) ^ (~0L << 42);
+         } else if ((x ^= ((long) buf[p++] << 49)) < 0L) {
+            x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28) ^ (~0L << 35) ^ (~0L << 42) ^ (~0L << 49);
+         } else {
+            x ^= ((long) buf[p++] << 56);
+            x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28) ^ (~0L << 35) ^ (~0L << 42) ^ (~0L << 49) ^ (~0L << 56);
+            if (x < 0L && buf[p++] < 0L) {
+               throw malformedVarint();
+            }
+         }
+         pos = p;
+         return x;
+      }
+
+      @Override
+      byte readRawByte() throws IOException {
+         if (pos == limit) {
+            throw truncatedMessage();
+         }
+         return buf[pos++];
+      }
+
+      @Override
+      byte[] readRawByteArray(int length) throws IOException {
+         if (length > 0 && length <= limit - pos) {
+            int from = pos;
+            pos += length;
+            byte[] bytes = new byte[length];
+            System.arraycopy(buf, from, bytes, 0, length);
+            return bytes;
+         }
+         if (length == 0) {
+            return EMPTY_BYTES;
+         }
+         if (length < 0) {
+            throw negativeSize();
+         }
+         throw truncatedMessage();
+      }
+
+      @Override
+      void skipRawBytes(int length) throws IOException {
+         if (length >= 0 && length <= limit - pos) {
+            pos += length;
+            return;
+         }
+         if (length < 0) {
+            throw negativeSize();
+         }
+         throw truncatedMessage();
+      }
+
+      @Override
+      int readRawLittleEndian32() throws IOException {
+         int p = pos;
+         if (limit - p < WireFormat.FIXED_32_SIZE) {
+            throw truncatedMessage();
+         }
+         byte[] buf = this.buf;
+         pos = p + WireFormat.FIXED_32_SIZE;
+         return (buf[p] & 0xFF)
+               | (buf[p + 1] & 0xFF) << 8
+               | (buf[p + 2] & 0xFF) << 16
+               | (buf[p + 3] & 0xFF) << 24;
+      }
+
+      @Override
+      long readRawLittleEndian64() throws IOException {
+         int p = pos;
+         if (limit - p < WireFormat.FIXED_64_SIZE) {
+            throw truncatedMessage();
+         }
+         byte[] buf = this.buf;
+         pos = p + WireFormat.FIXED_64_SIZE;
+         return (buf[p] & 0xFFL)
+               | (buf[p + 1] & 0xFFL) << 8
+               | (buf[p + 2] & 0xFFL) << 16
+               | (buf[p + 3] & 0xFFL) << 24
+               | (buf[p + 4] & 0xFFL) << 32
+               | (buf[p + 5] & 0xFFL) << 40
+               | (buf[p + 6] & 0xFFL) << 48
+               | (buf[p + 7] & 0xFFL) << 56;
+      }
+
+      @Override
+      public int pushLimit(int byteLimit) throws IOException {
+         if (byteLimit < 0) {
+            throw negativeSize();
+         }
+         if (byteLimit > limit - pos) {
+            throw limitExceeded();
+         }
+         int oldLimit = limit;
+         limit = pos + byteLimit;
+         return oldLimit;
+      }
+
+      @Override
+      public void popLimit(int oldLimit) {
+         limit = oldLimit;
+      }
+
+      @Override
+      int getPosition() {
+         return pos;
+      }
+
+      @Override
+      RawProtoStreamReaderImpl region(int start, int end, RawProtoStreamReaderImpl reader) {
+         if (reader instanceof ArrayDecoder) {
+            ((ArrayDecoder) reader).reset(buf, start, end - start, zeroCopy);
+            reader.lastTag = 0;
+            return reader;
+         }
+         return new ArrayDecoder(buf, start, end - start, zeroCopy);
+      }
+   }
+
+   /**
+    * A decoder for direct (or read-only) {@link ByteBuffer}s that do not expose a backing array. Uses absolute gets so
+    * the position of the source buffer is never altered.
+    */
+   private static final class ByteBufferDecoder extends RawProtoStreamReaderImpl {
+
+      private static final int MAX_SCRATCH_SIZE = 1024;
+
+      private ByteBuffer buf;
+
+      private int pos;
+
+      private int limit;
+
+      /**
+       * Whether byte buffer values are returned as slices of {@link #buf} rather than copies.
+       */
+      private boolean zeroCopy;
+
+      /**
+       * A read-only duplicate of {@link #buf}, used for bulk gets and as the source of all slices. Created lazily.
+       */
+      private ByteBuffer view;
+
+      /**
+       * Reused for decoding strings that are not longer than {@link #MAX_SCRATCH_SIZE}. Created lazily.
+       */
+      private byte[] scratch;
+
+      ByteBufferDecoder(ByteBuffer buf, boolean zeroCopy) {
+         this(buf, buf.position(), buf.limit(), zeroCopy);
+      }
+
+      private ByteBufferDecoder(ByteBuffer buf, int start, int end, boolean zeroCopy) {
+         this.buf = buf;
+         this.pos = start;
+         this.limit = end;
+         this.zeroCopy = zeroCopy;
+      }
+
+      /**
+       * Returns the view of the source buffer, with the position and limit set to the given absolute positions.
+       */
+      private ByteBuffer view(int start, int end) {
+         ByteBuffer view = this.view;
+         if (view == null) {
+            view = this.view = buf.asReadOnlyBuffer();
+         }
+         view.clear();
+         view.limit(end);
+         view.position(start);
+         return view;
+      }
+
+      @Override
+      public boolean isAtEnd() {
+         return pos == limit;
+      }
+
+      @Override
+      public String readString() throws IOException {
+         int length = readRawVarint32();
+         if (length > 0 && length <= limit - pos) {
+            byte[] bytes;
+            if (length <= MAX_SCRATCH_SIZE) {
+               if (scratch == null) {
+                  scratch = new byte[MAX_SCRATCH_SIZE];
+               }
+               bytes = scratch;
+            } else {
+               bytes = new byte[length];
+            }
+            view(pos, pos + length).get(bytes, 0, length);
+            pos += length;
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+         }
+         if (length == 0) {
+            return "";
+         }
+         if (length < 0) {
+            throw negativeSize();
+         }
+         throw truncatedMessage();
+      }
+
+      @Override
+      public ByteBuffer readByteBuffer() throws IOException {
+         if (!zeroCopy) {
+            return super.readByteBuffer();
+         }
+         int length = readRawVarint32();
+         int start = pos;
+         skipRawBytes(length);
+         return view(start, start + length).slice();
+      }
+
+      @Override
+      public int readRawVarint32() throws IOException {
+         if (limit - pos < WireFormat.MAX_VARINT_SIZE) {
+            return (int) readRawVarint64SlowPath();
+         }
+         ByteBuffer buf = this.buf;
+         int p = pos;
+         int result;
+         byte b;
+         if ((b = buf.get(p++)) >= 0) {
+            pos = p;
+            return b;
+         }
+         result = b & 0x7F;
+         if ((b = buf.get(p++)) >= 0) {
+            result |= b << 7;
+         } else {
+            result |= (b & 0x7F) << 7;
+            if ((b = buf.get(p++)) >= 0) {
+               result |= b << 14;
+            } else {
+               result |= (b & 0x7F) << 14;
+               if ((b = buf.get(p++)) >= 0) {
+                  result |= b << 21;
+               } else {
+                  result |= (b & 0x7F) << 21;
+                  result |= (b = buf.get(p++)) << 28;
+                  if (b < 0) {
+                     // discard the upper 32 bits
+                     if (buf.get(p++) < 0 && buf.get(p++) < 0 && buf.get(p++) < 0 && buf.get(p++) < 0 && buf.get(p++) < 0) {
+                        throw malformedVarint();
+                     }
+                  }
+               }
+            }
+         }
+         pos = p;
+         return result;
+      }
+
+      @Override
+      public long readRawVarint64() throws IOException {
+         if (limit - pos < WireFormat.MAX_VARINT_SIZE) {
+            return readRawVarint64SlowPath();
+         }
+         ByteBuffer buf = this.buf;
+         int p = pos;
+         long result = 0;
+         for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get(p++);
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+               pos = p;
+               return result;
+            }
+         }
+         throw malformedVarint();
+      }
+
+      @Override
+      byte readRawByte() throws IOException {
+         if (pos == limit) {
+            throw truncatedMessage();
+         }
+         return buf.get(pos++);
+      }
+
+      @Override
+      byte[] readRawByteArray(int length) throws IOException {
+         if (length > 0 && length <= limit - pos) {
+            byte[] bytes = new byte[length];
+            view(pos, pos + length).get(bytes);
+            pos += length;
+            return bytes;
+         }
+         if (length == 0) {
+            return EMPTY_BYTES;
+         }
+         if (length < 0) {
+            throw negativeSize();
+         }
+         throw truncatedMessage();
+      }
+
+      @Override
+      void skipRawBytes(int length) throws IOException {
+         if (length >= 0 && length <= limit - pos) {
+            pos += length;
+            return;
+         }
+         if (length < 0) {
+            throw negativeSize();
+         }
+         throw truncatedMessage();
+      }
+
+      @Override
+      int readRawLittleEndian32() throws IOException {
+         int p = pos;
+         if (limit - p < WireFormat.FIXED_32_SIZE) {
+            throw truncatedMessage();
+         }
+         ByteBuffer buf = this.buf;
+         pos = p + WireFormat.FIXED_32_SIZE;
+         return (buf.get(p) & 0xFF)
+               | (buf.get(p + 1) & 0xFF) << 8
+               | (buf.get(p + 2) & 0xFF) << 16
+               | (buf.get(p + 3) & 0xFF) << 24;
+      }
+
+      @Override
+      long readRawLittleEndian64() throws IOException {
+         int p = pos;
+         if (limit - p < WireFormat.FIXED_64_SIZE) {
+            throw truncatedMessage();
+         }
+         ByteBuffer buf = this.buf;
+         pos = p + WireFormat.FIXED_64_SIZE;
+         return (buf.get(p) & 0xFFL)
+               | (buf.get(p + 1) & 0xFFL) << 8
+               | (buf.get(p + 2) & 0xFFL) << 16
+               | (buf.get(p + 3) & 0xFFL) << 24
+               | (buf.get(p + 4) & 0xFFL) << 32
+               | (buf.get(p + 5) & 0xFFL) << 40
+               | (buf.get(p + 6) & 0xFFL) << 48
+               | (buf.get(p + 7) & 0xFFL) << 56;
+      }
+
+      @Override
+      public int pushLimit(int byteLimit) throws IOException {
+         if (byteLimit < 0) {
+            throw negativeSize();
+         }
+         if (byteLimit > limit - pos) {
+            throw limitExceeded();
+         }
+         int oldLimit = limit;
+         limit = pos + byteLimit;
+         return oldLimit;
+      }
+
+      @Override
+      public void popLimit(int oldLimit) {
+         limit = oldLimit;
+      }
+
+      @Override
+      int getPosition() {
+         return pos;
+      }
+
+      @Override
+      RawProtoStreamReaderImpl region(int start, int end, RawProtoStreamReaderImpl reader) {
+         if (reader instanceof ByteBufferDecoder) {
+            ByteBufferDecoder decoder = (ByteBufferDecoder) reader;
+            if (decoder.buf != buf) {
+               decoder.buf = buf;
+               decoder.view = null;
+            }
+            decoder.pos = start;
+            decoder.limit = end;
+            decoder.zeroCopy = zeroCopy;
+            reader.lastTag = 0;
+            return decoder;
+         }
+         return new ByteBufferDecoder(buf, start, end, zeroCopy);
+      }
+   }
+
+   /**
+    * A decoder that reads from an {@link InputStream} through an internal buffer. The buffer is refilled on demand and
+    * its visible size is always clipped to the current limit, so the fast paths never need to check the limit.
+    * <p>
+    * Positions are counted from an origin that is moved to the current position whenever a limit is pushed while no
+    * other limit is in effect, so the limits handed out by {@link #pushLimit} always fit in an int, however long the
+    * stream is.
+    */
+   private static final class InputStreamDecoder extends RawProtoStreamReaderImpl {
+
+      private static final long NO_LIMIT = Long.MAX_VALUE;
+
+      private final InputStream input;
+
+      private final byte[] buffer;
+
+      private final int maxFieldSize;
+
+      /**
+       * The number of valid bytes in the buffer, excluding the ones beyond the current limit.
+       */
+      private int bufferSize;
+
+      /**
+       * The number of valid bytes in the buffer that are beyond the current limit.
+       */
+      private int bufferSizeAfterLimit;
+
+      private int pos;
+
+      /**
+       * The number of bytes consumed from the stream before the start of the current buffer, counted from the origin.
+       * This is negative if the origin is inside the current buffer.
+       */
+      private long totalBytesRetired;
+
+      /**
+       * The position of the current limit (counted from the origin), or {@link #NO_LIMIT}.
+       */
+      private long currentLimit = NO_LIMIT;
+
+      InputStreamDecoder(InputStream input, int bufferSize, int maxFieldSize) {
+         if (bufferSize < WireFormat.MAX_VARINT_SIZE) {
+            throw new IllegalArgumentException("bufferSize must be at least " + WireFormat.MAX_VARINT_SIZE);
+         }
+         this.input = input;
+         this.buffer = new byte[bufferSize];
+         this.maxFieldSize = maxFieldSize;
+      }
+
+      @Override
+      public boolean isAtEnd() throws IOException {
+         return pos == bufferSize && !tryRefill(1);
+      }
+
+      /**
+       * Ensures at least {@code n} bytes are available in the buffer, compacting it and reading more data from the
+       * stream if needed. {@code n} must not exceed the buffer capacity.
+       *
+       * @return false if the end of the stream or the current limit do not allow {@code n} more bytes
+       */
+      private boolean tryRefill(int n) throws IOException {
+         if (totalBytesRetired + pos + n > currentLimit) {
+            return false;
+         }
+         if (pos > 0) {
+            int remaining = bufferSize - pos;
+            if (remaining > 0) {
+               System.arraycopy(buffer, pos, buffer, 0, remaining);
+            }
+            totalBytesRetired += pos;
+            bufferSize = remaining;
+            pos = 0;
+         }
+         while (bufferSize < n) {
+            int read = input.read(buffer, bufferSize, buffer.length - bufferSize);
+            if (read <= 0) {
+               recomputeBufferSizeAfterLimit();
+               return false;
+            }
+            bufferSize += read;
+         }
+         recomputeBufferSizeAfterLimit();
+         return true;
+      }
+
+      private void refill(int n) throws IOException {
+         if (!tryRefill(n)) {
+            throw truncatedMessage();
+         }
+      }
+
+      private void recomputeBufferSizeAfterLimit() {
+         bufferSize += bufferSizeAfterLimit;
+         long bufferEnd = totalBytesRetired + bufferSize;
+         if (bufferEnd > currentLimit) {
+            bufferSizeAfterLimit = (int) (bufferEnd - currentLimit);
+            bufferSize -= bufferSizeAfterLimit;
+         } else {
+            bufferSizeAfterLimit = 0;
+         }
+      }
+
+      @Override
+      public String readString() throws IOException {
+         int length = readRawVarint32();
+         if (length > 0 && length <= bufferSize - pos && length <= maxFieldSize) {
+            String value = new String(buffer, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+         }
+         return new String(readRawByteArray(length), StandardCharsets.UTF_8);
+      }
+
+      @Override
+      public int readRawVarint32() throws IOException {
+         if (bufferSize - pos < WireFormat.MAX_VARINT_SIZE) {
+            return (int) readRawVarint64SlowPath();
+         }
+         long r = decodeVarint32(buffer, pos);
+         pos = (int) (r >>> 32);
+         return (int) r;
+      }
+
+      @Override
+      public long readRawVarint64() throws IOException {
+         if (bufferSize - pos < WireFormat.MAX_VARINT_SIZE) {
+            return readRawVarint64SlowPath();
+         }
+         byte[] buf = buffer;
+         int p = pos;
+         long result = 0;
+         for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf[p++];
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+               pos = p;
+               return result;
+            }
+         }
+         throw malformedVarint();
+      }
+
+      @Override
+      byte readRawByte() throws IOException {
+         if (pos == bufferSize) {
+            refill(1);
+         }
+         return buffer[pos++];
+      }
+
+      @Override
+      byte[] readRawByteArray(int length) throws IOException {
+         if (length > 0 && length <= bufferSize - pos && length <= maxFieldSize) {
+            int from = pos;
+            pos += length;
+            byte[] bytes = new byte[length];
+            System.arraycopy(buffer, from, bytes, 0, length);
+            return bytes;
+         }
+         if (length == 0) {
+            return EMPTY_BYTES;
+         }
+         if (length < 0) {
+            throw negativeSize();
+         }
+         if (length > maxFieldSize) {
+            throw new IOException("The length " + length + " of a string or bytes field exceeds the maximum field size of " + maxFieldSize + " bytes");
+         }
+         if (totalBytesRetired + pos + length > currentLimit) {
+            // skip to the limit to mimic reading the truncated remainder
+            skipRawBytes((int) (currentLimit - totalBytesRetired - pos));
+            throw truncatedMessage();
+         }
+
+         // copy what is buffered and read the rest straight from the stream; the array grows geometrically as the
+         // bytes arrive and never beyond the length, so a bogus length costs no more than twice the bytes received
+         int buffered = bufferSize - pos;
+         byte[] bytes = new byte[Math.min(length, Math.max(buffered, buffer.length))];
+         System.arraycopy(buffer, pos, bytes, 0, buffered);
+         totalBytesRetired += bufferSize;
+         pos = 0;
+         bufferSize = 0;
+         int off = buffered;
+         while (off < length) {
+            if (off == bytes.length) {
+               bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+            }
+            int read = input.read(bytes, off, bytes.length - off);
+            if (read <= 0) {
+               throw truncatedMessage();
+            }
+            totalBytesRetired += read;
+            off += read;
+         }
+         return bytes;
+      }
+
+      @Override
+      void skipRawBytes(int length) throws IOException {
+         if (length >= 0 && length <= bufferSize - pos) {
+            pos += length;
+            return;
+         }
+         if (length < 0) {
+            throw negativeSize();
+         }
+         if (totalBytesRetired + pos + length > currentLimit) {
+            skipRawBytes((int) (currentLimit - totalBytesRetired - pos));
+            throw truncatedMessage();
+         }
+
+         // discard what is buffered and skip the rest in the stream
+         int skipped = bufferSize - pos;
+         totalBytesRetired += bufferSize;
+         pos = 0;
+         bufferSize = 0;
+         while (skipped < length) {
+            int toSkip = length - skipped;
+            // the last byte is always read, because skip() may go past the end of the stream without telling
+            // (FileInputStream does) and a truncated message must not pass as skipped
+            long n = toSkip > 1 ? input.skip(toSkip - 1) : 0;
+            if (n > 0) {
+               totalBytesRetired += n;
+               skipped += n;
+               continue;
+            }
+            // skip() made no progress (some streams do not support it), fall back to reading through the buffer
+            refill(1);
+            int chunk = Math.min(bufferSize, toSkip);
+            pos = chunk;
+            skipped += chunk;
+            if (skipped < length) {
+               totalBytesRetired += bufferSize;
+               pos = 0;
+               bufferSize = 0;
+            }
+         }
+      }
+
+      @Override
+      int readRawLittleEndian32() throws IOException {
+         if (bufferSize - pos < WireFormat.FIXED_32_SIZE) {
+            refill(WireFormat.FIXED_32_SIZE);
+         }
+         byte[] buf = buffer;
+         int p = pos;
+         pos = p + WireFormat.FIXED_32_SIZE;
+         return (buf[p] & 0xFF)
+               | (buf[p + 1] & 0xFF) << 8
+               | (buf[p + 2] & 0xFF) << 16
+               | (buf[p + 3] & 0xFF) << 24;
+      }
+
+      @Override
+      long readRawLittleEndian64() throws IOException {
+         if (bufferSize - pos < WireFormat.FIXED_64_SIZE) {
+            refill(WireFormat.FIXED_64_SIZE);
+         }
+         byte[] buf = buffer;
+         int p = pos;
+         pos = p + WireFormat.FIXED_64_SIZE;
+         return (buf[p] & 0xFFL)
+               | (buf[p + 1] & 0xFFL) << 8
+               | (buf[p + 2] & 0xFFL) << 16
+               | (buf[p + 3] & 0xFFL) << 24
+               | (buf[p + 4] & 0xFFL) << 32
+               | (buf[p + 5] & 0xFFL) << 40
+               | (buf[p + 6] & 0xFFL) << 48
+               | (buf[p + 7] & 0xFFL) << 56;
+      }
+
+      @Override
+      public int pushLimit(int byteLimit) throws IOException {
+         if (byteLimit < 0) {
+            throw negativeSize();
+         }
+         long oldLimit = currentLimit;
+         if (oldLimit == NO_LIMIT) {
+            // nothing refers to the old origin, so it is moved here; a top level limit never exceeds Integer.MAX_VALUE
+            totalBytesRetired = -pos;
+         }
+         long position = totalBytesRetired + pos;
+         if (byteLimit > oldLimit - position) {
+            throw limitExceeded();
+         }
+         currentLimit = position + byteLimit;
+         recomputeBufferSizeAfterLimit();
+         return oldLimit == NO_LIMIT ? -1 : (int) oldLimit;
+      }
+
+      @Override
+      public void popLimit(int oldLimit) {
+         currentLimit = oldLimit < 0 ? NO_LIMIT : oldLimit;
+         recomputeBufferSizeAfterLimit();
+      }
+
+      @Override
+      int getPosition() {
+         return -1;
+      }
+
+      @Override
+      RawProtoStreamReaderImpl region(int start, int end, RawProtoStreamReaderImpl reader) {
+         throw new UnsupportedOperationException("A stream does not support random access");
+      }
    }
 }
@@ -3,161 +3,1397 @@ package org.infinispan.protostream.impl;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+import org.infinispan.protostream.ByteBufferChain;
+import org.infinispan.protostream.DirectBufferPool;
 import org.infinispan.protostream.RawProtoStreamWriter;
 
-import com.google.protobuf.CodedOutputStream;
-
 /**
+ * Encodes the protobuf wire format directly into a byte array, a {@link ByteBuffer} or an {@link OutputStream}. Each
+ * kind of target has its own implementation so the hot encoding methods stay monomorphic at call sites.
+ *
  * @author anistor@redhat.com
  * @since 3.0
  */
-public final class RawProtoStreamWriterImpl implements RawProtoStreamWriter {
+public abstract class RawProtoStreamWriterImpl implements RawProtoStreamWriter {
 
-   private final CodedOutputStream delegate;
+   static final int DEFAULT_BUFFER_SIZE = 4096;
 
-   private RawProtoStreamWriterImpl(CodedOutputStream delegate) {
-      this.delegate = delegate;
+   RawProtoStreamWriterImpl() {
    }
 
    public static RawProtoStreamWriter newInstance(OutputStream output) {
-      return new RawProtoStreamWriterImpl(CodedOutputStream.newInstance(output));
+      return newInstance(output, DEFAULT_BUFFER_SIZE);
    }
 
    public static RawProtoStreamWriter newInstance(OutputStream output, int bufferSize) {
-      return new RawProtoStreamWriterImpl(CodedOutputStream.newInstance(output, bufferSize));
+      if (output == null) {
+         throw new IllegalArgumentException("output cannot be null");
+      }
+      return new OutputStreamEncoder(output, bufferSize);
    }
 
    public static RawProtoStreamWriter newInstance(byte[] flatArray) {
-      return new RawProtoStreamWriterImpl(CodedOutputStream.newInstance(flatArray));
+      return new ArrayEncoder(flatArray, 0, flatArray.length);
    }
 
    public static RawProtoStreamWriter newInstance(byte[] flatArray, int offset, int length) {
-      return new RawProtoStreamWriterImpl(CodedOutputStream.newInstance(flatArray, offset, length));
+      if (offset < 0 || length < 0 || offset + length > flatArray.length) {
+         throw new IllegalArgumentException("Invalid offset or length : offset=" + offset + ", length=" + length + ", buffer size=" + flatArray.length);
+      }
+      return new ArrayEncoder(flatArray, offset, length);
    }
 
+   /**
+    * Creates a writer that encodes into the space between the position and the limit of the given buffer. The position
+    * of the buffer is advanced by {@link #flush()}.
+    */
    public static RawProtoStreamWriter newInstance(ByteBuffer byteBuffer) {
-      return new RawProtoStreamWriterImpl(CodedOutputStream.newInstance(byteBuffer));
-   }
-
-   public CodedOutputStream getDelegate() {
-      return delegate;
+      if (byteBuffer.hasArray()) {
+         return new HeapByteBufferEncoder(byteBuffer);
+      }
+      return new ByteBufferEncoder(byteBuffer);
    }
 
    @Override
    public void writeTag(int number, int wireType) throws IOException {
-      delegate.writeTag(number, wireType);
+      writeRawVarint32(WireFormat.makeTag(number, wireType));
    }
 
    @Override
    public void writeUInt32NoTag(int value) throws IOException {
-      delegate.writeUInt32NoTag(value);
+      writeRawVarint32(value);
    }
 
    @Override
    public void writeUInt64NoTag(long value) throws IOException {
-      delegate.writeUInt64NoTag(value);
+      writeRawVarint64(value);
    }
 
    @Override
-   public void writeString(int number, String value) throws IOException {
-      delegate.writeString(number, value);
+   public void writeFixed32NoTag(int value) throws IOException {
+      writeRawLittleEndian32(value);
    }
 
    @Override
-   public void writeInt32(int number, int value) throws IOException {
-      delegate.writeInt32(number, value);
+   public void writeFixed64NoTag(long value) throws IOException {
+      writeRawLittleEndian64(value);
    }
 
    @Override
-   public void writeInt64(int number, long value) throws IOException {
-      delegate.writeInt64(number, value);
+   public void writeString(int number, String value) throws IOException {
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+      writeStringNoTag(value);
+   }
+
+   @Override
+   public void writeInt32(int number, int value) throws IOException {
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_VARINT));
+      writeInt32NoTag(value);
    }
 
    @Override
    public void writeFixed32(int number, int value) throws IOException {
-      delegate.writeFixed32(number, value);
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_FIXED32));
+      writeRawLittleEndian32(value);
    }
 
    @Override
    public void writeUInt32(int number, int value) throws IOException {
-      delegate.writeUInt32(number, value);
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_VARINT));
+      writeRawVarint32(value);
    }
 
    @Override
    public void writeSFixed32(int number, int value) throws IOException {
-      delegate.writeSFixed32(number, value);
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_FIXED32));
+      writeRawLittleEndian32(value);
    }
 
    @Override
    public void writeSInt32(int number, int value) throws IOException {
-      delegate.writeSInt32(number, value);
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_VARINT));
+      writeRawVarint32((value << 1) ^ (value >> 31));
    }
 
    @Override
-   public void writeEnum(int number, int value) throws IOException {
-      delegate.writeEnum(number, value);
+   public void writeInt64(int number, long value) throws IOException {
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_VARINT));
+      writeRawVarint64(value);
+   }
+
+   @Override
+   public void writeUInt64(int number, long value) throws IOException {
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_VARINT));
+      writeRawVarint64(value);
+   }
+
+   @Override
+   public void writeFixed64(int number, long value) throws IOException {
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_FIXED64));
+      writeRawLittleEndian64(value);
+   }
+
+   @Override
+   public void writeSFixed64(int number, long value) throws IOException {
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_FIXED64));
+      writeRawLittleEndian64(value);
+   }
+
+   @Override
+   public void writeSInt64(int number, long value) throws IOException {
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_VARINT));
+      writeRawVarint64((value << 1) ^ (value >> 63));
    }
 
    @Override
-   public void flush() throws IOException {
-      delegate.flush();
+   public void writeEnum(int number, int value) throws IOException {
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_VARINT));
+      writeInt32NoTag(value);
    }
 
    @Override
    public void writeBool(int number, boolean value) throws IOException {
-      delegate.writeBool(number, value);
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_VARINT));
+      writeRawByte(value ? 1 : 0);
    }
 
    @Override
    public void writeDouble(int number, double value) throws IOException {
-      delegate.writeDouble(number, value);
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_FIXED64));
+      writeRawLittleEndian64(Double.doubleToRawLongBits(value));
    }
 
    @Override
    public void writeFloat(int number, float value) throws IOException {
-      delegate.writeFloat(number, value);
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_FIXED32));
+      writeRawLittleEndian32(Float.floatToRawIntBits(value));
    }
 
+   /**
+    * Writes the bytes between the position and the limit of the given buffer. The position of the buffer is not
+    * altered.
+    */
    @Override
    public void writeBytes(int number, ByteBuffer value) throws IOException {
-      final int off = value.arrayOffset();
-      final int len = value.limit() - off;
-      delegate.writeByteArray(number, value.array(), off, len);
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+      int length = value.remaining();
+      writeRawVarint32(length);
+      if (value.hasArray()) {
+         writeRawBytes(value.array(), value.arrayOffset() + value.position(), length);
+      } else {
+         writeRawBytes(value.duplicate());
+      }
    }
 
    @Override
    public void writeBytes(int number, byte[] value) throws IOException {
-      delegate.writeByteArray(number, value);
+      writeBytes(number, value, 0, value.length);
    }
 
    @Override
    public void writeBytes(int number, byte[] value, int offset, int length) throws IOException {
-      delegate.writeByteArray(number, value, offset, length);
+      writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+      writeRawVarint32(length);
+      writeRawBytes(value, offset, length);
    }
 
-   @Override
-   public void writeUInt64(int number, long value) throws IOException {
-      delegate.writeUInt64(number, value);
+   private void writeInt32NoTag(int value) throws IOException {
+      if (value >= 0) {
+         writeRawVarint32(value);
+      } else {
+         // negative values are sign extended to 64 bits and always take 10 bytes
+         writeRawVarint64(value);
+      }
    }
 
-   @Override
-   public void writeFixed64(int number, long value) throws IOException {
-      delegate.writeFixed64(number, value);
+   /**
+    * Starts a length delimited field whose length is not known in advance, typically a nested message. The tag is
+    * written immediately and a single byte is reserved for the length prefix. The contents of the field are then
+    * written directly to this writer and the length is filled in by the matching call to {@link #endNested(int)}.
+    * Prefixes that need more than one byte are filled in together at the end of the outermost nested field, so each
+    * byte is moved at most once regardless of the nesting depth. This avoids marshalling each nested message to a
+    * temporary buffer. Nested fields must be ended in reverse order of starting them.
+    *
+    * @param number the field number
+    * @return an opaque handle that must be passed to {@link #endNested(int)}
+    */
+   public abstract int startNested(int number) throws IOException;
+
+   /**
+    * Ends a length delimited field started by {@link #startNested(int)}, filling in its length prefix.
+    *
+    * @param handle the handle returned by the matching {@link #startNested(int)}
+    */
+   public abstract void endNested(int handle) throws IOException;
+
+   /**
+    * Gets the number of bytes written so far, including those that were not flushed yet. Only the difference between
+    * two calls is meaningful.
+    */
+   abstract long getWrittenBytes();
+
+   abstract void writeStringNoTag(String value) throws IOException;
+
+   abstract void writeRawByte(int value) throws IOException;
+
+   /**
+    * Writes all remaining bytes of the buffer, advancing its position.
+    */
+   abstract void writeRawBytes(ByteBuffer value) throws IOException;
+
+   abstract void writeRawVarint32(int value) throws IOException;
+
+   abstract void writeRawVarint64(long value) throws IOException;
+
+   abstract void writeRawLittleEndian32(int value) throws IOException;
+
+   abstract void writeRawLittleEndian64(long value) throws IOException;
+
+   /**
+    * Computes the number of bytes needed to encode a String as UTF-8, without actually encoding it. Unpaired surrogates
+    * are accounted as a single replacement character, same as {@link String#getBytes(java.nio.charset.Charset)}.
+    */
+   static int computeUtf8Length(String value) {
+      final int charCount = value.length();
+      int length = charCount;
+      for (int i = 0; i < charCount; i++) {
+         char c = value.charAt(i);
+         if (c < 0x80) {
+            continue;
+         }
+         if (c < 0x800) {
+            length++;
+         } else if (Character.isSurrogate(c)) {
+            if (Character.isHighSurrogate(c) && i + 1 < charCount && Character.isLowSurrogate(value.charAt(i + 1))) {
+               // a surrogate pair is 2 chars and 4 bytes
+               length += 2;
+               i++;
+            }
+         } else {
+            length += 2;
+         }
+      }
+      return length;
    }
 
-   @Override
-   public void writeSFixed64(int number, long value) throws IOException {
-      delegate.writeSFixed64(number, value);
+   /**
+    * Encodes a String as UTF-8 into the given array, which must have at least {@link #computeUtf8Length} bytes
+    * available starting at {@code pos}.
+    *
+    * @return the position after the last written byte
+    */
+   static int encodeUtf8(String value, byte[] buf, int pos) {
+      final int charCount = value.length();
+      int i = 0;
+      // fast path for ASCII
+      for (char c; i < charCount && (c = value.charAt(i)) < 0x80; i++) {
+         buf[pos++] = (byte) c;
+      }
+      for (; i < charCount; i++) {
+         char c = value.charAt(i);
+         if (c < 0x80) {
+            buf[pos++] = (byte) c;
+         } else if (c < 0x800) {
+            buf[pos++] = (byte) (0xC0 | (c >>> 6));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+         } else if (Character.isSurrogate(c)) {
+            if (Character.isHighSurrogate(c) && i + 1 < charCount && Character.isLowSurrogate(value.charAt(i + 1))) {
+               int codePoint = Character.toCodePoint(c, value.charAt(++i));
+               buf[pos++] = (byte) (0xF0 | (codePoint >>> 18));
+               buf[pos++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+               buf[pos++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+               buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+               buf[pos++] = '?';
+            }
+         } else {
+            buf[pos++] = (byte) (0xE0 | (c >>> 12));
+            buf[pos++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+         }
+      }
+      return pos;
    }
 
-   @Override
-   public void writeSInt64(int number, long value) throws IOException {
-      delegate.writeSInt64(number, value);
+   /**
+    * Computes the number of bytes needed to encode a varint32 (treating the value as unsigned).
+    */
+   public static int computeVarint32Size(int value) {
+      if ((value & (~0 << 7)) == 0) return 1;
+      if ((value & (~0 << 14)) == 0) return 2;
+      if ((value & (~0 << 21)) == 0) return 3;
+      if ((value & (~0 << 28)) == 0) return 4;
+      return 5;
    }
 
-   @Override
-   public void writeRawBytes(byte[] value, int offset, int length) throws IOException {
-      delegate.writeRawBytes(value, offset, length);
+   /**
+    * Computes the number of bytes needed to encode a varint64 (treating the value as unsigned).
+    */
+   public static int computeVarint64Size(long value) {
+      if ((value & (~0L << 35)) == 0) {
+         return computeVarint32Size((int) value);
+      }
+      // each group of 7 significant bits takes one byte
+      return (63 - Long.numberOfLeadingZeros(value)) / 7 + 1;
+   }
+
+   /**
+    * Encodes a varint32 into the given array, without bounds checking.
+    *
+    * @return the position after the last written byte
+    */
+   static int encodeVarint32(int value, byte[] buf, int pos) {
+      while ((value & ~0x7F) != 0) {
+         buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      buf[pos++] = (byte) value;
+      return pos;
+   }
+
+   static IOException outOfSpace() {
+      return new IOException("Writing past the end of the output buffer. The buffer is too small.");
+   }
+
+   /**
+    * Keeps track of the length prefixes of the pending nested fields of an encoder that reserves a single byte for
+    * each of them. A prefix that turns out to need more bytes is not made room for right away, as that would move the
+    * contents of the field again for every enclosing field that also needs a longer prefix. Instead the enclosing
+    * fields account for the missing bytes in their own lengths and the long prefixes are all written in a single
+    * backwards pass at the end of the outermost field, moving each byte at most once.
+    *
+    * @since 3.1
+    */
+   static final class NestedLengths {
+
+      /**
+       * For each pending nested field, the value of {@link #expansion} when it was started.
+       */
+      private int[] expansionAtStart = new int[8];
+
+      private int depth;
+
+      /**
+       * The prefixes that need more than their reserved byte, each having the position of the reserved byte in the
+       * upper 32 bits and the length in the lower 32 bits, so sorting them orders them by position.
+       */
+      private long[] longPrefixes;
+
+      private int longPrefixCount;
+
+      /**
+       * The number of bytes needed by the long prefixes in addition to their reserved bytes.
+       */
+      private int expansion;
+
+      private byte[] scratch;
+
+      /**
+       * Gets the number of nested fields started but not yet ended.
+       */
+      int depth() {
+         return depth;
+      }
+
+      void start() {
+         if (depth == expansionAtStart.length) {
+            expansionAtStart = Arrays.copyOf(expansionAtStart, depth * 2);
+         }
+         expansionAtStart[depth++] = expansion;
+      }
+
+      /**
+       * Ends the innermost pending nested field.
+       *
+       * @param handle        the position of the reserved length byte
+       * @param writtenLength the number of bytes written after the reserved byte
+       * @return the length to store in the reserved byte, or -1 if the length needs a longer prefix, which is then
+       * written by {@link #writeLongPrefixes}
+       */
+      int end(int handle, int writtenLength) {
+         int length = writtenLength + expansion - expansionAtStart[--depth];
+         int lengthSize = computeVarint32Size(length);
+         if (lengthSize == 1) {
+            return length;
+         }
+         if (longPrefixes == null) {
+            longPrefixes = new long[8];
+         } else if (longPrefixCount == longPrefixes.length) {
+            longPrefixes = Arrays.copyOf(longPrefixes, longPrefixCount * 2);
+         }
+         longPrefixes[longPrefixCount++] = (long) handle << 32 | length;
+         expansion += lengthSize - 1;
+         return -1;
+      }
+
+      /**
+       * Gets the number of bytes the output grows by when the long prefixes are written. Once the outermost nested
+       * field ended, the encoder must call {@link #writeLongPrefixes} if this is not zero.
+       */
+      int expansion() {
+         return expansion;
+      }
+
+      /**
+       * Writes the long prefixes into an array, moving the bytes that follow each of them. The array must have room
+       * for {@link #expansion()} more bytes after {@code end}.
+       *
+       * @param base subtracted from the handles to obtain positions in the array
+       * @param end  the position after the last byte written in the array
+       */
+      void writeLongPrefixes(byte[] buf, int base, int end) {
+         Arrays.sort(longPrefixes, 0, longPrefixCount);
+         int shift = expansion;
+         for (int i = longPrefixCount - 1; i >= 0; i--) {
+            int at = (int) (longPrefixes[i] >>> 32) - base;
+            int length = (int) longPrefixes[i];
+            System.arraycopy(buf, at + 1, buf, at + 1 + shift, end - at - 1);
+            shift -= computeVarint32Size(length) - 1;
+            encodeVarint32(length, buf, at + shift);
+            end = at;
+         }
+         longPrefixCount = 0;
+         expansion = 0;
+      }
+
+      /**
+       * Same as {@link #writeLongPrefixes(byte[], int, int)} but for a buffer, using absolute positions. The limit of
+       * the buffer must leave room for {@link #expansion()} more bytes after {@code end}.
+       */
+      void writeLongPrefixes(ByteBuffer buf, int end) {
+         Arrays.sort(longPrefixes, 0, longPrefixCount);
+         if (scratch == null) {
+            scratch = new byte[256];
+         }
+         ByteBuffer dup = buf.duplicate();
+         int shift = expansion;
+         for (int i = longPrefixCount - 1; i >= 0; i--) {
+            int at = (int) (longPrefixes[i] >>> 32);
+            int length = (int) longPrefixes[i];
+            // move backwards in chunks, so the overlapping source is read before being overwritten
+            int from = end;
+            while (from > at + 1) {
+               int n = Math.min(scratch.length, from - at - 1);
+               from -= n;
+               dup.position(from);
+               dup.get(scratch, 0, n);
+               dup.position(from + shift);
+               dup.put(scratch, 0, n);
+            }
+            shift -= computeVarint32Size(length) - 1;
+            int p = at + shift;
+            while ((length & ~0x7F) != 0) {
+               buf.put(p++, (byte) ((length & 0x7F) | 0x80));
+               length >>>= 7;
+            }
+            buf.put(p, (byte) length);
+            end = at;
+         }
+         longPrefixCount = 0;
+         expansion = 0;
+      }
+   }
+
+   /**
+    * A writer that does not encode anything but only counts the bytes that would be written. Running a marshaller
+    * against it computes the exact size of the encoded message, so the output can then be allocated only once.
+    *
+    * @since 3.1
+    */
+   static final class SizeCounter extends RawProtoStreamWriterImpl {
+
+      private int size;
+
+      /**
+       * Set if something was written whose size cannot be known in advance.
+       */
+      private boolean unknownSize;
+
+      /**
+       * The lengths of the nested fields, in the order they were started. While a field is pending its slot holds the
+       * position of its reserved length byte instead.
+       */
+      private int[] nestedLengths = new int[16];
+
+      private int nestedCount;
+
+      /**
+       * Gets the number of bytes written since the last {@link #reset()}.
+       *
+       * @return the size or -1 if it cannot be known
+       */
+      int getSize() {
+         return unknownSize ? -1 : size;
+      }
+
+      /**
+       * Gets the lengths of all nested fields written since the last {@link #reset()}, in the order they were started.
+       * Only the first {@link #getNestedCount()} elements are valid and only until the next reset.
+       */
+      int[] getNestedLengths() {
+         return nestedLengths;
+      }
+
+      int getNestedCount() {
+         return nestedCount;
+      }
+
+      void reset() {
+         size = 0;
+         unknownSize = false;
+         nestedCount = 0;
+      }
+
+      @Override
+      long getWrittenBytes() {
+         return size;
+      }
+
+      /**
+       * Signals that the size of the output cannot be computed without actually writing it, for example because it
+       * includes the contents of an {@link java.io.InputStream} that can only be consumed once.
+       */
+      void markUnknownSize() {
+         unknownSize = true;
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public int startNested(int number) {
+         size += computeVarint32Size(WireFormat.makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+         if (nestedCount == nestedLengths.length) {
+            nestedLengths = Arrays.copyOf(nestedLengths, nestedCount * 2);
+         }
+         // one byte is reserved for the length prefix, same as the real encoders do
+         nestedLengths[nestedCount] = size++;
+         return nestedCount++;
+      }
+
+      @Override
+      public void endNested(int handle) {
+         int length = size - nestedLengths[handle] - 1;
+         nestedLengths[handle] = length;
+         size += computeVarint32Size(length) - 1;
+      }
+
+      @Override
+      void writeStringNoTag(String value) {
+         int length = computeUtf8Length(value);
+         size += computeVarint32Size(length) + length;
+      }
+
+      @Override
+      void writeRawByte(int value) {
+         size++;
+      }
+
+      @Override
+      public void writeRawBytes(byte[] value, int offset, int length) {
+         size += length;
+      }
+
+      @Override
+      void writeRawBytes(ByteBuffer value) {
+         size += value.remaining();
+         value.position(value.limit());
+      }
+
+      @Override
+      void writeRawVarint32(int value) {
+         size += computeVarint32Size(value);
+      }
+
+      @Override
+      void writeRawVarint64(long value) {
+         size += computeVarint64Size(value);
+      }
+
+      @Override
+      void writeRawLittleEndian32(int value) {
+         size += WireFormat.FIXED_32_SIZE;
+      }
+
+      @Override
+      void writeRawLittleEndian64(long value) {
+         size += WireFormat.FIXED_64_SIZE;
+      }
+   }
+
+   /**
+    * An encoder writing into a fixed region of a byte array. Fails with an {@link IOException} if the region is too
+    * small. If the lengths of the nested fields were computed in advance by a {@link SizeCounter} their prefixes are
+    * written up front, like in a {@link ChainEncoder}, otherwise they are filled in by {@link #endNested(int)}.
+    */
+   static class ArrayEncoder extends RawProtoStreamWriterImpl {
+
+      final byte[] buf;
+
+      final int offset;
+
+      private final int limit;
+
+      int pos;
+
+      private NestedLengths nestedLengths;
+
+      private final int[] knownNestedLengths;
+
+      private final int knownNestedCount;
+
+      private int nextNested = 0;
+
+      ArrayEncoder(byte[] buf, int offset, int length) {
+         this(buf, offset, length, null, 0);
+      }
+
+      ArrayEncoder(byte[] buf, int offset, int length, int[] knownNestedLengths, int knownNestedCount) {
+         this.buf = buf;
+         this.offset = offset;
+         this.pos = offset;
+         this.limit = offset + length;
+         this.knownNestedLengths = knownNestedLengths;
+         this.knownNestedCount = knownNestedCount;
+      }
+
+      @Override
+      public void flush() {
+         // nothing to flush, everything is written in place
+      }
+
+      /**
+       * Gets the number of bytes that can still be written.
+       */
+      int spaceLeft() {
+         return limit - pos;
+      }
+
+      @Override
+      long getWrittenBytes() {
+         return pos - offset;
+      }
+
+      @Override
+      void writeStringNoTag(String value) throws IOException {
+         // the length of the UTF-8 encoding is between 1 and 3 times the number of chars; if the worst case fits the
+         // remaining space and the size of the length prefix is the same in both cases we can encode in place without
+         // computing the exact length in advance
+         final int charCount = value.length();
+         final int lengthVarintSize = computeVarint32Size(charCount);
+         if (charCount * 3L <= limit - pos - lengthVarintSize && lengthVarintSize == computeVarint32Size(charCount * 3)) {
+            int start = pos + lengthVarintSize;
+            int end = encodeUtf8(value, buf, start);
+            encodeVarint32(end - start, buf, pos);
+            pos = end;
+         } else {
+            int length = computeUtf8Length(value);
+            writeRawVarint32(length);
+            if (length > limit - pos) {
+               throw outOfSpace();
+            }
+            pos = encodeUtf8(value, buf, pos);
+         }
+      }
+
+      @Override
+      public int startNested(int number) throws IOException {
+         if (knownNestedLengths != null) {
+            if (nextNested == knownNestedCount) {
+               throw new IllegalStateException("More nested fields were written than accounted for by the computed size");
+            }
+            writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+            writeRawVarint32(knownNestedLengths[nextNested]);
+            return nextNested++;
+         }
+         writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+         if (pos == limit) {
+            throw outOfSpace();
+         }
+         if (nestedLengths == null) {
+            nestedLengths = new NestedLengths();
+         }
+         nestedLengths.start();
+         int handle = pos;
+         buf[pos++] = 0;
+         return handle;
+      }
+
+      @Override
+      public void endNested(int handle) throws IOException {
+         if (knownNestedLengths != null) {
+            // the length was already written
+            return;
+         }
+         int length = nestedLengths.end(handle, pos - handle - 1);
+         if (length >= 0) {
+            buf[handle] = (byte) length;
+         }
+         int expansion = nestedLengths.expansion();
+         if (nestedLengths.depth() == 0 && expansion > 0) {
+            if (expansion > limit - pos) {
+               throw outOfSpace();
+            }
+            nestedLengths.writeLongPrefixes(buf, 0, pos);
+            pos += expansion;
+         }
+      }
+
+      @Override
+      void writeRawByte(int value) throws IOException {
+         if (pos == limit) {
+            throw outOfSpace();
+         }
+         buf[pos++] = (byte) value;
+      }
+
+      @Override
+      public void writeRawBytes(byte[] value, int offset, int length) throws IOException {
+         if (length > limit - pos) {
+            throw outOfSpace();
+         }
+         System.arraycopy(value, offset, buf, pos, length);
+         pos += length;
+      }
+
+      @Override
+      void writeRawBytes(ByteBuffer value) throws IOException {
+         int length = value.remaining();
+         if (length > limit - pos) {
+            throw outOfSpace();
+         }
+         value.get(buf, pos, length);
+         pos += length;
+      }
+
+      @Override
+      void writeRawVarint32(int value) throws IOException {
+         if (limit - pos < WireFormat.MAX_VARINT_SIZE) {
+            writeRawVarint64SlowPath(value & 0xFFFFFFFFL);
+            return;
+         }
+         pos = encodeVarint32(value, buf, pos);
+      }
+
+      @Override
+      void writeRawVarint64(long value) throws IOException {
+         if (limit - pos < WireFormat.MAX_VARINT_SIZE) {
+            writeRawVarint64SlowPath(value);
+            return;
+         }
+         byte[] buf = this.buf;
+         int p = pos;
+         while ((value & ~0x7FL) != 0) {
+            buf[p++] = (byte) (((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+         }
+         buf[p++] = (byte) value;
+         pos = p;
+      }
+
+      private void writeRawVarint64SlowPath(long value) throws IOException {
+         while ((value & ~0x7FL) != 0) {
+            writeRawByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+         }
+         writeRawByte((int) value);
+      }
+
+      @Override
+      void writeRawLittleEndian32(int value) throws IOException {
+         int p = pos;
+         if (limit - p < WireFormat.FIXED_32_SIZE) {
+            throw outOfSpace();
+         }
+         byte[] buf = this.buf;
+         buf[p] = (byte) value;
+         buf[p + 1] = (byte) (value >>> 8);
+         buf[p + 2] = (byte) (value >>> 16);
+         buf[p + 3] = (byte) (value >>> 24);
+         pos = p + WireFormat.FIXED_32_SIZE;
+      }
+
+      @Override
+      void writeRawLittleEndian64(long value) throws IOException {
+         int p = pos;
+         if (limit - p < WireFormat.FIXED_64_SIZE) {
+            throw outOfSpace();
+         }
+         byte[] buf = this.buf;
+         buf[p] = (byte) value;
+         buf[p + 1] = (byte) (value >>> 8);
+         buf[p + 2] = (byte) (value >>> 16);
+         buf[p + 3] = (byte) (value >>> 24);
+         buf[p + 4] = (byte) (value >>> 32);
+         buf[p + 5] = (byte) (value >>> 40);
+         buf[p + 6] = (byte) (value >>> 48);
+         buf[p + 7] = (byte) (value >>> 56);
+         pos = p + WireFormat.FIXED_64_SIZE;
+      }
+   }
+
+   /**
+    * Writes in place into the backing array of a heap {@link ByteBuffer} and advances the buffer's position on flush.
+    */
+   private static final class HeapByteBufferEncoder extends ArrayEncoder {
+
+      private final ByteBuffer byteBuffer;
+
+      private final int initialPosition;
+
+      HeapByteBufferEncoder(ByteBuffer byteBuffer) {
+         super(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+         this.byteBuffer = byteBuffer;
+         this.initialPosition = byteBuffer.position();
+      }
+
+      @Override
+      public void flush() {
+         byteBuffer.position(initialPosition + pos - offset);
+      }
+   }
+
+   /**
+    * An encoder for direct {@link ByteBuffer}s. Relative puts are used so the buffer position always reflects the
+    * number of bytes written.
+    */
+   private static final class ByteBufferEncoder extends RawProtoStreamWriterImpl {
+
+      private final ByteBuffer buf;
+
+      private NestedLengths nestedLengths;
+
+      private byte[] scratch;
+
+      ByteBufferEncoder(ByteBuffer buf) {
+         this.buf = buf;
+      }
+
+      @Override
+      public void flush() {
+         // nothing to flush, everything is written in place
+      }
+
+      @Override
+      long getWrittenBytes() {
+         return buf.position();
+      }
+
+      @Override
+      void writeStringNoTag(String value) throws IOException {
+         int length = computeUtf8Length(value);
+         writeRawVarint32(length);
+         if (scratch == null || scratch.length < length) {
+            scratch = new byte[Math.max(length, 256)];
+         }
+         encodeUtf8(value, scratch, 0);
+         writeRawBytes(scratch, 0, length);
+      }
+
+      @Override
+      public int startNested(int number) throws IOException {
+         writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+         int handle = buf.position();
+         writeRawByte(0);
+         if (nestedLengths == null) {
+            nestedLengths = new NestedLengths();
+         }
+         nestedLengths.start();
+         return handle;
+      }
+
+      @Override
+      public void endNested(int handle) throws IOException {
+         int end = buf.position();
+         int length = nestedLengths.end(handle, end - handle - 1);
+         if (length >= 0) {
+            buf.put(handle, (byte) length);
+         }
+         int expansion = nestedLengths.expansion();
+         if (nestedLengths.depth() == 0 && expansion > 0) {
+            if (expansion > buf.remaining()) {
+               throw outOfSpace();
+            }
+            nestedLengths.writeLongPrefixes(buf, end);
+            buf.position(end + expansion);
+         }
+      }
+
+      @Override
+      void writeRawByte(int value) throws IOException {
+         if (!buf.hasRemaining()) {
+            throw outOfSpace();
+         }
+         buf.put((byte) value);
+      }
+
+      @Override
+      public void writeRawBytes(byte[] value, int offset, int length) throws IOException {
+         if (length > buf.remaining()) {
+            throw outOfSpace();
+         }
+         buf.put(value, offset, length);
+      }
+
+      @Override
+      void writeRawBytes(ByteBuffer value) throws IOException {
+         if (value.remaining() > buf.remaining()) {
+            throw outOfSpace();
+         }
+         buf.put(value);
+      }
+
+      @Override
+      void writeRawVarint32(int value) throws IOException {
+         writeRawVarint64(value & 0xFFFFFFFFL);
+      }
+
+      @Override
+      void writeRawVarint64(long value) throws IOException {
+         if (buf.remaining() < WireFormat.MAX_VARINT_SIZE) {
+            while ((value & ~0x7FL) != 0) {
+               writeRawByte(((int) value & 0x7F) | 0x80);
+               value >>>= 7;
+            }
+            writeRawByte((int) value);
+            return;
+         }
+         while ((value & ~0x7FL) != 0) {
+            buf.put((byte) (((int) value & 0x7F) | 0x80));
+            value >>>= 7;
+         }
+         buf.put((byte) value);
+      }
+
+      @Override
+      void writeRawLittleEndian32(int value) throws IOException {
+         if (buf.remaining() < WireFormat.FIXED_32_SIZE) {
+            throw outOfSpace();
+         }
+         buf.put((byte) value);
+         buf.put((byte) (value >>> 8));
+         buf.put((byte) (value >>> 16));
+         buf.put((byte) (value >>> 24));
+      }
+
+      @Override
+      void writeRawLittleEndian64(long value) throws IOException {
+         if (buf.remaining() < WireFormat.FIXED_64_SIZE) {
+            throw outOfSpace();
+         }
+         writeRawLittleEndian32((int) value);
+         writeRawLittleEndian32((int) (value >>> 32));
+      }
+   }
+
+   /**
+    * An encoder writing into a growing chain of direct buffers obtained from a {@link DirectBufferPool}. The length of
+    * each nested field must be known beforehand, as computed by a {@link SizeCounter} pass over the same object, so the
+    * length prefix is written right away and nothing ever needs to be moved, which could span several buffers.
+    *
+    * @since 3.1
+    */
+   static final class ChainEncoder extends RawProtoStreamWriterImpl {
+
+      private final DirectBufferPool pool;
+
+      private final int[] nestedLengths;
+
+      private final int nestedCount;
+
+      private int nextNested = 0;
+
+      private ByteBuffer[] buffers = new ByteBuffer[4];
+
+      private int bufferCount = 0;
+
+      private ByteBuffer buf;
+
+      /**
+       * The total number of bytes in the buffers that were already filled up.
+       */
+      private long filled = 0;
+
+      private byte[] scratch;
+
+      ChainEncoder(DirectBufferPool pool, int[] nestedLengths, int nestedCount) {
+         this.pool = pool;
+         this.nestedLengths = nestedLengths;
+         this.nestedCount = nestedCount;
+         nextBuffer();
+      }
+
+      private void nextBuffer() {
+         if (buf != null) {
+            filled += buf.position();
+         }
+         if (bufferCount == buffers.length) {
+            buffers = Arrays.copyOf(buffers, bufferCount * 2);
+         }
+         buf = pool.acquire();
+         buffers[bufferCount++] = buf;
+      }
+
+      @Override
+      long getWrittenBytes() {
+         return filled + buf.position();
+      }
+
+      /**
+       * Hands the buffers over to a new chain, ready to be read. This encoder must not be used afterwards.
+       */
+      ByteBufferChain finish() {
+         for (int i = 0; i < bufferCount; i++) {
+            buffers[i].flip();
+         }
+         return new ByteBufferChain(buffers, bufferCount, pool);
+      }
+
+      /**
+       * Returns the buffers to the pool, if writing failed.
+       */
+      void release() {
+         for (int i = 0; i < bufferCount; i++) {
+            pool.release(buffers[i]);
+            buffers[i] = null;
+         }
+         bufferCount = 0;
+      }
+
+      @Override
+      public void flush() {
+         // nothing to flush, the buffers are handed over by finish()
+      }
+
+      @Override
+      public int startNested(int number) throws IOException {
+         if (nextNested == nestedCount) {
+            throw new IllegalStateException("More nested fields were written than accounted for by the computed size");
+         }
+         writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+         writeRawVarint32(nestedLengths[nextNested]);
+         return nextNested++;
+      }
+
+      @Override
+      public void endNested(int handle) {
+         // the length was already written
+      }
+
+      @Override
+      void writeStringNoTag(String value) throws IOException {
+         int length = computeUtf8Length(value);
+         writeRawVarint32(length);
+         if (length <= buf.remaining() && length == value.length()) {
+            // ASCII only, so each char is one byte
+            for (int i = 0; i < length; i++) {
+               buf.put((byte) value.charAt(i));
+            }
+            return;
+         }
+         if (scratch == null || scratch.length < length) {
+            scratch = new byte[Math.max(length, 256)];
+         }
+         encodeUtf8(value, scratch, 0);
+         writeRawBytes(scratch, 0, length);
+      }
+
+      @Override
+      void writeRawByte(int value) {
+         if (!buf.hasRemaining()) {
+            nextBuffer();
+         }
+         buf.put((byte) value);
+      }
+
+      @Override
+      public void writeRawBytes(byte[] value, int offset, int length) {
+         while (length > 0) {
+            if (!buf.hasRemaining()) {
+               nextBuffer();
+            }
+            int n = Math.min(length, buf.remaining());
+            buf.put(value, offset, n);
+            offset += n;
+            length -= n;
+         }
+      }
+
+      @Override
+      void writeRawBytes(ByteBuffer value) {
+         int limit = value.limit();
+         while (value.hasRemaining()) {
+            if (!buf.hasRemaining()) {
+               nextBuffer();
+            }
+            value.limit(Math.min(limit, value.position() + buf.remaining()));
+            buf.put(value);
+            value.limit(limit);
+         }
+      }
+
+      @Override
+      void writeRawVarint32(int value) {
+         writeRawVarint64(value & 0xFFFFFFFFL);
+      }
+
+      @Override
+      void writeRawVarint64(long value) {
+         if (buf.remaining() < WireFormat.MAX_VARINT_SIZE) {
+            while ((value & ~0x7FL) != 0) {
+               writeRawByte(((int) value & 0x7F) | 0x80);
+               value >>>= 7;
+            }
+            writeRawByte((int) value);
+            return;
+         }
+         while ((value & ~0x7FL) != 0) {
+            buf.put((byte) (((int) value & 0x7F) | 0x80));
+            value >>>= 7;
+         }
+         buf.put((byte) value);
+      }
+
+      @Override
+      void writeRawLittleEndian32(int value) {
+         writeRawByte(value);
+         writeRawByte(value >>> 8);
+         writeRawByte(value >>> 16);
+         writeRawByte(value >>> 24);
+      }
+
+      @Override
+      void writeRawLittleEndian64(long value) {
+         writeRawLittleEndian32((int) value);
+         writeRawLittleEndian32((int) (value >>> 32));
+      }
+   }
+
+   /**
+    * An encoder writing to an {@link OutputStream} through an internal buffer. The buffer is drained to the stream when
+    * full and on {@link #flush()}, but the stream itself is never flushed or closed. While nested fields are pending
+    * only the bytes preceding the outermost one are drained and the buffer grows as needed.
+    */
+   private static final class OutputStreamEncoder extends RawProtoStreamWriterImpl {
+
+      private final OutputStream output;
+
+      private byte[] buffer;
+
+      private int pos;
+
+      /**
+       * The number of bytes drained from the buffer to the output so far. Handles of nested fields are expressed
+       * relative to the start of the output so they survive partial draining of the buffer.
+       */
+      private int drainedBytes;
+
+      /**
+       * The number of bytes drained from the buffer to the output since this encoder was created. Unlike
+       * {@link #drainedBytes} this is never reset.
+       */
+      private long totalDrainedBytes;
+
+      private final NestedLengths nestedLengths = new NestedLengths();
+
+      /**
+       * The handle of the outermost nested field that is not yet ended. Bytes starting from here cannot be drained to
+       * the output because the length prefix is not known yet, so the buffer grows instead.
+       */
+      private int outermostNestedHandle;
+
+      OutputStreamEncoder(OutputStream output, int bufferSize) {
+         if (bufferSize < WireFormat.MAX_VARINT_SIZE) {
+            throw new IllegalArgumentException("bufferSize must be at least " + WireFormat.MAX_VARINT_SIZE);
+         }
+         this.output = output;
+         this.buffer = new byte[bufferSize];
+      }
+
+      @Override
+      public void flush() throws IOException {
+         int count = nestedLengths.depth() == 0 ? pos : outermostNestedHandle - drainedBytes;
+         if (count > 0) {
+            output.write(buffer, 0, count);
+            drainedBytes += count;
+            totalDrainedBytes += count;
+            pos -= count;
+            if (pos > 0) {
+               System.arraycopy(buffer, count, buffer, 0, pos);
+            }
+         }
+         if (nestedLengths.depth() == 0) {
+            // no handles are outstanding, so start counting again to keep long lived writers from overflowing
+            drainedBytes = 0;
+         }
+      }
+
+      @Override
+      long getWrittenBytes() {
+         return totalDrainedBytes + pos;
+      }
+
+      private void ensureSpace(int length) throws IOException {
+         if (buffer.length - pos < length) {
+            flush();
+            if (buffer.length - pos < length) {
+               // can only happen while a nested field is pending
+               buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, pos + length));
+            }
+         }
+      }
+
+      @Override
+      public int startNested(int number) throws IOException {
+         writeRawVarint32(WireFormat.makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED));
+         ensureSpace(1);
+         int handle = drainedBytes + pos;
+         if (nestedLengths.depth() == 0) {
+            outermostNestedHandle = handle;
+         }
+         nestedLengths.start();
+         buffer[pos++] = 0;
+         return handle;
+      }
+
+      @Override
+      public void endNested(int handle) throws IOException {
+         int start = handle - drainedBytes;
+         int length = nestedLengths.end(handle, pos - start - 1);
+         if (length >= 0) {
+            buffer[start] = (byte) length;
+         }
+         int expansion = nestedLengths.expansion();
+         if (nestedLengths.depth() == 0 && expansion > 0) {
+            // make room while the outermost field is still kept in the buffer
+            if (buffer.length - pos < expansion) {
+               int count = outermostNestedHandle - drainedBytes;
+               if (count > 0) {
+                  output.write(buffer, 0, count);
+                  drainedBytes += count;
+                  totalDrainedBytes += count;
+                  pos -= count;
+                  System.arraycopy(buffer, count, buffer, 0, pos);
+               }
+               if (buffer.length - pos < expansion) {
+                  buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, pos + expansion));
+               }
+            }
+            nestedLengths.writeLongPrefixes(buffer, drainedBytes, pos);
+            pos += expansion;
+         }
+      }
+
+      @Override
+      void writeStringNoTag(String value) throws IOException {
+         final int charCount = value.length();
+         if (charCount <= (buffer.length - WireFormat.MAX_VARINT_SIZE) / 3) {
+            // the encoded string is guaranteed to fit in the buffer so encode it in place
+            final int maxLength = charCount * 3;
+            final int lengthVarintSize = computeVarint32Size(charCount);
+            ensureSpace(maxLength + WireFormat.MAX_VARINT_SIZE);
+            if (lengthVarintSize == computeVarint32Size(maxLength)) {
+               int start = pos + lengthVarintSize;
+               int end = encodeUtf8(value, buffer, start);
+               encodeVarint32(end - start, buffer, pos);
+               pos = end;
+            } else {
+               pos = encodeVarint32(computeUtf8Length(value), buffer, pos);
+               pos = encodeUtf8(value, buffer, pos);
+            }
+         } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeRawVarint32(bytes.length);
+            writeRawBytes(bytes, 0, bytes.length);
+         }
+      }
+
+      @Override
+      void writeRawByte(int value) throws IOException {
+         if (pos == buffer.length) {
+            ensureSpace(1);
+         }
+         buffer[pos++] = (byte) value;
+      }
+
+      @Override
+      public void writeRawBytes(byte[] value, int offset, int length) throws IOException {
+         if (length > buffer.length - pos) {
+            flush();
+            if (length > buffer.length && nestedLengths.depth() == 0) {
+               // too large for the buffer, write it directly
+               output.write(value, offset, length);
+               drainedBytes += length;
+               totalDrainedBytes += length;
+               return;
+            }
+            ensureSpace(length);
+         }
+         System.arraycopy(value, offset, buffer, pos, length);
+         pos += length;
+      }
+
+      @Override
+      void writeRawBytes(ByteBuffer value) throws IOException {
+         while (value.hasRemaining()) {
+            if (pos == buffer.length) {
+               ensureSpace(1);
+            }
+            int length = Math.min(value.remaining(), buffer.length - pos);
+            value.get(buffer, pos, length);
+            pos += length;
+         }
+      }
+
+      @Override
+      void writeRawVarint32(int value) throws IOException {
+         ensureSpace(WireFormat.MAX_VARINT_SIZE);
+         pos = encodeVarint32(value, buffer, pos);
+      }
+
+      @Override
+      void writeRawVarint64(long value) throws IOException {
+         ensureSpace(WireFormat.MAX_VARINT_SIZE);
+         byte[] buf = buffer;
+         int p = pos;
+         while ((value & ~0x7FL) != 0) {
+            buf[p++] = (byte) (((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+         }
+         buf[p++] = (byte) value;
+         pos = p;
+      }
+
+      @Override
+      void writeRawLittleEndian32(int value) throws IOException {
+         ensureSpace(WireFormat.FIXED_32_SIZE);
+         byte[] buf = buffer;
+         int p = pos;
+         buf[p] = (byte) value;
+         buf[p + 1] = (byte) (value >>> 8);
+         buf[p + 2] = (byte) (value >>> 16);
+         buf[p + 3] = (byte) (value >>> 24);
+         pos = p + WireFormat.FIXED_32_SIZE;
+      }
+
+      @Override
+      void writeRawLittleEndian64(long value) throws IOException {
+         ensureSpace(WireFormat.FIXED_64_SIZE);
+         byte[] buf = buffer;
+         int p = pos;
+         buf[p] = (byte) value;
+         buf[p + 1] = (byte) (value >>> 8);
+         buf[p + 2] = (byte) (value >>> 16);
+         buf[p + 3] = (byte) (value >>> 24);
+         buf[p + 4] = (byte) (value >>> 32);
+         buf[p + 5] = (byte) (value >>> 40);
+         buf[p + 6] = (byte) (value >>> 48);
+         buf[p + 7] = (byte) (value >>> 56);
+         pos = p + WireFormat.FIXED_64_SIZE;
+      }
    }
 }
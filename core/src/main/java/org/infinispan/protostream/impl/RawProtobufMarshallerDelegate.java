@@ -17,6 +17,10 @@ final class RawProtobufMarshallerDelegate<T> implements BaseMarshallerDelegate<T
 
    private final SerializationContextImpl ctx;
 
+   private volatile Integer typeId;
+
+   private volatile boolean large;
+
    public RawProtobufMarshallerDelegate(SerializationContextImpl ctx, RawProtobufMarshaller<T> marshaller) {
       this.ctx = ctx;
       this.marshaller = marshaller;
@@ -27,6 +31,26 @@ final class RawProtobufMarshallerDelegate<T> implements BaseMarshallerDelegate<T
       return marshaller;
    }
 
+   @Override
+   public Integer getTypeId() {
+      return typeId;
+   }
+
+   @Override
+   public void setTypeId(Integer typeId) {
+      this.typeId = typeId;
+   }
+
+   @Override
+   public boolean isLarge() {
+      return large;
+   }
+
+   @Override
+   public void setLarge(boolean large) {
+      this.large = large;
+   }
+
    @Override
    public void marshall(FieldDescriptor fieldDescriptor, T value, ProtoStreamWriterImpl writer, RawProtoStreamWriter out) throws IOException {
       marshaller.writeTo(ctx, out, value);
@@ -1,5 +1,7 @@
 package org.infinispan.protostream.impl;
 
+import java.io.IOException;
+
 import org.infinispan.protostream.MessageContext;
 import org.infinispan.protostream.RawProtoStreamReader;
 
@@ -8,15 +10,112 @@ import org.infinispan.protostream.RawProtoStreamReader;
  */
 final class ReadMessageContext extends MessageContext<ReadMessageContext> {
 
-   final RawProtoStreamReader in;
+   RawProtoStreamReader in;
+
+   UnknownFieldSetImpl unknownFieldSet = new UnknownFieldSetImpl();
+
+   MessageMarshallerDelegate<?> marshallerDelegate;
+
+   /**
+    * A finished context of a nested message, kept for reuse by the next nested message at the same depth.
+    */
+   ReadMessageContext spareChild;
+
+   /**
+    * Same as {@link #in} if the input supports random access, otherwise {@code null}. Fields skipped while looking for
+    * a field that comes later in a random access input are just indexed in {@link #skippedFields}, while for other
+    * inputs they are buffered in the {@link #unknownFieldSet}.
+    */
+   private RawProtoStreamReaderImpl randomAccessInput;
 
-   final UnknownFieldSetImpl unknownFieldSet = new UnknownFieldSetImpl();
+   /**
+    * Created lazily on the first out of sequence read.
+    */
+   private SkippedFieldTable skippedFields;
 
-   final MessageMarshallerDelegate<?> marshallerDelegate;
+   /**
+    * Reused for decoding all the skipped fields.
+    */
+   private RawProtoStreamReaderImpl skippedFieldReader;
 
    ReadMessageContext(ReadMessageContext parent, String fieldName, MessageMarshallerDelegate<?> marshallerDelegate, RawProtoStreamReader in) {
       super(parent, fieldName, marshallerDelegate.getMessageDescriptor());
-      this.in = in;
       this.marshallerDelegate = marshallerDelegate;
+      setInput(in);
+   }
+
+   void reset(ReadMessageContext parent, String fieldName, MessageMarshallerDelegate<?> marshallerDelegate, RawProtoStreamReader in) {
+      reset(parent, fieldName, marshallerDelegate.getMessageDescriptor());
+      this.marshallerDelegate = marshallerDelegate;
+      setInput(in);
+      // a non-empty set may have been handed over to the previous message so it cannot be reused
+      if (unknownFieldSet == null || !unknownFieldSet.isEmpty()) {
+         unknownFieldSet = new UnknownFieldSetImpl();
+      }
+      if (skippedFields != null) {
+         skippedFields.clear();
+      }
+   }
+
+   private void setInput(RawProtoStreamReader in) {
+      this.in = in;
+      if (in instanceof RawProtoStreamReaderImpl && ((RawProtoStreamReaderImpl) in).getPosition() >= 0) {
+         randomAccessInput = (RawProtoStreamReaderImpl) in;
+      } else {
+         randomAccessInput = null;
+      }
+   }
+
+   /**
+    * Sets aside a field that was encountered in the input before being asked for. The tag was already read.
+    *
+    * @return false if the tag is an end group tag, true otherwise
+    */
+   boolean skipField(int tag) throws IOException {
+      if (randomAccessInput == null) {
+         return unknownFieldSet.readSingleField(tag, in);
+      }
+      int start = randomAccessInput.getPosition();
+      if (!randomAccessInput.skipField(tag)) {
+         return false;
+      }
+      if (skippedFields == null) {
+         skippedFields = new SkippedFieldTable();
+      }
+      skippedFields.add(tag, start, randomAccessInput.getPosition());
+      return true;
+   }
+
+   /**
+    * Obtains a reader positioned at the value of the first field with the given tag that was previously skipped. The
+    * reader is only valid until the next invocation.
+    *
+    * @return the reader or {@code null} if no such field was skipped
+    */
+   RawProtoStreamReader consumeSkippedField(int tag) {
+      if (skippedFields == null) {
+         return null;
+      }
+      int index = skippedFields.consume(tag);
+      if (index < 0) {
+         return null;
+      }
+      skippedFieldReader = randomAccessInput.region(skippedFields.start(index), skippedFields.end(index), skippedFieldReader);
+      return skippedFieldReader;
+   }
+
+   /**
+    * Moves all fields that were skipped but never consumed and all the fields remaining in the input to the unknown
+    * field set.
+    */
+   void readUnknownFields() throws IOException {
+      if (skippedFields != null && !skippedFields.isEmpty()) {
+         for (int i = skippedFields.next(-1); i >= 0; i = skippedFields.next(i)) {
+            skippedFieldReader = randomAccessInput.region(skippedFields.start(i), skippedFields.end(i), skippedFieldReader);
+            unknownFieldSet.readSingleField(skippedFields.tag(i), skippedFieldReader);
+         }
+         skippedFields.clear();
+      }
+      unknownFieldSet.readAllFields(in);
    }
 }
@@ -1,17 +1,25 @@
 package org.infinispan.protostream.impl;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.infinispan.protostream.BaseMarshaller;
 import org.infinispan.protostream.DescriptorParser;
 import org.infinispan.protostream.DescriptorParserException;
 import org.infinispan.protostream.EnumMarshaller;
 import org.infinispan.protostream.FileDescriptorSource;
+import org.infinispan.protostream.MarshallingSession;
 import org.infinispan.protostream.MessageMarshaller;
 import org.infinispan.protostream.RawProtobufMarshaller;
 import org.infinispan.protostream.SerializationContext;
@@ -19,6 +27,7 @@ import org.infinispan.protostream.config.Configuration;
 import org.infinispan.protostream.descriptors.Descriptor;
 import org.infinispan.protostream.descriptors.EnumDescriptor;
 import org.infinispan.protostream.descriptors.FileDescriptor;
+import org.infinispan.protostream.descriptors.FileDescriptorSnapshot;
 import org.infinispan.protostream.descriptors.GenericDescriptor;
 import org.infinispan.protostream.impl.parser.SquareProtoParser;
 
@@ -32,26 +41,76 @@ public final class SerializationContextImpl implements SerializationContext {
 
    private static final Log log = Log.LogFactory.getLog(SerializationContextImpl.class);
 
-   private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+   private static final int SESSION_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
 
-   private final Lock readLock = readWriteLock.readLock();
-
-   private final Lock writeLock = readWriteLock.writeLock();
+   /**
+    * Serializes the registration and unregistration of files and marshallers. Lookups never take it, they use the
+    * current {@link #registry} snapshot instead.
+    */
+   private final Lock writeLock = new ReentrantLock();
 
    private final Configuration configuration;
 
    private final DescriptorParser parser;
 
-   private final Map<String, FileDescriptor> fileDescriptors = new HashMap<>();
+   /**
+    * The files, types and type ids being modified by the current registration. Each change yields a new persistent map
+    * that shares most of its nodes with the previous one, so the maps of the published {@link #registry} are never
+    * affected until they are replaced by these.
+    */
+   @GuardedBy("writeLock")
+   private PersistentMap<String, FileDescriptor> fileDescriptors = PersistentMap.empty();
+
+   @GuardedBy("writeLock")
+   private PersistentIntMap<String> typeIds = PersistentIntMap.empty();
+
+   @GuardedBy("writeLock")
+   private PersistentMap<String, GenericDescriptor> genericDescriptors = PersistentMap.empty();
 
-   private final Map<Integer, String> typeIds = new HashMap<>();
+   /**
+    * The marshaller delegates of the types having a type id.
+    */
+   @GuardedBy("writeLock")
+   private PersistentIntMap<BaseMarshallerDelegate<?>> marshallersById = PersistentIntMap.empty();
 
-   private final Map<String, GenericDescriptor> genericDescriptors = new HashMap<>();
+   /**
+    * The names of the types that were registered or unregistered by the current registration. The type ids cached by
+    * their marshaller delegates are updated once the registration is published.
+    */
+   @GuardedBy("writeLock")
+   private final Set<String> changedTypes = new HashSet<>();
 
+   /**
+    * The names of the files importing each file, registered or not. A file is only affected by the files it imports,
+    * directly or indirectly, so only its importers need to be resolved again when a file is registered.
+    */
+   @GuardedBy("writeLock")
+   private final Map<String, Set<String>> importers = new HashMap<>();
+
+   /**
+    * The names of the registered files that are not resolved, because of errors or missing imports.
+    */
+   @GuardedBy("writeLock")
+   private final Set<String> unresolvedFiles = new HashSet<>();
+
+   /**
+    * An immutable snapshot of the above maps, replaced atomically at the end of each registration.
+    */
+   private volatile Registry registry = new Registry(fileDescriptors, genericDescriptors, typeIds, marshallersById);
+
+   /**
+    * Modified only while holding the {@code writeLock}.
+    */
    private final Map<String, BaseMarshallerDelegate<?>> marshallersByName = new ConcurrentHashMap<>();
 
    private final Map<Class<?>, BaseMarshallerDelegate<?>> marshallersByClass = new ConcurrentHashMap<>();
 
+   /**
+    * Idle marshalling sessions. Slots are claimed and filled with atomic operations only, so the pool never blocks.
+    * When the pool is empty a new session is created and when it is full a returned session is dropped.
+    */
+   private final AtomicReferenceArray<MarshallingSessionImpl> sessionPool = new AtomicReferenceArray<>(SESSION_POOL_SIZE);
+
    public SerializationContextImpl(Configuration configuration) {
       if (configuration == null) {
          throw new IllegalArgumentException("configuration cannot be null");
@@ -66,12 +125,7 @@ public final class SerializationContextImpl implements SerializationContext {
    }
 
    public Map<String, FileDescriptor> getFileDescriptors() {
-      readLock.lock();
-      try {
-         return new HashMap<>(fileDescriptors);
-      } finally {
-         readLock.unlock();
-      }
+      return new HashMap<>(registry.fileDescriptors);
    }
 
    @Override
@@ -79,7 +133,7 @@ public final class SerializationContextImpl implements SerializationContext {
       if (log.isDebugEnabled()) {
          log.debugf("Registering proto files : %s", source.getFileDescriptors().keySet());
       }
-      Map<String, FileDescriptor> fileDescriptorMap = parser.parse(source);
+      Map<String, FileDescriptor> fileDescriptorMap = parse(source);
       writeLock.lock();
       try {
          // unregister all types from the files that are being overwritten
@@ -87,24 +141,71 @@ public final class SerializationContextImpl implements SerializationContext {
             FileDescriptor oldFileDescriptor = fileDescriptors.get(fileName);
             if (oldFileDescriptor != null) {
                unregisterFileDescriptorTypes(oldFileDescriptor);
+               removeImports(oldFileDescriptor);
             }
          }
-         fileDescriptors.putAll(fileDescriptorMap);
-         // resolve imports and types
-         for (FileDescriptor fileDescriptor : fileDescriptors.values()) {
-            if (fileDescriptor.resolveDependencies(source.getProgressCallback(), fileDescriptors, genericDescriptors)) {
-               registerFileDescriptor(fileDescriptor);
-            }
+         for (Map.Entry<String, FileDescriptor> e : fileDescriptorMap.entrySet()) {
+            fileDescriptors = fileDescriptors.with(e.getKey(), e.getValue());
+            addImports(e.getValue());
          }
-         // clear errors and leave in unresolved state whatever could not be resolved
-         for (FileDescriptor fileDescriptor : fileDescriptors.values()) {
-            fileDescriptor.clearErrors();
+         // resolve imports and types, only for the files that could be affected by the new ones
+         Set<String> affectedFiles = collectAffectedFiles(fileDescriptorMap.keySet());
+         try {
+            for (String fileName : affectedFiles) {
+               FileDescriptor fileDescriptor = fileDescriptors.get(fileName);
+               if (fileDescriptor.resolveDependencies(source.getProgressCallback(), fileDescriptors, genericDescriptors)) {
+                  registerFileDescriptor(fileDescriptor);
+               }
+            }
+         } finally {
+            // clear errors and leave in unresolved state whatever could not be resolved
+            for (String fileName : affectedFiles) {
+               FileDescriptor fileDescriptor = fileDescriptors.get(fileName);
+               fileDescriptor.clearErrors();
+               if (fileDescriptor.isResolved()) {
+                  unresolvedFiles.remove(fileName);
+               } else {
+                  unresolvedFiles.add(fileName);
+               }
+            }
          }
       } finally {
+         publishRegistry();
          writeLock.unlock();
       }
    }
 
+   /**
+    * Parses the files of the source, except for those that can be restored from its snapshot.
+    */
+   private Map<String, FileDescriptor> parse(FileDescriptorSource source) throws DescriptorParserException {
+      FileDescriptorSnapshot snapshot = source.getSnapshot();
+      if (snapshot == null) {
+         return parser.parse(source);
+      }
+      Map<String, FileDescriptor> fileDescriptorMap = new LinkedHashMap<>();
+      FileDescriptorSource staleFiles = null;
+      for (Map.Entry<String, char[]> e : source.getFileDescriptors().entrySet()) {
+         FileDescriptor fileDescriptor = snapshot.getFileDescriptor(e.getKey(), e.getValue());
+         if (fileDescriptor != null) {
+            fileDescriptor.setConfiguration(configuration);
+            fileDescriptorMap.put(e.getKey(), fileDescriptor);
+         } else {
+            if (staleFiles == null) {
+               staleFiles = new FileDescriptorSource();
+            }
+            staleFiles.addProtoFile(e.getKey(), new String(e.getValue()));
+         }
+      }
+      if (staleFiles != null) {
+         if (log.isDebugEnabled()) {
+            log.debugf("Parsing proto files missing from the snapshot or changed since : %s", staleFiles.getFileDescriptors().keySet());
+         }
+         fileDescriptorMap.putAll(parser.parse(staleFiles));
+      }
+      return fileDescriptorMap;
+   }
+
    @Override
    public void unregisterProtoFile(String fileName) {
       log.debugf("Unregistering proto file : %s", fileName);
@@ -112,14 +213,35 @@ public final class SerializationContextImpl implements SerializationContext {
       try {
          FileDescriptor fileDescriptor = fileDescriptors.get(fileName);
          if (fileDescriptor != null) {
-            fileDescriptors.remove(fileDescriptor.getName());
             unregisterFileDescriptorTypes(fileDescriptor);
+            removeImports(fileDescriptor);
+            fileDescriptors = fileDescriptors.without(fileName);
+            unresolvedFiles.remove(fileName);
          }
       } finally {
+         publishRegistry();
          writeLock.unlock();
       }
    }
 
+   /**
+    * Makes the changes of the current registration visible to the lookups, all at once, and then updates the type ids
+    * cached by the marshaller delegates of the changed types. Until then, the delegates keep the ids they had in the
+    * previous snapshot.
+    */
+   @GuardedBy("writeLock")
+   private void publishRegistry() {
+      registry = new Registry(fileDescriptors, genericDescriptors, typeIds, marshallersById);
+      for (String typeName : changedTypes) {
+         BaseMarshallerDelegate<?> marshallerDelegate = marshallersByName.get(typeName);
+         if (marshallerDelegate != null) {
+            GenericDescriptor descriptor = genericDescriptors.get(typeName);
+            marshallerDelegate.setTypeId(descriptor != null ? descriptor.getTypeId() : null);
+         }
+      }
+      changedTypes.clear();
+   }
+
    @GuardedBy("writeLock")
    private void registerFileDescriptor(FileDescriptor fileDescriptor) {
       if (log.isDebugEnabled()) {
@@ -144,58 +266,125 @@ public final class SerializationContextImpl implements SerializationContext {
             newTypeIds.put(typeId, fullName);
          }
       }
-      fileDescriptors.put(fileDescriptor.getName(), fileDescriptor);
-      genericDescriptors.putAll(fileDescriptor.getTypes());
-      typeIds.putAll(newTypeIds);
+      fileDescriptors = fileDescriptors.with(fileDescriptor.getName(), fileDescriptor);
+      for (Map.Entry<String, GenericDescriptor> e : fileDescriptor.getTypes().entrySet()) {
+         genericDescriptors = genericDescriptors.with(e.getKey(), e.getValue());
+         changedTypes.add(e.getKey());
+      }
+      for (Map.Entry<Integer, String> e : newTypeIds.entrySet()) {
+         typeIds = typeIds.with(e.getKey(), e.getValue());
+         BaseMarshallerDelegate<?> marshallerDelegate = marshallersByName.get(e.getValue());
+         if (marshallerDelegate != null) {
+            marshallersById = marshallersById.with(e.getKey(), marshallerDelegate);
+         }
+      }
    }
 
    @GuardedBy("writeLock")
    private void unregisterFileDescriptorTypes(FileDescriptor fileDescriptor) {
       for (GenericDescriptor d : fileDescriptor.getTypes().values()) {
          Integer typeId = d.getTypeId();
-         if (typeId != null) {
-            typeIds.remove(typeId);
+         if (typeId != null && d.getFullName().equals(typeIds.get(typeId))) {
+            typeIds = typeIds.without(typeId);
+            marshallersById = marshallersById.without(typeId);
          }
+         genericDescriptors = genericDescriptors.without(d.getFullName());
+         changedTypes.add(d.getFullName());
       }
-      genericDescriptors.keySet().removeAll(fileDescriptor.getTypes().keySet());
       for (FileDescriptor fd : fileDescriptor.getDependants().values()) {
-         fd.markUnresolved();
-         unregisterFileDescriptorTypes(fd);
+         // a dependant reachable by several paths is only processed once
+         if (fd.isResolved()) {
+            unregisterFileDescriptorTypes(fd);
+            fd.markUnresolved();
+            unresolvedFiles.add(fd.getName());
+         }
       }
    }
 
-   @Override
-   public Descriptor getMessageDescriptor(String fullName) {
-      readLock.lock();
-      try {
-         GenericDescriptor descriptor = genericDescriptors.get(fullName);
-         if (descriptor == null) {
-            throw new IllegalArgumentException("Message descriptor not found : " + fullName);
+   @GuardedBy("writeLock")
+   private void addImports(FileDescriptor fileDescriptor) {
+      for (String dependency : getImports(fileDescriptor)) {
+         Set<String> fileNames = importers.get(dependency);
+         if (fileNames == null) {
+            fileNames = new HashSet<>();
+            importers.put(dependency, fileNames);
+         }
+         fileNames.add(fileDescriptor.getName());
+      }
+   }
+
+   /**
+    * Removes a file that is being replaced or unregistered from the import graph and from the dependants of the files
+    * it imports, so it is not affected by later changes to them.
+    */
+   @GuardedBy("writeLock")
+   private void removeImports(FileDescriptor fileDescriptor) {
+      for (String dependency : getImports(fileDescriptor)) {
+         Set<String> fileNames = importers.get(dependency);
+         if (fileNames != null) {
+            fileNames.remove(fileDescriptor.getName());
+            if (fileNames.isEmpty()) {
+               importers.remove(dependency);
+            }
          }
-         if (!(descriptor instanceof Descriptor)) {
-            throw new IllegalArgumentException(fullName + " is not a message type");
+         FileDescriptor fd = fileDescriptors.get(dependency);
+         if (fd != null) {
+            fd.getDependants().remove(fileDescriptor.getName(), fileDescriptor);
+         }
+      }
+   }
+
+   private static Set<String> getImports(FileDescriptor fileDescriptor) {
+      Set<String> imports = new HashSet<>(fileDescriptor.getDependencies());
+      imports.addAll(fileDescriptor.getPublicDependencies());
+      return imports;
+   }
+
+   /**
+    * Collects the given files, the files importing them directly or indirectly and the files that could not be
+    * resolved yet. The other files cannot see any of the types of the given files so they are not affected by them.
+    */
+   @GuardedBy("writeLock")
+   private Set<String> collectAffectedFiles(Set<String> fileNames) {
+      Set<String> affectedFiles = new LinkedHashSet<>(fileNames);
+      Deque<String> queue = new ArrayDeque<>(fileNames);
+      while (!queue.isEmpty()) {
+         Set<String> fileImporters = importers.get(queue.poll());
+         if (fileImporters != null) {
+            for (String fileName : fileImporters) {
+               if (affectedFiles.add(fileName)) {
+                  queue.add(fileName);
+               }
+            }
          }
-         return (Descriptor) descriptor;
-      } finally {
-         readLock.unlock();
       }
+      // an unresolved file can also be fixed by the removal of a conflicting type definition, so it is always retried
+      affectedFiles.addAll(unresolvedFiles);
+      return affectedFiles;
+   }
+
+   @Override
+   public Descriptor getMessageDescriptor(String fullName) {
+      GenericDescriptor descriptor = registry.genericDescriptors.get(fullName);
+      if (descriptor == null) {
+         throw new IllegalArgumentException("Message descriptor not found : " + fullName);
+      }
+      if (!(descriptor instanceof Descriptor)) {
+         throw new IllegalArgumentException(fullName + " is not a message type");
+      }
+      return (Descriptor) descriptor;
    }
 
    @Override
    public EnumDescriptor getEnumDescriptor(String fullName) {
-      readLock.lock();
-      try {
-         GenericDescriptor descriptor = genericDescriptors.get(fullName);
-         if (descriptor == null) {
-            throw new IllegalArgumentException("Enum descriptor not found : " + fullName);
-         }
-         if (!(descriptor instanceof EnumDescriptor)) {
-            throw new IllegalArgumentException(fullName + " is not an enum type");
-         }
-         return (EnumDescriptor) descriptor;
-      } finally {
-         readLock.unlock();
+      GenericDescriptor descriptor = registry.genericDescriptors.get(fullName);
+      if (descriptor == null) {
+         throw new IllegalArgumentException("Enum descriptor not found : " + fullName);
+      }
+      if (!(descriptor instanceof EnumDescriptor)) {
+         throw new IllegalArgumentException(fullName + " is not an enum type");
       }
+      return (EnumDescriptor) descriptor;
    }
 
    @Override
@@ -214,8 +403,21 @@ public final class SerializationContextImpl implements SerializationContext {
          Descriptor messageDescriptor = getMessageDescriptor(marshaller.getTypeName());
          marshallerDelegate = new MessageMarshallerDelegate(this, (MessageMarshaller) marshaller, messageDescriptor);
       }
-      marshallersByName.put(marshaller.getTypeName(), marshallerDelegate);
-      marshallersByClass.put(marshaller.getJavaClass(), marshallerDelegate);
+      writeLock.lock();
+      try {
+         // the delegate gets its type id before it can be found
+         GenericDescriptor descriptor = genericDescriptors.get(marshaller.getTypeName());
+         Integer typeId = descriptor != null ? descriptor.getTypeId() : null;
+         marshallerDelegate.setTypeId(typeId);
+         if (typeId != null) {
+            marshallersById = marshallersById.with(typeId, marshallerDelegate);
+         }
+         marshallersByName.put(marshaller.getTypeName(), marshallerDelegate);
+         marshallersByClass.put(marshaller.getJavaClass(), marshallerDelegate);
+      } finally {
+         publishRegistry();
+         writeLock.unlock();
+      }
    }
 
    @Override
@@ -225,13 +427,8 @@ public final class SerializationContextImpl implements SerializationContext {
 
    @Override
    public boolean canMarshall(String descriptorFullName) {
-      readLock.lock();
-      try {
-         return genericDescriptors.containsKey(descriptorFullName);
-         //TODO the correct implementation should be: return marshallersByName.containsKey(descriptorFullName);
-      } finally {
-         readLock.unlock();
-      }
+      return registry.genericDescriptors.containsKey(descriptorFullName);
+      //TODO the correct implementation should be: return marshallersByName.containsKey(descriptorFullName);
    }
 
    @Override
@@ -252,6 +449,25 @@ public final class SerializationContextImpl implements SerializationContext {
       return marshallerDelegate;
    }
 
+   /**
+    * Gets the marshaller delegate of the type having the given type id.
+    *
+    * @since 3.1
+    */
+   public <T> BaseMarshallerDelegate<T> getMarshallerDelegate(int typeId) {
+      Registry registry = this.registry;
+      BaseMarshallerDelegate<T> marshallerDelegate = (BaseMarshallerDelegate<T>) registry.marshallersById.get(typeId);
+      if (marshallerDelegate == null) {
+         // fail with the appropriate message, depending on whether the type id or only the marshaller is missing
+         String descriptorFullName = registry.typeIds.get(typeId);
+         if (descriptorFullName == null) {
+            throw new IllegalArgumentException("Unknown type id : " + typeId);
+         }
+         return getMarshallerDelegate(descriptorFullName);
+      }
+      return marshallerDelegate;
+   }
+
    public <T> BaseMarshallerDelegate<T> getMarshallerDelegate(Class<T> clazz) {
       BaseMarshallerDelegate<T> marshallerDelegate = (BaseMarshallerDelegate<T>) marshallersByClass.get(clazz);
       if (marshallerDelegate == null) {
@@ -260,31 +476,77 @@ public final class SerializationContextImpl implements SerializationContext {
       return marshallerDelegate;
    }
 
+   /**
+    * Same as {@link #getMarshallerDelegate(Class)} but returns {@code null} if no marshaller is registered for the
+    * class.
+    */
+   BaseMarshallerDelegate<?> findMarshallerDelegate(Class<?> clazz) {
+      return marshallersByClass.get(clazz);
+   }
+
    @Override
    public String getTypeNameById(Integer typeId) {
-      readLock.lock();
-      try {
-         String descriptorFullName = typeIds.get(typeId);
-         if (descriptorFullName == null) {
-            throw new IllegalArgumentException("Unknown type id : " + typeId);
+      String descriptorFullName = typeId == null ? null : registry.typeIds.get(typeId);
+      if (descriptorFullName == null) {
+         throw new IllegalArgumentException("Unknown type id : " + typeId);
+      }
+      return descriptorFullName;
+   }
+
+   @Override
+   public MarshallingSession openMarshallingSession() {
+      // start probing from a thread specific slot to reduce contention between threads
+      int start = (int) (Thread.currentThread().getId() % SESSION_POOL_SIZE);
+      for (int i = 0; i < SESSION_POOL_SIZE; i++) {
+         int slot = (start + i) % SESSION_POOL_SIZE;
+         MarshallingSessionImpl session = sessionPool.get(slot);
+         if (session != null && sessionPool.compareAndSet(slot, session, null)) {
+            session.pooled = false;
+            return session;
+         }
+      }
+      return new MarshallingSessionImpl(this);
+   }
+
+   void releaseMarshallingSession(MarshallingSessionImpl session) {
+      int start = (int) (Thread.currentThread().getId() % SESSION_POOL_SIZE);
+      for (int i = 0; i < SESSION_POOL_SIZE; i++) {
+         int slot = (start + i) % SESSION_POOL_SIZE;
+         if (sessionPool.get(slot) == null && sessionPool.compareAndSet(slot, null, session)) {
+            return;
          }
-         return descriptorFullName;
-      } finally {
-         readLock.unlock();
       }
    }
 
    @Override
    public Integer getTypeIdByName(String descriptorFullName) {
-      readLock.lock();
-      try {
-         GenericDescriptor descriptor = genericDescriptors.get(descriptorFullName);
-         if (descriptor == null) {
-            throw new IllegalArgumentException("Unknown type name : " + descriptorFullName);
-         }
-         return descriptor.getTypeId();
-      } finally {
-         readLock.unlock();
+      GenericDescriptor descriptor = registry.genericDescriptors.get(descriptorFullName);
+      if (descriptor == null) {
+         throw new IllegalArgumentException("Unknown type name : " + descriptorFullName);
+      }
+      return descriptor.getTypeId();
+   }
+
+   /**
+    * The files, types and type ids that are visible to the lookups. Building one takes constant time, since the maps
+    * are persistent and are not copied.
+    */
+   private static final class Registry {
+
+      final Map<String, FileDescriptor> fileDescriptors;
+
+      final Map<String, GenericDescriptor> genericDescriptors;
+
+      final PersistentIntMap<String> typeIds;
+
+      final PersistentIntMap<BaseMarshallerDelegate<?>> marshallersById;
+
+      Registry(PersistentMap<String, FileDescriptor> fileDescriptors, PersistentMap<String, GenericDescriptor> genericDescriptors,
+               PersistentIntMap<String> typeIds, PersistentIntMap<BaseMarshallerDelegate<?>> marshallersById) {
+         this.fileDescriptors = fileDescriptors;
+         this.genericDescriptors = genericDescriptors;
+         this.typeIds = typeIds;
+         this.marshallersById = marshallersById;
       }
    }
 }
@@ -0,0 +1,96 @@
+package org.infinispan.protostream.impl;
+
+import java.util.Arrays;
+
+/**
+ * Remembers where the fields of a message that were skipped by an out of sequence read are located in the input, so
+ * they can be decoded later by random access instead of being buffered in an {@link UnknownFieldSetImpl}. Each entry
+ * takes three consecutive ints of a single array: the tag, the absolute position of the value (right after the tag) and
+ * the absolute position where the field ends. The tag of an entry is cleared once the entry is consumed.
+ *
+ * @since 3.1
+ */
+final class SkippedFieldTable {
+
+   private static final int ENTRY_SIZE = 3;
+
+   private static final int INITIAL_CAPACITY = 8;
+
+   private int[] entries = new int[INITIAL_CAPACITY * ENTRY_SIZE];
+
+   /**
+    * The number of used array elements.
+    */
+   private int size = 0;
+
+   /**
+    * The array index of the first entry that was not consumed yet.
+    */
+   private int first = 0;
+
+   boolean isEmpty() {
+      return first == size;
+   }
+
+   void clear() {
+      size = 0;
+      first = 0;
+   }
+
+   void add(int tag, int start, int end) {
+      if (size == entries.length) {
+         entries = Arrays.copyOf(entries, size * 2);
+      }
+      entries[size] = tag;
+      entries[size + 1] = start;
+      entries[size + 2] = end;
+      size += ENTRY_SIZE;
+   }
+
+   /**
+    * Finds the first entry having the given tag and marks it consumed.
+    *
+    * @return the index of the entry, to be passed to {@link #start} and {@link #end}, or -1 if there is none
+    */
+   int consume(int tag) {
+      for (int i = first; i < size; i += ENTRY_SIZE) {
+         if (entries[i] == tag) {
+            entries[i] = 0;
+            if (i == first) {
+               do {
+                  first += ENTRY_SIZE;
+               } while (first < size && entries[first] == 0);
+            }
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Finds the next entry that was not consumed.
+    *
+    * @param index the index of the previous entry or -1 to start from the beginning
+    * @return the index of the entry or -1 if there is none
+    */
+   int next(int index) {
+      for (int i = index < 0 ? first : index + ENTRY_SIZE; i < size; i += ENTRY_SIZE) {
+         if (entries[i] != 0) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   int tag(int index) {
+      return entries[index];
+   }
+
+   int start(int index) {
+      return entries[index + 1];
+   }
+
+   int end(int index) {
+      return entries[index + 2];
+   }
+}
@@ -22,7 +22,7 @@ import org.infinispan.protostream.UnknownFieldSet;
  * @author anistor@redhat.com
  * @since 1.0
  */
-final class UnknownFieldSetImpl implements UnknownFieldSet, Externalizable {
+public final class UnknownFieldSetImpl implements UnknownFieldSet, Externalizable {
 
    // elements of the Deque can be one of : varint, fixed32, fixed64, byte[] or UnknownFieldSetImpl
    // this is created lazily
@@ -7,12 +7,27 @@ package org.infinispan.protostream.impl;
  */
 public final class WireFormat {
 
-   public static final int WIRETYPE_VARINT = com.google.protobuf.WireFormat.WIRETYPE_VARINT;
-   public static final int WIRETYPE_FIXED64 = com.google.protobuf.WireFormat.WIRETYPE_FIXED64;
-   public static final int WIRETYPE_LENGTH_DELIMITED = com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED;
-   public static final int WIRETYPE_START_GROUP = com.google.protobuf.WireFormat.WIRETYPE_START_GROUP;
-   public static final int WIRETYPE_END_GROUP = com.google.protobuf.WireFormat.WIRETYPE_END_GROUP;
-   public static final int WIRETYPE_FIXED32 = com.google.protobuf.WireFormat.WIRETYPE_FIXED32;
+   public static final int WIRETYPE_VARINT = 0;
+   public static final int WIRETYPE_FIXED64 = 1;
+   public static final int WIRETYPE_LENGTH_DELIMITED = 2;
+   public static final int WIRETYPE_START_GROUP = 3;
+   public static final int WIRETYPE_END_GROUP = 4;
+   public static final int WIRETYPE_FIXED32 = 5;
+
+   /**
+    * The maximum number of bytes a varint can occupy on the wire (a 64 bit value split in groups of 7 bits).
+    */
+   public static final int MAX_VARINT_SIZE = 10;
+
+   /**
+    * The number of bytes occupied by a fixed32 value.
+    */
+   public static final int FIXED_32_SIZE = 4;
+
+   /**
+    * The number of bytes occupied by a fixed64 value.
+    */
+   public static final int FIXED_64_SIZE = 8;
 
    /**
     * The lower 3 bits of the 32 bit tag are used for encoding the wire type.
@@ -8,13 +8,24 @@ import org.infinispan.protostream.RawProtoStreamWriter;
  */
 final class WriteMessageContext extends MessageContext<WriteMessageContext> {
 
-   final RawProtoStreamWriter out;
+   RawProtoStreamWriter out;
 
-   final MessageMarshallerDelegate<?> marshallerDelegate;
+   MessageMarshallerDelegate<?> marshallerDelegate;
+
+   /**
+    * A finished context of a nested message, kept for reuse by the next nested message at the same depth.
+    */
+   WriteMessageContext spareChild;
 
    WriteMessageContext(WriteMessageContext parent, String fieldName, MessageMarshallerDelegate<?> marshallerDelegate, RawProtoStreamWriter out) {
       super(parent, fieldName, marshallerDelegate.getMessageDescriptor());
       this.out = out;
       this.marshallerDelegate = marshallerDelegate;
    }
+
+   void reset(WriteMessageContext parent, String fieldName, MessageMarshallerDelegate<?> marshallerDelegate, RawProtoStreamWriter out) {
+      reset(parent, fieldName, marshallerDelegate.getMessageDescriptor());
+      this.out = out;
+      this.marshallerDelegate = marshallerDelegate;
+   }
 }
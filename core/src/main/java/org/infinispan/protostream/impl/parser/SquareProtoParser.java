@@ -2,9 +2,16 @@ package org.infinispan.protostream.impl.parser;
 
 import java.io.CharArrayReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.infinispan.protostream.DescriptorParser;
 import org.infinispan.protostream.DescriptorParserException;
@@ -51,21 +58,79 @@ public final class SquareProtoParser implements DescriptorParser {
    @Override
    public Map<String, FileDescriptor> parse(FileDescriptorSource fileDescriptorSource) throws DescriptorParserException {
       Map<String, char[]> input = fileDescriptorSource.getFileDescriptors();
-      Map<String, FileDescriptor> fileDescriptorMap = new LinkedHashMap<>(input.size());
-      for (Map.Entry<String, char[]> entry : input.entrySet()) {
+      Executor executor = configuration.parserExecutor();
+      if (executor == null || input.size() < 2) {
+         Map<String, FileDescriptor> fileDescriptorMap = new LinkedHashMap<>(input.size());
+         for (Map.Entry<String, char[]> entry : input.entrySet()) {
+            fileDescriptorMap.put(entry.getKey(), parseFile(entry.getKey(), entry.getValue()));
+         }
+         return fileDescriptorMap;
+      }
+      return parseInParallel(input, executor);
+   }
+
+   /**
+    * Parses the files concurrently using the given executor. The calling thread runs any task the executor did not
+    * start yet, so progress is guaranteed even if the executor is saturated. The results are collected in the order of
+    * the input and the first failure (in that same order) is reported, just like in sequential parsing.
+    */
+   private Map<String, FileDescriptor> parseInParallel(Map<String, char[]> input, Executor executor) throws DescriptorParserException {
+      List<FutureTask<FileDescriptor>> tasks = new ArrayList<>(input.size());
+      for (final Map.Entry<String, char[]> entry : input.entrySet()) {
+         FutureTask<FileDescriptor> task = new FutureTask<>(new Callable<FileDescriptor>() {
+            @Override
+            public FileDescriptor call() {
+               return parseFile(entry.getKey(), entry.getValue());
+            }
+         });
+         tasks.add(task);
          try {
-            ProtoFile protoFile = ProtoParser.parse(entry.getKey(), new CharArrayReader(entry.getValue()));
-            FileDescriptor fileDescriptor = PROTOFILE_MAPPER.map(protoFile);
-            fileDescriptor.setConfiguration(configuration);
-            fileDescriptorMap.put(entry.getKey(), fileDescriptor);
-         } catch (IOException e) {
-            throw new DescriptorParserException("Internal parsing error : " + e.getMessage());
-         } catch (DescriptorParserException e) {
-            throw e;
-         } catch (RuntimeException e) {
-            throw new DescriptorParserException(e);
+            executor.execute(task);
+         } catch (RejectedExecutionException e) {
+            // will be run by the calling thread
+         }
+      }
+
+      Map<String, FileDescriptor> fileDescriptorMap = new LinkedHashMap<>(input.size());
+      int i = 0;
+      try {
+         for (String fileName : input.keySet()) {
+            FutureTask<FileDescriptor> task = tasks.get(i++);
+            task.run();
+            fileDescriptorMap.put(fileName, task.get());
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new DescriptorParserException("Interrupted while parsing proto files");
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof Error) {
+            throw (Error) cause;
+         }
+         if (cause instanceof DescriptorParserException) {
+            throw (DescriptorParserException) cause;
+         }
+         throw new DescriptorParserException(cause);
+      } finally {
+         for (; i < tasks.size(); i++) {
+            tasks.get(i).cancel(false);
          }
       }
       return fileDescriptorMap;
    }
+
+   private FileDescriptor parseFile(String fileName, char[] chars) throws DescriptorParserException {
+      try {
+         ProtoFile protoFile = ProtoParser.parse(fileName, new CharArrayReader(chars));
+         FileDescriptor fileDescriptor = PROTOFILE_MAPPER.map(protoFile);
+         fileDescriptor.setConfiguration(configuration);
+         return fileDescriptor;
+      } catch (IOException e) {
+         throw new DescriptorParserException("Internal parsing error : " + e.getMessage());
+      } catch (DescriptorParserException e) {
+         throw e;
+      } catch (RuntimeException e) {
+         throw new DescriptorParserException(e);
+      }
+   }
 }
@@ -0,0 +1,161 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.infinispan.protostream.domain.Address;
+import org.infinispan.protostream.domain.User;
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test marshalling to chains of pooled direct buffers.
+ *
+ * @since 3.1
+ */
+public class ByteBufferChainTest extends AbstractProtoStreamTest {
+
+   /**
+    * A channel that accepts at most {@code maxWrite} bytes per write, like a non-blocking channel would.
+    */
+   private static final class CollectingChannel implements GatheringByteChannel {
+
+      private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+      private final int maxWrite;
+
+      CollectingChannel(int maxWrite) {
+         this.maxWrite = maxWrite;
+      }
+
+      @Override
+      public long write(ByteBuffer[] srcs, int offset, int length) {
+         long written = 0;
+         for (int i = offset; i < offset + length && written < maxWrite; i++) {
+            while (srcs[i].hasRemaining() && written < maxWrite) {
+               out.write(srcs[i].get());
+               written++;
+            }
+         }
+         return written;
+      }
+
+      @Override
+      public long write(ByteBuffer[] srcs) {
+         return write(srcs, 0, srcs.length);
+      }
+
+      @Override
+      public int write(ByteBuffer src) {
+         return (int) write(new ByteBuffer[]{src});
+      }
+
+      @Override
+      public boolean isOpen() {
+         return true;
+      }
+
+      @Override
+      public void close() {
+      }
+   }
+
+   private static User makeUser() {
+      User user = new User();
+      user.setId(1);
+      user.setName("John \u00e9\u20ac\ud83d\ude00");
+      user.setSurname("Batman");
+      user.setGender(User.Gender.MALE);
+      user.setAccountIds(new HashSet<>(Arrays.asList(1, 3, 300000)));
+      List<Address> addresses = new ArrayList<>();
+      // long enough to need a two byte length prefix
+      char[] street = new char[300];
+      Arrays.fill(street, 's');
+      addresses.add(new Address(new String(street), "XYZ42", -12));
+      addresses.add(new Address("Bond Street", "QQ42", 312));
+      user.setAddresses(addresses);
+      return user;
+   }
+
+   private static byte[] drain(ByteBufferChain chain) throws IOException {
+      CollectingChannel channel = new CollectingChannel(7);
+      long expected = chain.remaining();
+      long total = 0;
+      while (chain.hasRemaining()) {
+         total += chain.writeTo(channel);
+      }
+      assertEquals(expected, total);
+      assertEquals(0, chain.writeTo(channel));
+      return channel.out.toByteArray();
+   }
+
+   @Test
+   public void testSpanningManyBuffers() throws Exception {
+      SerializationContext ctx = createContext();
+      DirectBufferPool pool = new DirectBufferPool(16, 100);
+      User user = makeUser();
+
+      try (ByteBufferChain chain = ProtobufUtil.toByteBufferChain(ctx, user, pool)) {
+         assertTrue(chain.getBuffers().length > 1);
+         for (ByteBuffer buffer : chain.getBuffers()) {
+            assertTrue(buffer.isDirect());
+         }
+         assertArrayEquals(ProtobufUtil.toByteArray(ctx, user), drain(chain));
+      }
+   }
+
+   @Test
+   public void testWrapped() throws Exception {
+      SerializationContext ctx = createContext();
+      DirectBufferPool pool = new DirectBufferPool(16, 100);
+
+      for (Object o : Arrays.asList(makeUser(), User.Gender.FEMALE, "a string", -5, 1.5d, new byte[100], null)) {
+         try (ByteBufferChain chain = ProtobufUtil.toWrappedByteBufferChain(ctx, o, pool)) {
+            assertArrayEquals(ProtobufUtil.toWrappedByteArray(ctx, o), drain(chain));
+         }
+      }
+
+      try (ByteBufferChain chain = ProtobufUtil.toWrappedByteBufferChain(ctx, makeUser())) {
+         ByteBuffer bytes = ByteBuffer.wrap(drain(chain));
+         User decoded = (User) ProtobufUtil.fromWrappedByteBuffer(ctx, bytes);
+         assertEquals(makeUser().getAddresses().get(0).getStreet(), decoded.getAddresses().get(0).getStreet());
+      }
+   }
+
+   @Test
+   public void testBuffersAreReturnedToPool() throws Exception {
+      SerializationContext ctx = createContext();
+      DirectBufferPool pool = new DirectBufferPool(1024, 4);
+
+      ByteBufferChain chain = ProtobufUtil.toByteBufferChain(ctx, makeUser(), pool);
+      ByteBuffer[] buffers = chain.getBuffers();
+      assertEquals(1, buffers.length);
+      chain.close();
+      chain.close();
+
+      chain = ProtobufUtil.toByteBufferChain(ctx, makeUser(), pool);
+      assertSame(buffers[0], chain.getBuffers()[0]);
+      chain.close();
+   }
+
+   @Test(expected = IllegalStateException.class)
+   public void testClosedChain() throws Exception {
+      SerializationContext ctx = createContext();
+      ByteBufferChain chain = ProtobufUtil.toByteBufferChain(ctx, makeUser());
+      chain.close();
+      assertFalse(chain.hasRemaining());
+      chain.getBuffers();
+   }
+}
@@ -0,0 +1,267 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import org.infinispan.protostream.domain.Account;
+import org.infinispan.protostream.domain.Address;
+import org.infinispan.protostream.domain.User;
+import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test {@link ProtobufUtil#computeSize} and {@link ProtobufUtil#computeWrappedSize} against the output of a writer
+ * that does not know the size in advance.
+ *
+ * @since 3.1
+ */
+public class ComputeSizeTest extends AbstractProtoStreamTest {
+
+   private static final String PROTO = "package test_size;\n" +
+         "message Stream {\n" +
+         "   optional string name = 1;\n" +
+         "   optional bytes data = 2;\n" +
+         "}\n";
+
+   public static class Stream {
+      String name;
+      byte[] data;
+   }
+
+   private static final class StreamMarshaller implements MessageMarshaller<Stream> {
+
+      private boolean omitName;
+
+      @Override
+      public Stream readFrom(ProtoStreamReader reader) throws IOException {
+         Stream stream = new Stream();
+         stream.name = reader.readString("name");
+         stream.data = reader.readBytes("data");
+         return stream;
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, Stream stream) throws IOException {
+         if (!omitName) {
+            writer.writeString("name", stream.name);
+         }
+         if (stream.data != null) {
+            writer.writeBytes("data", new ByteArrayInputStream(stream.data));
+         }
+      }
+
+      @Override
+      public Class<? extends Stream> getJavaClass() {
+         return Stream.class;
+      }
+
+      @Override
+      public String getTypeName() {
+         return "test_size.Stream";
+      }
+   }
+
+   private static byte[] writeToStream(SerializationContext ctx, Object o) throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ProtobufUtil.writeTo(ctx, baos, o);
+      return baos.toByteArray();
+   }
+
+   private static byte[] writeWrappedToStream(SerializationContext ctx, Object o) throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      WrappedMessage.writeMessage(ctx, RawProtoStreamWriterImpl.newInstance(baos), o);
+      return baos.toByteArray();
+   }
+
+   private static void assertSize(SerializationContext ctx, Object o) throws IOException {
+      byte[] expected = writeToStream(ctx, o);
+      assertEquals(expected.length, ProtobufUtil.computeSize(ctx, o));
+      assertArrayEquals(expected, ProtobufUtil.toByteArray(ctx, o));
+   }
+
+   private static void assertWrappedSize(SerializationContext ctx, Object o) throws IOException {
+      byte[] expected = writeWrappedToStream(ctx, o);
+      assertEquals(expected.length, ProtobufUtil.computeWrappedSize(ctx, o));
+      assertArrayEquals(expected, ProtobufUtil.toWrappedByteArray(ctx, o));
+   }
+
+   private static User makeUser() {
+      User user = new User();
+      user.setId(-1);
+      user.setName("John \u00e9\u20ac\ud83d\ude00");
+      user.setSurname("Batman");
+      user.setGender(User.Gender.MALE);
+      user.setAccountIds(new HashSet<>(Arrays.asList(1, 3, 300000)));
+      List<Address> addresses = new ArrayList<>();
+      // long enough to need a two byte length prefix
+      char[] street = new char[200];
+      Arrays.fill(street, 's');
+      addresses.add(new Address(new String(street), "XYZ42", -12));
+      addresses.add(new Address("Bond Street", "QQ42", 312));
+      user.setAddresses(addresses);
+      return user;
+   }
+
+   @Test
+   public void testComputeSize() throws Exception {
+      SerializationContext ctx = createContext();
+
+      assertSize(ctx, makeUser());
+
+      Account account = new Account();
+      account.setId(1);
+      account.setDescription("test account");
+      account.setCreationDate(new Date(1500000000000L));
+      account.setBlurb(Arrays.asList(new byte[0], new byte[]{1, 2, 3}, new byte[1000]));
+      assertSize(ctx, account);
+   }
+
+   @Test
+   public void testComputeWrappedSize() throws Exception {
+      SerializationContext ctx = createContext();
+
+      assertWrappedSize(ctx, makeUser());
+      assertWrappedSize(ctx, User.Gender.FEMALE);
+      assertWrappedSize(ctx, "a string");
+      assertWrappedSize(ctx, -5);
+      assertWrappedSize(ctx, Long.MAX_VALUE);
+      assertWrappedSize(ctx, 1.5d);
+      assertWrappedSize(ctx, new byte[300]);
+      assertWrappedSize(ctx, null);
+   }
+
+   @Test
+   public void testUnknownSize() throws Exception {
+      SerializationContext ctx = createContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_size.proto", PROTO));
+      ctx.registerMarshaller(new StreamMarshaller());
+
+      Stream stream = new Stream();
+      stream.name = "stream";
+      stream.data = new byte[10000];
+      for (int i = 0; i < stream.data.length; i++) {
+         stream.data[i] = (byte) i;
+      }
+
+      assertEquals(-1, ProtobufUtil.computeSize(ctx, stream));
+      assertEquals(-1, ProtobufUtil.computeWrappedSize(ctx, stream));
+
+      // falls back to writing without knowing the size
+      Stream decoded = ProtobufUtil.fromByteArray(ctx, ProtobufUtil.toByteArray(ctx, stream), Stream.class);
+      assertEquals(stream.name, decoded.name);
+      assertArrayEquals(stream.data, decoded.data);
+
+      decoded = (Stream) ProtobufUtil.fromWrappedByteArray(ctx, ProtobufUtil.toWrappedByteArray(ctx, stream));
+      assertEquals(stream.name, decoded.name);
+      assertArrayEquals(stream.data, decoded.data);
+   }
+
+   /**
+    * Counts its invocations and can write less than usual on one of them.
+    */
+   private static final class CountingStreamMarshaller implements MessageMarshaller<Stream> {
+
+      private final StreamMarshaller marshaller = new StreamMarshaller();
+
+      private final int omitNameAt;
+
+      private int invocations;
+
+      CountingStreamMarshaller(int omitNameAt) {
+         this.omitNameAt = omitNameAt;
+      }
+
+      @Override
+      public Stream readFrom(ProtoStreamReader reader) throws IOException {
+         return marshaller.readFrom(reader);
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, Stream stream) throws IOException {
+         marshaller.omitName = invocations++ == omitNameAt;
+         marshaller.writeTo(writer, stream);
+      }
+
+      @Override
+      public Class<? extends Stream> getJavaClass() {
+         return Stream.class;
+      }
+
+      @Override
+      public String getTypeName() {
+         return "test_size.Stream";
+      }
+   }
+
+   private static String largeString() {
+      // more than the output buffer of a marshalling session may retain
+      char[] chars = new char[1100000];
+      Arrays.fill(chars, 'x');
+      return new String(chars);
+   }
+
+   @Test
+   public void testSmallObjectsAreMarshalledOnce() throws Exception {
+      SerializationContext ctx = createContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_size.proto", PROTO));
+      CountingStreamMarshaller marshaller = new CountingStreamMarshaller(-1);
+      ctx.registerMarshaller(marshaller);
+
+      Stream stream = new Stream();
+      stream.name = "stream";
+      ProtobufUtil.toByteArray(ctx, stream);
+      assertEquals(1, marshaller.invocations);
+      ProtobufUtil.toWrappedByteArray(ctx, stream);
+      assertEquals(2, marshaller.invocations);
+
+      // a large object is written in one pass too, but it makes the next ones use two
+      stream.name = largeString();
+      ProtobufUtil.toByteArray(ctx, stream);
+      assertEquals(3, marshaller.invocations);
+      ProtobufUtil.toByteArray(ctx, stream);
+      assertEquals(5, marshaller.invocations);
+
+      // until one is small again
+      stream.name = "stream";
+      ProtobufUtil.toByteArray(ctx, stream);
+      assertEquals(7, marshaller.invocations);
+      ProtobufUtil.toByteArray(ctx, stream);
+      assertEquals(8, marshaller.invocations);
+   }
+
+   @Test
+   public void testLargeObjectsAreWrittenInPlace() throws Exception {
+      SerializationContext ctx = createContext();
+      User user = makeUser();
+      user.getAddresses().add(new Address(largeString(), "XYZ42", 1));
+
+      // the first time the size is not yet known to be large
+      assertSize(ctx, user);
+      assertSize(ctx, user);
+      assertWrappedSize(ctx, user);
+      assertWrappedSize(ctx, user);
+   }
+
+   @Test(expected = IllegalStateException.class)
+   public void testSizeMismatch() throws Exception {
+      SerializationContext ctx = createContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_size.proto", PROTO));
+      // the first invocation marks the type as large, the next two compute the size and then write less
+      ctx.registerMarshaller(new CountingStreamMarshaller(2));
+
+      Stream stream = new Stream();
+      stream.name = largeString();
+      ProtobufUtil.toByteArray(ctx, stream);
+      ProtobufUtil.toByteArray(ctx, stream);
+   }
+}
@@ -0,0 +1,258 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import org.infinispan.protostream.domain.Address;
+import org.infinispan.protostream.domain.User;
+import org.infinispan.protostream.impl.RawProtoStreamReaderImpl;
+import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test writing and reading sequences of length delimited messages.
+ *
+ * @since 3.1
+ */
+public class DelimitedMessagesTest extends AbstractProtoStreamTest {
+
+   private static final int COUNT = 500;
+
+   private static final String NOTE_PROTO = "package test_delimited;\n" +
+         "message Note {\n" +
+         "   optional string text = 1;\n" +
+         "}\n";
+
+   public static class Note {
+      String text;
+   }
+
+   /**
+    * A broken marshaller that writes the text twice on every invocation but the first one.
+    */
+   private static final class GrowingNoteMarshaller implements MessageMarshaller<Note> {
+
+      private int invocations;
+
+      @Override
+      public Note readFrom(ProtoStreamReader reader) throws IOException {
+         Note note = new Note();
+         note.text = reader.readString("text");
+         return note;
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, Note note) throws IOException {
+         writer.writeString("text", invocations++ == 0 ? note.text : note.text + note.text);
+      }
+
+      @Override
+      public Class<? extends Note> getJavaClass() {
+         return Note.class;
+      }
+
+      @Override
+      public String getTypeName() {
+         return "test_delimited.Note";
+      }
+   }
+
+   /**
+   * Repeats the same bytes a number of times, without holding the whole content in memory.
+   */
+   private static final class RepeatingInputStream extends InputStream {
+
+      private final byte[] bytes;
+
+      private long remaining;
+
+      private int pos;
+
+      RepeatingInputStream(byte[] bytes, int times) {
+         this.bytes = bytes;
+         remaining = (long) bytes.length * times;
+      }
+
+      @Override
+      public int read() {
+         byte[] b = new byte[1];
+         return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+         if (remaining == 0) {
+            return -1;
+         }
+         int n = (int) Math.min(Math.min(len, bytes.length - pos), remaining);
+         System.arraycopy(bytes, pos, b, off, n);
+         pos = (pos + n) % bytes.length;
+         remaining -= n;
+         return n;
+      }
+   }
+
+   private SerializationContext createNoteContext() throws IOException {
+      SerializationContext ctx = createContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_delimited.proto", NOTE_PROTO));
+      ctx.registerMarshaller(new GrowingNoteMarshaller());
+      return ctx;
+   }
+
+   private static User makeUser(int id) {
+      User user = new User();
+      user.setId(id);
+      user.setName("name" + id);
+      user.setSurname("surname");
+      user.setAccountIds(Collections.singleton(id));
+      user.setAddresses(Collections.singletonList(new Address("street " + id, "ZIP" + id, id)));
+      return user;
+   }
+
+   private static byte[] writeUsers(SerializationContext ctx) throws Exception {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      for (int i = 0; i < COUNT; i++) {
+         ProtobufUtil.writeDelimitedTo(ctx, out, makeUser(i));
+      }
+      out.flush();
+      return baos.toByteArray();
+   }
+
+   private static void assertUsers(Iterator<User> it) {
+      for (int i = 0; i < COUNT; i++) {
+         assertTrue(it.hasNext());
+         User user = it.next();
+         assertEquals(i, user.getId());
+         assertEquals("name" + i, user.getName());
+         assertEquals("street " + i, user.getAddresses().get(0).getStreet());
+      }
+      assertFalse(it.hasNext());
+   }
+
+   @Test
+   public void testIterator() throws Exception {
+      SerializationContext ctx = createContext();
+      byte[] bytes = writeUsers(ctx);
+
+      assertUsers(ProtobufUtil.readDelimitedIterator(ctx, RawProtoStreamReaderImpl.newInstance(bytes), User.class));
+      assertUsers(ProtobufUtil.readDelimitedIterator(ctx, RawProtoStreamReaderImpl.newInstance(new ByteArrayInputStream(bytes)), User.class));
+   }
+
+   @Test
+   public void testSingleReads() throws Exception {
+      SerializationContext ctx = createContext();
+      byte[] bytes = writeUsers(ctx);
+
+      RawProtoStreamReader in = RawProtoStreamReaderImpl.newInstance(bytes);
+      int count = 0;
+      while (!in.isAtEnd()) {
+         assertEquals(count++, ProtobufUtil.readDelimitedFrom(ctx, in, User.class).getId());
+      }
+      assertEquals(COUNT, count);
+   }
+
+   @Test
+   public void testSpliterator() throws Exception {
+      SerializationContext ctx = createContext();
+      byte[] bytes = writeUsers(ctx);
+
+      List<Integer> ids = StreamSupport.stream(ProtobufUtil.readDelimitedSpliterator(ctx, RawProtoStreamReaderImpl.newInstance(bytes), User.class), false)
+            .map(User::getId)
+            .collect(Collectors.toList());
+      assertEquals(COUNT, ids.size());
+      assertEquals(COUNT - 1, (int) ids.get(COUNT - 1));
+   }
+
+   @Test
+   public void testWrapped() throws Exception {
+      SerializationContext ctx = createContext();
+      List<Object> objects = Arrays.asList(makeUser(1), "a string", null, 42, User.Gender.FEMALE, new byte[]{1, 2, 3});
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      for (Object o : objects) {
+         ProtobufUtil.writeWrappedDelimitedTo(ctx, out, o);
+      }
+      out.flush();
+
+      Iterator<Object> it = ProtobufUtil.readWrappedDelimitedIterator(ctx, RawProtoStreamReaderImpl.newInstance(new ByteArrayInputStream(baos.toByteArray())));
+      assertEquals(1, ((User) it.next()).getId());
+      assertEquals("a string", it.next());
+      assertNull(it.next());
+      assertEquals(42, it.next());
+      assertEquals(User.Gender.FEMALE, it.next());
+      assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) it.next());
+      assertFalse(it.hasNext());
+   }
+
+   @Test(expected = UncheckedIOException.class)
+   public void testTruncatedInput() throws Exception {
+      SerializationContext ctx = createContext();
+      byte[] bytes = writeUsers(ctx);
+
+      Iterator<User> it = ProtobufUtil.readDelimitedIterator(ctx, RawProtoStreamReaderImpl.newInstance(bytes, 0, bytes.length - 3), User.class);
+      while (it.hasNext()) {
+         it.next();
+      }
+   }
+
+   @Test
+   public void testStreamLongerThan2GB() throws Exception {
+      SerializationContext ctx = createNoteContext();
+      char[] text = new char[1024 * 1024];
+      Arrays.fill(text, 'x');
+      // written by hand because the marshaller of this context is broken for writing
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      out.writeString(1, new String(text));
+      out.flush();
+      byte[] message = baos.toByteArray();
+      baos.reset();
+      out.writeUInt32NoTag(message.length);
+      out.writeRawBytes(message, 0, message.length);
+      out.flush();
+      byte[] bytes = baos.toByteArray();
+
+      int count = Integer.MAX_VALUE / bytes.length + 2;
+      Iterator<Note> it = ProtobufUtil.readDelimitedIterator(ctx, RawProtoStreamReaderImpl.newInstance(new RepeatingInputStream(bytes, count)), Note.class);
+      int n = 0;
+      while (it.hasNext()) {
+         assertEquals(text.length, it.next().text.length());
+         n++;
+      }
+      assertEquals(count, n);
+   }
+
+   @Test(expected = IllegalStateException.class)
+   public void testSizeMismatch() throws Exception {
+      SerializationContext ctx = createNoteContext();
+      Note note = new Note();
+      note.text = "note";
+      ProtobufUtil.writeDelimitedTo(ctx, RawProtoStreamWriterImpl.newInstance(new ByteArrayOutputStream()), note);
+   }
+
+   @Test(expected = IllegalStateException.class)
+   public void testWrappedSizeMismatch() throws Exception {
+      SerializationContext ctx = createNoteContext();
+      Note note = new Note();
+      note.text = "note";
+      ProtobufUtil.writeWrappedDelimitedTo(ctx, RawProtoStreamWriterImpl.newInstance(new ByteArrayOutputStream()), note);
+   }
+}
@@ -0,0 +1,140 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
+import org.infinispan.protostream.domain.Address;
+import org.infinispan.protostream.domain.User;
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test parsing with a {@link FieldProjection}.
+ *
+ * @since 3.1
+ */
+public class FieldProjectionTest extends AbstractProtoStreamTest {
+
+   private static final class RecordingTagHandler implements TypedTagHandler {
+
+      final List<String> events = new ArrayList<>();
+
+      @Override
+      public void onStart() {
+      }
+
+      @Override
+      public void onInt(int fieldNumber, FieldDescriptor fieldDescriptor, int value) {
+         events.add(fieldDescriptor.getName() + "=" + value);
+      }
+
+      @Override
+      public void onLong(int fieldNumber, FieldDescriptor fieldDescriptor, long value) {
+         events.add(fieldDescriptor.getName() + "=" + value);
+      }
+
+      @Override
+      public void onDouble(int fieldNumber, FieldDescriptor fieldDescriptor, double value) {
+         events.add(fieldDescriptor.getName() + "=" + value);
+      }
+
+      @Override
+      public void onFloat(int fieldNumber, FieldDescriptor fieldDescriptor, float value) {
+         events.add(fieldDescriptor.getName() + "=" + value);
+      }
+
+      @Override
+      public void onBool(int fieldNumber, FieldDescriptor fieldDescriptor, boolean value) {
+         events.add(fieldDescriptor.getName() + "=" + value);
+      }
+
+      @Override
+      public void onString(int fieldNumber, FieldDescriptor fieldDescriptor, String value) {
+         events.add(fieldDescriptor.getName() + "=" + value);
+      }
+
+      @Override
+      public void onBytes(int fieldNumber, FieldDescriptor fieldDescriptor, byte[] value) {
+         events.add(fieldDescriptor.getName() + "=" + Arrays.toString(value));
+      }
+
+      @Override
+      public void onStartNested(int fieldNumber, FieldDescriptor fieldDescriptor, Descriptor messageDescriptor) {
+         events.add(fieldDescriptor.getName() + "{");
+      }
+
+      @Override
+      public void onEndNested(int fieldNumber, FieldDescriptor fieldDescriptor, Descriptor messageDescriptor) {
+         events.add("}");
+      }
+
+      @Override
+      public void onEnd() {
+      }
+   }
+
+   private static User makeUser() {
+      User user = new User();
+      user.setId(1);
+      user.setName("John");
+      user.setSurname("Batman");
+      user.setGender(User.Gender.MALE);
+      user.setAccountIds(Collections.singleton(3));
+      user.setAddresses(Arrays.asList(new Address("Old Street", "XYZ42", -12), new Address("Bond Street", "QQ42", 312)));
+      return user;
+   }
+
+   private List<String> parse(FieldProjection projection) throws Exception {
+      SerializationContext ctx = createContext();
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, makeUser());
+      RecordingTagHandler handler = new RecordingTagHandler();
+      ProtobufParser.INSTANCE.parse(handler, projection, bytes);
+      return handler.events;
+   }
+
+   private Descriptor userDescriptor() throws Exception {
+      return createContext().getMessageDescriptor("sample_bank_account.User");
+   }
+
+   @Test
+   public void testScalarFields() throws Exception {
+      assertEquals(Arrays.asList("name=John", "gender=0"), parse(FieldProjection.compile(userDescriptor(), "gender", "name")));
+   }
+
+   @Test
+   public void testNestedFields() throws Exception {
+      assertEquals(Arrays.asList("id=1", "addresses{", "postCode=XYZ42", "}", "addresses{", "postCode=QQ42", "}"),
+            parse(FieldProjection.compile(userDescriptor(), "id", "addresses.postCode")));
+   }
+
+   @Test
+   public void testWholeMessage() throws Exception {
+      List<String> expected = Arrays.asList("addresses{", "street=Old Street", "postCode=XYZ42", "number=-12", "}",
+            "addresses{", "street=Bond Street", "postCode=QQ42", "number=312", "}");
+      assertEquals(expected, parse(FieldProjection.compile(userDescriptor(), "addresses")));
+      // a path to a nested field is redundant if the whole message is selected, in any order
+      assertEquals(expected, parse(FieldProjection.compile(userDescriptor(), "addresses.street", "addresses")));
+      assertEquals(expected, parse(FieldProjection.compile(userDescriptor(), "addresses", "addresses.street")));
+   }
+
+   @Test
+   public void testNothingSelected() throws Exception {
+      assertEquals(Collections.<String>emptyList(), parse(FieldProjection.compile(userDescriptor())));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testUnknownField() throws Exception {
+      FieldProjection.compile(userDescriptor(), "addresses.city");
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testPathThroughScalar() throws Exception {
+      FieldProjection.compile(userDescriptor(), "name.length");
+   }
+}
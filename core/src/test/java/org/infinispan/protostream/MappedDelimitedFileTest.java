@@ -0,0 +1,133 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import org.infinispan.protostream.domain.Address;
+import org.infinispan.protostream.domain.User;
+import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test reading files of length delimited messages through memory mappings.
+ *
+ * @since 3.1
+ */
+public class MappedDelimitedFileTest extends AbstractProtoStreamTest {
+
+   private static final int COUNT = 1000;
+
+   private static User makeUser(int id) {
+      User user = new User();
+      user.setId(id);
+      user.setName("name" + id);
+      user.setSurname("surname");
+      user.setAccountIds(Collections.singleton(id));
+      user.setAddresses(Collections.singletonList(new Address("street " + id, "ZIP" + id, id)));
+      return user;
+   }
+
+   private static File writeFile(SerializationContext ctx, boolean wrapped) throws IOException {
+      File file = File.createTempFile("protostream", ".bin");
+      file.deleteOnExit();
+      try (OutputStream os = new FileOutputStream(file)) {
+         RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(os);
+         for (int i = 0; i < COUNT; i++) {
+            if (wrapped) {
+               ProtobufUtil.writeWrappedDelimitedTo(ctx, out, makeUser(i));
+            } else {
+               ProtobufUtil.writeDelimitedTo(ctx, out, makeUser(i));
+            }
+         }
+         out.flush();
+      }
+      return file;
+   }
+
+   private static FileChannel open(File file) throws IOException {
+      return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+   }
+
+   @Test
+   public void testSplit() throws Exception {
+      SerializationContext ctx = createContext();
+      File file = writeFile(ctx, false);
+
+      try (FileChannel channel = open(file)) {
+         List<MappedDelimitedFile.Segment> segments = new MappedDelimitedFile(channel, 500).split();
+         assertTrue(segments.size() > 10);
+         long offset = 0;
+         int count = 0;
+         for (MappedDelimitedFile.Segment segment : segments) {
+            assertEquals(offset, segment.getOffset());
+            assertTrue(segment.getLength() <= 500);
+            offset += segment.getLength();
+            count += segment.getMessageCount();
+         }
+         assertEquals(channel.size(), offset);
+         assertEquals(COUNT, count);
+
+         // a single segment for the whole file
+         assertEquals(1, new MappedDelimitedFile(channel).split().size());
+      }
+   }
+
+   @Test
+   public void testIterator() throws Exception {
+      SerializationContext ctx = createContext();
+      File file = writeFile(ctx, false);
+
+      try (FileChannel channel = open(file)) {
+         Iterator<User> it = new MappedDelimitedFile(channel, 500).readDelimitedIterator(ctx, User.class);
+         for (int i = 0; i < COUNT; i++) {
+            assertTrue(it.hasNext());
+            User user = it.next();
+            assertEquals(i, user.getId());
+            assertEquals("street " + i, user.getAddresses().get(0).getStreet());
+         }
+         assertFalse(it.hasNext());
+      }
+   }
+
+   @Test
+   public void testParallelSpliterator() throws Exception {
+      SerializationContext ctx = createContext();
+      File file = writeFile(ctx, true);
+
+      try (FileChannel channel = open(file)) {
+         MappedDelimitedFile mappedFile = new MappedDelimitedFile(channel, 500);
+         List<Integer> ids = StreamSupport.stream(mappedFile.readWrappedDelimitedSpliterator(ctx), true)
+               .map(o -> ((User) o).getId())
+               .collect(Collectors.toList());
+         assertEquals(COUNT, ids.size());
+         for (int i = 0; i < COUNT; i++) {
+            assertEquals(i, (int) ids.get(i));
+         }
+         assertEquals(COUNT, mappedFile.readWrappedDelimitedSpliterator(ctx).estimateSize());
+      }
+   }
+
+   @Test(expected = IOException.class)
+   public void testMessageLargerThanSegment() throws Exception {
+      SerializationContext ctx = createContext();
+      File file = writeFile(ctx, false);
+
+      try (FileChannel channel = open(file)) {
+         new MappedDelimitedFile(channel, 10).split();
+      }
+   }
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -12,6 +13,8 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
 import org.infinispan.protostream.domain.Account;
 import org.infinispan.protostream.domain.Address;
 import org.infinispan.protostream.domain.User;
@@ -83,4 +86,92 @@ public class MarshallingTest extends AbstractProtoStreamTest {
       assertEquals(3, decoded.getBlurb().get(1).length);
       assertArrayEquals(new byte[]{1, 2, 3}, decoded.getBlurb().get(1));
    }
+
+   @Test
+   public void testReusedMarshallingSession() throws Exception {
+      SerializationContext ctx = createContext();
+
+      try (MarshallingSession session = ctx.openMarshallingSession()) {
+         for (int i = 0; i < 3; i++) {
+            User user = new User();
+            user.setId(i);
+            user.setName("John" + i);
+            user.setSurname("Batman");
+            user.setGender(User.Gender.MALE);
+            user.setAddresses(Arrays.asList(new Address("Old Street", "XYZ42", i), new Address("New Street", "ABC" + i, -i)));
+
+            byte[] bytes = session.toByteArray(user);
+            assertArrayEquals(bytes, ProtobufUtil.toByteArray(ctx, user));
+
+            User decoded = session.fromByteArray(bytes, User.class);
+            assertEquals(i, decoded.getId());
+            assertEquals("John" + i, decoded.getName());
+            assertEquals(2, decoded.getAddresses().size());
+            assertEquals("ABC" + i, decoded.getAddresses().get(1).getPostCode());
+
+            byte[] wrappedBytes = session.toWrappedByteArray(user);
+            User unwrapped = (User) session.fromWrappedByteArray(wrappedBytes);
+            assertEquals("John" + i, unwrapped.getName());
+         }
+      }
+   }
+
+   /**
+    * An Address marshaller that identifies the fields by pre-resolved descriptors instead of names.
+    */
+   private static final class AddressFieldDescriptorMarshaller implements MessageMarshaller<Address> {
+
+      private final FieldDescriptor street;
+      private final FieldDescriptor postCode;
+      private final FieldDescriptor number;
+
+      AddressFieldDescriptorMarshaller(Descriptor descriptor) {
+         street = descriptor.findFieldByName("street");
+         postCode = descriptor.findFieldByName("postCode");
+         number = descriptor.findFieldByName("number");
+      }
+
+      @Override
+      public String getTypeName() {
+         return "sample_bank_account.User.Address";
+      }
+
+      @Override
+      public Class<? extends Address> getJavaClass() {
+         return Address.class;
+      }
+
+      @Override
+      public Address readFrom(ProtoStreamReader reader) throws IOException {
+         return new Address(reader.readString(street), reader.readString(postCode), reader.readInt(number));
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, Address address) throws IOException {
+         writer.writeString(street, address.getStreet());
+         writer.writeString(postCode, address.getPostCode());
+         writer.writeInt(number, address.getNumber());
+      }
+   }
+
+   @Test
+   public void testMarshallWithFieldDescriptors() throws Exception {
+      SerializationContext ctx = createContext();
+      Address address = new Address("Old Street", "XYZ42", -12);
+      byte[] expectedBytes = ProtobufUtil.toByteArray(ctx, address);
+
+      ctx.registerMarshaller(new AddressFieldDescriptorMarshaller(ctx.getMessageDescriptor("sample_bank_account.User.Address")));
+      assertArrayEquals(expectedBytes, ProtobufUtil.toByteArray(ctx, address));
+      Address decoded = ProtobufUtil.fromByteArray(ctx, expectedBytes, Address.class);
+      assertEquals("Old Street", decoded.getStreet());
+      assertEquals("XYZ42", decoded.getPostCode());
+      assertEquals(-12, decoded.getNumber());
+
+      // descriptors that do not belong to the current schema are looked up again by name
+      SerializationContext otherCtx = createContext();
+      ctx.registerMarshaller(new AddressFieldDescriptorMarshaller(otherCtx.getMessageDescriptor("sample_bank_account.User.Address")));
+      assertArrayEquals(expectedBytes, ProtobufUtil.toByteArray(ctx, address));
+      decoded = ProtobufUtil.fromByteArray(ctx, expectedBytes, Address.class);
+      assertEquals("XYZ42", decoded.getPostCode());
+   }
 }
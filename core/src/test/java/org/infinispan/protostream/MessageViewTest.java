@@ -0,0 +1,160 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.infinispan.protostream.domain.Address;
+import org.infinispan.protostream.domain.User;
+import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
+import org.infinispan.protostream.impl.WireFormat;
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test reading messages through a {@link MessageView}, without their marshallers.
+ *
+ * @since 3.1
+ */
+public class MessageViewTest extends AbstractProtoStreamTest {
+
+   private static final String PROTO = "package test_view;\n" +
+         "message Sample {\n" +
+         "   optional int32 count = 1 [default = 7];\n" +
+         "   repeated sint32 values = 2 [packed=true];\n" +
+         "   optional uint32 unsigned = 3;\n" +
+         "   optional double ratio = 4;\n" +
+         "   optional float weight = 5;\n" +
+         "   optional bool flag = 6;\n" +
+         "   optional bytes data = 7;\n" +
+         "   optional string label = 8 [default = \"none\"];\n" +
+         "   optional Level level = 9 [default = HIGH];\n" +
+         "   optional Level other = 10;\n" +
+         "   enum Level {\n" +
+         "      LOW = 1;\n" +
+         "      HIGH = 2;\n" +
+         "   }\n" +
+         "}\n";
+
+   private static User makeUser() {
+      User user = new User();
+      user.setId(1);
+      user.setName("John");
+      user.setSurname("Batman");
+      user.setGender(User.Gender.FEMALE);
+      user.setAccountIds(Collections.singleton(3));
+      user.setAddresses(Arrays.asList(new Address("Old Street", "XYZ42", -12), new Address("Bond Street", "QQ42", 312)));
+      return user;
+   }
+
+   private static void assertUser(MessageView view) throws Exception {
+      assertEquals("sample_bank_account.User", view.getDescriptor().getFullName());
+      assertEquals(1, view.getInt("id"));
+      assertEquals("Batman", view.getString("surname"));
+      assertEquals("John", view.getString("name"));
+      assertEquals(1, view.getInt("gender"));
+      assertFalse(view.hasField("age"));
+      assertEquals(0, view.getInt("age"));
+      assertNull(view.getString("notes"));
+      assertEquals(1, view.getCount("accountIds"));
+      assertEquals(3, view.getLong("accountIds", 0));
+
+      assertEquals(2, view.getCount("addresses"));
+      MessageView address = view.getMessage("addresses", 1);
+      assertEquals("Bond Street", address.getString("street"));
+      assertEquals(312, address.getInt("number"));
+      assertEquals(-12, view.getMessage("addresses", 0).getInt("number"));
+      // the last one
+      assertEquals("QQ42", view.getMessage("addresses").getString("postCode"));
+   }
+
+   @Test
+   public void testMessage() throws Exception {
+      SerializationContext ctx = createContext();
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, makeUser());
+
+      assertUser(ProtobufUtil.newMessageView(ctx, "sample_bank_account.User", bytes));
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+      buffer.put(bytes);
+      buffer.flip();
+      assertUser(ProtobufUtil.newMessageView(ctx, "sample_bank_account.User", buffer));
+      assertEquals(0, buffer.position());
+   }
+
+   @Test
+   public void testWrappedMessage() throws Exception {
+      SerializationContext ctx = createContext();
+      assertUser(ProtobufUtil.newWrappedMessageView(ctx, ProtobufUtil.toWrappedByteArray(ctx, makeUser())));
+      assertNull(ProtobufUtil.newWrappedMessageView(ctx, ProtobufUtil.toWrappedByteArray(ctx, "John")));
+      assertNull(ProtobufUtil.newWrappedMessageView(ctx, ProtobufUtil.toWrappedByteArray(ctx, User.Gender.MALE)));
+   }
+
+   @Test
+   public void testScalarTypes() throws Exception {
+      SerializationContext ctx = createContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_view.proto", PROTO));
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      // a packed encoding followed by a non-packed value, both are accepted for the same field
+      out.writeTag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      out.writeUInt32NoTag(3);
+      // zigzag encodings of -1, 0 and -60
+      out.writeUInt32NoTag(1);
+      out.writeUInt32NoTag(0);
+      out.writeUInt32NoTag(119);
+      out.writeSInt32(2, 5);
+      out.writeUInt32(3, -2);
+      out.writeDouble(4, 0.5d);
+      out.writeFloat(5, 1.5f);
+      out.writeBool(6, true);
+      out.writeBytes(7, new byte[]{1, 2, 3});
+      out.flush();
+
+      MessageView view = ProtobufUtil.newMessageView(ctx, "test_view.Sample", baos.toByteArray());
+      assertEquals(7, view.getInt("count"));
+      assertEquals("none", view.getString("label"));
+      // an absent enum field has the declared default, or else the first value
+      assertEquals(2, view.getInt("level"));
+      assertEquals(1, view.getInt("other"));
+      assertEquals(4, view.getCount("values"));
+      assertEquals(-1, view.getInt("values", 0));
+      assertEquals(-60, view.getInt("values", 2));
+      assertEquals(5, view.getInt("values", 3));
+      assertEquals(-2, view.getInt("unsigned"));
+      assertEquals(0xFFFFFFFEL, view.getLong("unsigned"));
+      assertEquals(0.5d, view.getDouble("ratio"), 0.0d);
+      assertEquals(1.5f, view.getFloat("weight"), 0.0f);
+      assertEquals(1.5d, view.getDouble("weight"), 0.0d);
+      assertTrue(view.getBoolean("flag"));
+      assertArrayEquals(new byte[]{1, 2, 3}, view.getBytes("data"));
+      assertTrue(view.getByteBuffer("data").isReadOnly());
+      assertEquals(3, view.getByteBuffer("data").remaining());
+   }
+
+   @Test(expected = IndexOutOfBoundsException.class)
+   public void testIndexOutOfBounds() throws Exception {
+      SerializationContext ctx = createContext();
+      ProtobufUtil.newMessageView(ctx, "sample_bank_account.User", ProtobufUtil.toByteArray(ctx, makeUser())).getMessage("addresses", 2);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testWrongType() throws Exception {
+      SerializationContext ctx = createContext();
+      ProtobufUtil.newMessageView(ctx, "sample_bank_account.User", ProtobufUtil.toByteArray(ctx, makeUser())).getString("id");
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testUnknownField() throws Exception {
+      SerializationContext ctx = createContext();
+      ProtobufUtil.newMessageView(ctx, "sample_bank_account.User", ProtobufUtil.toByteArray(ctx, makeUser())).getInt("city");
+   }
+}
@@ -0,0 +1,270 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test reading fields in a different order than the one they were written in, from all kinds of input.
+ *
+ * @since 3.1
+ */
+public class OutOfSequenceReadsTest extends AbstractProtoStreamTest {
+
+   private static final String PROTO = "package test_seq;\n" +
+         "message Item {\n" +
+         "   optional string name = 1;\n" +
+         "   optional int32 count = 2;\n" +
+         "}\n" +
+         "message Record {\n" +
+         "   optional int32 id = 1;\n" +
+         "   optional string title = 2;\n" +
+         "   optional Item item = 3;\n" +
+         "   repeated sint32 values = 4 [packed=true];\n" +
+         "   repeated Item items = 5;\n" +
+         "   repeated double weights = 6;\n" +
+         "}\n" +
+         "message RecordV2 {\n" +
+         "   optional int32 id = 1;\n" +
+         "   optional string title = 2;\n" +
+         "   optional Item item = 3;\n" +
+         "   repeated sint32 values = 4 [packed=true];\n" +
+         "   repeated Item items = 5;\n" +
+         "   repeated double weights = 6;\n" +
+         "   optional string comment = 7;\n" +
+         "}\n";
+
+   public static class Item {
+      String name;
+      Integer count;
+   }
+
+   public static class Record {
+      Integer id;
+      String title;
+      Item item;
+      int[] values;
+      List<Item> items;
+      double[] weights;
+      UnknownFieldSet unknownFieldSet;
+   }
+
+   public static class RecordV2 extends Record {
+      String comment;
+   }
+
+   private static final class ItemMarshaller implements MessageMarshaller<Item> {
+
+      @Override
+      public Item readFrom(ProtoStreamReader reader) throws IOException {
+         Item item = new Item();
+         item.count = reader.readInt("count");
+         item.name = reader.readString("name");
+         return item;
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, Item item) throws IOException {
+         writer.writeString("name", item.name);
+         writer.writeInt("count", item.count);
+      }
+
+      @Override
+      public Class<? extends Item> getJavaClass() {
+         return Item.class;
+      }
+
+      @Override
+      public String getTypeName() {
+         return "test_seq.Item";
+      }
+   }
+
+   /**
+    * Reads the fields in the reverse order of their numbers.
+    */
+   private static final class RecordMarshaller implements MessageMarshaller<Record>, UnknownFieldSetHandler<Record> {
+
+      @Override
+      public Record readFrom(ProtoStreamReader reader) throws IOException {
+         Record record = new Record();
+         record.weights = reader.readDoubles("weights");
+         record.items = reader.readCollection("items", new ArrayList<Item>(), Item.class);
+         record.values = reader.readInts("values");
+         record.item = reader.readObject("item", Item.class);
+         record.title = reader.readString("title");
+         record.id = reader.readInt("id");
+         return record;
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, Record record) throws IOException {
+         writer.writeInt("id", record.id);
+         writer.writeString("title", record.title);
+         writer.writeObject("item", record.item, Item.class);
+         writer.writeInts("values", record.values);
+         writer.writeCollection("items", record.items, Item.class);
+         writer.writeDoubles("weights", record.weights);
+      }
+
+      @Override
+      public UnknownFieldSet getUnknownFieldSet(Record record) {
+         return record.unknownFieldSet;
+      }
+
+      @Override
+      public void setUnknownFieldSet(Record record, UnknownFieldSet unknownFieldSet) {
+         record.unknownFieldSet = unknownFieldSet;
+      }
+
+      @Override
+      public Class<? extends Record> getJavaClass() {
+         return Record.class;
+      }
+
+      @Override
+      public String getTypeName() {
+         return "test_seq.Record";
+      }
+   }
+
+   private static final class RecordV2Marshaller implements MessageMarshaller<RecordV2> {
+
+      @Override
+      public RecordV2 readFrom(ProtoStreamReader reader) throws IOException {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, RecordV2 record) throws IOException {
+         writer.writeInt("id", record.id);
+         writer.writeString("title", record.title);
+         writer.writeObject("item", record.item, Item.class);
+         writer.writeInts("values", record.values);
+         writer.writeCollection("items", record.items, Item.class);
+         writer.writeDoubles("weights", record.weights);
+         writer.writeString("comment", record.comment);
+      }
+
+      @Override
+      public Class<? extends RecordV2> getJavaClass() {
+         return RecordV2.class;
+      }
+
+      @Override
+      public String getTypeName() {
+         return "test_seq.RecordV2";
+      }
+   }
+
+   private SerializationContext createSequenceContext() throws Exception {
+      SerializationContext ctx = createContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_seq.proto", PROTO));
+      ctx.registerMarshaller(new ItemMarshaller());
+      ctx.registerMarshaller(new RecordMarshaller());
+      ctx.registerMarshaller(new RecordV2Marshaller());
+      return ctx;
+   }
+
+   private static Item makeItem(String name, int count) {
+      Item item = new Item();
+      item.name = name;
+      item.count = count;
+      return item;
+   }
+
+   private static <T extends Record> T makeRecord(T record) {
+      record.id = 7;
+      record.title = "title";
+      record.item = makeItem("single", 1);
+      record.values = new int[]{-1, 0, 100000};
+      record.items = Arrays.asList(makeItem("first", 2), makeItem("second", 3));
+      record.weights = new double[]{0.5d, 1.5d};
+      return record;
+   }
+
+   private static void assertItemEquals(Item expected, Item actual) {
+      assertEquals(expected.name, actual.name);
+      assertEquals(expected.count, actual.count);
+   }
+
+   private static void assertRecordEquals(Record expected, Record actual) {
+      assertEquals(expected.id, actual.id);
+      assertEquals(expected.title, actual.title);
+      assertItemEquals(expected.item, actual.item);
+      assertArrayEquals(expected.values, actual.values);
+      assertEquals(expected.items.size(), actual.items.size());
+      for (int i = 0; i < expected.items.size(); i++) {
+         assertItemEquals(expected.items.get(i), actual.items.get(i));
+      }
+      assertArrayEquals(expected.weights, actual.weights, 0.0d);
+   }
+
+   @Test
+   public void testByteArray() throws Exception {
+      SerializationContext ctx = createSequenceContext();
+      Record record = makeRecord(new Record());
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, record);
+      Record decoded = ProtobufUtil.fromByteArray(ctx, bytes, Record.class);
+
+      assertRecordEquals(record, decoded);
+      assertNull(decoded.unknownFieldSet);
+   }
+
+   @Test
+   public void testDirectByteBuffer() throws Exception {
+      SerializationContext ctx = createSequenceContext();
+      Record record = makeRecord(new Record());
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, record);
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+      buffer.put(bytes);
+      buffer.flip();
+      Record decoded = ProtobufUtil.fromByteBuffer(ctx, buffer, Record.class);
+
+      assertRecordEquals(record, decoded);
+      assertNull(decoded.unknownFieldSet);
+   }
+
+   @Test
+   public void testInputStream() throws Exception {
+      SerializationContext ctx = createSequenceContext();
+      Record record = makeRecord(new Record());
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, record);
+      Record decoded = ProtobufUtil.readFrom(ctx, new ByteArrayInputStream(bytes), Record.class);
+
+      assertRecordEquals(record, decoded);
+      assertNull(decoded.unknownFieldSet);
+   }
+
+   @Test
+   public void testSkippedUnknownFieldIsPreserved() throws Exception {
+      SerializationContext ctx = createSequenceContext();
+      RecordV2 record = makeRecord(new RecordV2());
+      record.comment = "unknown to the reader";
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, record);
+      Record decoded = ProtobufUtil.fromByteArray(ctx, bytes, Record.class);
+
+      assertRecordEquals(record, decoded);
+      assertNotNull(decoded.unknownFieldSet);
+      assertArrayEquals(bytes, ProtobufUtil.toByteArray(ctx, decoded));
+
+      decoded = ProtobufUtil.readFrom(ctx, new ByteArrayInputStream(bytes), Record.class);
+      assertRecordEquals(record, decoded);
+      assertArrayEquals(bytes, ProtobufUtil.toByteArray(ctx, decoded));
+   }
+}
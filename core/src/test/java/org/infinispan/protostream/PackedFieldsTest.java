@@ -0,0 +1,204 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.JavaType;
+import org.infinispan.protostream.descriptors.Type;
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test the packed encoding of repeated scalar fields.
+ *
+ * @since 3.1
+ */
+public class PackedFieldsTest extends AbstractProtoStreamTest {
+
+   private static final String PROTO = "package test_packed;\n" +
+         "message Samples {\n" +
+         "   repeated int32 ints = 1 [packed=true];\n" +
+         "   repeated sint64 longs = 2 [packed=true];\n" +
+         "   repeated double doubles = 3 [packed=true];\n" +
+         "   repeated bool flags = 4 [packed=true];\n" +
+         "}\n" +
+         "message UnpackedSamples {\n" +
+         "   repeated int32 ints = 1;\n" +
+         "   repeated sint64 longs = 2;\n" +
+         "   repeated double doubles = 3;\n" +
+         "   repeated bool flags = 4;\n" +
+         "}\n";
+
+   public static class Samples {
+      List<Integer> ints = new ArrayList<>();
+      Long[] longs = new Long[0];
+      List<Double> doubles = new ArrayList<>();
+      List<Boolean> flags = new ArrayList<>();
+   }
+
+   public static class UnpackedSamples extends Samples {
+   }
+
+   private static final class SamplesMarshaller<T extends Samples> implements MessageMarshaller<T> {
+
+      private final String typeName;
+      private final Class<T> javaClass;
+
+      SamplesMarshaller(String typeName, Class<T> javaClass) {
+         this.typeName = typeName;
+         this.javaClass = javaClass;
+      }
+
+      @Override
+      public T readFrom(ProtoStreamReader reader) throws IOException {
+         T samples;
+         try {
+            samples = javaClass.newInstance();
+         } catch (Exception e) {
+            throw new IOException(e);
+         }
+         samples.ints = reader.readCollection("ints", new ArrayList<Integer>(), Integer.class);
+         samples.longs = reader.readArray("longs", Long.class);
+         samples.doubles = reader.readCollection("doubles", new ArrayList<Double>(), Double.class);
+         samples.flags = reader.readCollection("flags", new ArrayList<Boolean>(), Boolean.class);
+         return samples;
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, T samples) throws IOException {
+         writer.writeCollection("ints", samples.ints, Integer.class);
+         writer.writeArray("longs", samples.longs, Long.class);
+         writer.writeCollection("doubles", samples.doubles, Double.class);
+         writer.writeCollection("flags", samples.flags, Boolean.class);
+      }
+
+      @Override
+      public Class<? extends T> getJavaClass() {
+         return javaClass;
+      }
+
+      @Override
+      public String getTypeName() {
+         return typeName;
+      }
+   }
+
+   private SerializationContext createPackedContext() throws Exception {
+      SerializationContext ctx = createContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_packed.proto", PROTO));
+      ctx.registerMarshaller(new SamplesMarshaller<>("test_packed.Samples", Samples.class));
+      ctx.registerMarshaller(new SamplesMarshaller<>("test_packed.UnpackedSamples", UnpackedSamples.class));
+      return ctx;
+   }
+
+   private static Samples makeSamples() {
+      Samples samples = new Samples();
+      samples.ints = Arrays.asList(1, -1, 300);
+      samples.longs = new Long[]{-2L, 5L, Long.MIN_VALUE};
+      samples.doubles = Arrays.asList(1.5d, -0.25d);
+      samples.flags = Arrays.asList(true, false, true);
+      return samples;
+   }
+
+   @Test
+   public void testPackedRoundTrip() throws Exception {
+      SerializationContext ctx = createPackedContext();
+      Samples samples = makeSamples();
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, samples);
+      Samples decoded = ProtobufUtil.fromByteArray(ctx, bytes, Samples.class);
+
+      assertEquals(samples.ints, decoded.ints);
+      assertArrayEquals(samples.longs, decoded.longs);
+      assertEquals(samples.doubles, decoded.doubles);
+      assertEquals(samples.flags, decoded.flags);
+   }
+
+   @Test
+   public void testPackedEncoding() throws Exception {
+      SerializationContext ctx = createPackedContext();
+      Samples samples = new Samples();
+      samples.ints = Arrays.asList(1, -1, 300);
+      samples.flags = Collections.emptyList();
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, samples);
+
+      // a single length-delimited record for field 1, negative int32 values are sign extended to 10 bytes,
+      // empty packed fields are omitted
+      byte[] expected = {0x0A, 13, 0x01,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01,
+            (byte) 0xAC, 0x02};
+      assertArrayEquals(expected, bytes);
+   }
+
+   @Test
+   public void testUnpackedFieldAcceptsPackedInput() throws Exception {
+      SerializationContext ctx = createPackedContext();
+      Samples samples = makeSamples();
+
+      byte[] packedBytes = ProtobufUtil.toByteArray(ctx, samples);
+      Samples decoded = ProtobufUtil.fromByteArray(ctx, packedBytes, UnpackedSamples.class);
+
+      assertEquals(samples.ints, decoded.ints);
+      assertArrayEquals(samples.longs, decoded.longs);
+      assertEquals(samples.doubles, decoded.doubles);
+      assertEquals(samples.flags, decoded.flags);
+
+      // and the other way round
+      UnpackedSamples unpacked = new UnpackedSamples();
+      unpacked.ints = samples.ints;
+      unpacked.longs = samples.longs;
+      byte[] unpackedBytes = ProtobufUtil.toByteArray(ctx, unpacked);
+      decoded = ProtobufUtil.fromByteArray(ctx, unpackedBytes, Samples.class);
+      assertEquals(samples.ints, decoded.ints);
+      assertArrayEquals(samples.longs, decoded.longs);
+   }
+
+   @Test
+   public void testParserReportsPackedElements() throws Exception {
+      SerializationContext ctx = createPackedContext();
+      Samples samples = makeSamples();
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, samples);
+
+      final List<Object> ints = new ArrayList<>();
+      final List<Object> longs = new ArrayList<>();
+      TagHandler tagHandler = new TagHandler() {
+         @Override
+         public void onStart() {
+         }
+
+         @Override
+         public void onTag(int fieldNumber, String fieldName, Type type, JavaType javaType, Object tagValue) {
+            if (fieldNumber == 1) {
+               ints.add(tagValue);
+            } else if (fieldNumber == 2) {
+               longs.add(tagValue);
+            }
+         }
+
+         @Override
+         public void onStartNested(int fieldNumber, String fieldName, Descriptor messageDescriptor) {
+         }
+
+         @Override
+         public void onEndNested(int fieldNumber, String fieldName, Descriptor messageDescriptor) {
+         }
+
+         @Override
+         public void onEnd() {
+         }
+      };
+      ProtobufParser.INSTANCE.parse(tagHandler, ctx.getMessageDescriptor("test_packed.Samples"), bytes);
+
+      assertEquals(new ArrayList<Object>(samples.ints), ints);
+      assertEquals(Arrays.<Object>asList(samples.longs), longs);
+   }
+}
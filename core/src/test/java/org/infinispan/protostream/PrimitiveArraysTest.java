@@ -0,0 +1,240 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test the primitive array read/write methods of {@link MessageMarshaller.ProtoStreamReader} and {@link
+ * MessageMarshaller.ProtoStreamWriter}.
+ *
+ * @since 3.1
+ */
+public class PrimitiveArraysTest extends AbstractProtoStreamTest {
+
+   private static final String PROTO = "package test_arrays;\n" +
+         "message Arrays {\n" +
+         "   repeated sint32 ints = 1;\n" +
+         "   repeated int64 longs = 2;\n" +
+         "   repeated double doubles = 3;\n" +
+         "   repeated float floats = 4;\n" +
+         "}\n" +
+         "message PackedArrays {\n" +
+         "   repeated sint32 ints = 1 [packed=true];\n" +
+         "   repeated int64 longs = 2 [packed=true];\n" +
+         "   repeated double doubles = 3 [packed=true];\n" +
+         "   repeated float floats = 4 [packed=true];\n" +
+         "}\n" +
+         "message BoxedArrays {\n" +
+         "   repeated sint32 ints = 1;\n" +
+         "   repeated int64 longs = 2;\n" +
+         "}\n";
+
+   public static class Arrays1 {
+      int[] ints;
+      long[] longs;
+      double[] doubles;
+      float[] floats;
+   }
+
+   public static class PackedArrays1 extends Arrays1 {
+   }
+
+   public static class BoxedArrays {
+      List<Integer> ints;
+      List<Long> longs;
+   }
+
+   private static final class ArraysMarshaller<T extends Arrays1> implements MessageMarshaller<T> {
+
+      private final String typeName;
+      private final Class<T> javaClass;
+
+      ArraysMarshaller(String typeName, Class<T> javaClass) {
+         this.typeName = typeName;
+         this.javaClass = javaClass;
+      }
+
+      @Override
+      public T readFrom(ProtoStreamReader reader) throws IOException {
+         T arrays;
+         try {
+            arrays = javaClass.newInstance();
+         } catch (Exception e) {
+            throw new IOException(e);
+         }
+         arrays.ints = reader.readInts("ints");
+         arrays.longs = reader.readLongs("longs");
+         arrays.doubles = reader.readDoubles("doubles");
+         arrays.floats = reader.readFloats("floats");
+         return arrays;
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, T arrays) throws IOException {
+         writer.writeInts("ints", arrays.ints);
+         writer.writeLongs("longs", arrays.longs);
+         writer.writeDoubles("doubles", arrays.doubles);
+         writer.writeFloats("floats", arrays.floats);
+      }
+
+      @Override
+      public Class<? extends T> getJavaClass() {
+         return javaClass;
+      }
+
+      @Override
+      public String getTypeName() {
+         return typeName;
+      }
+   }
+
+   private static final class BoxedArraysMarshaller implements MessageMarshaller<BoxedArrays> {
+
+      @Override
+      public BoxedArrays readFrom(ProtoStreamReader reader) throws IOException {
+         BoxedArrays arrays = new BoxedArrays();
+         arrays.ints = reader.readCollection("ints", new ArrayList<Integer>(), Integer.class);
+         arrays.longs = reader.readCollection("longs", new ArrayList<Long>(), Long.class);
+         return arrays;
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, BoxedArrays arrays) throws IOException {
+         writer.writeCollection("ints", arrays.ints, Integer.class);
+         writer.writeCollection("longs", arrays.longs, Long.class);
+      }
+
+      @Override
+      public Class<? extends BoxedArrays> getJavaClass() {
+         return BoxedArrays.class;
+      }
+
+      @Override
+      public String getTypeName() {
+         return "test_arrays.BoxedArrays";
+      }
+   }
+
+   private SerializationContext createArraysContext() throws Exception {
+      SerializationContext ctx = createContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_arrays.proto", PROTO));
+      ctx.registerMarshaller(new ArraysMarshaller<>("test_arrays.Arrays", Arrays1.class));
+      ctx.registerMarshaller(new ArraysMarshaller<>("test_arrays.PackedArrays", PackedArrays1.class));
+      ctx.registerMarshaller(new BoxedArraysMarshaller());
+      return ctx;
+   }
+
+   private static <T extends Arrays1> T makeArrays(T arrays) {
+      // more elements than the initial capacity of the builders
+      arrays.ints = new int[40];
+      for (int i = 0; i < arrays.ints.length; i++) {
+         arrays.ints[i] = (i - 20) * 1000;
+      }
+      arrays.longs = new long[]{-1L, 0L, Long.MAX_VALUE, Long.MIN_VALUE};
+      arrays.doubles = new double[]{1.5d, Double.NaN, -0.0d};
+      arrays.floats = new float[]{2.5f, Float.MAX_VALUE};
+      return arrays;
+   }
+
+   private static void assertArraysEqual(Arrays1 expected, Arrays1 actual) {
+      assertArrayEquals(expected.ints, actual.ints);
+      assertArrayEquals(expected.longs, actual.longs);
+      assertArrayEquals(expected.doubles, actual.doubles, 0.0d);
+      assertArrayEquals(expected.floats, actual.floats, 0.0f);
+   }
+
+   @Test
+   public void testRoundTrip() throws Exception {
+      SerializationContext ctx = createArraysContext();
+      Arrays1 arrays = makeArrays(new Arrays1());
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, arrays);
+      Arrays1 decoded = ProtobufUtil.fromByteArray(ctx, bytes, Arrays1.class);
+
+      assertArraysEqual(arrays, decoded);
+   }
+
+   @Test
+   public void testPackedRoundTrip() throws Exception {
+      SerializationContext ctx = createArraysContext();
+      PackedArrays1 arrays = makeArrays(new PackedArrays1());
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, arrays);
+      Arrays1 decoded = ProtobufUtil.fromByteArray(ctx, bytes, PackedArrays1.class);
+      assertArraysEqual(arrays, decoded);
+
+      // packed input is accepted by an unpacked field
+      decoded = ProtobufUtil.fromByteArray(ctx, bytes, Arrays1.class);
+      assertArraysEqual(arrays, decoded);
+   }
+
+   @Test
+   public void testMissingFields() throws Exception {
+      SerializationContext ctx = createArraysContext();
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, new Arrays1());
+      assertEquals(0, bytes.length);
+
+      Arrays1 decoded = ProtobufUtil.fromByteArray(ctx, bytes, Arrays1.class);
+      assertEquals(0, decoded.ints.length);
+      assertEquals(0, decoded.longs.length);
+      assertEquals(0, decoded.doubles.length);
+      assertEquals(0, decoded.floats.length);
+   }
+
+   @Test
+   public void testSameEncodingAsCollections() throws Exception {
+      SerializationContext ctx = createArraysContext();
+
+      BoxedArrays boxed = new BoxedArrays();
+      boxed.ints = Arrays.asList(-3, 0, 7);
+      boxed.longs = Arrays.asList(Long.MIN_VALUE, 42L);
+
+      Arrays1 arrays = new Arrays1();
+      arrays.ints = new int[]{-3, 0, 7};
+      arrays.longs = new long[]{Long.MIN_VALUE, 42L};
+
+      byte[] boxedBytes = ProtobufUtil.toByteArray(ctx, boxed);
+      assertArrayEquals(boxedBytes, ProtobufUtil.toByteArray(ctx, arrays));
+
+      Arrays1 decoded = ProtobufUtil.fromByteArray(ctx, boxedBytes, Arrays1.class);
+      assertArrayEquals(arrays.ints, decoded.ints);
+      assertArrayEquals(arrays.longs, decoded.longs);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testIncompatibleFieldType() throws Exception {
+      SerializationContext ctx = createArraysContext();
+      ctx.registerMarshaller(new MessageMarshaller<Arrays1>() {
+         @Override
+         public Arrays1 readFrom(ProtoStreamReader reader) throws IOException {
+            return null;
+         }
+
+         @Override
+         public void writeTo(ProtoStreamWriter writer, Arrays1 arrays) throws IOException {
+            writer.writeLongs("ints", new long[]{1L});
+         }
+
+         @Override
+         public Class<? extends Arrays1> getJavaClass() {
+            return Arrays1.class;
+         }
+
+         @Override
+         public String getTypeName() {
+            return "test_arrays.Arrays";
+         }
+      });
+
+      ProtobufUtil.toByteArray(ctx, new Arrays1());
+   }
+}
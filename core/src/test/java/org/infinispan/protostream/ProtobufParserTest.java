@@ -1,11 +1,16 @@
 package org.infinispan.protostream;
 
+import static org.junit.Assert.assertEquals;
+
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 
 import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
 import org.infinispan.protostream.descriptors.JavaType;
 import org.infinispan.protostream.descriptors.Type;
 import org.infinispan.protostream.domain.Address;
@@ -85,4 +90,84 @@ public class ProtobufParserTest extends AbstractProtoStreamTest {
 
       ProtobufParser.INSTANCE.parse(tagHandler, wrapperDescriptor, bytes);
    }
+
+   @Test
+   public void testTypedTagHandler() throws Exception {
+      SerializationContext ctx = createContext();
+
+      User user = new User();
+      user.setId(1);
+      user.setName("John");
+      user.setSurname("Batman");
+      user.setGender(User.Gender.MALE);
+      user.setAccountIds(Collections.singleton(3));
+      user.setAddresses(Collections.singletonList(new Address("Old Street", "XYZ42", -12)));
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, user);
+
+      final List<String> events = new ArrayList<>();
+      TypedTagHandler tagHandler = new TypedTagHandler() {
+
+         @Override
+         public void onStart() {
+            events.add("start");
+         }
+
+         @Override
+         public void onInt(int fieldNumber, FieldDescriptor fieldDescriptor, int value) {
+            events.add("int " + fieldDescriptor.getName() + "=" + value);
+         }
+
+         @Override
+         public void onLong(int fieldNumber, FieldDescriptor fieldDescriptor, long value) {
+            events.add("long " + fieldDescriptor.getName() + "=" + value);
+         }
+
+         @Override
+         public void onDouble(int fieldNumber, FieldDescriptor fieldDescriptor, double value) {
+            events.add("double " + fieldDescriptor.getName() + "=" + value);
+         }
+
+         @Override
+         public void onFloat(int fieldNumber, FieldDescriptor fieldDescriptor, float value) {
+            events.add("float " + fieldDescriptor.getName() + "=" + value);
+         }
+
+         @Override
+         public void onBool(int fieldNumber, FieldDescriptor fieldDescriptor, boolean value) {
+            events.add("bool " + fieldDescriptor.getName() + "=" + value);
+         }
+
+         @Override
+         public void onString(int fieldNumber, FieldDescriptor fieldDescriptor, String value) {
+            events.add("string " + fieldDescriptor.getName() + "=" + value);
+         }
+
+         @Override
+         public void onBytes(int fieldNumber, FieldDescriptor fieldDescriptor, byte[] value) {
+            events.add("bytes " + fieldDescriptor.getName() + "=" + value.length);
+         }
+
+         @Override
+         public void onStartNested(int fieldNumber, FieldDescriptor fieldDescriptor, Descriptor messageDescriptor) {
+            events.add("startNested " + fieldDescriptor.getName());
+         }
+
+         @Override
+         public void onEndNested(int fieldNumber, FieldDescriptor fieldDescriptor, Descriptor messageDescriptor) {
+            events.add("endNested " + fieldDescriptor.getName());
+         }
+
+         @Override
+         public void onEnd() {
+            events.add("end");
+         }
+      };
+
+      ProtobufParser.INSTANCE.parse(tagHandler, ctx.getMessageDescriptor("sample_bank_account.User"), bytes);
+
+      assertEquals(Arrays.asList("start", "int id=1", "int accountIds=3", "string name=John", "string surname=Batman",
+            "startNested addresses", "string street=Old Street", "string postCode=XYZ42", "int number=-12", "endNested addresses",
+            "int gender=0", "end"), events);
+   }
 }
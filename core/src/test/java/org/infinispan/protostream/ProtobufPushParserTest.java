@@ -0,0 +1,224 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.JavaType;
+import org.infinispan.protostream.descriptors.Type;
+import org.infinispan.protostream.domain.Account;
+import org.infinispan.protostream.domain.Address;
+import org.infinispan.protostream.domain.User;
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test that {@link ProtobufPushParser} produces the same events as {@link ProtobufParser} regardless of how the input
+ * is fragmented.
+ *
+ * @since 3.1
+ */
+public class ProtobufPushParserTest extends AbstractProtoStreamTest {
+
+   private static final class RecordingTagHandler implements TagHandler {
+
+      final List<String> events = new ArrayList<>();
+
+      @Override
+      public void onStart() {
+         events.add("start");
+      }
+
+      @Override
+      public void onTag(int fieldNumber, String fieldName, Type type, JavaType javaType, Object tagValue) {
+         String value = tagValue instanceof byte[] ? Arrays.toString((byte[]) tagValue) : String.valueOf(tagValue);
+         events.add("tag " + fieldNumber + " " + fieldName + " " + type + " " + javaType + " " + value);
+      }
+
+      @Override
+      public void onStartNested(int fieldNumber, String fieldName, Descriptor messageDescriptor) {
+         events.add("startNested " + fieldNumber + " " + fieldName);
+      }
+
+      @Override
+      public void onEndNested(int fieldNumber, String fieldName, Descriptor messageDescriptor) {
+         events.add("endNested " + fieldNumber + " " + fieldName);
+      }
+
+      @Override
+      public void onEnd() {
+         events.add("end");
+      }
+   }
+
+   private static User makeUser() {
+      User user = new User();
+      user.setId(1);
+      user.setName("John \u00e9\u20ac");
+      user.setSurname("Batman");
+      user.setGender(User.Gender.MALE);
+      user.setAccountIds(new HashSet<>(Arrays.asList(1, 3, 300000)));
+      char[] street = new char[300];
+      Arrays.fill(street, 's');
+      user.setAddresses(Arrays.asList(new Address(new String(street), "XYZ42", -12), new Address("Bond Street", "QQ42", 312)));
+      return user;
+   }
+
+   private static List<String> parse(Descriptor descriptor, byte[] bytes) throws IOException {
+      RecordingTagHandler handler = new RecordingTagHandler();
+      ProtobufParser.INSTANCE.parse(handler, descriptor, bytes);
+      return handler.events;
+   }
+
+   private static List<String> pushParse(Descriptor descriptor, byte[] bytes, Random random, int maxChunk) throws IOException {
+      RecordingTagHandler handler = new RecordingTagHandler();
+      ProtobufPushParser parser = new ProtobufPushParser(handler, descriptor);
+      int pos = 0;
+      while (pos < bytes.length) {
+         int n = Math.min(bytes.length - pos, 1 + random.nextInt(maxChunk));
+         ByteBuffer chunk = ByteBuffer.allocateDirect(n);
+         chunk.put(bytes, pos, n).flip();
+         parser.feed(chunk);
+         assertEquals(0, chunk.remaining());
+         pos += n;
+      }
+      parser.finish();
+      return handler.events;
+   }
+
+   private static void assertSameEvents(Descriptor descriptor, byte[] bytes) throws IOException {
+      List<String> expected = parse(descriptor, bytes);
+      Random random = new Random(42);
+      assertEquals(expected, pushParse(descriptor, bytes, random, 1));
+      assertEquals(expected, pushParse(descriptor, bytes, random, 7));
+      assertEquals(expected, pushParse(descriptor, bytes, random, 100));
+      assertEquals(expected, pushParse(descriptor, bytes, random, bytes.length));
+   }
+
+   @Test
+   public void testUser() throws Exception {
+      SerializationContext ctx = createContext();
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, makeUser());
+      assertSameEvents(ctx.getMessageDescriptor("sample_bank_account.User"), bytes);
+   }
+
+   @Test
+   public void testAccount() throws Exception {
+      SerializationContext ctx = createContext();
+      Account account = new Account();
+      account.setId(1);
+      account.setDescription("test account");
+      account.setCreationDate(new java.util.Date(1500000000000L));
+      account.setBlurb(Arrays.asList(new byte[0], new byte[]{1, 2, 3}));
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, account);
+      assertSameEvents(ctx.getMessageDescriptor("sample_bank_account.Account"), bytes);
+   }
+
+   @Test
+   public void testWrappedMessage() throws Exception {
+      SerializationContext ctx = createContext();
+      byte[] bytes = ProtobufUtil.toWrappedByteArray(ctx, makeUser());
+      assertSameEvents(ctx.getMessageDescriptor(WrappedMessage.PROTOBUF_TYPE_NAME), bytes);
+   }
+
+   @Test(expected = IOException.class)
+   public void testTruncatedInput() throws Exception {
+      SerializationContext ctx = createContext();
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, makeUser());
+      ProtobufPushParser parser = new ProtobufPushParser(new RecordingTagHandler(), ctx.getMessageDescriptor("sample_bank_account.User"));
+      parser.feed(bytes, 0, bytes.length - 10);
+      parser.finish();
+   }
+
+   @Test
+   public void testLargeBytesField() throws Exception {
+      SerializationContext ctx = createContext();
+      Account account = new Account();
+      account.setId(1);
+      account.setDescription("test account");
+      account.setCreationDate(new java.util.Date(1500000000000L));
+      byte[] blurb = new byte[20000];
+      new Random(42).nextBytes(blurb);
+      account.setBlurb(Arrays.asList(blurb, new byte[]{1, 2, 3}));
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, account);
+      assertSameEvents(ctx.getMessageDescriptor("sample_bank_account.Account"), bytes);
+   }
+
+   /**
+    * Makes the beginning of a message having an unknown bytes field that claims to be almost 2GB long.
+    */
+   private static byte[] makeHostileLengthPrefix() {
+      return new byte[]{
+            (byte) 0xC2, 0x3E,                              // field 1000, length delimited
+            (byte) 0xF0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, // length 0x7FFFFFF0
+            1, 2, 3, 4, 5
+      };
+   }
+
+   @Test
+   public void testHostileLengthPrefix() throws Exception {
+      SerializationContext ctx = createContext();
+      Descriptor descriptor = ctx.getMessageDescriptor("sample_bank_account.User");
+      byte[] bytes = makeHostileLengthPrefix();
+
+      try {
+         new ProtobufPushParser(new RecordingTagHandler(), descriptor).feed(bytes, 0, bytes.length);
+         fail("IOException expected");
+      } catch (IOException e) {
+         assertEquals("The length 2147483632 at position 7 exceeds the maximum field size of " + ProtobufPushParser.DEFAULT_MAX_FIELD_SIZE + " bytes", e.getMessage());
+      }
+
+      // without a limit the buffer only grows with the received bytes, so many such parsers can be pending at once
+      List<ProtobufPushParser> parsers = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+         ProtobufPushParser parser = new ProtobufPushParser(new RecordingTagHandler(), descriptor, Integer.MAX_VALUE, Long.MAX_VALUE);
+         parser.feed(bytes, 0, bytes.length);
+         parsers.add(parser);
+      }
+      for (ProtobufPushParser parser : parsers) {
+         try {
+            parser.finish();
+            fail("IOException expected");
+         } catch (IOException e) {
+            // the input ended in the middle of the field
+         }
+      }
+   }
+
+   @Test
+   public void testMaxMessageSize() throws Exception {
+      SerializationContext ctx = createContext();
+      Descriptor descriptor = ctx.getMessageDescriptor("sample_bank_account.User");
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, makeUser());
+
+      ProtobufPushParser parser = new ProtobufPushParser(new RecordingTagHandler(), descriptor, Integer.MAX_VALUE, bytes.length);
+      parser.feed(bytes, 0, bytes.length);
+      parser.finish();
+
+      // a length prefix that crosses the limit fails before its bytes arrive
+      parser = new ProtobufPushParser(new RecordingTagHandler(), descriptor, Integer.MAX_VALUE, 100);
+      try {
+         parser.feed(bytes, 0, 50);
+         fail("IOException expected");
+      } catch (IOException e) {
+         assertEquals("The message exceeds the maximum size of 100 bytes", e.getMessage());
+      }
+
+      // and so does a chunk that crosses it
+      parser = new ProtobufPushParser(new RecordingTagHandler(), descriptor, Integer.MAX_VALUE, bytes.length - 1);
+      try {
+         parser.feed(bytes, 0, bytes.length);
+         fail("IOException expected");
+      } catch (IOException e) {
+         assertEquals("The message exceeds the maximum size of " + (bytes.length - 1) + " bytes", e.getMessage());
+      }
+   }
+}
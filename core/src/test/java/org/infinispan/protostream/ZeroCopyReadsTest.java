@@ -0,0 +1,227 @@
+package org.infinispan.protostream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.infinispan.protostream.config.Configuration;
+import org.infinispan.protostream.impl.RawProtoStreamReaderImpl;
+import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
+import org.infinispan.protostream.impl.WireFormat;
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test reading bytes fields and wrapped messages from {@link ByteBuffer}s with and without zero copy.
+ *
+ * @since 3.1
+ */
+public class ZeroCopyReadsTest extends AbstractProtoStreamTest {
+
+   private static final String PROTO = "package test_zero_copy;\n" +
+         "message Blob {\n" +
+         "   optional string name = 1;\n" +
+         "   optional bytes data = 2;\n" +
+         "}\n";
+
+   public static class Blob {
+      String name;
+      ByteBuffer data;
+   }
+
+   private static final class BlobMarshaller implements MessageMarshaller<Blob> {
+
+      @Override
+      public Blob readFrom(ProtoStreamReader reader) throws IOException {
+         Blob blob = new Blob();
+         // out of sequence, so the name gets skipped
+         blob.data = reader.readByteBuffer("data");
+         blob.name = reader.readString("name");
+         return blob;
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, Blob blob) throws IOException {
+         writer.writeString("name", blob.name);
+         if (blob.data != null) {
+            byte[] bytes = new byte[blob.data.remaining()];
+            blob.data.duplicate().get(bytes);
+            writer.writeBytes("data", bytes);
+         }
+      }
+
+      @Override
+      public Class<? extends Blob> getJavaClass() {
+         return Blob.class;
+      }
+
+      @Override
+      public String getTypeName() {
+         return "test_zero_copy.Blob";
+      }
+   }
+
+   private SerializationContext createBlobContext(boolean zeroCopy) throws Exception {
+      SerializationContext ctx = createContext(new Configuration.Builder().setZeroCopyByteBuffers(zeroCopy));
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_zero_copy.proto", PROTO));
+      ctx.registerMarshaller(new BlobMarshaller());
+      return ctx;
+   }
+
+   private static Blob makeBlob() {
+      Blob blob = new Blob();
+      blob.name = "blob";
+      byte[] data = new byte[2000];
+      for (int i = 0; i < data.length; i++) {
+         data[i] = (byte) i;
+      }
+      blob.data = ByteBuffer.wrap(data);
+      return blob;
+   }
+
+   private static ByteBuffer toDirect(byte[] bytes) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+      buffer.put(bytes);
+      buffer.flip();
+      return buffer;
+   }
+
+   /**
+    * Finds the position of the first data byte of the blob in its encoding.
+    */
+   private static int dataOffset(byte[] bytes, Blob blob) {
+      return bytes.length - blob.data.remaining();
+   }
+
+   private static void assertSharesSource(ByteBuffer source, int dataOffset, ByteBuffer data) {
+      assertTrue(data.isReadOnly());
+      byte b = data.get(5);
+      source.put(dataOffset + 5, (byte) (b + 1));
+      assertEquals((byte) (b + 1), data.get(5));
+   }
+
+   private static void assertDoesNotShareSource(ByteBuffer source, int dataOffset, ByteBuffer data) {
+      assertTrue(data.isReadOnly());
+      byte b = data.get(5);
+      source.put(dataOffset + 5, (byte) (b + 1));
+      assertEquals(b, data.get(5));
+   }
+
+   @Test
+   public void testHeapBuffer() throws Exception {
+      SerializationContext ctx = createBlobContext(true);
+      Blob blob = makeBlob();
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, blob);
+      ByteBuffer source = ByteBuffer.wrap(bytes);
+      Blob decoded = ProtobufUtil.fromByteBuffer(ctx, source, Blob.class);
+
+      assertEquals(blob.name, decoded.name);
+      assertEquals(blob.data, decoded.data);
+      assertSharesSource(source, dataOffset(bytes, blob), decoded.data);
+   }
+
+   @Test
+   public void testDirectBuffer() throws Exception {
+      SerializationContext ctx = createBlobContext(true);
+      Blob blob = makeBlob();
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, blob);
+      ByteBuffer source = toDirect(bytes);
+      Blob decoded = ProtobufUtil.fromByteBuffer(ctx, source, Blob.class);
+
+      assertEquals(blob.name, decoded.name);
+      assertEquals(blob.data, decoded.data);
+      assertSharesSource(source, dataOffset(bytes, blob), decoded.data);
+   }
+
+   @Test
+   public void testCopyByDefault() throws Exception {
+      SerializationContext ctx = createBlobContext(false);
+      Blob blob = makeBlob();
+
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, blob);
+      ByteBuffer source = ByteBuffer.wrap(bytes);
+      Blob decoded = ProtobufUtil.fromByteBuffer(ctx, source, Blob.class);
+      assertEquals(blob.data, decoded.data);
+      assertDoesNotShareSource(source, dataOffset(bytes, blob), decoded.data);
+
+      bytes = ProtobufUtil.toByteArray(ctx, blob);
+      source = toDirect(bytes);
+      decoded = ProtobufUtil.fromByteBuffer(ctx, source, Blob.class);
+      assertEquals(blob.data, decoded.data);
+      assertDoesNotShareSource(source, dataOffset(bytes, blob), decoded.data);
+   }
+
+   @Test
+   public void testWrappedMessage() throws Exception {
+      SerializationContext ctx = createBlobContext(true);
+      Blob blob = makeBlob();
+
+      byte[] bytes = ProtobufUtil.toWrappedByteArray(ctx, blob);
+      ByteBuffer source = toDirect(bytes);
+      Blob decoded = (Blob) ProtobufUtil.fromWrappedByteBuffer(ctx, source);
+
+      assertEquals(blob.name, decoded.name);
+      assertEquals(blob.data, decoded.data);
+
+      // the wrapped message bytes come last and the data is the last field of the message
+      assertSharesSource(source, dataOffset(bytes, blob), decoded.data);
+   }
+
+   @Test
+   public void testMissingField() throws Exception {
+      SerializationContext ctx = createBlobContext(true);
+      Blob blob = new Blob();
+      blob.name = "empty";
+
+      Blob decoded = ProtobufUtil.fromByteBuffer(ctx, ByteBuffer.wrap(ProtobufUtil.toByteArray(ctx, blob)), Blob.class);
+      assertEquals(blob.name, decoded.name);
+      assertNull(decoded.data);
+   }
+
+   @Test
+   public void testNestedReader() throws Exception {
+      byte[] bytes = encodeNested(new byte[]{8, 42}, 7);
+
+      // random access input
+      RawProtoStreamReaderImpl in = (RawProtoStreamReaderImpl) RawProtoStreamReaderImpl.newInstance(bytes);
+      assertEquals(WireFormat.makeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+      assertNestedReader(in.readNestedReader());
+      assertEquals(WireFormat.makeTag(2, WireFormat.WIRETYPE_VARINT), in.readTag());
+      assertEquals(7, in.readInt32());
+      assertTrue(in.isAtEnd());
+
+      // stream input
+      in = (RawProtoStreamReaderImpl) RawProtoStreamReaderImpl.newInstance(new ByteArrayInputStream(bytes));
+      assertEquals(WireFormat.makeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+      assertNestedReader(in.readNestedReader());
+      assertEquals(WireFormat.makeTag(2, WireFormat.WIRETYPE_VARINT), in.readTag());
+      assertEquals(7, in.readInt32());
+      assertTrue(in.isAtEnd());
+   }
+
+   private static void assertNestedReader(RawProtoStreamReader nested) throws IOException {
+      assertEquals(WireFormat.makeTag(1, WireFormat.WIRETYPE_VARINT), nested.readTag());
+      assertEquals(42, nested.readInt32());
+      assertEquals(0, nested.readTag());
+      assertTrue(nested.isAtEnd());
+   }
+
+   /**
+    * Encodes a message having a nested message as field 1 followed by an int32 as field 2.
+    */
+   private static byte[] encodeNested(byte[] nested, int value) throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      out.writeBytes(1, nested);
+      out.writeInt32(2, value);
+      out.flush();
+      return baos.toByteArray();
+   }
+}
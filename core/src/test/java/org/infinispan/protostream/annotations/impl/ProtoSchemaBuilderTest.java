@@ -1,11 +1,15 @@
 package org.infinispan.protostream.annotations.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.infinispan.protostream.DescriptorParserException;
@@ -14,6 +18,7 @@ import org.infinispan.protostream.ProtobufUtil;
 import org.infinispan.protostream.SerializationContext;
 import org.infinispan.protostream.annotations.ProtoEnum;
 import org.infinispan.protostream.annotations.ProtoEnumValue;
+import org.infinispan.protostream.annotations.ProtoField;
 import org.infinispan.protostream.annotations.ProtoSchemaBuilder;
 import org.infinispan.protostream.annotations.ProtoSchemaBuilderException;
 import org.infinispan.protostream.annotations.impl.testdomain.Simple;
@@ -26,6 +31,7 @@ import org.infinispan.protostream.annotations.impl.testdomain.subpackage.TestCla
 import org.infinispan.protostream.descriptors.Descriptor;
 import org.infinispan.protostream.descriptors.EnumDescriptor;
 import org.infinispan.protostream.descriptors.FileDescriptor;
+import org.infinispan.protostream.descriptors.Type;
 import org.infinispan.protostream.impl.parser.SquareProtoParser;
 import org.infinispan.protostream.test.AbstractProtoStreamTest;
 import org.junit.Ignore;
@@ -261,4 +267,66 @@ public class ProtoSchemaBuilderTest extends AbstractProtoStreamTest {
             .addClass(TestCase_DuplicateEnumValueName.E.class)
             .build(ctx);
    }
+
+   static class TestCase_PackedFields {
+
+      @ProtoField(number = 1, packed = true)
+      public int[] ints;
+
+      @ProtoField(number = 2, type = Type.SINT64, packed = true, collectionImplementation = ArrayList.class)
+      public List<Long> longs;
+
+      public TestCase_PackedFields() {
+      }
+   }
+
+   @Test
+   public void testPackedFields() throws Exception {
+      SerializationContext ctx = createContext();
+
+      String schemaFile = new ProtoSchemaBuilder()
+            .fileName("test1.proto")
+            .packageName("test_package1")
+            .addClass(TestCase_PackedFields.class)
+            .build(ctx);
+
+      assertTrue(schemaFile.contains("repeated int32 ints = 1 [packed = true];"));
+      assertTrue(schemaFile.contains("repeated sint64 longs = 2 [packed = true];"));
+      assertTrue(ctx.getMessageDescriptor("test_package1.TestCase_PackedFields").findFieldByNumber(1).isPacked());
+
+      TestCase_PackedFields testObject = new TestCase_PackedFields();
+      testObject.ints = new int[]{1, -1, 300};
+      testObject.longs = new ArrayList<>(Arrays.asList(-2L, 5L));
+      byte[] bytes = ProtobufUtil.toByteArray(ctx, testObject);
+
+      // a single length-delimited record for each field
+      assertEquals(0x0A, bytes[0]);
+      assertEquals(13, bytes[1]);
+      assertEquals(0x12, bytes[15]);
+
+      TestCase_PackedFields unmarshalled = ProtobufUtil.fromByteArray(ctx, bytes, TestCase_PackedFields.class);
+      assertArrayEquals(testObject.ints, unmarshalled.ints);
+      assertEquals(testObject.longs, unmarshalled.longs);
+   }
+
+   static class TestCase_PackedStringField {
+
+      @ProtoField(number = 1, packed = true, collectionImplementation = ArrayList.class)
+      public List<String> strings;
+   }
+
+   @Test
+   public void testPackedStringField() throws Exception {
+      exception.expect(ProtoSchemaBuilderException.class);
+      exception.expectMessage("Field 'strings' of " + TestCase_PackedStringField.class + " cannot be marked packed.");
+
+      SerializationContext ctx = createContext();
+
+      new ProtoSchemaBuilder()
+            .fileName("test1.proto")
+            .packageName("test_package1")
+            .addClass(TestCase_PackedStringField.class)
+            .build(ctx);
+   }
 }
+
@@ -0,0 +1,219 @@
+package org.infinispan.protostream.descriptors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.infinispan.protostream.FileDescriptorSource;
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.config.Configuration;
+import org.infinispan.protostream.domain.marshallers.MarshallerRegistration;
+import org.junit.Test;
+
+/**
+ * @since 3.1
+ */
+public class FileDescriptorSnapshotTest {
+
+   private static final String TEST_PROTO = "package test;\n" +
+         "import \"sample_bank_account/bank.proto\";\n" +
+         "option java_package = \"org.test\";\n" +
+         "/* @TypeId(1000) */\n" +
+         "enum Status {\n" +
+         "   /* the first */\n" +
+         "   NEW = 0;\n" +
+         "   DONE = 1;\n" +
+         "}\n" +
+         "/**\n" +
+         " * @TypeId(1001)\n" +
+         " * @Custom(name = \"x\", flags = {true, false}, ratio = 1.5, ch = 'c', kind = LARGE, nested = @Inner)\n" +
+         " */\n" +
+         "message Task {\n" +
+         "   /* @Field(index = 7) */\n" +
+         "   required string title = 1;\n" +
+         "   optional Status status = 2 [default = DONE];\n" +
+         "   repeated int32 scores = 3 [packed = true];\n" +
+         "   optional sample_bank_account.User owner = 4;\n" +
+         "   optional Step first = 5;\n" +
+         "   oneof target {\n" +
+         "      string email = 6;\n" +
+         "      int64 phone = 7;\n" +
+         "   }\n" +
+         "   message Step {\n" +
+         "      optional double weight = 1 [default = 2.5];\n" +
+         "      enum Kind {\n" +
+         "         A = 1;\n" +
+         "      }\n" +
+         "   }\n" +
+         "}\n";
+
+   private static FileDescriptorSource createSource(String testProto) throws IOException {
+      return FileDescriptorSource.fromResources(MarshallerRegistration.PROTOBUF_RES)
+            .addProtoFile("test.proto", testProto);
+   }
+
+   private static SerializationContext createContext() {
+      return ProtobufUtil.newSerializationContext(new Configuration.Builder().build());
+   }
+
+   private static FileDescriptorSnapshot roundTrip(FileDescriptorSnapshot snapshot) throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      snapshot.writeTo(baos);
+      return FileDescriptorSnapshot.readFrom(new ByteArrayInputStream(baos.toByteArray()));
+   }
+
+   @Test
+   public void testRestoredDescriptorsMatchParsedOnes() throws Exception {
+      SerializationContext ctx = createContext();
+      FileDescriptorSource source = createSource(TEST_PROTO);
+      ctx.registerProtoFiles(source);
+
+      FileDescriptorSnapshot snapshot = roundTrip(FileDescriptorSnapshot.create(source, ctx.getFileDescriptors()));
+      assertEquals(new HashSet<>(Arrays.asList("sample_bank_account/bank.proto", "test.proto")), snapshot.getFileNames());
+      assertNotNull(snapshot.getFileDescriptor("test.proto", TEST_PROTO.toCharArray()));
+
+      SerializationContext restoredCtx = createContext();
+      restoredCtx.registerProtoFiles(createSource(TEST_PROTO).withSnapshot(snapshot));
+
+      Map<String, FileDescriptor> parsed = ctx.getFileDescriptors();
+      Map<String, FileDescriptor> restored = restoredCtx.getFileDescriptors();
+      assertEquals(parsed.keySet(), restored.keySet());
+      for (String fileName : parsed.keySet()) {
+         assertTrue(restored.get(fileName).isResolved());
+         assertEquals(describe(parsed.get(fileName)), describe(restored.get(fileName)));
+      }
+
+      assertEquals(1001, restoredCtx.getTypeIdByName("test.Task").intValue());
+      assertEquals("test.Status", restoredCtx.getTypeNameById(1000));
+      Descriptor task = restoredCtx.getMessageDescriptor("test.Task");
+      assertEquals("sample_bank_account.User", task.findFieldByNumber(4).getMessageType().getFullName());
+      assertEquals(Arrays.asList(true, false), task.getAnnotations().get("Custom").getAttributeValue("flags").getValue());
+      assertEquals(1.5, task.getAnnotations().get("Custom").getAttributeValue("ratio").getValue());
+      assertEquals(7, task.findFieldByName("title").getAnnotations().get("Field").getAttributeValue("index").getValue());
+      assertTrue(task.findFieldByName("scores").isPacked());
+      assertEquals(2.5, task.getNestedTypes().get(0).findFieldByName("weight").getDefaultValue());
+   }
+
+   @Test
+   public void testChangedFileIsParsed() throws Exception {
+      SerializationContext ctx = createContext();
+      FileDescriptorSource source = createSource(TEST_PROTO);
+      ctx.registerProtoFiles(source);
+      FileDescriptorSnapshot snapshot = roundTrip(FileDescriptorSnapshot.create(source, ctx.getFileDescriptors()));
+
+      String changedProto = TEST_PROTO.replace("optional Step first = 5;", "optional Step first = 5;\n   optional bool urgent = 8;");
+      assertNull(snapshot.getFileDescriptor("test.proto", changedProto.toCharArray()));
+
+      SerializationContext restoredCtx = createContext();
+      restoredCtx.registerProtoFiles(createSource(changedProto).withSnapshot(snapshot));
+      assertNotNull(restoredCtx.getMessageDescriptor("test.Task").findFieldByName("urgent"));
+      assertNotNull(restoredCtx.getMessageDescriptor("sample_bank_account.User"));
+   }
+
+   @Test
+   public void testIncompatibleSnapshotIsIgnored() throws Exception {
+      SerializationContext ctx = createContext();
+      FileDescriptorSource source = createSource(TEST_PROTO);
+      ctx.registerProtoFiles(source);
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      FileDescriptorSnapshot.create(source, ctx.getFileDescriptors()).writeTo(baos);
+      byte[] bytes = baos.toByteArray();
+      // bump the version
+      bytes[7]++;
+      FileDescriptorSnapshot snapshot = FileDescriptorSnapshot.readFrom(new ByteArrayInputStream(bytes));
+      assertTrue(snapshot.getFileNames().isEmpty());
+
+      SerializationContext restoredCtx = createContext();
+      restoredCtx.registerProtoFiles(createSource(TEST_PROTO).withSnapshot(snapshot));
+      assertEquals(1001, restoredCtx.getTypeIdByName("test.Task").intValue());
+   }
+
+   private static String describe(FileDescriptor fd) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(fd.getName()).append(' ').append(fd.getPackage()).append(' ').append(fd.getDependencies())
+            .append(' ').append(fd.getPublicDependencies()).append(' ').append(describe(fd.getOptions())).append('\n');
+      for (EnumDescriptor e : fd.getEnumTypes()) {
+         describe(sb, e);
+      }
+      for (Descriptor d : fd.getMessageTypes()) {
+         describe(sb, d);
+      }
+      return sb.toString();
+   }
+
+   private static void describe(StringBuilder sb, Descriptor d) {
+      sb.append("message ").append(d.getFullName()).append(' ').append(d.getTypeId()).append(' ')
+            .append(d.getDocumentation()).append(' ').append(describeAnnotations(d)).append(' ')
+            .append(describe(d.getOptions())).append('\n');
+      for (FieldDescriptor f : d.getFields()) {
+         describe(sb, f);
+      }
+      for (OneOfDescriptor o : d.getOneOfs()) {
+         sb.append("oneof ").append(o.getName()).append('\n');
+         for (FieldDescriptor f : o.getFields()) {
+            describe(sb, f);
+         }
+      }
+      for (EnumDescriptor e : d.getEnumTypes()) {
+         describe(sb, e);
+      }
+      for (Descriptor nested : d.getNestedTypes()) {
+         describe(sb, nested);
+      }
+   }
+
+   private static void describe(StringBuilder sb, FieldDescriptor f) {
+      sb.append("field ").append(f.getFullName()).append(' ').append(f.getNumber()).append(' ').append(f.getLabel())
+            .append(' ').append(f.getType()).append(' ').append(f.getTypeName()).append(' ')
+            .append(f.hasDefaultValue() ? f.getDefaultValueAsString() : null).append(' ').append(f.getDocumentation())
+            .append(' ').append(describeAnnotations(f)).append(' ').append(describe(f.getOptions())).append('\n');
+   }
+
+   private static void describe(StringBuilder sb, EnumDescriptor e) {
+      sb.append("enum ").append(e.getFullName()).append(' ').append(e.getTypeId()).append(' ')
+            .append(e.getDocumentation()).append(' ').append(describeAnnotations(e)).append('\n');
+      for (EnumValueDescriptor v : e.getValues()) {
+         sb.append("value ").append(v.getName()).append(' ').append(v.getNumber()).append(' ')
+               .append(v.getDocumentation()).append('\n');
+      }
+   }
+
+   private static String describe(Iterable<Option> options) {
+      Map<String, Object> m = new TreeMap<>();
+      for (Option o : options) {
+         m.put(o.getName(), o.getValue());
+      }
+      return m.toString();
+   }
+
+   private static String describeAnnotations(AnnotatedDescriptor d) {
+      StringBuilder sb = new StringBuilder();
+      for (AnnotationElement.Annotation a : d.getAnnotations().values()) {
+         sb.append('@').append(a.getName()).append('(');
+         for (AnnotationElement.Attribute attr : a.getAttributes().values()) {
+            sb.append(attr.getName()).append('=').append(describe(attr.getValue())).append(';');
+         }
+         sb.append(')');
+      }
+      return sb.toString();
+   }
+
+   private static String describe(AnnotationElement.Value value) {
+      if (value instanceof AnnotationElement.Annotation) {
+         return '@' + ((AnnotationElement.Annotation) value).getName();
+      }
+      Object v = value.getValue();
+      return v + ":" + (v == null ? null : v.getClass().getSimpleName()) + "@" + AnnotationElement.positionToString(value.position);
+   }
+}
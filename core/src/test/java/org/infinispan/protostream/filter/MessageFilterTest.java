@@ -0,0 +1,175 @@
+package org.infinispan.protostream.filter;
+
+import static org.infinispan.protostream.filter.Condition.and;
+import static org.infinispan.protostream.filter.Condition.between;
+import static org.infinispan.protostream.filter.Condition.eq;
+import static org.infinispan.protostream.filter.Condition.gt;
+import static org.infinispan.protostream.filter.Condition.gte;
+import static org.infinispan.protostream.filter.Condition.in;
+import static org.infinispan.protostream.filter.Condition.isNull;
+import static org.infinispan.protostream.filter.Condition.lt;
+import static org.infinispan.protostream.filter.Condition.lte;
+import static org.infinispan.protostream.filter.Condition.not;
+import static org.infinispan.protostream.filter.Condition.or;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.domain.Address;
+import org.infinispan.protostream.domain.User;
+import org.infinispan.protostream.test.AbstractProtoStreamTest;
+import org.junit.Test;
+
+/**
+ * Test {@link MessageFilter} against messages that are known to match or not.
+ *
+ * @since 3.1
+ */
+public class MessageFilterTest extends AbstractProtoStreamTest {
+
+   private SerializationContext ctx;
+
+   private Descriptor userDescriptor;
+
+   private byte[] bytes;
+
+   private void init() throws Exception {
+      if (ctx != null) {
+         return;
+      }
+      ctx = createContext();
+      userDescriptor = ctx.getMessageDescriptor("sample_bank_account.User");
+
+      User user = new User();
+      user.setId(1);
+      user.setName("John");
+      user.setSurname("Batman");
+      user.setGender(User.Gender.FEMALE);
+      user.setAge(-7);
+      user.setAccountIds(new HashSet<>(Arrays.asList(3, 300000)));
+      user.setAddresses(Arrays.asList(new Address("Old Street", "XYZ42", -12), new Address("Bond Street", "QQ\u00e942", 312)));
+      bytes = ProtobufUtil.toByteArray(ctx, user);
+   }
+
+   private boolean test(Condition condition) throws Exception {
+      init();
+      MessageFilter filter = MessageFilter.compile(userDescriptor, condition);
+      boolean result = filter.test(bytes);
+
+      // the same outcome from a direct buffer
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+      buffer.put(bytes);
+      buffer.flip();
+      assertTrue(result == filter.test(buffer));
+      return result;
+   }
+
+   @Test
+   public void testEquality() throws Exception {
+      assertTrue(test(eq("id", 1)));
+      assertFalse(test(eq("id", 2)));
+      assertTrue(test(eq("name", "John")));
+      assertFalse(test(eq("name", "Joh")));
+      assertFalse(test(eq("name", "Johnny")));
+      assertTrue(test(eq("gender", "FEMALE")));
+      assertTrue(test(eq("gender", 1)));
+      assertFalse(test(eq("gender", "MALE")));
+      assertTrue(test(eq("age", -7)));
+      assertTrue(test(eq("age", -7L)));
+   }
+
+   @Test
+   public void testRange() throws Exception {
+      assertTrue(test(lt("age", 0)));
+      assertTrue(test(lte("age", -7)));
+      assertFalse(test(lt("age", -7)));
+      assertTrue(test(gt("age", -8)));
+      assertFalse(test(gte("age", -6)));
+      assertTrue(test(between("id", 0, false, 1, true)));
+      assertFalse(test(between("id", 0, false, 1, false)));
+      assertTrue(test(gt("name", "Jim")));
+      assertTrue(test(lt("surname", "batman")));
+   }
+
+   @Test
+   public void testIn() throws Exception {
+      assertTrue(test(in("id", 5, 1, 9)));
+      assertFalse(test(in("id", 5, 9)));
+      assertTrue(test(in("surname", "Robin", "Batman")));
+   }
+
+   @Test
+   public void testIsNull() throws Exception {
+      assertTrue(test(isNull("notes")));
+      assertFalse(test(isNull("name")));
+      assertFalse(test(isNull("addresses")));
+      assertTrue(test(not(isNull("age"))));
+   }
+
+   @Test
+   public void testRepeatedFields() throws Exception {
+      // a repeated field matches if any of its values does
+      assertTrue(test(eq("accountIds", 300000)));
+      assertTrue(test(eq("accountIds", 3)));
+      assertFalse(test(eq("accountIds", 4)));
+      assertTrue(test(eq("addresses.postCode", "QQ\u00e942")));
+      assertTrue(test(gt("addresses.number", 300)));
+      assertFalse(test(gt("addresses.number", 312)));
+      assertFalse(test(isNull("addresses.street")));
+   }
+
+   @Test
+   public void testJunctions() throws Exception {
+      assertTrue(test(and(eq("id", 1), eq("name", "John"))));
+      assertFalse(test(and(eq("id", 1), eq("name", "Jim"))));
+      assertTrue(test(or(eq("id", 2), eq("name", "John"))));
+      assertFalse(test(or(eq("id", 2), eq("name", "Jim"))));
+      assertTrue(test(not(or(eq("id", 2), eq("name", "Jim")))));
+      assertTrue(test(and(not(isNull("addresses")), or(isNull("notes"), eq("notes", "x")))));
+      assertFalse(test(and(eq("gender", "FEMALE"), not(in("addresses.number", -12, 0)))));
+   }
+
+   @Test
+   public void testWrapped() throws Exception {
+      init();
+      byte[] wrapped = ProtobufUtil.toWrappedByteArray(ctx, ProtobufUtil.fromByteArray(ctx, bytes, User.class));
+      assertTrue(MessageFilter.compile(userDescriptor, eq("surname", "Batman")).testWrapped(wrapped));
+      assertFalse(MessageFilter.compile(userDescriptor, eq("surname", "Robin")).testWrapped(wrapped));
+
+      // not a User
+      Descriptor accountDescriptor = ctx.getMessageDescriptor("sample_bank_account.Account");
+      assertFalse(MessageFilter.compile(accountDescriptor, isNull("description")).testWrapped(wrapped));
+      assertFalse(MessageFilter.compile(userDescriptor, isNull("notes")).testWrapped(ProtobufUtil.toWrappedByteArray(ctx, "John")));
+
+      // an Address has no type id so it is wrapped with its type name
+      Descriptor addressDescriptor = ctx.getMessageDescriptor("sample_bank_account.User.Address");
+      byte[] wrappedAddress = ProtobufUtil.toWrappedByteArray(ctx, new Address("Old Street", "XYZ42", -12));
+      assertTrue(MessageFilter.compile(addressDescriptor, eq("street", "Old Street")).testWrapped(wrappedAddress));
+      assertFalse(MessageFilter.compile(addressDescriptor, eq("street", "Bond Street")).testWrapped(wrappedAddress));
+      assertFalse(MessageFilter.compile(userDescriptor, isNull("notes")).testWrapped(wrappedAddress));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testUnknownField() throws Exception {
+      init();
+      MessageFilter.compile(userDescriptor, eq("addresses.city", "London"));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testWrongValueType() throws Exception {
+      init();
+      MessageFilter.compile(userDescriptor, eq("id", "1"));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testComparingMessage() throws Exception {
+      init();
+      MessageFilter.compile(userDescriptor, eq("addresses", "x"));
+   }
+}
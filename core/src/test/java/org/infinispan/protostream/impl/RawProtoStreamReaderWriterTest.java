@@ -0,0 +1,372 @@
+package org.infinispan.protostream.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.infinispan.protostream.RawProtoStreamReader;
+import org.infinispan.protostream.RawProtoStreamWriter;
+import org.junit.Test;
+
+/**
+ * Checks that all kinds of sources and targets of the wire codec produce and consume identical encodings.
+ *
+ */
+public class RawProtoStreamReaderWriterTest {
+
+   private static final String UNICODE_STRING = "abc éè € 😀 xyz";
+
+   private static final byte[] BYTES = {0, 1, 2, -1, -128, 127};
+
+   private void writeSample(RawProtoStreamWriter out) throws IOException {
+      out.writeInt32(1, -1);
+      out.writeInt32(2, 300);
+      out.writeInt64(3, Long.MIN_VALUE);
+      out.writeUInt64(4, -1L);
+      out.writeSInt32(5, -123456);
+      out.writeSInt64(6, Long.MAX_VALUE);
+      out.writeFixed32(7, 0xCAFEBABE);
+      out.writeFixed64(8, 0xCAFEBABEDEADBEEFL);
+      out.writeDouble(9, Math.PI);
+      out.writeFloat(10, 2.5f);
+      out.writeBool(11, true);
+      out.writeString(12, UNICODE_STRING);
+      out.writeString(13, "");
+      out.writeBytes(14, BYTES);
+      out.writeEnum(150000, 7);
+      out.flush();
+   }
+
+   private void readSample(RawProtoStreamReader in) throws IOException {
+      assertEquals(WireFormat.makeTag(1, WireFormat.WIRETYPE_VARINT), in.readTag());
+      assertEquals(-1, in.readInt32());
+      assertEquals(WireFormat.makeTag(2, WireFormat.WIRETYPE_VARINT), in.readTag());
+      assertEquals(300, in.readInt32());
+      assertEquals(WireFormat.makeTag(3, WireFormat.WIRETYPE_VARINT), in.readTag());
+      assertEquals(Long.MIN_VALUE, in.readInt64());
+      assertEquals(WireFormat.makeTag(4, WireFormat.WIRETYPE_VARINT), in.readTag());
+      assertEquals(-1L, in.readUInt64());
+      assertEquals(WireFormat.makeTag(5, WireFormat.WIRETYPE_VARINT), in.readTag());
+      assertEquals(-123456, in.readSInt32());
+      assertEquals(WireFormat.makeTag(6, WireFormat.WIRETYPE_VARINT), in.readTag());
+      assertEquals(Long.MAX_VALUE, in.readSInt64());
+      assertEquals(WireFormat.makeTag(7, WireFormat.WIRETYPE_FIXED32), in.readTag());
+      assertEquals(0xCAFEBABE, in.readFixed32());
+      assertEquals(WireFormat.makeTag(8, WireFormat.WIRETYPE_FIXED64), in.readTag());
+      assertEquals(0xCAFEBABEDEADBEEFL, in.readFixed64());
+      assertEquals(WireFormat.makeTag(9, WireFormat.WIRETYPE_FIXED64), in.readTag());
+      assertEquals(Math.PI, in.readDouble(), 0);
+      assertEquals(WireFormat.makeTag(10, WireFormat.WIRETYPE_FIXED32), in.readTag());
+      assertEquals(2.5f, in.readFloat(), 0);
+      assertEquals(WireFormat.makeTag(11, WireFormat.WIRETYPE_VARINT), in.readTag());
+      assertTrue(in.readBool());
+      assertEquals(WireFormat.makeTag(12, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+      assertEquals(UNICODE_STRING, in.readString());
+      assertEquals(WireFormat.makeTag(13, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+      assertEquals("", in.readString());
+      assertEquals(WireFormat.makeTag(14, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+      assertArrayEquals(BYTES, in.readByteArray());
+      assertEquals(WireFormat.makeTag(150000, WireFormat.WIRETYPE_VARINT), in.readTag());
+      assertEquals(7, in.readEnum());
+      assertEquals(0, in.readTag());
+   }
+
+   private byte[] writeToStream(int bufferSize) throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      writeSample(RawProtoStreamWriterImpl.newInstance(baos, bufferSize));
+      return baos.toByteArray();
+   }
+
+   @Test
+   public void testAllTargetsProduceSameEncoding() throws Exception {
+      byte[] expected = writeToStream(4096);
+
+      assertArrayEquals(expected, writeToStream(16));
+
+      byte[] array = new byte[expected.length + 2];
+      writeSample(RawProtoStreamWriterImpl.newInstance(array, 1, expected.length));
+      assertArrayEquals(expected, Arrays.copyOfRange(array, 1, expected.length + 1));
+
+      ByteBuffer heapBuffer = ByteBuffer.allocate(expected.length);
+      writeSample(RawProtoStreamWriterImpl.newInstance(heapBuffer));
+      assertFalse(heapBuffer.hasRemaining());
+      assertArrayEquals(expected, heapBuffer.array());
+
+      ByteBuffer directBuffer = ByteBuffer.allocateDirect(expected.length);
+      writeSample(RawProtoStreamWriterImpl.newInstance(directBuffer));
+      directBuffer.flip();
+      byte[] directBytes = new byte[expected.length];
+      directBuffer.get(directBytes);
+      assertArrayEquals(expected, directBytes);
+   }
+
+   @Test(expected = IOException.class)
+   public void testArrayOverflow() throws Exception {
+      byte[] expected = writeToStream(4096);
+      writeSample(RawProtoStreamWriterImpl.newInstance(new byte[expected.length - 1]));
+   }
+
+   @Test
+   public void testAllSourcesDecode() throws Exception {
+      byte[] bytes = writeToStream(4096);
+
+      readSample(RawProtoStreamReaderImpl.newInstance(bytes));
+
+      byte[] padded = new byte[bytes.length + 10];
+      System.arraycopy(bytes, 0, padded, 5, bytes.length);
+      readSample(RawProtoStreamReaderImpl.newInstance(padded, 5, bytes.length));
+
+      readSample(RawProtoStreamReaderImpl.newInstance(ByteBuffer.wrap(bytes)));
+      readSample(RawProtoStreamReaderImpl.newInstance(ByteBuffer.wrap(bytes).asReadOnlyBuffer()));
+
+      ByteBuffer directBuffer = ByteBuffer.allocateDirect(bytes.length);
+      directBuffer.put(bytes).flip();
+      readSample(RawProtoStreamReaderImpl.newInstance(directBuffer));
+
+      readSample(RawProtoStreamReaderImpl.newInstance(new ByteArrayInputStream(bytes)));
+      readSample(RawProtoStreamReaderImpl.newInstance(new TrickleInputStream(bytes), 16));
+   }
+
+   @Test
+   public void testLimitsAndSkipping() throws Exception {
+      ByteArrayOutputStream nestedBytes = new ByteArrayOutputStream();
+      RawProtoStreamWriter nested = RawProtoStreamWriterImpl.newInstance(nestedBytes);
+      nested.writeString(1, "nested");
+      nested.writeInt64(2, 42);
+      nested.flush();
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      out.writeBytes(1, nestedBytes.toByteArray());
+      out.writeTag(2, WireFormat.WIRETYPE_START_GROUP);
+      out.writeString(1, "skipped");
+      out.writeTag(2, WireFormat.WIRETYPE_END_GROUP);
+      out.writeInt32(3, 5);
+      out.flush();
+      byte[] bytes = baos.toByteArray();
+
+      for (RawProtoStreamReader in : new RawProtoStreamReader[]{
+            RawProtoStreamReaderImpl.newInstance(bytes),
+            RawProtoStreamReaderImpl.newInstance(new TrickleInputStream(bytes), 16)}) {
+         assertEquals(WireFormat.makeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+         int oldLimit = in.pushLimit(in.readRawVarint32());
+         assertEquals(WireFormat.makeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+         assertEquals("nested", in.readString());
+         assertEquals(WireFormat.makeTag(2, WireFormat.WIRETYPE_VARINT), in.readTag());
+         assertEquals(42, in.readInt64());
+         assertEquals(0, in.readTag());
+         in.checkLastTagWas(0);
+         in.popLimit(oldLimit);
+
+         int tag = in.readTag();
+         assertTrue(in.skipField(tag));
+         assertEquals(WireFormat.makeTag(3, WireFormat.WIRETYPE_VARINT), in.readTag());
+         assertEquals(5, in.readInt32());
+         assertEquals(0, in.readTag());
+      }
+   }
+
+   /**
+    * Writes a few levels of nested fields, large enough to need multi-byte length prefixes, each followed by a small
+    * sibling. The sibling of the innermost level is large enough to need three byte prefixes in all enclosing fields.
+    */
+   private void writeNested(RawProtoStreamWriterImpl out, int depth) throws IOException {
+      out.writeInt32(1, depth);
+      if (depth > 0) {
+         int handle = out.startNested(2);
+         writeNested(out, depth - 1);
+         out.endNested(handle);
+      }
+      char[] padding = new char[depth * 50];
+      Arrays.fill(padding, 'x');
+      out.writeString(3, new String(padding));
+      int handle = out.startNested(4);
+      out.writeInt32(1, depth);
+      if (depth == 1) {
+         out.writeBytes(2, new byte[20000]);
+      }
+      out.endNested(handle);
+   }
+
+   private void writeNestedAsBytes(RawProtoStreamWriter out, int depth) throws IOException {
+      out.writeInt32(1, depth);
+      if (depth > 0) {
+         ByteArrayOutputStream baos = new ByteArrayOutputStream();
+         RawProtoStreamWriter nested = RawProtoStreamWriterImpl.newInstance(baos);
+         writeNestedAsBytes(nested, depth - 1);
+         nested.flush();
+         out.writeBytes(2, baos.toByteArray());
+      }
+      char[] padding = new char[depth * 50];
+      Arrays.fill(padding, 'x');
+      out.writeString(3, new String(padding));
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter sibling = RawProtoStreamWriterImpl.newInstance(baos);
+      sibling.writeInt32(1, depth);
+      if (depth == 1) {
+         sibling.writeBytes(2, new byte[20000]);
+      }
+      sibling.flush();
+      out.writeBytes(4, baos.toByteArray());
+   }
+
+   @Test
+   public void testNestedFieldsWrittenInPlace() throws Exception {
+      int depth = 8;
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter expectedOut = RawProtoStreamWriterImpl.newInstance(baos);
+      writeNestedAsBytes(expectedOut, depth);
+      expectedOut.flush();
+      byte[] expected = baos.toByteArray();
+
+      for (int bufferSize : new int[]{16, 4096}) {
+         baos = new ByteArrayOutputStream();
+         RawProtoStreamWriterImpl out = (RawProtoStreamWriterImpl) RawProtoStreamWriterImpl.newInstance(baos, bufferSize);
+         writeNested(out, depth);
+         out.flush();
+         assertArrayEquals(expected, baos.toByteArray());
+      }
+
+      byte[] array = new byte[expected.length];
+      RawProtoStreamWriterImpl arrayOut = (RawProtoStreamWriterImpl) RawProtoStreamWriterImpl.newInstance(array);
+      writeNested(arrayOut, depth);
+      arrayOut.flush();
+      assertArrayEquals(expected, array);
+
+      ByteBuffer heapBuffer = ByteBuffer.allocate(expected.length);
+      RawProtoStreamWriterImpl heapOut = (RawProtoStreamWriterImpl) RawProtoStreamWriterImpl.newInstance(heapBuffer);
+      writeNested(heapOut, depth);
+      heapOut.flush();
+      assertArrayEquals(expected, heapBuffer.array());
+
+      ByteBuffer directBuffer = ByteBuffer.allocateDirect(expected.length);
+      RawProtoStreamWriterImpl directOut = (RawProtoStreamWriterImpl) RawProtoStreamWriterImpl.newInstance(directBuffer);
+      writeNested(directOut, depth);
+      directOut.flush();
+      directBuffer.flip();
+      byte[] directBytes = new byte[expected.length];
+      directBuffer.get(directBytes);
+      assertArrayEquals(expected, directBytes);
+   }
+
+   @Test(expected = IOException.class)
+   public void testTruncatedInput() throws Exception {
+      byte[] bytes = writeToStream(4096);
+      byte[] truncated = Arrays.copyOf(bytes, bytes.length - 3);
+      readSample(RawProtoStreamReaderImpl.newInstance(truncated));
+   }
+
+   @Test(expected = IOException.class)
+   public void testTruncatedInputIsDetectedWhenSkipping() throws Exception {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      out.writeBytes(1, new byte[10000]);
+      out.flush();
+      byte[] bytes = baos.toByteArray();
+      byte[] truncated = Arrays.copyOf(bytes, bytes.length - 100);
+
+      // like FileInputStream, claims to skip past the end of the stream
+      InputStream input = new ByteArrayInputStream(truncated) {
+         @Override
+         public synchronized long skip(long n) {
+            super.skip(n);
+            return n;
+         }
+      };
+      RawProtoStreamReader in = RawProtoStreamReaderImpl.newInstance(input, 16);
+      in.skipField(in.readTag());
+   }
+
+   @Test
+   public void testLargeFieldsFromStream() throws Exception {
+      byte[] value = new byte[100000];
+      for (int i = 0; i < value.length; i++) {
+         value[i] = (byte) i;
+      }
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      out.writeBytes(1, value);
+      out.writeString(2, "after");
+      out.flush();
+      byte[] bytes = baos.toByteArray();
+
+      for (RawProtoStreamReader in : new RawProtoStreamReader[]{
+            RawProtoStreamReaderImpl.newInstance(new ByteArrayInputStream(bytes)),
+            RawProtoStreamReaderImpl.newInstance(new TrickleInputStream(bytes), 16)}) {
+         assertEquals(WireFormat.makeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+         assertArrayEquals(value, in.readByteArray());
+         assertEquals(WireFormat.makeTag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+         assertEquals("after", in.readString());
+         assertTrue(in.isAtEnd());
+      }
+   }
+
+   @Test(expected = IOException.class)
+   public void testMaxFieldSize() throws Exception {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      out.writeString(1, "0123456789");
+      out.flush();
+      RawProtoStreamReader in = RawProtoStreamReaderImpl.newInstance(new ByteArrayInputStream(baos.toByteArray()), 4096, 9);
+      in.readTag();
+      in.readString();
+   }
+
+   @Test(expected = IOException.class)
+   public void testHostileLengthPrefix() throws Exception {
+      // a few bytes claiming a field of almost 2GB must fail as truncated without allocating the whole length
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      RawProtoStreamWriter out = RawProtoStreamWriterImpl.newInstance(baos);
+      out.writeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      out.writeUInt32NoTag(Integer.MAX_VALUE);
+      out.writeRawBytes(new byte[100], 0, 100);
+      out.flush();
+      RawProtoStreamReader in = RawProtoStreamReaderImpl.newInstance(new ByteArrayInputStream(baos.toByteArray()), 16, Integer.MAX_VALUE);
+      in.readTag();
+      in.readByteArray();
+   }
+
+   /**
+    * A stream that returns at most one byte per read and does not support skipping.
+    */
+   private static final class TrickleInputStream extends InputStream {
+
+      private final byte[] bytes;
+
+      private int pos;
+
+      TrickleInputStream(byte[] bytes) {
+         this.bytes = bytes;
+      }
+
+      @Override
+      public int read() {
+         return pos < bytes.length ? bytes[pos++] & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+         if (pos == bytes.length) {
+            return -1;
+         }
+         if (len == 0) {
+            return 0;
+         }
+         b[off] = bytes[pos++];
+         return 1;
+      }
+
+      @Override
+      public long skip(long n) {
+         return 0;
+      }
+   }
+}
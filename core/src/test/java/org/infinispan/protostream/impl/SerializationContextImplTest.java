@@ -1,16 +1,30 @@
 package org.infinispan.protostream.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.infinispan.protostream.DescriptorParserException;
 import org.infinispan.protostream.FileDescriptorSource;
+import org.infinispan.protostream.MessageMarshaller;
 import org.infinispan.protostream.ProtobufUtil;
 import org.infinispan.protostream.config.Configuration;
 import org.infinispan.protostream.descriptors.FileDescriptor;
@@ -80,4 +94,318 @@ public class SerializationContextImplTest {
       assertNotNull(fd2);
       assertTrue(fd2.getTypes().isEmpty());
    }
+
+   public static class Small {
+      Integer value;
+   }
+
+   public static class Big extends Small {
+   }
+
+   private static final class ValueMarshaller<T extends Small> implements MessageMarshaller<T> {
+
+      private final String typeName;
+      private final Class<T> javaClass;
+
+      ValueMarshaller(String typeName, Class<T> javaClass) {
+         this.typeName = typeName;
+         this.javaClass = javaClass;
+      }
+
+      @Override
+      public T readFrom(ProtoStreamReader reader) throws IOException {
+         T t;
+         try {
+            t = javaClass.newInstance();
+         } catch (Exception e) {
+            throw new IOException(e);
+         }
+         t.value = reader.readInt("value");
+         return t;
+      }
+
+      @Override
+      public void writeTo(ProtoStreamWriter writer, T t) throws IOException {
+         writer.writeInt("value", t.value);
+      }
+
+      @Override
+      public Class<? extends T> getJavaClass() {
+         return javaClass;
+      }
+
+      @Override
+      public String getTypeName() {
+         return typeName;
+      }
+   }
+
+   private static String makeTypeIdsProto(int smallTypeId, int bigTypeId) {
+      return "package test_ids;\n" +
+            "/* @TypeId(" + smallTypeId + ") */\n" +
+            "message Small {\n" +
+            "   optional int32 value = 1;\n" +
+            "}\n" +
+            "/* @TypeId(" + bigTypeId + ") */\n" +
+            "message Big {\n" +
+            "   optional int32 value = 1;\n" +
+            "}\n";
+   }
+
+   @Test
+   public void testMarshallerDelegateByTypeId() throws Exception {
+      SerializationContextImpl ctx = createContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_ids.proto", makeTypeIdsProto(7, 100000)));
+      ctx.registerMarshaller(new ValueMarshaller<>("test_ids.Small", Small.class));
+      ctx.registerMarshaller(new ValueMarshaller<>("test_ids.Big", Big.class));
+
+      // both a small and a big type id are mapped to their marshaller
+      assertSame(ctx.getMarshallerDelegate(Small.class), ctx.getMarshallerDelegate(7));
+      assertSame(ctx.getMarshallerDelegate(Big.class), ctx.getMarshallerDelegate(100000));
+      assertEquals(7, ctx.getMarshallerDelegate(Small.class).getTypeId().intValue());
+      assertEquals(100000, ctx.getMarshallerDelegate(Big.class).getTypeId().intValue());
+
+      Big big = new Big();
+      big.value = 3;
+      Object decoded = ProtobufUtil.fromWrappedByteArray(ctx, ProtobufUtil.toWrappedByteArray(ctx, big));
+      assertTrue(decoded instanceof Big);
+      assertEquals(big.value, ((Big) decoded).value);
+
+      try {
+         ctx.getMarshallerDelegate(8);
+         fail("IllegalArgumentException expected");
+      } catch (IllegalArgumentException e) {
+         assertEquals("Unknown type id : 8", e.getMessage());
+      }
+   }
+
+   @Test
+   public void testMarshallersAreMappedToTypeIdsAsTheyAreRegistered() throws Exception {
+      SerializationContextImpl ctx = createContext();
+      StringBuilder proto = new StringBuilder("package test_many_ids;\n");
+      for (int i = 0; i < 300; i++) {
+         proto.append("/* @TypeId(").append(i * 13).append(") */\n")
+               .append("message M").append(i).append(" {\n   optional int32 value = 1;\n}\n");
+      }
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_many_ids.proto", proto.toString()));
+
+      // each registration maps one more id, spread over a growing range
+      for (int i = 0; i < 300; i++) {
+         ctx.registerMarshaller(new ValueMarshaller<>("test_many_ids.M" + i, Small.class));
+         for (int j = 0; j <= i; j += 37) {
+            assertEquals("test_many_ids.M" + j, ctx.getMarshallerDelegate(j * 13).getMarshaller().getTypeName());
+         }
+      }
+   }
+
+   @Test
+   public void testTypeIdsFollowSchemaChanges() throws Exception {
+      SerializationContextImpl ctx = createContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_ids.proto", makeTypeIdsProto(7, 100000)));
+      ctx.registerMarshaller(new ValueMarshaller<>("test_ids.Small", Small.class));
+
+      // the type id of Big is known but it has no marshaller
+      try {
+         ctx.getMarshallerDelegate(100000);
+         fail("IllegalArgumentException expected");
+      } catch (IllegalArgumentException e) {
+         assertEquals("No marshaller registered for test_ids.Big", e.getMessage());
+      }
+
+      // change the type ids
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_ids.proto", makeTypeIdsProto(9, 10)));
+      assertEquals(9, ctx.getMarshallerDelegate(Small.class).getTypeId().intValue());
+      assertSame(ctx.getMarshallerDelegate(Small.class), ctx.getMarshallerDelegate(9));
+      try {
+         ctx.getMarshallerDelegate(7);
+         fail("IllegalArgumentException expected");
+      } catch (IllegalArgumentException e) {
+         assertEquals("Unknown type id : 7", e.getMessage());
+      }
+
+      // unregistering the file forgets the type ids but not the marshaller
+      ctx.unregisterProtoFile("test_ids.proto");
+      assertNull(ctx.getMarshallerDelegate(Small.class).getTypeId());
+      try {
+         ctx.getMarshallerDelegate(9);
+         fail("IllegalArgumentException expected");
+      } catch (IllegalArgumentException e) {
+         assertEquals("Unknown type id : 9", e.getMessage());
+      }
+
+      // and registering it again restores them
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("test_ids.proto", makeTypeIdsProto(9, 10)));
+      assertSame(ctx.getMarshallerDelegate(Small.class), ctx.getMarshallerDelegate(9));
+   }
+
+   @Test
+   public void testLookupsDoNotSeeAFileBeingReplaced() throws Exception {
+      final SerializationContextImpl ctx = createContext();
+      final String proto = makeTypeIdsProto(7, 100000);
+      ctx.registerProtoFiles(new FileDescriptorSource()
+            .addProtoFile("test_ids.proto", proto)
+            .addProtoFile("test_user.proto", "package test_user;\nimport \"test_ids.proto\";\nmessage User {\n   optional test_ids.Small small = 1;\n}"));
+      ctx.registerMarshaller(new ValueMarshaller<>("test_ids.Small", Small.class));
+      final BaseMarshallerDelegate<Small> marshallerDelegate = ctx.getMarshallerDelegate(Small.class);
+
+      final AtomicBoolean done = new AtomicBoolean();
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      final AtomicInteger reads = new AtomicInteger();
+      Thread reader = new Thread() {
+         @Override
+         public void run() {
+            try {
+               while (!done.get()) {
+                  assertNotNull(ctx.getMessageDescriptor("test_ids.Small"));
+                  assertTrue(ctx.canMarshall("test_user.User"));
+                  assertEquals("test_ids.Small", ctx.getTypeNameById(7));
+                  assertSame(marshallerDelegate, ctx.getMarshallerDelegate(7));
+                  assertEquals(7, marshallerDelegate.getTypeId().intValue());
+                  assertTrue(ctx.getFileDescriptors().get("test_ids.proto").isResolved());
+                  reads.incrementAndGet();
+               }
+            } catch (Throwable t) {
+               failure.set(t);
+            }
+         }
+      };
+      reader.start();
+      try {
+         // the file is replaced by an identical one, so every lookup must succeed at any time
+         for (int i = 0; i < 1000 && failure.get() == null; i++) {
+            ctx.registerProtoFiles(FileDescriptorSource.fromString("test_ids.proto", proto));
+         }
+      } finally {
+         done.set(true);
+         reader.join();
+      }
+      if (failure.get() != null) {
+         throw new AssertionError("Lookup failed after " + reads.get() + " reads", failure.get());
+      }
+      assertSame(marshallerDelegate, ctx.getMarshallerDelegate(7));
+   }
+
+   private static final class RecordingCallback implements FileDescriptorSource.ProgressCallback {
+
+      final Set<String> failed = new HashSet<>();
+
+      final Set<String> successful = new HashSet<>();
+
+      @Override
+      public void handleError(String fileName, DescriptorParserException exception) {
+         failed.add(fileName);
+      }
+
+      @Override
+      public void handleSuccess(String fileName) {
+         successful.add(fileName);
+      }
+   }
+
+   @Test
+   public void testOnlyAffectedFilesAreResolved() throws Exception {
+      SerializationContextImpl ctx = createContext();
+      ctx.registerProtoFiles(new FileDescriptorSource()
+            .addProtoFile("a.proto", "package a;\nmessage A {\n   optional int32 f = 1;\n}")
+            .addProtoFile("b.proto", "package b;\nimport \"a.proto\";\nmessage B {\n   optional a.A f = 1;\n}")
+            .addProtoFile("c.proto", "package c;\nimport \"b.proto\";\nmessage C {\n   optional b.B f = 1;\n}")
+            .addProtoFile("x.proto", "package x;\nmessage X {\n   optional int32 f = 1;\n}"));
+
+      // d.proto waits for its import
+      RecordingCallback callback = new RecordingCallback();
+      ctx.registerProtoFiles(new FileDescriptorSource()
+            .addProtoFile("d.proto", "package d;\nimport \"e.proto\";\nmessage D {\n   optional e.E f = 1;\n}")
+            .withProgressCallback(callback));
+      assertEquals(Collections.singleton("d.proto"), callback.failed);
+      assertTrue(callback.successful.isEmpty());
+
+      // replacing a.proto resolves again the files importing it directly or indirectly, but not x.proto
+      callback = new RecordingCallback();
+      ctx.registerProtoFiles(new FileDescriptorSource()
+            .addProtoFile("a.proto", "package a;\nmessage A {\n   optional int32 f = 1;\n   optional int32 g = 2;\n}")
+            .withProgressCallback(callback));
+      assertEquals(new HashSet<>(Arrays.asList("a.proto", "b.proto", "c.proto")), callback.successful);
+      assertEquals(Collections.singleton("d.proto"), callback.failed);
+      assertNotNull(ctx.getMessageDescriptor("a.A").findFieldByName("g"));
+      assertSame(ctx.getMessageDescriptor("a.A"), ctx.getMessageDescriptor("b.B").findFieldByName("f").getMessageType());
+      assertSame(ctx.getMessageDescriptor("b.B"), ctx.getMessageDescriptor("c.C").findFieldByName("f").getMessageType());
+
+      // the missing import arrives
+      callback = new RecordingCallback();
+      ctx.registerProtoFiles(new FileDescriptorSource()
+            .addProtoFile("e.proto", "package e;\nmessage E {\n   optional int32 f = 1;\n}")
+            .withProgressCallback(callback));
+      assertEquals(new HashSet<>(Arrays.asList("d.proto", "e.proto")), callback.successful);
+      assertTrue(callback.failed.isEmpty());
+      assertNotNull(ctx.getMessageDescriptor("d.D"));
+
+      // unregistering a.proto leaves b.proto and c.proto unresolved
+      ctx.unregisterProtoFile("a.proto");
+      assertFalse(ctx.canMarshall("b.B"));
+      assertFalse(ctx.canMarshall("c.C"));
+      assertTrue(ctx.canMarshall("x.X"));
+   }
+
+   @Test
+   public void testReplacedFileNoLongerDependsOnItsOldImports() throws Exception {
+      SerializationContextImpl ctx = createContext();
+      ctx.registerProtoFiles(new FileDescriptorSource()
+            .addProtoFile("a.proto", "package a;\nmessage A {\n   optional int32 f = 1;\n}")
+            .addProtoFile("b.proto", "package b;\nimport \"a.proto\";\nmessage B {\n   optional a.A f = 1;\n}"));
+
+      // b.proto does not import a.proto anymore
+      ctx.registerProtoFiles(FileDescriptorSource.fromString("b.proto", "package b;\nmessage B {\n   optional int32 f = 1;\n}"));
+      ctx.unregisterProtoFile("a.proto");
+
+      assertTrue(ctx.canMarshall("b.B"));
+      assertTrue(ctx.getFileDescriptors().get("b.proto").isResolved());
+   }
+
+   @Test
+   public void testFilesAreParsedUsingTheConfiguredExecutor() throws Exception {
+      final AtomicInteger executedTasks = new AtomicInteger();
+      final ExecutorService executorService = Executors.newFixedThreadPool(2);
+      try {
+         Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+               executedTasks.incrementAndGet();
+               executorService.execute(command);
+            }
+         };
+         SerializationContextImpl ctx = (SerializationContextImpl) ProtobufUtil.newSerializationContext(
+               new Configuration.Builder().setParserExecutor(executor).build());
+
+         RecordingCallback callback = new RecordingCallback();
+         FileDescriptorSource source = new FileDescriptorSource().withProgressCallback(callback);
+         for (int i = 0; i < 20; i++) {
+            source.addProtoFile("f" + i + ".proto", "package p" + i + ";\n" +
+                  (i > 0 ? "import \"f" + (i - 1) + ".proto\";\n" : "") +
+                  "message M {\n" +
+                  (i > 0 ? "   optional p" + (i - 1) + ".M prev = 1;\n" : "") +
+                  "   optional int32 f = 2;\n" +
+                  "}");
+         }
+         source.addProtoFile("bad.proto", "package bad;\nimport \"missing.proto\";\nmessage Bad {\n   optional int32 f = 1;\n}");
+         ctx.registerProtoFiles(source);
+
+         assertEquals(21, executedTasks.get());
+         assertEquals(20, callback.successful.size());
+         assertEquals(Collections.singleton("bad.proto"), callback.failed);
+         assertSame(ctx.getMessageDescriptor("p18.M"), ctx.getMessageDescriptor("p19.M").findFieldByName("prev").getMessageType());
+
+         // a syntax error in any of the files fails the whole registration
+         try {
+            ctx.registerProtoFiles(new FileDescriptorSource()
+                  .addProtoFile("x.proto", "package x;\nmessage X {\n   optional int32 f = 1;\n}")
+                  .addProtoFile("y.proto", "package y;\nmessage Y {\n"));
+            fail("DescriptorParserException expected");
+         } catch (DescriptorParserException e) {
+            // expected
+         }
+         assertFalse(ctx.canMarshall("x.X"));
+      } finally {
+         executorService.shutdown();
+      }
+   }
 }
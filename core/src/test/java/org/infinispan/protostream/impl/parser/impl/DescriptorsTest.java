@@ -719,6 +719,41 @@ public class DescriptorsTest {
       assertEquals(true, values.get(0));
    }
 
+   @Test
+   public void testFindFieldByNumber() throws Exception {
+      String testProto = "message Dense {\n" +
+            "  optional int32 field1 = 1;\n" +
+            "  optional int32 field3 = 3;\n" +
+            "  oneof choice {\n" +
+            "    string field5 = 5;\n" +
+            "  }\n" +
+            "}\n" +
+            "message Sparse {\n" +
+            "  optional int32 field2 = 2;\n" +
+            "  optional int32 field1000 = 1000;\n" +
+            "  oneof choice {\n" +
+            "    string field536870911 = 536870911;\n" +
+            "  }\n" +
+            "}\n" +
+            "message Empty {\n" +
+            "}\n";
+
+      FileDescriptorSource fileDescriptorSource = FileDescriptorSource.fromString("test.proto", testProto);
+      List<Descriptor> messageTypes = parseAndResolve(fileDescriptorSource).get("test.proto").getMessageTypes();
+
+      for (Descriptor messageType : messageTypes) {
+         for (FieldDescriptor field : messageType.getFields()) {
+            assertEquals(field, messageType.findFieldByNumber(field.getNumber()));
+         }
+         for (int number : new int[]{-1, 0, 4, 999, 1001, 536870910, Integer.MAX_VALUE}) {
+            assertEquals(null, messageType.findFieldByNumber(number));
+         }
+      }
+      assertEquals("field5", messageTypes.get(0).findFieldByNumber(5).getName());
+      assertEquals("field536870911", messageTypes.get(1).findFieldByNumber(536870911).getName());
+      assertEquals(null, messageTypes.get(2).findFieldByNumber(1));
+   }
+
    private Map<String, FileDescriptor> parseAndResolve(FileDescriptorSource fileDescriptorSource) {
       return new SquareProtoParser(config).parseAndResolve(fileDescriptorSource);
    }
@@ -0,0 +1,206 @@
+package org.infinispan.protostream.annotations.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+import org.infinispan.protostream.SerializationContextInitializer;
+import org.infinispan.protostream.annotations.AutoProtoSchemaBuilder;
+import org.infinispan.protostream.annotations.ProtoSchemaBuilderException;
+
+/**
+ * Processes {@link AutoProtoSchemaBuilder} annotated types. For each of them it generates the Protobuf schema of the
+ * included classes, a marshaller source for each of the marshalled types and an implementation of the annotated {@link
+ * SerializationContextInitializer} that registers them. Nothing is left to be generated at runtime.
+ *
+ * @since 3.1
+ */
+@SupportedAnnotationTypes("org.infinispan.protostream.annotations.AutoProtoSchemaBuilder")
+public final class AutoProtoSchemaBuilderAnnotationProcessor extends AbstractProcessor {
+
+   private TypeUtils typeUtils;
+
+   @Override
+   public synchronized void init(ProcessingEnvironment processingEnv) {
+      super.init(processingEnv);
+      typeUtils = new TypeUtils(processingEnv);
+   }
+
+   @Override
+   public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latestSupported();
+   }
+
+   @Override
+   public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      for (Element annotatedElement : roundEnv.getElementsAnnotatedWith(AutoProtoSchemaBuilder.class)) {
+         try {
+            processBuilder((TypeElement) annotatedElement);
+         } catch (ProtoSchemaBuilderException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), annotatedElement);
+         } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write generated file: " + e.getMessage(), annotatedElement);
+         }
+      }
+      return true;
+   }
+
+   private void processBuilder(TypeElement builderElement) throws IOException {
+      AutoProtoSchemaBuilder annotation = builderElement.getAnnotation(AutoProtoSchemaBuilder.class);
+      if (builderElement.getKind() != ElementKind.INTERFACE && !builderElement.getModifiers().contains(Modifier.ABSTRACT)) {
+         throw new ProtoSchemaBuilderException("@AutoProtoSchemaBuilder must be applied to an interface or an abstract class: " + builderElement.getQualifiedName());
+      }
+      if (!typeUtils.isAssignable(builderElement.asType(), SerializationContextInitializer.class)) {
+         throw new ProtoSchemaBuilderException("The type " + builderElement.getQualifiedName() + " annotated with @AutoProtoSchemaBuilder must extend " + SerializationContextInitializer.class.getName());
+      }
+      if (annotation.schemaFileName().isEmpty()) {
+         throw new ProtoSchemaBuilderException("The schemaFileName of @AutoProtoSchemaBuilder must not be empty");
+      }
+
+      Set<TypeElement> classes = new LinkedHashSet<>();
+      for (TypeMirror c : typeUtils.getClassValues(annotation::includeClasses)) {
+         TypeElement typeElement = typeUtils.asTypeElement(c);
+         if (typeElement == null) {
+            throw new ProtoSchemaBuilderException("Only classes and enums can be included: " + c);
+         }
+         classes.add(typeElement);
+      }
+      if (classes.isEmpty()) {
+         throw new ProtoSchemaBuilderException("At least one class must be included by @AutoProtoSchemaBuilder");
+      }
+
+      String schemaPackageName = annotation.schemaPackageName().isEmpty() ? null : annotation.schemaPackageName();
+      ProtoSchemaGenerator protoSchemaGenerator = new ProtoSchemaGenerator(typeUtils, annotation.schemaFileName(), schemaPackageName, classes);
+      String protoFile = protoSchemaGenerator.generateProtoFile();
+
+      Filer filer = processingEnv.getFiler();
+      String packageName = typeUtils.getPackageName(builderElement);
+      FileObject schemaResource = filer.createResource(StandardLocation.CLASS_OUTPUT, packageName, annotation.schemaFileName(), builderElement);
+      try (Writer w = schemaResource.openWriter()) {
+         w.write(protoFile);
+      }
+
+      MarshallerSourceGenerator marshallerSourceGenerator = new MarshallerSourceGenerator(typeUtils, schemaPackageName);
+      Set<String> marshallerClassNames = new LinkedHashSet<>();
+      for (ProtoTypeMetadata ptm : protoSchemaGenerator.getTypes()) {
+         String source;
+         if (ptm instanceof ProtoMessageTypeMetadata) {
+            source = marshallerSourceGenerator.generateMessageMarshaller((ProtoMessageTypeMetadata) ptm);
+         } else if (ptm instanceof ProtoEnumTypeMetadata) {
+            source = marshallerSourceGenerator.generateEnumMarshaller((ProtoEnumTypeMetadata) ptm);
+         } else {
+            // defined and marshalled elsewhere
+            continue;
+         }
+         String marshallerClassName = marshallerSourceGenerator.getMarshallerQualifiedName(ptm);
+         writeSource(filer, marshallerClassName, source, builderElement, ptm.getTypeElement());
+         marshallerClassNames.add(marshallerClassName);
+      }
+
+      String initializerClassName = annotation.className().isEmpty() ? getInitializerClassName(builderElement) : annotation.className();
+      String initializerSource = generateInitializer(builderElement, packageName, initializerClassName, annotation.schemaFileName(), protoFile, marshallerClassNames);
+      writeSource(filer, packageName.isEmpty() ? initializerClassName : packageName + "." + initializerClassName, initializerSource, builderElement);
+   }
+
+   /**
+    * The default name of the initializer is the name of the annotated type suffixed with {@code Impl}. Nested types are
+    * prefixed by the names of the enclosing types.
+    */
+   private static String getInitializerClassName(TypeElement builderElement) {
+      StringBuilder sb = new StringBuilder(builderElement.getSimpleName());
+      for (Element e = builderElement.getEnclosingElement(); e instanceof TypeElement; e = e.getEnclosingElement()) {
+         sb.insert(0, e.getSimpleName() + "$");
+      }
+      return sb.append("Impl").toString();
+   }
+
+   private static void writeSource(Filer filer, String className, String source, Element... originatingElements) throws IOException {
+      JavaFileObject sourceFile = filer.createSourceFile(className, originatingElements);
+      try (Writer w = sourceFile.openWriter()) {
+         w.write(source);
+      }
+   }
+
+   private String generateInitializer(TypeElement builderElement, String packageName, String className, String schemaFileName,
+                                      String protoFile, Set<String> marshallerClassNames) {
+      IndentWriter iw = new IndentWriter();
+      if (!packageName.isEmpty()) {
+         iw.append("package ").append(packageName).append(";\n\n");
+      }
+      iw.append("/**\n");
+      iw.append(" * Generated by ").append(getClass().getName()).append(", do not edit.\n");
+      iw.append(" */\n");
+      iw.append("public final class ").append(className)
+            .append(builderElement.getKind() == ElementKind.INTERFACE ? " implements " : " extends ")
+            .append(builderElement.getQualifiedName()).append(" {\n\n");
+      iw.inc();
+      iw.append("private static final String PROTO_FILE_NAME = \"").append(MarshallerSourceGenerator.escape(schemaFileName)).append("\";\n\n");
+      iw.append("private static final String PROTO_FILE =");
+      iw.inc();
+      String[] lines = protoFile.split("\n", -1);
+      for (int i = 0; i < lines.length; i++) {
+         if (i == lines.length - 1 && lines[i].isEmpty()) {
+            break;
+         }
+         iw.append(i == 0 ? "\n" : " +\n");
+         iw.append('"').append(MarshallerSourceGenerator.escape(lines[i]));
+         if (i < lines.length - 1) {
+            iw.append("\\n");
+         }
+         iw.append('"');
+      }
+      iw.append(";\n\n");
+      iw.dec();
+
+      iw.append("@Override\n");
+      iw.append("public String getProtoFileName() {\n");
+      iw.inc();
+      iw.append("return PROTO_FILE_NAME;\n");
+      iw.dec();
+      iw.append("}\n\n");
+
+      iw.append("@Override\n");
+      iw.append("public String getProtoFile() {\n");
+      iw.inc();
+      iw.append("return PROTO_FILE;\n");
+      iw.dec();
+      iw.append("}\n\n");
+
+      iw.append("@Override\n");
+      iw.append("public void registerSchema(org.infinispan.protostream.SerializationContext serCtx) throws java.io.IOException {\n");
+      iw.inc();
+      iw.append("serCtx.registerProtoFiles(org.infinispan.protostream.FileDescriptorSource.fromString(PROTO_FILE_NAME, PROTO_FILE));\n");
+      iw.dec();
+      iw.append("}\n\n");
+
+      iw.append("@Override\n");
+      iw.append("public void registerMarshallers(org.infinispan.protostream.SerializationContext serCtx) {\n");
+      iw.inc();
+      for (String marshallerClassName : marshallerClassNames) {
+         iw.append("serCtx.registerMarshaller(new ").append(marshallerClassName).append("());\n");
+      }
+      iw.dec();
+      iw.append("}\n");
+
+      iw.dec();
+      iw.append("}\n");
+      return iw.toString();
+   }
+}
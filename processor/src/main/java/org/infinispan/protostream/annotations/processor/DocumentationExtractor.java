@@ -0,0 +1,29 @@
+package org.infinispan.protostream.annotations.processor;
+
+import javax.lang.model.element.Element;
+
+import org.infinispan.protostream.annotations.ProtoDoc;
+
+/**
+ * @since 3.1
+ */
+final class DocumentationExtractor {
+
+   public static String getDocumentation(Element... elements) {
+      StringBuilder sb = null;
+
+      for (Element element : elements) {
+         ProtoDoc docAnnotation = element.getAnnotation(ProtoDoc.class);
+         if (docAnnotation != null && !docAnnotation.value().isEmpty()) {
+            if (sb == null) {
+               sb = new StringBuilder();
+            } else {
+               sb.append('\n');
+            }
+            sb.append(docAnnotation.value());
+         }
+      }
+
+      return sb == null ? null : sb.toString();
+   }
+}
@@ -0,0 +1,972 @@
+package org.infinispan.protostream.annotations.processor;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+import org.infinispan.protostream.annotations.ProtoSchemaBuilderException;
+import org.infinispan.protostream.descriptors.Type;
+import org.infinispan.protostream.impl.WireFormat;
+
+/**
+ * Generates the Java source code of the marshallers of the annotated types. This is the compile time counterpart of
+ * {@code org.infinispan.protostream.annotations.impl.MarshallerCodeGenerator}, producing the same logic as plain Java
+ * classes instead of bytecode generated at runtime. A marshaller is a public top level class in the package of the
+ * marshalled type, named after the type and suffixed with {@link #MARSHALLER_CLASS_SUFFIX}.
+ *
+ * @since 3.1
+ */
+final class MarshallerSourceGenerator {
+
+   static final String MARSHALLER_CLASS_SUFFIX = "$___Marshaller";
+
+   private final TypeUtils typeUtils;
+
+   private final String protobufSchemaPackage;
+
+   MarshallerSourceGenerator(TypeUtils typeUtils, String protobufSchemaPackage) {
+      this.typeUtils = typeUtils;
+      this.protobufSchemaPackage = protobufSchemaPackage;
+   }
+
+   /**
+    * The simple name of the generated marshaller class. Nested classes are prefixed by the names of the enclosing
+    * classes, separated by '$'.
+    */
+   String getMarshallerClassName(ProtoTypeMetadata ptm) {
+      String packageName = typeUtils.getPackageName(ptm.getTypeElement());
+      String className = ptm.getJavaClassName();
+      if (!packageName.isEmpty()) {
+         className = className.substring(packageName.length() + 1);
+      }
+      return className.replace('.', '$') + MARSHALLER_CLASS_SUFFIX;
+   }
+
+   String getMarshallerQualifiedName(ProtoTypeMetadata ptm) {
+      String packageName = typeUtils.getPackageName(ptm.getTypeElement());
+      return packageName.isEmpty() ? getMarshallerClassName(ptm) : packageName + "." + getMarshallerClassName(ptm);
+   }
+
+   private String makeQualifiedTypeName(String fullName) {
+      if (protobufSchemaPackage != null) {
+         return protobufSchemaPackage + "." + fullName;
+      }
+      return fullName;
+   }
+
+   private void appendHeader(IndentWriter iw, ProtoTypeMetadata ptm) {
+      String packageName = typeUtils.getPackageName(ptm.getTypeElement());
+      if (!packageName.isEmpty()) {
+         iw.append("package ").append(packageName).append(";\n\n");
+      }
+      iw.append("/**\n");
+      iw.append(" * Marshaller of {@link ").append(ptm.getJavaClassName()).append("} for the Protobuf type ")
+            .append(makeQualifiedTypeName(ptm.getFullName())).append(".\n");
+      iw.append(" * Generated by ").append(AutoProtoSchemaBuilderAnnotationProcessor.class.getName()).append(", do not edit.\n");
+      iw.append(" */\n");
+   }
+
+   private void appendTypeMethods(IndentWriter iw, ProtoTypeMetadata ptm) {
+      iw.append("@Override\n");
+      iw.append("public Class<").append(ptm.getJavaClassName()).append("> getJavaClass() {\n");
+      iw.inc();
+      iw.append("return ").append(ptm.getJavaClassName()).append(".class;\n");
+      iw.dec();
+      iw.append("}\n\n");
+      iw.append("@Override\n");
+      iw.append("public String getTypeName() {\n");
+      iw.inc();
+      iw.append("return \"").append(makeQualifiedTypeName(ptm.getFullName())).append("\";\n");
+      iw.dec();
+      iw.append("}\n");
+   }
+
+   String generateEnumMarshaller(ProtoEnumTypeMetadata petm) {
+      String javaClassName = petm.getJavaClassName();
+      IndentWriter iw = new IndentWriter();
+      appendHeader(iw, petm);
+      iw.append("public final class ").append(getMarshallerClassName(petm))
+            .append(" implements org.infinispan.protostream.EnumMarshaller<").append(javaClassName).append("> {\n\n");
+      iw.inc();
+      appendTypeMethods(iw, petm);
+
+      iw.append("\n@Override\n");
+      iw.append("public ").append(javaClassName).append(" decode(int enumValue) {\n");
+      iw.inc();
+      iw.append("switch (enumValue) {\n");
+      iw.inc();
+      for (ProtoEnumValueMetadata value : petm.getMembers().values()) {
+         iw.append("case ").append(String.valueOf(value.getNumber())).append(": return ").append(javaClassName).append(".").append(value.getJavaName()).append(";\n");
+      }
+      iw.append("default: return null;\n");
+      iw.dec();
+      iw.append("}\n");
+      iw.dec();
+      iw.append("}\n");
+
+      iw.append("\n@Override\n");
+      iw.append("public int encode(").append(javaClassName).append(" e) throws IllegalArgumentException {\n");
+      iw.inc();
+      iw.append("switch (e) {\n");
+      iw.inc();
+      for (ProtoEnumValueMetadata value : petm.getMembers().values()) {
+         iw.append("case ").append(value.getJavaName()).append(": return ").append(String.valueOf(value.getNumber())).append(";\n");
+      }
+      iw.append("default: throw new IllegalArgumentException(\"Unexpected ").append(javaClassName).append(" value : \" + e.name());\n");
+      iw.dec();
+      iw.append("}\n");
+      iw.dec();
+      iw.append("}\n");
+
+      iw.dec();
+      iw.append("}\n");
+      return iw.toString();
+   }
+
+   String generateMessageMarshaller(ProtoMessageTypeMetadata messageTypeMetadata) {
+      String javaClassName = messageTypeMetadata.getJavaClassName();
+      IndentWriter iw = new IndentWriter();
+      appendHeader(iw, messageTypeMetadata);
+      iw.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+      iw.append("public final class ").append(getMarshallerClassName(messageTypeMetadata))
+            .append(" extends org.infinispan.protostream.annotations.impl.GeneratedMarshallerBase")
+            .append(" implements org.infinispan.protostream.RawProtobufMarshaller<").append(javaClassName).append("> {\n\n");
+      iw.inc();
+
+      Map<String, ProtoFieldMetadata> marshallerDelegateFields = new LinkedHashMap<>();
+      for (ProtoFieldMetadata fieldMetadata : messageTypeMetadata.getFields().values()) {
+         switch (fieldMetadata.getProtobufType()) {
+            case GROUP:
+            case MESSAGE:
+            case ENUM:
+               marshallerDelegateFields.putIfAbsent(makeMarshallerDelegateFieldName(fieldMetadata), fieldMetadata);
+               break;
+         }
+      }
+      for (Map.Entry<String, ProtoFieldMetadata> e : marshallerDelegateFields.entrySet()) {
+         iw.append("private ").append(makeMarshallerDelegateType(e.getValue())).append(' ').append(e.getKey()).append(";\n\n");
+      }
+
+      appendTypeMethods(iw, messageTypeMetadata);
+
+      iw.append("\n@Override\n");
+      iw.append("public ").append(javaClassName).append(" readFrom(org.infinispan.protostream.SerializationContext ctx, org.infinispan.protostream.RawProtoStreamReader in) throws java.io.IOException {\n");
+      iw.inc();
+      generateReadFromMethodBody(iw, messageTypeMetadata);
+      iw.dec();
+      iw.append("}\n");
+
+      iw.append("\n@Override\n");
+      iw.append("public void writeTo(org.infinispan.protostream.SerializationContext ctx, org.infinispan.protostream.RawProtoStreamWriter out, ").append(javaClassName).append(" o) throws java.io.IOException {\n");
+      iw.inc();
+      generateWriteToMethodBody(iw, messageTypeMetadata);
+      iw.dec();
+      iw.append("}\n");
+
+      iw.dec();
+      iw.append("}\n");
+      return iw.toString();
+   }
+
+   private String makeFieldWasSetFlag(ProtoFieldMetadata fieldMetadata) {
+      return "__wasSet$" + fieldMetadata.getName();
+   }
+
+   private String makeCollectionLocalVar(ProtoFieldMetadata fieldMetadata) {
+      return "__c$" + fieldMetadata.getName();
+   }
+
+   private String makeArraySizeLocalVar(ProtoFieldMetadata fieldMetadata) {
+      return "__n$" + fieldMetadata.getName();
+   }
+
+   private String makeMarshallerDelegateFieldName(ProtoFieldMetadata fieldMetadata) {
+      return "__md$" + javaTypeName(fieldMetadata).replace('.', '$');
+   }
+
+   private String makeMarshallerDelegateType(ProtoFieldMetadata fieldMetadata) {
+      String delegateClass = fieldMetadata.getProtobufType() == Type.ENUM ? "EnumMarshallerDelegate" : "BaseMarshallerDelegate";
+      return "org.infinispan.protostream.impl." + delegateClass + "<" + javaTypeName(fieldMetadata) + ">";
+   }
+
+   private String javaTypeName(ProtoFieldMetadata fieldMetadata) {
+      return typeUtils.getName(fieldMetadata.getJavaType());
+   }
+
+   private boolean is(ProtoFieldMetadata fieldMetadata, Class<?> primitiveType) {
+      return typeUtils.is(fieldMetadata.getJavaType(), primitiveType) || typeUtils.is(fieldMetadata.getJavaType(), boxedClass(primitiveType));
+   }
+
+   private boolean isDate(ProtoFieldMetadata fieldMetadata) {
+      return typeUtils.isAssignable(fieldMetadata.getJavaType(), Date.class);
+   }
+
+   private String getCollectionImplementationName(ProtoFieldMetadata fieldMetadata) {
+      return fieldMetadata.isArray() ? "java.util.ArrayList" : typeUtils.getName(fieldMetadata.getCollectionImplementation());
+   }
+
+   /**
+    * Repeated fields mapped to arrays of these primitive types are accumulated directly into a primitive array
+    * during unmarshalling instead of going through a collection of boxed values.
+    */
+   private boolean isUnboxedArray(ProtoFieldMetadata fieldMetadata) {
+      TypeKind kind = fieldMetadata.getJavaType().getKind();
+      return fieldMetadata.isArray()
+            && (kind == TypeKind.INT || kind == TypeKind.LONG || kind == TypeKind.DOUBLE || kind == TypeKind.FLOAT);
+   }
+
+   private void generateReadFromMethodBody(IndentWriter iw, ProtoMessageTypeMetadata messageTypeMetadata) {
+      String getUnknownFieldSetFieldStatement = null;
+      String setUnknownFieldSetFieldStatement = null;
+      if (messageTypeMetadata.getUnknownFieldSetField() != null) {
+         getUnknownFieldSetFieldStatement = "o." + messageTypeMetadata.getUnknownFieldSetField().getSimpleName();
+         setUnknownFieldSetFieldStatement = "o." + messageTypeMetadata.getUnknownFieldSetField().getSimpleName() + " = u";
+      } else if (messageTypeMetadata.getUnknownFieldSetGetter() != null) {
+         getUnknownFieldSetFieldStatement = "o." + messageTypeMetadata.getUnknownFieldSetGetter().getSimpleName() + "()";
+         setUnknownFieldSetFieldStatement = "o." + messageTypeMetadata.getUnknownFieldSetSetter().getSimpleName() + "(u)";
+      } else if (messageTypeMetadata.isMessage()) {
+         getUnknownFieldSetFieldStatement = "o.getUnknownFieldSet()";
+         setUnknownFieldSetFieldStatement = "o.setUnknownFieldSet(u)";
+      }
+
+      String javaClassName = messageTypeMetadata.getJavaClassName();
+      iw.append("final ").append(javaClassName).append(" o = new ").append(javaClassName).append("();\n");
+      int requiredFields = 0;
+      for (ProtoFieldMetadata fieldMetadata : messageTypeMetadata.getFields().values()) {
+         if (fieldMetadata.isRequired() && fieldMetadata.getDefaultValue() == null) {
+            requiredFields++;
+         }
+         if (fieldMetadata.isRequired() || fieldMetadata.getDefaultValue() != null) {
+            iw.append("boolean ").append(makeFieldWasSetFlag(fieldMetadata)).append(" = false;\n");
+         }
+         if (isUnboxedArray(fieldMetadata)) {
+            iw.append(javaTypeName(fieldMetadata)).append("[] ").append(makeCollectionLocalVar(fieldMetadata)).append(" = null;\n");
+            iw.append("int ").append(makeArraySizeLocalVar(fieldMetadata)).append(" = 0;\n");
+         } else if (fieldMetadata.isRepeated()) {
+            iw.append(getCollectionImplementationName(fieldMetadata)).append(' ').append(makeCollectionLocalVar(fieldMetadata)).append(" = null;\n");
+         }
+      }
+      iw.append("boolean done = false;\n");
+      iw.append("while (!done) {\n");
+      iw.inc();
+      iw.append("final int tag = in.readTag();\n");
+      iw.append("switch (tag) {\n");
+      iw.inc();
+      iw.append("case 0:\n");
+      iw.inc();
+      iw.append("done = true;\nbreak;\n");
+      iw.dec();
+
+      for (ProtoFieldMetadata fieldMetadata : messageTypeMetadata.getFields().values()) {
+         iw.append("case ").append(String.valueOf(fieldMetadata.getNumber() << 3 | fieldMetadata.getProtobufType().getWireType())).append(":\n");
+         iw.inc();
+         genReadField(iw, fieldMetadata, getUnknownFieldSetFieldStatement, setUnknownFieldSetFieldStatement);
+         iw.append("break;\n");
+         iw.dec();
+         if (fieldMetadata.isRepeated() && fieldMetadata.getProtobufType().isPackable()) {
+            // packed input is accepted even if the field was not declared packed
+            iw.append("case ").append(String.valueOf(fieldMetadata.getNumber() << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED)).append(":\n");
+            iw.inc();
+            iw.append("{\n");
+            iw.inc();
+            iw.append("int length = in.readRawVarint32();\n");
+            iw.append("int oldLimit = in.pushLimit(length);\n");
+            iw.append("while (!in.isAtEnd()) {\n");
+            iw.inc();
+            genReadField(iw, fieldMetadata, getUnknownFieldSetFieldStatement, setUnknownFieldSetFieldStatement);
+            iw.dec();
+            iw.append("}\n");
+            iw.append("in.popLimit(oldLimit);\n");
+            iw.dec();
+            iw.append("}\n");
+            iw.append("break;\n");
+            iw.dec();
+         }
+      }
+      iw.append("default:\n");
+      iw.inc();
+      iw.append("{\n");
+      iw.inc();
+      if (getUnknownFieldSetFieldStatement != null) {
+         iw.append("org.infinispan.protostream.UnknownFieldSet u = ").append(getUnknownFieldSetFieldStatement).append(";\n");
+         iw.append("if (u == null) u = new org.infinispan.protostream.impl.UnknownFieldSetImpl();\n");
+         iw.append("if (!u.readSingleField(tag, in)) done = true;\n");
+         iw.append("if (!u.isEmpty()) ").append(setUnknownFieldSetFieldStatement).append(";\n");
+      } else {
+         iw.append("in.skipField(tag);\n");
+      }
+      iw.dec();
+      iw.append("}\n");
+      iw.dec();
+      iw.dec();
+      iw.append("}\n");
+      iw.dec();
+      iw.append("}\n");
+      for (ProtoFieldMetadata fieldMetadata : messageTypeMetadata.getFields().values()) {
+         Object defaultValue = fieldMetadata.getDefaultValue();
+         if (defaultValue != null) {
+            iw.append("if (!").append(makeFieldWasSetFlag(fieldMetadata)).append(") {\n");
+            iw.inc();
+            String v = makeDefaultValueLiteral(fieldMetadata);
+            if (isUnboxedArray(fieldMetadata)) {
+               genAddToArray(iw, fieldMetadata, v);
+            } else if (fieldMetadata.isRepeated()) {
+               String c = makeCollectionLocalVar(fieldMetadata);
+               iw.append("if (").append(c).append(" == null) ").append(c).append(" = new ").append(getCollectionImplementationName(fieldMetadata)).append("();\n");
+               iw.append(c).append(".add(").append(v).append(");\n");
+            } else {
+               iw.append("o.").append(createSetter(fieldMetadata, v)).append(";\n");
+            }
+            iw.dec();
+            iw.append("}\n");
+         }
+      }
+      for (ProtoFieldMetadata fieldMetadata : messageTypeMetadata.getFields().values()) {
+         String elementType = javaTypeName(fieldMetadata);
+         if (isUnboxedArray(fieldMetadata)) {
+            String c = makeCollectionLocalVar(fieldMetadata);
+            String n = makeArraySizeLocalVar(fieldMetadata);
+            iw.append("if (").append(c).append(" != null) {\n");
+            iw.inc();
+            iw.append("if (").append(n).append(" < ").append(c).append(".length) {\n");
+            iw.inc();
+            iw.append(elementType).append("[] _c = new ").append(elementType).append("[").append(n).append("];\n");
+            iw.append("System.arraycopy(").append(c).append(", 0, _c, 0, ").append(n).append(");\n");
+            iw.append(c).append(" = _c;\n");
+            iw.dec();
+            iw.append("}\n");
+            iw.append("o.").append(createSetter(fieldMetadata, c)).append(";\n");
+            iw.dec();
+            iw.append("}\n");
+         } else if (fieldMetadata.isRepeated()) {
+            String c = makeCollectionLocalVar(fieldMetadata);
+            if (fieldMetadata.isArray()) {
+               iw.append("if (").append(c).append(" != null) {\n");
+               iw.inc();
+               if (fieldMetadata.getJavaType().getKind().isPrimitive()) {
+                  iw.append(elementType).append("[] _c = new ").append(elementType).append("[").append(c).append(".size()];\n");
+                  iw.append("for (int i = 0; i < _c.length; i++) _c[i] = (").append(boxedClass(fieldMetadata.getJavaType()).getName()).append(") ").append(c).append(".get(i);\n");
+                  c = "_c";
+               } else {
+                  c = "(" + elementType + "[]) " + c + ".toArray(new " + elementType + "[" + c + ".size()])";
+               }
+            }
+            iw.append("o.").append(createSetter(fieldMetadata, c)).append(";\n");
+            if (fieldMetadata.isArray()) {
+               iw.dec();
+               iw.append("}\n");
+            }
+         }
+      }
+      if (requiredFields > 0) {
+         iw.append("if (!(");
+         boolean first = true;
+         for (ProtoFieldMetadata fieldMetadata : messageTypeMetadata.getFields().values()) {
+            if (fieldMetadata.isRequired() && fieldMetadata.getDefaultValue() == null) {
+               if (first) {
+                  first = false;
+               } else {
+                  iw.append(" && ");
+               }
+               iw.append(makeFieldWasSetFlag(fieldMetadata));
+            }
+         }
+         iw.append(")) {\n");
+         iw.inc();
+         iw.append("StringBuilder missingFields = null;\n");
+         for (ProtoFieldMetadata fieldMetadata : messageTypeMetadata.getFields().values()) {
+            if (fieldMetadata.isRequired()) {
+               iw.append("if (!").append(makeFieldWasSetFlag(fieldMetadata)).append(") { if (missingFields == null) missingFields = new StringBuilder(); else missingFields.append(\", \"); missingFields.append(\"").append(fieldMetadata.getName()).append("\"); }\n");
+            }
+         }
+         iw.append("if (missingFields != null) throw new java.io.IOException(\"Required field(s) missing from input stream : \" + missingFields);\n");
+         iw.dec();
+         iw.append("}\n");
+      }
+      iw.append("return o;\n");
+   }
+
+   private void genReadField(IndentWriter iw, ProtoFieldMetadata fieldMetadata, String getUnknownFieldSetFieldStatement, String setUnknownFieldSetFieldStatement) {
+      String javaType = javaTypeName(fieldMetadata);
+      switch (fieldMetadata.getProtobufType()) {
+         case DOUBLE:
+         case FLOAT:
+         case INT64:
+         case UINT64:
+         case INT32:
+         case FIXED64:
+         case FIXED32:
+         case BOOL:
+         case STRING:
+         case BYTES:
+         case UINT32:
+         case SFIXED32:
+         case SFIXED64:
+         case SINT32:
+         case SINT64:
+            iw.append("{\n");
+            iw.inc();
+            iw.append(javaType).append(" v = ").append(convertFromWire(fieldMetadata, "in." + makeStreamIOMethodName(fieldMetadata, false) + "()")).append(";\n");
+            genSetField(iw, fieldMetadata);
+            iw.dec();
+            iw.append("}\n");
+            break;
+         case GROUP:
+            iw.append("{\n");
+            iw.inc();
+            initMarshallerDelegateField(iw, fieldMetadata);
+            iw.append(javaType).append(" v = readMessage(").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(", in);\n");
+            iw.append("in.checkLastTagWas(").append(String.valueOf(fieldMetadata.getNumber() << 3 | WireFormat.WIRETYPE_END_GROUP)).append(");\n");
+            genSetField(iw, fieldMetadata);
+            iw.dec();
+            iw.append("}\n");
+            break;
+         case MESSAGE:
+            iw.append("{\n");
+            iw.inc();
+            initMarshallerDelegateField(iw, fieldMetadata);
+            iw.append("int length = in.readRawVarint32();\n");
+            iw.append("int oldLimit = in.pushLimit(length);\n");
+            iw.append(javaType).append(" v = readMessage(").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(", in);\n");
+            iw.append("in.checkLastTagWas(0);\n");
+            iw.append("in.popLimit(oldLimit);\n");
+            genSetField(iw, fieldMetadata);
+            iw.dec();
+            iw.append("}\n");
+            break;
+         case ENUM:
+            iw.append("{\n");
+            iw.inc();
+            initMarshallerDelegateField(iw, fieldMetadata);
+            iw.append("int enumVal = in.readEnum();\n");
+            iw.append(javaType).append(" v = ").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(".getMarshaller().decode(enumVal);\n");
+            iw.append("if (v == null) {\n");
+            if (getUnknownFieldSetFieldStatement != null) {
+               iw.inc();
+               iw.append("org.infinispan.protostream.UnknownFieldSet u = ").append(getUnknownFieldSetFieldStatement).append(";\n");
+               iw.append("if (u == null) { u = new org.infinispan.protostream.impl.UnknownFieldSetImpl(); ").append(setUnknownFieldSetFieldStatement).append("; }\n");
+               iw.append("u.putVarintField(").append(String.valueOf(fieldMetadata.getNumber())).append(", enumVal);\n");
+               iw.dec();
+            }
+            iw.append("} else {\n");
+            iw.inc();
+            genSetField(iw, fieldMetadata);
+            iw.dec();
+            iw.append("}\n");
+            iw.dec();
+            iw.append("}\n");
+            break;
+         default:
+            throw new IllegalStateException("Unknown field type " + fieldMetadata.getProtobufType());
+      }
+   }
+
+   private void genSetField(IndentWriter iw, ProtoFieldMetadata fieldMetadata) {
+      if (isUnboxedArray(fieldMetadata)) {
+         genAddToArray(iw, fieldMetadata, "v");
+      } else if (fieldMetadata.isRepeated()) {
+         String c = makeCollectionLocalVar(fieldMetadata);
+         iw.append("if (").append(c).append(" == null) ").append(c).append(" = new ").append(getCollectionImplementationName(fieldMetadata)).append("();\n");
+         iw.append(c).append(".add(v);\n");
+      } else {
+         iw.append("o.").append(createSetter(fieldMetadata, "v")).append(";\n");
+      }
+      if (fieldMetadata.isRequired() || fieldMetadata.getDefaultValue() != null) {
+         iw.append(makeFieldWasSetFlag(fieldMetadata)).append(" = true;\n");
+      }
+   }
+
+   /**
+    * Appends a value to the primitive array of a repeated field, doubling its capacity when full.
+    */
+   private void genAddToArray(IndentWriter iw, ProtoFieldMetadata fieldMetadata, String v) {
+      String c = makeCollectionLocalVar(fieldMetadata);
+      String n = makeArraySizeLocalVar(fieldMetadata);
+      String elementType = javaTypeName(fieldMetadata);
+      iw.append("if (").append(c).append(" == null) {\n");
+      iw.inc();
+      iw.append(c).append(" = new ").append(elementType).append("[16];\n");
+      iw.dec();
+      iw.append("} else if (").append(n).append(" == ").append(c).append(".length) {\n");
+      iw.inc();
+      iw.append(elementType).append("[] _c = new ").append(elementType).append("[").append(n).append(" * 2];\n");
+      iw.append("System.arraycopy(").append(c).append(", 0, _c, 0, ").append(n).append(");\n");
+      iw.append(c).append(" = _c;\n");
+      iw.dec();
+      iw.append("}\n");
+      iw.append(c).append("[").append(n).append("++] = ").append(v).append(";\n");
+   }
+
+   private void generateWriteToMethodBody(IndentWriter iw, ProtoMessageTypeMetadata messageTypeMetadata) {
+      String getUnknownFieldSetFieldStatement = null;
+      if (messageTypeMetadata.getUnknownFieldSetField() != null) {
+         getUnknownFieldSetFieldStatement = "o." + messageTypeMetadata.getUnknownFieldSetField().getSimpleName();
+      } else if (messageTypeMetadata.getUnknownFieldSetGetter() != null) {
+         getUnknownFieldSetFieldStatement = "o." + messageTypeMetadata.getUnknownFieldSetGetter().getSimpleName() + "()";
+      } else if (messageTypeMetadata.isMessage()) {
+         getUnknownFieldSetFieldStatement = "o.getUnknownFieldSet()";
+      }
+
+      for (ProtoFieldMetadata fieldMetadata : messageTypeMetadata.getFields().values()) {
+         String javaType = javaTypeName(fieldMetadata);
+         iw.append("{\n");
+         iw.inc();
+         final String v = fieldMetadata.isRepeated() ? "c" : "v";
+         iw.append("final ");
+         if (fieldMetadata.isRepeated()) {
+            if (fieldMetadata.isArray()) {
+               iw.append(typeUtils.getName(fieldMetadata.getPropertyType()));
+            } else {
+               iw.append("java.util.Collection");
+            }
+            iw.append(" c = o.").append(createGetter(fieldMetadata)).append(";\n");
+         } else {
+            iw.append(javaType).append(" v = ").append(castIfNeeded(fieldMetadata, fieldMetadata.getPropertyType())).append("o.").append(createGetter(fieldMetadata)).append(";\n");
+         }
+         if (fieldMetadata.isRequired()) {
+            if (!fieldMetadata.getJavaType().getKind().isPrimitive()) {
+               iw.append("if (").append(v).append(" == null) throw new IllegalStateException(\"Required field must not be null : ").append(fieldMetadata.getName()).append("\");\n");
+            }
+         } else {
+            if (!fieldMetadata.getJavaType().getKind().isPrimitive() || fieldMetadata.isRepeated()) {
+               iw.append("if (").append(v).append(" != null) ");
+            }
+         }
+         if (fieldMetadata.isPacked()) {
+            genWritePacked(iw, fieldMetadata);
+            iw.dec();
+            iw.append("}\n");
+            continue;
+         }
+         if (fieldMetadata.isRepeated()) {
+            iw.append('\n');
+            iw.inc();
+            if (fieldMetadata.isArray()) {
+               iw.append("for (int i = 0; i < c.length; i++) {\n");
+               iw.inc();
+               TypeMirror componentType = typeUtils.determineElementType(fieldMetadata.getPropertyType());
+               iw.append("final ").append(javaType).append(" v = ").append(castIfNeeded(fieldMetadata, componentType)).append("c[i];\n");
+            } else {
+               iw.append("for (java.util.Iterator it = c.iterator(); it.hasNext(); ) {\n");
+               iw.inc();
+               iw.append("final ").append(javaType).append(" v = (").append(boxedName(fieldMetadata.getJavaType())).append(") it.next();\n");
+            }
+         }
+         switch (fieldMetadata.getProtobufType()) {
+            case DOUBLE:
+            case FLOAT:
+            case INT64:
+            case UINT64:
+            case INT32:
+            case FIXED64:
+            case FIXED32:
+            case BOOL:
+            case STRING:
+            case BYTES:
+            case UINT32:
+            case SFIXED32:
+            case SFIXED64:
+            case SINT32:
+            case SINT64:
+               iw.append("out.").append(makeStreamIOMethodName(fieldMetadata, true)).append("(").append(String.valueOf(fieldMetadata.getNumber())).append(", ").append(convertToWire(fieldMetadata, "v")).append(");\n");
+               break;
+            case GROUP:
+               iw.append("{\n");
+               iw.inc();
+               initMarshallerDelegateField(iw, fieldMetadata);
+               iw.append("out.writeTag(").append(String.valueOf(fieldMetadata.getNumber())).append(", org.infinispan.protostream.impl.WireFormat.WIRETYPE_START_GROUP);\n");
+               iw.append("writeMessage(").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(", out, v);\n");
+               iw.append("out.writeTag(").append(String.valueOf(fieldMetadata.getNumber())).append(", org.infinispan.protostream.impl.WireFormat.WIRETYPE_END_GROUP);\n");
+               iw.dec();
+               iw.append("}\n");
+               break;
+            case MESSAGE:
+               iw.append("{\n");
+               iw.inc();
+               initMarshallerDelegateField(iw, fieldMetadata);
+               iw.append("writeNestedMessage(").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(", out, ").append(String.valueOf(fieldMetadata.getNumber())).append(", v);\n");
+               iw.dec();
+               iw.append("}\n");
+               break;
+            case ENUM:
+               iw.append("{\n");
+               iw.inc();
+               initMarshallerDelegateField(iw, fieldMetadata);
+               iw.append("out.writeEnum(").append(String.valueOf(fieldMetadata.getNumber())).append(", ").append(makeMarshallerDelegateFieldName(fieldMetadata)).append(".getMarshaller().encode(v));\n");
+               iw.dec();
+               iw.append("}\n");
+               break;
+            default:
+               throw new IllegalStateException("Unknown field type " + fieldMetadata.getProtobufType());
+         }
+         if (fieldMetadata.isRepeated()) {
+            iw.dec();
+            iw.append("}\n");
+            iw.dec();
+         }
+         iw.dec();
+         iw.append("}\n");
+      }
+
+      if (getUnknownFieldSetFieldStatement != null) {
+         iw.append("{\n");
+         iw.inc();
+         iw.append("org.infinispan.protostream.UnknownFieldSet u = ").append(getUnknownFieldSetFieldStatement).append(";\nif (u != null && !u.isEmpty()) u.writeTo(out);\n");
+         iw.dec();
+         iw.append("}\n");
+      }
+   }
+
+   /**
+    * Writes all elements of a repeated field as a single length-delimited record. The payload size is computed upfront
+    * in a first pass over the elements so the values can be written straight to the output in a second pass.
+    */
+   private void genWritePacked(IndentWriter iw, ProtoFieldMetadata fieldMetadata) {
+      iw.append("{\n");
+      iw.inc();
+      if (fieldMetadata.getProtobufType() == Type.ENUM) {
+         initMarshallerDelegateField(iw, fieldMetadata);
+      }
+      iw.append("final int n = ").append(fieldMetadata.isArray() ? "c.length" : "c.size()").append(";\n");
+      iw.append("if (n > 0) {\n");
+      iw.inc();
+      String x = unbox(fieldMetadata, "v");
+      String writeStatement = null;
+      String varint = null;
+      switch (fieldMetadata.getProtobufType()) {
+         case DOUBLE:
+            iw.append("final int size = n * 8;\n");
+            writeStatement = "out.writeFixed64NoTag(Double.doubleToRawLongBits(" + x + "));\n";
+            break;
+         case FIXED64:
+         case SFIXED64:
+            iw.append("final int size = n * 8;\n");
+            writeStatement = "out.writeFixed64NoTag(" + x + ");\n";
+            break;
+         case FLOAT:
+            iw.append("final int size = n * 4;\n");
+            writeStatement = "out.writeFixed32NoTag(Float.floatToRawIntBits(" + x + "));\n";
+            break;
+         case FIXED32:
+         case SFIXED32:
+            iw.append("final int size = n * 4;\n");
+            writeStatement = "out.writeFixed32NoTag(" + x + ");\n";
+            break;
+         case BOOL:
+            iw.append("final int size = n;\n");
+            writeStatement = "out.writeUInt32NoTag(" + x + " ? 1 : 0);\n";
+            break;
+         case INT32:
+         case INT64:
+         case UINT64:
+            varint = "(long) " + x;
+            break;
+         case UINT32:
+            varint = "((long) " + x + ") & 0xFFFFFFFFL";
+            break;
+         case SINT32:
+            varint = "((long) (((int) " + x + " << 1) ^ ((int) " + x + " >> 31))) & 0xFFFFFFFFL";
+            break;
+         case SINT64:
+            varint = "((long) " + x + " << 1) ^ ((long) " + x + " >> 63)";
+            break;
+         case ENUM:
+            varint = "(long) " + makeMarshallerDelegateFieldName(fieldMetadata) + ".getMarshaller().encode(v)";
+            break;
+         default:
+            throw new IllegalStateException("Field type " + fieldMetadata.getProtobufType() + " cannot be packed");
+      }
+      if (varint != null) {
+         iw.append("int size = 0;\n");
+         genPackedLoop(iw, fieldMetadata, "i1", "it1");
+         iw.append("size += org.infinispan.protostream.impl.RawProtoStreamWriterImpl.computeVarint64Size(").append(varint).append(");\n");
+         iw.dec();
+         iw.append("}\n");
+         writeStatement = "out.writeUInt64NoTag(" + varint + ");\n";
+      }
+      iw.append("out.writeTag(").append(String.valueOf(fieldMetadata.getNumber())).append(", org.infinispan.protostream.impl.WireFormat.WIRETYPE_LENGTH_DELIMITED);\n");
+      iw.append("out.writeUInt32NoTag(size);\n");
+      genPackedLoop(iw, fieldMetadata, "i2", "it2");
+      iw.append(writeStatement);
+      iw.dec();
+      iw.append("}\n");
+      iw.dec();
+      iw.append("}\n");
+      iw.dec();
+      iw.append("}\n");
+   }
+
+   private void genPackedLoop(IndentWriter iw, ProtoFieldMetadata fieldMetadata, String index, String iterator) {
+      String javaType = javaTypeName(fieldMetadata);
+      if (fieldMetadata.isArray()) {
+         iw.append("for (int ").append(index).append(" = 0; ").append(index).append(" < n; ").append(index).append("++) {\n");
+         iw.inc();
+         iw.append("final ").append(javaType).append(" v = c[").append(index).append("];\n");
+      } else {
+         iw.append("for (java.util.Iterator ").append(iterator).append(" = c.iterator(); ").append(iterator).append(".hasNext(); ) {\n");
+         iw.inc();
+         iw.append("final ").append(javaType).append(" v = (").append(boxedName(fieldMetadata.getJavaType())).append(") ").append(iterator).append(".next();\n");
+      }
+   }
+
+   private void initMarshallerDelegateField(IndentWriter iw, ProtoFieldMetadata fieldMetadata) {
+      String fieldName = makeMarshallerDelegateFieldName(fieldMetadata);
+      iw.append("if (").append(fieldName).append(" == null) ").append(fieldName).append(" = ");
+      if (fieldMetadata.getProtobufType() == Type.ENUM) {
+         iw.append("(").append(makeMarshallerDelegateType(fieldMetadata)).append(") ");
+      }
+      iw.append("((org.infinispan.protostream.impl.SerializationContextImpl) ctx).getMarshallerDelegate(")
+            .append(javaTypeName(fieldMetadata)).append(".class);\n");
+   }
+
+   /**
+    * Converts the value read from the stream to the Java type of the field.
+    */
+   private String convertFromWire(ProtoFieldMetadata fieldMetadata, String v) {
+      if (isDate(fieldMetadata)) {
+         if (!typeUtils.hasPublicConstructor(typeUtils.asTypeElement(fieldMetadata.getJavaType()), Long.TYPE)) {
+            throw new ProtoSchemaBuilderException("Type " + javaTypeName(fieldMetadata) + " is not a valid Date type because it does not have a constructor that accepts a 'long' timestamp parameter");
+         }
+         return "new " + javaTypeName(fieldMetadata) + "(" + v + ")";
+      } else if (is(fieldMetadata, Short.TYPE)) {
+         return "(short) " + v;
+      } else if (is(fieldMetadata, Byte.TYPE)) {
+         return "(byte) " + v;
+      } else if (is(fieldMetadata, Character.TYPE)) {
+         return v + ".charAt(0)";
+      }
+      return v;
+   }
+
+   /**
+    * Converts the value of the field to the type expected by the stream.
+    */
+   private String convertToWire(ProtoFieldMetadata fieldMetadata, String v) {
+      if (isDate(fieldMetadata)) {
+         return v + ".getTime()";
+      } else if (is(fieldMetadata, Character.TYPE)) {
+         return "String.valueOf(" + v + ")";
+      }
+      return unbox(fieldMetadata, v);
+   }
+
+   private String unbox(ProtoFieldMetadata fieldMetadata, String v) {
+      TypeMirror javaType = fieldMetadata.getJavaType();
+      if (isDate(fieldMetadata)) {
+         return v + ".getTime()";
+      } else if (typeUtils.is(javaType, Float.class)) {
+         return v + ".floatValue()";
+      } else if (typeUtils.is(javaType, Double.class)) {
+         return v + ".doubleValue()";
+      } else if (typeUtils.is(javaType, Boolean.class)) {
+         return v + ".booleanValue()";
+      } else if (typeUtils.is(javaType, Long.class)) {
+         return v + ".longValue()";
+      } else if (typeUtils.is(javaType, Integer.class)) {
+         return v + ".intValue()";
+      } else if (typeUtils.is(javaType, Short.class)) {
+         return v + ".shortValue()";
+      } else if (typeUtils.is(javaType, Byte.class)) {
+         return v + ".byteValue()";
+      }
+      return v;
+   }
+
+   private String castIfNeeded(ProtoFieldMetadata fieldMetadata, TypeMirror sourceType) {
+      if (sourceType.getKind().isPrimitive() || typeUtils.isSameType(sourceType, fieldMetadata.getJavaType())) {
+         return "";
+      }
+      return "(" + javaTypeName(fieldMetadata) + ") ";
+   }
+
+   private String makeDefaultValueLiteral(ProtoFieldMetadata fieldMetadata) {
+      Object defaultValue = fieldMetadata.getDefaultValue();
+      if (isDate(fieldMetadata)) {
+         return convertFromWire(fieldMetadata, defaultValue + "L");
+      } else if (defaultValue instanceof ProtoEnumValueMetadata) {
+         return javaTypeName(fieldMetadata) + "." + ((ProtoEnumValueMetadata) defaultValue).getJavaName();
+      } else if (defaultValue instanceof Long) {
+         return defaultValue + "L";
+      } else if (defaultValue instanceof Double) {
+         return defaultValue + "D";
+      } else if (defaultValue instanceof Float) {
+         return defaultValue + "F";
+      } else if (defaultValue instanceof Short) {
+         return "(short) " + defaultValue;
+      } else if (defaultValue instanceof Byte) {
+         return "(byte) " + defaultValue;
+      } else if (defaultValue instanceof Character) {
+         char c = (Character) defaultValue;
+         return c == '\'' || c == '\\' ? "'\\" + c + "'" : "'" + c + "'";
+      } else if (defaultValue instanceof String) {
+         // already quoted, as in the schema
+         String s = (String) defaultValue;
+         return "\"" + escape(s.substring(1, s.length() - 1)) + "\"";
+      }
+      return defaultValue.toString();
+   }
+
+   /**
+    * Escapes a string to be included in a Java string literal.
+    */
+   static String escape(String s) {
+      StringBuilder sb = new StringBuilder(s.length());
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"':
+               sb.append("\\\"");
+               break;
+            case '\\':
+               sb.append("\\\\");
+               break;
+            case '\n':
+               sb.append("\\n");
+               break;
+            case '\r':
+               sb.append("\\r");
+               break;
+            case '\t':
+               sb.append("\\t");
+               break;
+            default:
+               if (c < 0x20 || c > 0x7E) {
+                  sb.append(String.format("\\u%04x", (int) c));
+               } else {
+                  sb.append(c);
+               }
+         }
+      }
+      return sb.toString();
+   }
+
+   private String makeStreamIOMethodName(ProtoFieldMetadata fieldMetadata, boolean isWrite) {
+      String suffix;
+      switch (fieldMetadata.getProtobufType()) {
+         case DOUBLE:
+            suffix = "Double";
+            break;
+         case FLOAT:
+            suffix = "Float";
+            break;
+         case INT64:
+            suffix = "Int64";
+            break;
+         case UINT64:
+            suffix = "UInt64";
+            break;
+         case INT32:
+            suffix = "Int32";
+            break;
+         case FIXED64:
+            suffix = "Fixed64";
+            break;
+         case FIXED32:
+            suffix = "Fixed32";
+            break;
+         case BOOL:
+            suffix = "Bool";
+            break;
+         case STRING:
+            suffix = "String";
+            break;
+         case GROUP:
+            suffix = "Group";
+            break;
+         case MESSAGE:
+            suffix = "Message";
+            break;
+         case BYTES:
+            suffix = "Bytes";
+            break;
+         case UINT32:
+            suffix = "UInt32";
+            break;
+         case ENUM:
+            suffix = "Enum";
+            break;
+         case SFIXED32:
+            suffix = "SFixed32";
+            break;
+         case SFIXED64:
+            suffix = "SFixed64";
+            break;
+         case SINT32:
+            suffix = "SInt32";
+            break;
+         case SINT64:
+            suffix = "SInt64";
+            break;
+         default:
+            throw new IllegalStateException("Unknown field type " + fieldMetadata.getProtobufType());
+      }
+
+      return (isWrite ? "write" : "read") + suffix;
+   }
+
+   private static Class<?> boxedClass(Class<?> clazz) {
+      if (clazz == Float.TYPE) {
+         return Float.class;
+      } else if (clazz == Double.TYPE) {
+         return Double.class;
+      } else if (clazz == Boolean.TYPE) {
+         return Boolean.class;
+      } else if (clazz == Long.TYPE) {
+         return Long.class;
+      } else if (clazz == Integer.TYPE) {
+         return Integer.class;
+      } else if (clazz == Short.TYPE) {
+         return Short.class;
+      } else if (clazz == Byte.TYPE) {
+         return Byte.class;
+      } else if (clazz == Character.TYPE) {
+         return Character.class;
+      }
+      return clazz;
+   }
+
+   private Class<?> boxedClass(TypeMirror type) {
+      switch (type.getKind()) {
+         case FLOAT:
+            return Float.class;
+         case DOUBLE:
+            return Double.class;
+         case BOOLEAN:
+            return Boolean.class;
+         case LONG:
+            return Long.class;
+         case INT:
+            return Integer.class;
+         case SHORT:
+            return Short.class;
+         case BYTE:
+            return Byte.class;
+         case CHAR:
+            return Character.class;
+         default:
+            return null;
+      }
+   }
+
+   private String boxedName(TypeMirror type) {
+      Class<?> boxed = boxedClass(type);
+      return boxed != null ? boxed.getName() : typeUtils.getName(type);
+   }
+
+   private String createGetter(ProtoFieldMetadata fieldMetadata) {
+      if (fieldMetadata.getField() != null) {
+         return fieldMetadata.getField().getSimpleName().toString();
+      }
+      return fieldMetadata.getGetter().getSimpleName() + "()";
+   }
+
+   private String createSetter(ProtoFieldMetadata fieldMetadata, String args) {
+      if (fieldMetadata.getField() != null) {
+         return fieldMetadata.getField().getSimpleName() + " = " + args;
+      }
+      return fieldMetadata.getSetter().getSimpleName() + "(" + args + ")";
+   }
+}
@@ -0,0 +1,95 @@
+package org.infinispan.protostream.annotations.processor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+
+import org.infinispan.protostream.annotations.ProtoEnum;
+import org.infinispan.protostream.annotations.ProtoEnumValue;
+import org.infinispan.protostream.annotations.ProtoSchemaBuilderException;
+
+/**
+ * @since 3.1
+ */
+final class ProtoEnumTypeMetadata extends ProtoTypeMetadata {
+
+   private Map<Integer, ProtoEnumValueMetadata> membersByNumber;
+
+   private Map<String, ProtoEnumValueMetadata> membersByName;
+
+   ProtoEnumTypeMetadata(TypeElement enumElement) {
+      super(getProtoName(enumElement), enumElement, DocumentationExtractor.getDocumentation(enumElement));
+   }
+
+   private static String getProtoName(TypeElement enumElement) {
+      ProtoEnum annotation = enumElement.getAnnotation(ProtoEnum.class);
+      return annotation == null || annotation.name().isEmpty() ? enumElement.getSimpleName().toString() : annotation.name();
+   }
+
+   @Override
+   public void scanMemberAnnotations() {
+      if (membersByNumber == null) {
+         membersByNumber = new TreeMap<>();
+         for (Element e : typeElement.getEnclosedElements()) {
+            if (e.getKind() == ElementKind.ENUM_CONSTANT) {
+               ProtoEnumValue annotation = e.getAnnotation(ProtoEnumValue.class);
+               if (annotation == null) {
+                  throw new ProtoSchemaBuilderException("Enum members must have the @ProtoEnumValue annotation: " + getJavaClassName() + "." + e.getSimpleName());
+               }
+               if (membersByNumber.containsKey(annotation.number())) {
+                  throw new ProtoSchemaBuilderException("Found duplicate definition of Protobuf enum tag " + annotation.number() + " on annotation member: " + getJavaClassName() + "." + e.getSimpleName());
+               }
+               String name = annotation.name();
+               if (name.isEmpty()) {
+                  name = e.getSimpleName().toString();
+               }
+               membersByNumber.put(annotation.number(), new ProtoEnumValueMetadata(annotation.number(), name, (VariableElement) e));
+            }
+         }
+         if (membersByNumber.isEmpty()) {
+            throw new ProtoSchemaBuilderException("Members of enum " + getJavaClassName() + " must be @ProtoEnum annotated");
+         }
+         membersByName = new HashMap<>(membersByNumber.size());
+         for (ProtoEnumValueMetadata enumVal : membersByNumber.values()) {
+            membersByName.put(enumVal.getProtoName(), enumVal);
+         }
+      }
+   }
+
+   public Map<Integer, ProtoEnumValueMetadata> getMembers() {
+      scanMemberAnnotations();
+      return membersByNumber;
+   }
+
+   public ProtoEnumValueMetadata getMemberByName(String name) {
+      scanMemberAnnotations();
+      return membersByName.get(name);
+   }
+
+   @Override
+   public void generateProto(IndentWriter iw) {
+      scanMemberAnnotations();
+
+      iw.append('\n');
+      if (documentation != null) {
+         iw.append("/*\n");
+         iw.append(documentation).append('\n');
+         iw.append("*/\n");
+      }
+      iw.append("enum ").append(name).append(" {\n");
+      for (ProtoEnumValueMetadata m : membersByNumber.values()) {
+         m.generateProto(iw);
+      }
+      iw.append("}\n");
+   }
+
+   @Override
+   public boolean isEnum() {
+      return true;
+   }
+}
@@ -0,0 +1,53 @@
+package org.infinispan.protostream.annotations.processor;
+
+import javax.lang.model.element.VariableElement;
+
+/**
+ * @since 3.1
+ */
+final class ProtoEnumValueMetadata {
+
+   private final int number;
+
+   private final String protoName;
+
+   private final VariableElement enumConstant;
+
+   private final String documentation;
+
+   ProtoEnumValueMetadata(int number, String protoName, VariableElement enumConstant) {
+      this.number = number;
+      this.protoName = protoName;
+      this.enumConstant = enumConstant;
+      documentation = DocumentationExtractor.getDocumentation(enumConstant);
+   }
+
+   public int getNumber() {
+      return number;
+   }
+
+   public String getProtoName() {
+      return protoName;
+   }
+
+   /**
+    * The name of the Java enum constant.
+    */
+   public String getJavaName() {
+      return enumConstant.getSimpleName().toString();
+   }
+
+   public String getDocumentation() {
+      return documentation;
+   }
+
+   public void generateProto(IndentWriter iw) {
+      iw.append('\n');
+      if (documentation != null) {
+         iw.append("/*\n");
+         iw.append(documentation).append('\n');
+         iw.append("*/\n");
+      }
+      iw.append("   ").append(protoName).append(" = ").append(String.valueOf(number)).append(";\n");
+   }
+}
@@ -0,0 +1,241 @@
+package org.infinispan.protostream.annotations.processor;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+
+import org.infinispan.protostream.descriptors.Type;
+
+/**
+ * @since 3.1
+ */
+final class ProtoFieldMetadata {
+
+   private final TypeElement declaringClass;
+   private final int number;
+   private final String name;
+   private final TypeMirror javaType;
+   private final TypeMirror propertyType;
+   private final TypeMirror collectionImplementation;
+   private final Type protobufType;
+   private final String documentation;
+   private final ProtoTypeMetadata protoTypeMetadata;
+   private final boolean isRequired;
+   private final boolean isRepeated;
+   private final boolean isArray;
+   private final boolean isPacked;
+   private final Object defaultValue;
+
+   private final String propertyName;
+   private final VariableElement field;
+   private final ExecutableElement getter;
+   private final ExecutableElement setter;
+
+   ProtoFieldMetadata(TypeElement declaringClass, int number, String name, TypeMirror javaType, TypeMirror propertyType,
+                      TypeMirror collectionImplementation, Type protobufType, ProtoTypeMetadata protoTypeMetadata,
+                      boolean isRequired, boolean isRepeated, boolean isArray, boolean isPacked, Object defaultValue,
+                      VariableElement field) {
+      this.declaringClass = declaringClass;
+      this.number = number;
+      this.name = name;
+      this.javaType = javaType;
+      this.propertyType = propertyType;
+      this.collectionImplementation = collectionImplementation;
+      this.protoTypeMetadata = protoTypeMetadata;
+      this.isRequired = isRequired;
+      this.isRepeated = isRepeated;
+      this.isArray = isArray;
+      this.isPacked = isPacked;
+      this.defaultValue = defaultValue;
+      this.protobufType = protobufType;
+      this.propertyName = field.getSimpleName().toString();
+      this.field = field;
+      this.getter = null;
+      this.setter = null;
+      this.documentation = DocumentationExtractor.getDocumentation(field);
+   }
+
+   ProtoFieldMetadata(TypeElement declaringClass, int number, String name, TypeMirror javaType, TypeMirror propertyType,
+                      TypeMirror collectionImplementation, Type protobufType, ProtoTypeMetadata protoTypeMetadata,
+                      boolean isRequired, boolean isRepeated, boolean isArray, boolean isPacked, Object defaultValue,
+                      String propertyName, ExecutableElement getter, ExecutableElement setter) {
+      this.declaringClass = declaringClass;
+      this.number = number;
+      this.name = name;
+      this.javaType = javaType;
+      this.propertyType = propertyType;
+      this.collectionImplementation = collectionImplementation;
+      this.protoTypeMetadata = protoTypeMetadata;
+      this.isRequired = isRequired;
+      this.isRepeated = isRepeated;
+      this.isArray = isArray;
+      this.isPacked = isPacked;
+      this.defaultValue = defaultValue;
+      this.protobufType = protobufType;
+      this.field = null;
+      this.propertyName = propertyName;
+      this.getter = getter;
+      this.setter = setter;
+      this.documentation = DocumentationExtractor.getDocumentation(getter, setter);
+   }
+
+   public TypeElement getDeclaringClass() {
+      return declaringClass;
+   }
+
+   public int getNumber() {
+      return number;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * The Java type of the field, or the element type if the field is repeated.
+    */
+   public TypeMirror getJavaType() {
+      return javaType;
+   }
+
+   /**
+    * The declared type of the Java field or property.
+    */
+   public TypeMirror getPropertyType() {
+      return propertyType;
+   }
+
+   public TypeMirror getCollectionImplementation() {
+      return collectionImplementation;
+   }
+
+   public Type getProtobufType() {
+      return protobufType;
+   }
+
+   public ProtoTypeMetadata getProtoTypeMetadata() {
+      return protoTypeMetadata;
+   }
+
+   public String getDocumentation() {
+      return documentation;
+   }
+
+   public boolean isRequired() {
+      return isRequired;
+   }
+
+   public boolean isRepeated() {
+      return isRepeated;
+   }
+
+   public boolean isArray() {
+      return isArray;
+   }
+
+   public boolean isPacked() {
+      return isPacked;
+   }
+
+   public Object getDefaultValue() {
+      return defaultValue;
+   }
+
+   public VariableElement getField() {
+      return field;
+   }
+
+   public ExecutableElement getGetter() {
+      return getter;
+   }
+
+   public ExecutableElement getSetter() {
+      return setter;
+   }
+
+   public String getLocation() {
+      return String.format("%s on property '%s' with tag number %d and name '%s'", declaringClass.getQualifiedName(), propertyName, number, name);
+   }
+
+   public void generateProto(IndentWriter iw) {
+      if (documentation != null) {
+         iw.append("/*\n");
+         iw.append(documentation).append('\n');
+         iw.append("*/\n");
+      }
+      if (isRepeated) {
+         iw.append("repeated ");
+      } else {
+         iw.append(isRequired ? "required " : "optional ");
+      }
+      String typeName;
+      if (protobufType == Type.ENUM || protobufType == Type.MESSAGE || protobufType == Type.GROUP) {
+         typeName = protoTypeMetadata.getFullName();
+      } else {
+         switch (protobufType) {
+            case DOUBLE:
+               typeName = "double";
+               break;
+            case FLOAT:
+               typeName = "float";
+               break;
+            case INT32:
+               typeName = "int32";
+               break;
+            case INT64:
+               typeName = "int64";
+               break;
+            case FIXED32:
+               typeName = "fixed32";
+               break;
+            case FIXED64:
+               typeName = "fixed64";
+               break;
+            case BOOL:
+               typeName = "bool";
+               break;
+            case STRING:
+               typeName = "string";
+               break;
+            case BYTES:
+               typeName = "bytes";
+               break;
+            case UINT32:
+               typeName = "uint32";
+               break;
+            case UINT64:
+               typeName = "uint64";
+               break;
+            case SFIXED32:
+               typeName = "sfixed32";
+               break;
+            case SFIXED64:
+               typeName = "sfixed64";
+               break;
+            case SINT32:
+               typeName = "sint32";
+               break;
+            case SINT64:
+               typeName = "sint64";
+               break;
+            default:
+               throw new IllegalStateException("Unknown field type " + protobufType);
+         }
+      }
+      iw.append(typeName);
+      iw.append(' ').append(name).append(" = ").append(String.valueOf(number));
+      if (defaultValue != null) {
+         String v = defaultValue instanceof ProtoEnumValueMetadata ?
+               ((ProtoEnumValueMetadata) defaultValue).getProtoName() : defaultValue.toString();
+         iw.append(" [default = ").append(v);
+         if (isPacked) {
+            iw.append(", packed = true");
+         }
+         iw.append(']');
+      } else if (isPacked) {
+         iw.append(" [packed = true]");
+      }
+      iw.append(";\n");
+   }
+}
@@ -0,0 +1,559 @@
+package org.infinispan.protostream.annotations.processor;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+
+import org.infinispan.protostream.Message;
+import org.infinispan.protostream.annotations.ProtoField;
+import org.infinispan.protostream.annotations.ProtoMessage;
+import org.infinispan.protostream.annotations.ProtoSchemaBuilderException;
+import org.infinispan.protostream.annotations.ProtoUnknownFieldSet;
+import org.infinispan.protostream.descriptors.Type;
+
+/**
+ * The compile time counterpart of {@code org.infinispan.protostream.annotations.impl.ProtoMessageTypeMetadata}. It
+ * applies the same rules, but to the source model of the class instead of its reflection model. Because the generated
+ * marshaller is a separate class of the same package, the annotated members must also be accessible from that package.
+ *
+ * @since 3.1
+ */
+final class ProtoMessageTypeMetadata extends ProtoTypeMetadata {
+
+   private final ProtoSchemaGenerator protoSchemaGenerator;
+
+   private final TypeUtils typeUtils;
+
+   private Map<Integer, ProtoFieldMetadata> fields = null;
+
+   private VariableElement unknownFieldSetField;
+
+   private ExecutableElement unknownFieldSetGetter;
+
+   private ExecutableElement unknownFieldSetSetter;
+
+   private final Map<String, ProtoTypeMetadata> innerTypes = new LinkedHashMap<>();
+
+   ProtoMessageTypeMetadata(ProtoSchemaGenerator protoSchemaGenerator, TypeUtils typeUtils, TypeElement messageElement) {
+      super(getProtoName(messageElement), messageElement, DocumentationExtractor.getDocumentation(messageElement));
+      this.protoSchemaGenerator = protoSchemaGenerator;
+      this.typeUtils = typeUtils;
+
+      // ensure class is not abstract and has a default constructor
+      if (typeUtils.isAbstract(messageElement.asType())) {
+         throw new ProtoSchemaBuilderException("Abstract classes are not allowed: " + getJavaClassName());
+      }
+      if (typeUtils.findNoArgConstructor(messageElement) == null) {
+         throw new ProtoSchemaBuilderException("The class " + getJavaClassName() + " must have a public no-argument constructor.");
+      }
+      for (Element e = messageElement; e instanceof TypeElement; e = e.getEnclosingElement()) {
+         if (e.getModifiers().contains(Modifier.PRIVATE)) {
+            throw new ProtoSchemaBuilderException("The class " + getJavaClassName() + " must not be private or be nested in a private class.");
+         }
+         if (e.getEnclosingElement() instanceof TypeElement && !e.getModifiers().contains(Modifier.STATIC)) {
+            throw new ProtoSchemaBuilderException("The class " + getJavaClassName() + " must be a top level class or a static nested class.");
+         }
+      }
+   }
+
+   private static String getProtoName(TypeElement messageElement) {
+      ProtoMessage annotation = messageElement.getAnnotation(ProtoMessage.class);
+      return annotation == null || annotation.name().isEmpty() ? messageElement.getSimpleName().toString() : annotation.name();
+   }
+
+   public VariableElement getUnknownFieldSetField() {
+      scanMemberAnnotations();
+      return unknownFieldSetField;
+   }
+
+   public ExecutableElement getUnknownFieldSetGetter() {
+      scanMemberAnnotations();
+      return unknownFieldSetGetter;
+   }
+
+   public ExecutableElement getUnknownFieldSetSetter() {
+      scanMemberAnnotations();
+      return unknownFieldSetSetter;
+   }
+
+   /**
+    * Indicates if the class has no annotated unknown field set property but implements {@link Message}.
+    */
+   public boolean isMessage() {
+      return typeUtils.isAssignable(typeElement.asType(), Message.class);
+   }
+
+   public Map<Integer, ProtoFieldMetadata> getFields() {
+      scanMemberAnnotations();
+      return fields;
+   }
+
+   protected void addInnerType(ProtoTypeMetadata typeMetadata) {
+      innerTypes.put(typeMetadata.getJavaClassName(), typeMetadata);
+   }
+
+   @Override
+   public void generateProto(IndentWriter iw) {
+      scanMemberAnnotations();
+
+      iw.append('\n');
+      if (documentation != null) {
+         iw.append("/*\n");
+         iw.append(documentation).append('\n');
+         iw.append("*/\n");
+      }
+      iw.append("message ").append(name).append(" {\n");
+
+      if (!innerTypes.isEmpty()) {
+         iw.inc();
+         for (ProtoTypeMetadata t : innerTypes.values()) {
+            t.generateProto(iw);
+         }
+         iw.dec();
+      }
+
+      iw.inc();
+      for (ProtoFieldMetadata f : fields.values()) {
+         f.generateProto(iw);
+      }
+      iw.dec();
+
+      iw.append("}\n");
+   }
+
+   @Override
+   public void scanMemberAnnotations() {
+      if (fields == null) {
+         // use a TreeMap to ensure ascending order by field number
+         fields = new TreeMap<>();
+         Map<String, ProtoFieldMetadata> fieldsByName = new HashMap<>();
+         Set<String> examinedClasses = new HashSet<>();
+         discoverFields(typeElement, examinedClasses, fields, fieldsByName);
+         if (fields.isEmpty()) {
+            throw new ProtoSchemaBuilderException("Class " + getJavaClassName() + " does not have any @ProtoField annotated fields. The class should be either annotated or it should have a custom marshaller.");
+         }
+         checkConstructor();
+      }
+   }
+
+   private void checkConstructor() {
+      ExecutableElement ctor = typeUtils.findNoArgConstructor(typeElement);
+      if (ctor == null || ctor.getModifiers().contains(Modifier.PRIVATE)) {
+         throw new ProtoSchemaBuilderException("Class " + getJavaClassName() + " must have a non-private no argument constructor");
+      }
+   }
+
+   private void discoverFields(TypeElement clazz, Set<String> examinedClasses, Map<Integer, ProtoFieldMetadata> fieldsByNumber, Map<String, ProtoFieldMetadata> fieldsByName) {
+      if (!examinedClasses.add(clazz.getQualifiedName().toString())) {
+         // avoid re-examining classes due to multiple interface inheritance
+         return;
+      }
+
+      if (clazz.getSuperclass().getKind() == TypeKind.DECLARED) {
+         discoverFields(typeUtils.asTypeElement(clazz.getSuperclass()), examinedClasses, fieldsByNumber, fieldsByName);
+      }
+      for (TypeMirror i : clazz.getInterfaces()) {
+         discoverFields(typeUtils.asTypeElement(i), examinedClasses, fieldsByNumber, fieldsByName);
+      }
+
+      for (VariableElement field : ElementFilter.fieldsIn(clazz.getEnclosedElements())) {
+         if (field.getAnnotation(ProtoUnknownFieldSet.class) != null) {
+            if (unknownFieldSetField != null || unknownFieldSetGetter != null || unknownFieldSetSetter != null) {
+               throw new ProtoSchemaBuilderException("The @ProtoUnknownFieldSet annotation should not be used multiple times : " + describe(field));
+            }
+            checkAccessible(field);
+            unknownFieldSetField = field;
+         } else {
+            ProtoField annotation = field.getAnnotation(ProtoField.class);
+            if (annotation != null) {
+               if (field.getModifiers().contains(Modifier.STATIC)) {
+                  throw new ProtoSchemaBuilderException("Static fields cannot be @ProtoField annotated: " + describe(field));
+               }
+               if (field.getModifiers().contains(Modifier.FINAL)) {
+                  throw new ProtoSchemaBuilderException("Final fields cannot be @ProtoField annotated: " + describe(field));
+               }
+               if (field.getModifiers().contains(Modifier.PRIVATE)) {
+                  throw new ProtoSchemaBuilderException("Non-public fields cannot be @ProtoField annotated: " + describe(field));
+               }
+               checkAccessible(field);
+               String fieldName = annotation.name();
+               if (fieldName.isEmpty()) {
+                  fieldName = field.getSimpleName().toString();
+               }
+               addField(clazz, annotation, fieldName, field.asType(), null, null, field, fieldsByNumber, fieldsByName);
+            }
+         }
+      }
+
+      for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+         if (method.getAnnotation(ProtoUnknownFieldSet.class) != null) {
+            if (unknownFieldSetField != null || unknownFieldSetGetter != null || unknownFieldSetSetter != null) {
+               throw new ProtoSchemaBuilderException("The @ProtoUnknownFieldSet annotation should not be used multiple times : " + describe(method));
+            }
+            ExecutableElement[] getterAndSetter = findGetterAndSetter(method);
+            unknownFieldSetGetter = getterAndSetter[0];
+            unknownFieldSetSetter = getterAndSetter[1];
+         } else {
+            ProtoField annotation = method.getAnnotation(ProtoField.class);
+            if (annotation != null) {
+               if (method.getModifiers().contains(Modifier.PRIVATE)) {
+                  throw new ProtoSchemaBuilderException("Private methods cannot be @ProtoField annotated: " + describe(method));
+               }
+               if (method.getModifiers().contains(Modifier.STATIC)) {
+                  throw new ProtoSchemaBuilderException("Static methods cannot be @ProtoField annotated: " + describe(method));
+               }
+               ExecutableElement[] getterAndSetter = findGetterAndSetter(method);
+               ExecutableElement getter = getterAndSetter[0];
+               ExecutableElement setter = getterAndSetter[1];
+               String propertyName = getPropertyName(getter);
+               String fieldName = annotation.name();
+               if (fieldName.isEmpty()) {
+                  fieldName = propertyName;
+               }
+               addField(clazz, annotation, fieldName, getter.getReturnType(), getter, setter, null, fieldsByNumber, fieldsByName);
+            }
+         }
+      }
+   }
+
+   private void addField(TypeElement clazz, ProtoField annotation, String fieldName, TypeMirror propertyType,
+                         ExecutableElement getter, ExecutableElement setter, VariableElement field,
+                         Map<Integer, ProtoFieldMetadata> fieldsByNumber, Map<String, ProtoFieldMetadata> fieldsByName) {
+      String className = clazz.getQualifiedName().toString();
+      boolean isArray = propertyType.getKind() == TypeKind.ARRAY;
+      boolean isRepeated = typeUtils.isRepeated(propertyType);
+      boolean isRequired = annotation.required();
+      if (isRepeated && isRequired) {
+         throw new ProtoSchemaBuilderException("Repeated field '" + fieldName + "' of " + className + " cannot be marked required.");
+      }
+      TypeMirror javaType = typeUtils.getClassValue(annotation::javaType);
+      if (javaType.getKind() == TypeKind.VOID) {
+         if (isRepeated) {
+            javaType = typeUtils.determineElementType(propertyType);
+            if (javaType == null) {
+               throw new ProtoSchemaBuilderException("The element type of repeated field '" + fieldName + "' of " + className + " cannot be determined. Please specify it in the javaType member.");
+            }
+         } else {
+            javaType = typeUtils.getTypes().erasure(propertyType);
+         }
+      }
+      if (javaType.getKind() != TypeKind.ARRAY && !javaType.getKind().isPrimitive() && typeUtils.isAbstract(javaType)) {
+         throw new ProtoSchemaBuilderException("The class " + typeUtils.getName(javaType) + " of repeated field '" + fieldName + "' of " + className + " should not be abstract.");
+      }
+
+      Object defaultValue = getDefaultValue(className, fieldName, javaType, annotation.defaultValue());
+
+      if (!isRequired && !isRepeated && javaType.getKind().isPrimitive() && defaultValue == null) {
+         throw new ProtoSchemaBuilderException("Primitive field '" + fieldName + "' of " + className + " should be marked required or should have a default value.");
+      }
+
+      TypeMirror collectionImplementation = getCollectionImplementation(className, propertyType, typeUtils.getClassValue(annotation::collectionImplementation), fieldName, isRepeated);
+
+      Type protobufType = getProtobufType(javaType, annotation.type());
+      ProtoTypeMetadata protoTypeMetadata = null;
+      if (protobufType == Type.ENUM || protobufType == Type.MESSAGE || protobufType == Type.GROUP) {
+         protoTypeMetadata = protoSchemaGenerator.scanAnnotations(typeUtils.asTypeElement(javaType));
+      }
+      boolean isPacked = annotation.packed();
+      if (isPacked && (!isRepeated || !protobufType.isPackable())) {
+         throw new ProtoSchemaBuilderException("Field '" + fieldName + "' of " + className + " cannot be marked packed. Only repeated fields of scalar numeric, boolean or enum types can be packed.");
+      }
+
+      ProtoFieldMetadata fieldMetadata;
+      if (field != null) {
+         fieldMetadata = new ProtoFieldMetadata(clazz, annotation.number(), fieldName, javaType, propertyType, collectionImplementation,
+                                                protobufType, protoTypeMetadata, isRequired, isRepeated, isArray, isPacked, defaultValue, field);
+      } else {
+         fieldMetadata = new ProtoFieldMetadata(clazz, annotation.number(), fieldName, javaType, propertyType, collectionImplementation,
+                                                protobufType, protoTypeMetadata, isRequired, isRepeated, isArray, isPacked, defaultValue,
+                                                getPropertyName(getter), getter, setter);
+      }
+
+      ProtoFieldMetadata existing = fieldsByNumber.get(annotation.number());
+      if (existing != null) {
+         throw new ProtoSchemaBuilderException("Duplicate field definition. Found two field definitions with number " + annotation.number() + ": in "
+                                                     + fieldMetadata.getLocation() + " and in " + existing.getLocation());
+      }
+      existing = fieldsByName.get(fieldMetadata.getName());
+      if (existing != null) {
+         throw new ProtoSchemaBuilderException("Duplicate field definition. Found two field definitions with name '" + fieldMetadata.getName() + "': in "
+                                                     + fieldMetadata.getLocation() + " and in " + existing.getLocation());
+      }
+
+      fieldsByNumber.put(fieldMetadata.getNumber(), fieldMetadata);
+      fieldsByName.put(fieldMetadata.getName(), fieldMetadata);
+   }
+
+   /**
+    * Members of a superclass from another package are only accessible to the generated marshaller if they are public.
+    */
+   private void checkAccessible(Element member) {
+      if (!member.getModifiers().contains(Modifier.PUBLIC)
+            && !typeUtils.getPackageName(member).equals(typeUtils.getPackageName(typeElement))) {
+         throw new ProtoSchemaBuilderException("Member " + describe(member) + " must be public because it is declared in another package than " + getJavaClassName());
+      }
+   }
+
+   /**
+    * Given an annotated getter or setter, finds the other method of the pair.
+    *
+    * @return the getter and the setter
+    */
+   private ExecutableElement[] findGetterAndSetter(ExecutableElement method) {
+      String methodName = method.getSimpleName().toString();
+      String propertyName;
+      if (method.getReturnType().getKind() == TypeKind.VOID) {
+         // this method is expected to be a setter
+         if (methodName.startsWith("set") && methodName.length() >= 4) {
+            propertyName = Character.toLowerCase(methodName.charAt(3)) + methodName.substring(4);
+         } else {
+            throw new ProtoSchemaBuilderException("Illegal setter method signature: " + describe(method));
+         }
+         List<? extends VariableElement> parameters = method.getParameters();
+         if (parameters.size() != 1) {
+            throw new ProtoSchemaBuilderException("Illegal setter method signature: " + describe(method));
+         }
+         return new ExecutableElement[]{findGetter(propertyName, parameters.get(0).asType()), method};
+      } else {
+         // this method is expected to be a getter
+         if (methodName.startsWith("get") && methodName.length() >= 4) {
+            propertyName = Character.toLowerCase(methodName.charAt(3)) + methodName.substring(4);
+         } else if (methodName.startsWith("is") && methodName.length() >= 3) {
+            propertyName = Character.toLowerCase(methodName.charAt(2)) + methodName.substring(3);
+         } else {
+            throw new ProtoSchemaBuilderException("Illegal getter method signature: " + describe(method));
+         }
+         return new ExecutableElement[]{method, findSetter(propertyName, method.getReturnType())};
+      }
+   }
+
+   private static String getPropertyName(ExecutableElement getter) {
+      String methodName = getter.getSimpleName().toString();
+      int prefixLength = methodName.startsWith("is") ? 2 : 3;
+      return Character.toLowerCase(methodName.charAt(prefixLength)) + methodName.substring(prefixLength + 1);
+   }
+
+   private Object getDefaultValue(String className, String fieldName, TypeMirror fieldType, String defaultValue) {
+      if (defaultValue == null || defaultValue.isEmpty()) {
+         return null;
+      }
+      if (typeUtils.is(fieldType, String.class)) {
+         return "\"" + defaultValue + "\"";
+      }
+      if (typeUtils.isEnum(fieldType)) {
+         ProtoEnumTypeMetadata protoEnumTypeMetadata = (ProtoEnumTypeMetadata) protoSchemaGenerator.scanAnnotations(typeUtils.asTypeElement(fieldType));
+         ProtoEnumValueMetadata enumVal = protoEnumTypeMetadata.getMemberByName(defaultValue);
+         if (enumVal == null) {
+            throw new ProtoSchemaBuilderException("Invalid default value for field '" + fieldName + "' of " + className + ": " + defaultValue + " is not a member of " + protoEnumTypeMetadata.getFullName());
+         }
+         return enumVal;
+      }
+      if (typeUtils.is(fieldType, Character.class) || typeUtils.is(fieldType, Character.TYPE)) {
+         if (defaultValue.length() > 1) {
+            throw new ProtoSchemaBuilderException("Invalid default value for field '" + fieldName + "' of " + className + ": " + defaultValue);
+         }
+         return defaultValue.charAt(0);
+      }
+      if (typeUtils.is(fieldType, Boolean.class) || typeUtils.is(fieldType, Boolean.TYPE)) {
+         return Boolean.valueOf(defaultValue);
+      }
+      try {
+         if (typeUtils.is(fieldType, Integer.class) || typeUtils.is(fieldType, Integer.TYPE)) {
+            return Integer.valueOf(defaultValue);
+         }
+         if (typeUtils.is(fieldType, Long.class) || typeUtils.is(fieldType, Long.TYPE)) {
+            return Long.valueOf(defaultValue);
+         }
+         if (typeUtils.is(fieldType, Short.class) || typeUtils.is(fieldType, Short.TYPE)) {
+            return Short.valueOf(defaultValue);
+         }
+         if (typeUtils.is(fieldType, Double.class) || typeUtils.is(fieldType, Double.TYPE)) {
+            return Double.valueOf(defaultValue);
+         }
+         if (typeUtils.is(fieldType, Float.class) || typeUtils.is(fieldType, Float.TYPE)) {
+            return Float.valueOf(defaultValue);
+         }
+         if (typeUtils.is(fieldType, Byte.class) || typeUtils.is(fieldType, Byte.TYPE)) {
+            return Byte.valueOf(defaultValue);
+         }
+         if (typeUtils.isAssignable(fieldType, Date.class)) {
+            return Long.valueOf(defaultValue);
+         }
+      } catch (NumberFormatException e) {
+         throw new ProtoSchemaBuilderException("Invalid default value for field '" + fieldName + "' of " + className + ": " + defaultValue, e);
+      }
+
+      throw new ProtoSchemaBuilderException("No default value is allowed for field '" + fieldName + "' of " + className);
+   }
+
+   private TypeMirror getCollectionImplementation(String className, TypeMirror fieldType, TypeMirror configuredCollection, String fieldName, boolean isRepeated) {
+      TypeMirror collectionImplementation;
+      boolean isDefault = typeUtils.is(configuredCollection, Collection.class);
+      if (isRepeated && fieldType.getKind() != TypeKind.ARRAY) {
+         collectionImplementation = isDefault ? fieldType : configuredCollection;
+         String collectionName = typeUtils.getName(collectionImplementation);
+         if (!typeUtils.isAssignable(collectionImplementation, Collection.class)) {
+            throw new ProtoSchemaBuilderException("The collection class of repeated field '" + fieldName + "' of " + className + " must implement java.util.Collection.");
+         }
+         if (typeUtils.isAbstract(collectionImplementation)) {
+            throw new ProtoSchemaBuilderException("The collection class (" + collectionName + ") of repeated field '" + fieldName + "' of " + className + " must not be abstract. Please specify an appropriate class in collectionImplementation member.");
+         }
+         ExecutableElement ctor = typeUtils.findNoArgConstructor(typeUtils.asTypeElement(collectionImplementation));
+         if (ctor == null || !ctor.getModifiers().contains(Modifier.PUBLIC)) {
+            throw new ProtoSchemaBuilderException("The collection class ('" + collectionName + "') of repeated field '"
+                                                        + fieldName + "' of " + className + " must have a public no-argument constructor.");
+         }
+         if (!typeUtils.isAssignable(collectionImplementation, fieldType)) {
+            throw new ProtoSchemaBuilderException("The collection implementation class ('" + collectionName + "') of repeated field '"
+                                                        + fieldName + "' of " + className + " is not assignable to this field's type.");
+         }
+      } else {
+         if (!isDefault) {
+            throw new ProtoSchemaBuilderException("Specifying the collection implementation class is only allowed for repeated/collection fields: '" + fieldName + "' of " + className);
+         }
+         collectionImplementation = null;
+      }
+      return collectionImplementation;
+   }
+
+   private Type getProtobufType(TypeMirror javaType, Type type) {
+      String javaTypeName = typeUtils.getName(javaType);
+      switch (type) {
+         case MESSAGE:
+            if (typeUtils.isEnum(javaType)) {
+               ProtoTypeMetadata m = protoSchemaGenerator.scanAnnotations(typeUtils.asTypeElement(javaType));
+               if (!m.isEnum()) {
+                  throw new ProtoSchemaBuilderException(javaTypeName + " is not a protobuf marshallable enum type");
+               }
+               return Type.ENUM;
+            } else if (typeUtils.is(javaType, String.class) || typeUtils.is(javaType, Character.class) || typeUtils.is(javaType, Character.TYPE)) {
+               return Type.STRING;
+            } else if (typeUtils.is(javaType, Double.class) || typeUtils.is(javaType, Double.TYPE)) {
+               return Type.DOUBLE;
+            } else if (typeUtils.is(javaType, Float.class) || typeUtils.is(javaType, Float.TYPE)) {
+               return Type.FLOAT;
+            } else if (typeUtils.is(javaType, Long.class) || typeUtils.is(javaType, Long.TYPE)) {
+               return Type.INT64;
+            } else if (typeUtils.is(javaType, Integer.class) || typeUtils.is(javaType, Integer.TYPE) || typeUtils.is(javaType, Short.class) || typeUtils.is(javaType, Short.TYPE)) {
+               return Type.INT32;
+            } else if (typeUtils.is(javaType, Byte.class) || typeUtils.is(javaType, Byte.TYPE)) {
+               return Type.INT32;
+            } else if (typeUtils.is(javaType, Boolean.class) || typeUtils.is(javaType, Boolean.TYPE)) {
+               return Type.BOOL;
+            } else if (typeUtils.isAssignable(javaType, Date.class)) {
+               return Type.FIXED64;
+            } else {
+               TypeElement messageElement = typeUtils.asTypeElement(javaType);
+               if (messageElement == null) {
+                  throw new ProtoSchemaBuilderException(javaTypeName + " is not a protobuf marshallable message type");
+               }
+               ProtoTypeMetadata m = protoSchemaGenerator.scanAnnotations(messageElement);
+               if (m.isEnum()) {
+                  throw new ProtoSchemaBuilderException(javaTypeName + " is not a protobuf marshallable message type");
+               }
+            }
+            break;
+         case ENUM:
+            if (!typeUtils.isEnum(javaType)) {
+               throw new ProtoSchemaBuilderException(javaTypeName + " is not a protobuf marshallable enum type");
+            }
+            break;
+         case GROUP:
+            TypeElement groupElement = typeUtils.asTypeElement(javaType);
+            if (groupElement == null || protoSchemaGenerator.scanAnnotations(groupElement).isEnum()) {
+               throw new ProtoSchemaBuilderException(javaTypeName + " is not a protobuf marshallable message type");
+            }
+            break;
+         case STRING:
+            if (!typeUtils.is(javaType, String.class))
+               throw new ProtoSchemaBuilderException("Incompatible types : " + javaTypeName + " vs " + type);
+            break;
+         case BYTES:
+            if (!typeUtils.is(javaType, byte[].class))
+               throw new ProtoSchemaBuilderException("Incompatible types : " + javaTypeName + " vs " + type);
+            break;
+         case DOUBLE:
+            if (!typeUtils.is(javaType, Double.class) && !typeUtils.is(javaType, Double.TYPE))
+               throw new ProtoSchemaBuilderException("Incompatible types : " + javaTypeName + " vs " + type);
+            break;
+         case FLOAT:
+            if (!typeUtils.is(javaType, Float.class) && !typeUtils.is(javaType, Float.TYPE))
+               throw new ProtoSchemaBuilderException("Incompatible types : " + javaTypeName + " vs " + type);
+            break;
+         case BOOL:
+            if (!typeUtils.is(javaType, Boolean.class) && !typeUtils.is(javaType, Boolean.TYPE))
+               throw new ProtoSchemaBuilderException("Incompatible types : " + javaTypeName + " vs " + type);
+            break;
+         case INT32:
+         case UINT32:
+         case FIXED32:
+         case SFIXED32:
+         case SINT32:
+            if (!typeUtils.is(javaType, Integer.class) && !typeUtils.is(javaType, Integer.TYPE))
+               throw new ProtoSchemaBuilderException("Incompatible types : " + javaTypeName + " vs " + type);
+            break;
+         case INT64:
+         case UINT64:
+         case FIXED64:
+         case SFIXED64:
+         case SINT64:
+            if (!typeUtils.is(javaType, Long.class) && !typeUtils.is(javaType, Long.TYPE) && !typeUtils.isAssignable(javaType, Date.class))
+               throw new ProtoSchemaBuilderException("Incompatible types : " + javaTypeName + " vs " + type);
+            break;
+      }
+      return type;
+   }
+
+   private ExecutableElement findGetter(String propertyName, TypeMirror propertyType) {
+      String prefix = "get";
+      if (typeUtils.is(propertyType, Boolean.TYPE) || typeUtils.is(propertyType, Boolean.class)) {
+         prefix = "is";
+      }
+      String methodName = prefix + Character.toUpperCase(propertyName.charAt(0)) + propertyName.substring(1);
+      ExecutableElement getter = typeUtils.findPublicMethod(typeElement, methodName);
+      if (getter == null) {
+         throw new ProtoSchemaBuilderException("No getter method found for property '" + propertyName
+                                                     + "' of type " + typeUtils.getName(propertyType) + " in class " + getJavaClassName());
+      }
+      if (!typeUtils.isSameType(getter.getReturnType(), propertyType)) {
+         throw new ProtoSchemaBuilderException("No suitable getter method found for property '" + propertyName
+                                                     + "' of type " + typeUtils.getName(propertyType) + " in class " + getJavaClassName()
+                                                     + ". The candidate method does not have a suitable return type: " + describe(getter));
+      }
+      return getter;
+   }
+
+   private ExecutableElement findSetter(String propertyName, TypeMirror propertyType) {
+      String methodName = "set" + Character.toUpperCase(propertyName.charAt(0)) + propertyName.substring(1);
+      ExecutableElement setter = typeUtils.findPublicMethod(typeElement, methodName, propertyType);
+      if (setter == null) {
+         throw new ProtoSchemaBuilderException("No setter method found for property '" + propertyName
+                                                     + "' of type " + typeUtils.getName(propertyType) + " in class " + getJavaClassName());
+      }
+      if (setter.getReturnType().getKind() != TypeKind.VOID) {
+         throw new ProtoSchemaBuilderException("No suitable setter method found for property '" + propertyName
+                                                     + "' of type " + typeUtils.getName(propertyType) + " in class " + getJavaClassName()
+                                                     + ". The candidate method does not have a suitable return type: " + describe(setter));
+      }
+      return setter;
+   }
+
+   private static String describe(Element member) {
+      return ((TypeElement) member.getEnclosingElement()).getQualifiedName() + "." + member;
+   }
+}
@@ -0,0 +1,160 @@
+package org.infinispan.protostream.annotations.processor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+
+import org.infinispan.protostream.WrappedMessage;
+import org.infinispan.protostream.annotations.ProtoSchemaBuilderException;
+
+/**
+ * The compile time counterpart of {@code org.infinispan.protostream.annotations.impl.ProtoSchemaGenerator}. It only
+ * builds the schema, the marshallers are generated by {@link MarshallerSourceGenerator}. Types are kept in discovery
+ * order so the output does not change between builds.
+ *
+ * @since 3.1
+ */
+final class ProtoSchemaGenerator {
+
+   /**
+    * The schema defining {@link WrappedMessage}, which is registered in every {@link
+    * org.infinispan.protostream.SerializationContext}.
+    */
+   private static final String WRAPPED_MESSAGE_PROTO = "org/infinispan/protostream/message-wrapping.proto";
+
+   private final TypeUtils typeUtils;
+
+   private final String fileName;
+
+   private final String packageName;
+
+   private final Collection<TypeElement> classes;
+
+   private final Set<String> imports = new LinkedHashSet<>();
+
+   private final Map<String, ProtoTypeMetadata> metadataByClass = new LinkedHashMap<>();
+
+   private final Map<String, ProtoTypeMetadata> metadataByTypeName = new HashMap<>();
+
+   ProtoSchemaGenerator(TypeUtils typeUtils, String fileName, String packageName, Collection<TypeElement> classes) {
+      this.typeUtils = typeUtils;
+      this.fileName = fileName;
+      this.packageName = packageName;
+      this.classes = classes;
+   }
+
+   public String generateProtoFile() throws ProtoSchemaBuilderException {
+      // scan initial classes
+      for (TypeElement c : classes) {
+         scanAnnotations(c);
+      }
+
+      while (true) {
+         List<ProtoTypeMetadata> meta = new ArrayList<>(metadataByClass.values());
+         for (ProtoTypeMetadata m : meta) {
+            m.scanMemberAnnotations();
+         }
+         if (metadataByClass.size() == meta.size()) {
+            break;
+         }
+      }
+
+      // establish the outer-inner relationship between definitions
+      for (ProtoTypeMetadata m : metadataByClass.values()) {
+         if (m instanceof ProtoMessageTypeMetadata || m instanceof ProtoEnumTypeMetadata) {
+            ProtoMessageTypeMetadata outer = findOuterType(m.getTypeElement());
+            if (outer != null) {
+               m.setOuterType(outer);
+               outer.addInnerType(m);
+            }
+         }
+      }
+
+      IndentWriter iw = new IndentWriter();
+      iw.append("// File name: ").append(fileName).append('\n');
+      iw.append("// Scanned classes:\n");
+      for (ProtoTypeMetadata ptm : metadataByClass.values()) {
+         if (ptm instanceof ProtoEnumTypeMetadata || ptm instanceof ProtoMessageTypeMetadata) {
+            iw.append("//   ").append(ptm.getJavaClassName()).append('\n');
+         }
+      }
+      if (packageName != null) {
+         iw.append("\npackage ").append(packageName).append(";\n\n");
+      }
+      for (String dependency : imports) {
+         iw.append("import \"").append(dependency).append("\";\n");
+      }
+
+      // generate type definitions
+      for (ProtoTypeMetadata m : metadataByClass.values()) {
+         if (m.isTopLevel()) {
+            m.generateProto(iw);
+         }
+      }
+
+      return iw.toString();
+   }
+
+   /**
+    * The metadata of all types to be marshalled, including those defined by other schemas.
+    */
+   public Collection<ProtoTypeMetadata> getTypes() {
+      return metadataByClass.values();
+   }
+
+   private ProtoMessageTypeMetadata findOuterType(TypeElement c) {
+      ProtoTypeMetadata outer = null;
+      Element ec = c.getEnclosingElement();
+      while (ec instanceof TypeElement) {
+         if (ec.getKind() == ElementKind.ENUM) {
+            throw new ProtoSchemaBuilderException("Classes defined inside an Enum are not allowed : " + c.getQualifiedName());
+         }
+         outer = metadataByClass.get(((TypeElement) ec).getQualifiedName().toString());
+         if (outer != null) {
+            break;
+         }
+         ec = ec.getEnclosingElement();
+      }
+      return (ProtoMessageTypeMetadata) outer;
+   }
+
+   ProtoTypeMetadata scanAnnotations(TypeElement typeElement) {
+      ProtoTypeMetadata protoTypeMetadata = metadataByClass.get(typeElement.getQualifiedName().toString());
+      if (protoTypeMetadata != null) {
+         // already seen
+         return protoTypeMetadata;
+      }
+
+      if (typeElement.getQualifiedName().contentEquals(WrappedMessage.class.getName())) {
+         // this is a known type, defined in another schema file that we'll need to import
+         protoTypeMetadata = new ProtoTypeMetadata(WrappedMessage.PROTOBUF_TYPE_NAME, typeElement, null);
+         imports.add(WRAPPED_MESSAGE_PROTO);
+      } else if (typeElement.getKind() == ElementKind.ENUM) {
+         protoTypeMetadata = new ProtoEnumTypeMetadata(typeElement);
+      } else {
+         protoTypeMetadata = new ProtoMessageTypeMetadata(this, typeUtils, typeElement);
+      }
+
+      defineType(protoTypeMetadata);
+      return protoTypeMetadata;
+   }
+
+   private void defineType(ProtoTypeMetadata protoTypeMetadata) {
+      String fullName = protoTypeMetadata.getFullName();
+      ProtoTypeMetadata existing = metadataByTypeName.get(fullName);
+      if (existing != null) {
+         throw new ProtoSchemaBuilderException("Duplicate type definition. Type '" + fullName + "' is defined by " + protoTypeMetadata.getJavaClassName() + " and by " + existing.getJavaClassName());
+      }
+      metadataByTypeName.put(fullName, protoTypeMetadata);
+      metadataByClass.put(protoTypeMetadata.getJavaClassName(), protoTypeMetadata);
+   }
+}
@@ -0,0 +1,80 @@
+package org.infinispan.protostream.annotations.processor;
+
+import javax.lang.model.element.TypeElement;
+
+/**
+ * The compile time counterpart of {@code org.infinispan.protostream.annotations.impl.ProtoTypeMetadata}. Instances of
+ * this class itself describe types that are defined in another schema file which gets imported.
+ *
+ * @since 3.1
+ */
+class ProtoTypeMetadata {
+
+   protected final String name;
+
+   protected final TypeElement typeElement;
+
+   protected final String documentation;
+
+   protected ProtoMessageTypeMetadata outerType;
+
+   ProtoTypeMetadata(String name, TypeElement typeElement, String documentation) {
+      this.name = name;
+      this.typeElement = typeElement;
+      this.documentation = documentation;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public String getFullName() {
+      StringBuilder sb = new StringBuilder();
+      ProtoMessageTypeMetadata t = outerType;
+      while (t != null) {
+         sb.append(t.getName()).append('.');
+         t = t.getOuterType();
+      }
+      sb.append(name);
+      return sb.toString();
+   }
+
+   public String getDocumentation() {
+      return documentation;
+   }
+
+   public TypeElement getTypeElement() {
+      return typeElement;
+   }
+
+   /**
+    * The name of the Java type in source code.
+    */
+   public String getJavaClassName() {
+      return typeElement.getQualifiedName().toString();
+   }
+
+   public boolean isEnum() {
+      return false;
+   }
+
+   public ProtoMessageTypeMetadata getOuterType() {
+      return outerType;
+   }
+
+   protected void setOuterType(ProtoMessageTypeMetadata outerType) {
+      this.outerType = outerType;
+   }
+
+   public boolean isTopLevel() {
+      return outerType == null;
+   }
+
+   public void generateProto(IndentWriter iw) {
+      // subclasses must override this
+   }
+
+   public void scanMemberAnnotations() {
+      // subclasses must override this
+   }
+}
@@ -0,0 +1,242 @@
+package org.infinispan.protostream.annotations.processor;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.MirroredTypesException;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Helpers for inspecting types at compile time, where they cannot be loaded as {@link Class}es. Types are compared by
+ * the name they have in Java source code, after erasure.
+ *
+ * @since 3.1
+ */
+final class TypeUtils {
+
+   private final Types types;
+
+   private final Elements elements;
+
+   TypeUtils(ProcessingEnvironment processingEnv) {
+      types = processingEnv.getTypeUtils();
+      elements = processingEnv.getElementUtils();
+   }
+
+   Types getTypes() {
+      return types;
+   }
+
+   /**
+    * Obtains the name used for referring to a type in Java source code, after erasure. Nested classes are referred to
+    * by their canonical name.
+    */
+   String getName(TypeMirror type) {
+      switch (type.getKind()) {
+         case ARRAY:
+            return getName(((ArrayType) type).getComponentType()) + "[]";
+         case DECLARED:
+            return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+         case TYPEVAR:
+            return getName(types.erasure(type));
+         case WILDCARD:
+            TypeMirror bound = ((WildcardType) type).getExtendsBound();
+            return bound != null ? getName(bound) : Object.class.getName();
+         default:
+            return type.toString();
+      }
+   }
+
+   /**
+    * Checks if the type is exactly the given class or primitive type.
+    */
+   boolean is(TypeMirror type, Class<?> c) {
+      return getName(type).equals(c.getCanonicalName());
+   }
+
+   boolean isAssignable(TypeMirror type, Class<?> c) {
+      TypeElement typeElement = elements.getTypeElement(c.getCanonicalName());
+      return typeElement != null && types.isAssignable(types.erasure(type), types.erasure(typeElement.asType()));
+   }
+
+   boolean isAssignable(TypeMirror type, TypeMirror to) {
+      return types.isAssignable(types.erasure(type), types.erasure(to));
+   }
+
+   boolean isSameType(TypeMirror t1, TypeMirror t2) {
+      return types.isSameType(types.erasure(t1), types.erasure(t2));
+   }
+
+   TypeElement asTypeElement(TypeMirror type) {
+      if (type.getKind() != TypeKind.DECLARED) {
+         return null;
+      }
+      return (TypeElement) ((DeclaredType) type).asElement();
+   }
+
+   boolean isEnum(TypeMirror type) {
+      TypeElement typeElement = asTypeElement(type);
+      return typeElement != null && typeElement.getKind() == ElementKind.ENUM;
+   }
+
+   boolean isAbstract(TypeMirror type) {
+      TypeElement typeElement = asTypeElement(type);
+      return typeElement != null && (typeElement.getKind() == ElementKind.INTERFACE
+            || typeElement.getModifiers().contains(Modifier.ABSTRACT));
+   }
+
+   boolean isRepeated(TypeMirror type) {
+      return type.getKind() == TypeKind.ARRAY || isAssignable(type, Collection.class);
+   }
+
+   /**
+    * Finds the no-argument constructor of a class.
+    *
+    * @return the constructor or {@code null} if not found
+    */
+   ExecutableElement findNoArgConstructor(TypeElement typeElement) {
+      for (ExecutableElement ctor : ElementFilter.constructorsIn(typeElement.getEnclosedElements())) {
+         if (ctor.getParameters().isEmpty()) {
+            return ctor;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Checks if a class has a public constructor with a single parameter of the given type.
+    */
+   boolean hasPublicConstructor(TypeElement typeElement, Class<?> paramType) {
+      for (ExecutableElement ctor : ElementFilter.constructorsIn(typeElement.getEnclosedElements())) {
+         if (ctor.getModifiers().contains(Modifier.PUBLIC) && ctor.getParameters().size() == 1
+               && is(ctor.getParameters().get(0).asType(), paramType)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Finds a public method, declared or inherited, by name and parameter types.
+    *
+    * @return the method or {@code null} if not found
+    */
+   ExecutableElement findPublicMethod(TypeElement typeElement, String name, TypeMirror... paramTypes) {
+      for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(typeElement))) {
+         if (method.getSimpleName().contentEquals(name) && method.getModifiers().contains(Modifier.PUBLIC)
+               && method.getParameters().size() == paramTypes.length) {
+            boolean matches = true;
+            for (int i = 0; i < paramTypes.length; i++) {
+               if (!isSameType(method.getParameters().get(i).asType(), paramTypes[i])) {
+                  matches = false;
+                  break;
+               }
+            }
+            if (matches) {
+               return method;
+            }
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Determines the element type of an array or a collection type.
+    *
+    * @return the element type or {@code null} if it cannot be determined, as is the case for raw collections
+    */
+   TypeMirror determineElementType(TypeMirror type) {
+      if (type.getKind() == TypeKind.ARRAY) {
+         return ((ArrayType) type).getComponentType();
+      }
+      TypeMirror elementType = determineCollectionElementType(type);
+      if (elementType == null) {
+         return null;
+      }
+      if (elementType.getKind() == TypeKind.WILDCARD) {
+         elementType = ((WildcardType) elementType).getExtendsBound();
+         if (elementType == null) {
+            return null;
+         }
+      }
+      return types.erasure(elementType);
+   }
+
+   private TypeMirror determineCollectionElementType(TypeMirror type) {
+      if (type.getKind() != TypeKind.DECLARED) {
+         return null;
+      }
+      if (is(type, Collection.class)) {
+         List<? extends TypeMirror> typeArguments = ((DeclaredType) type).getTypeArguments();
+         return typeArguments.isEmpty() ? null : typeArguments.get(0);
+      }
+      for (TypeMirror superType : types.directSupertypes(type)) {
+         TypeMirror elementType = determineCollectionElementType(superType);
+         if (elementType != null) {
+            return elementType;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Obtains the value of a {@code Class} typed annotation member. Accessing such a member at compile time throws a
+    * {@link MirroredTypeException} if the class was not loaded yet, which is the case for the classes being compiled.
+    */
+   TypeMirror getClassValue(Supplier<Class<?>> member) {
+      Class<?> c;
+      try {
+         c = member.get();
+      } catch (MirroredTypeException e) {
+         return e.getTypeMirror();
+      }
+      return toTypeMirror(c);
+   }
+
+   /**
+    * Same as {@link #getClassValue} but for a {@code Class[]} typed annotation member.
+    */
+   List<? extends TypeMirror> getClassValues(Supplier<Class<?>[]> member) {
+      Class<?>[] classes;
+      try {
+         classes = member.get();
+      } catch (MirroredTypesException e) {
+         return e.getTypeMirrors();
+      }
+      TypeMirror[] typeMirrors = new TypeMirror[classes.length];
+      for (int i = 0; i < classes.length; i++) {
+         typeMirrors[i] = toTypeMirror(classes[i]);
+      }
+      return Arrays.asList(typeMirrors);
+   }
+
+   private TypeMirror toTypeMirror(Class<?> c) {
+      if (c == void.class) {
+         return types.getNoType(TypeKind.VOID);
+      }
+      if (c.isPrimitive()) {
+         return types.getPrimitiveType(TypeKind.valueOf(c.getName().toUpperCase()));
+      }
+      return elements.getTypeElement(c.getCanonicalName()).asType();
+   }
+
+   String getPackageName(Element element) {
+      return elements.getPackageOf(element).getQualifiedName().toString();
+   }
+}
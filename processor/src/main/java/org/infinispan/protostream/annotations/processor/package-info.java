@@ -0,0 +1,5 @@
+/**
+ * Annotation processor generating Protocol Buffers schemas and marshallers at compile time, see {@link
+ * org.infinispan.protostream.annotations.AutoProtoSchemaBuilder}.
+ */
+package org.infinispan.protostream.annotations.processor;
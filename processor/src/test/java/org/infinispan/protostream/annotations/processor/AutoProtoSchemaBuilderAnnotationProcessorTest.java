@@ -0,0 +1,279 @@
+package org.infinispan.protostream.annotations.processor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.SerializationContextInitializer;
+import org.infinispan.protostream.annotations.ProtoSchemaBuilder;
+import org.infinispan.protostream.config.Configuration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the annotation processor on some sample classes, then uses the generated schema and marshallers.
+ *
+ * @since 3.1
+ */
+public class AutoProtoSchemaBuilderAnnotationProcessorTest {
+
+   private static final String COLOR = "package test_domain;\n" +
+         "import org.infinispan.protostream.annotations.ProtoEnumValue;\n" +
+         "public enum Color {\n" +
+         "   @ProtoEnumValue(number = 1) RED,\n" +
+         "   @ProtoEnumValue(number = 2, name = \"VERDE\") GREEN\n" +
+         "}\n";
+
+   private static final String ITEM = "package test_domain;\n" +
+         "import org.infinispan.protostream.annotations.ProtoDoc;\n" +
+         "import org.infinispan.protostream.annotations.ProtoField;\n" +
+         "@ProtoDoc(\"An item\")\n" +
+         "public class Item {\n" +
+         "   @ProtoField(number = 1, required = true) public String name;\n" +
+         "   @ProtoField(number = 2, defaultValue = \"7\") public int count;\n" +
+         "   public String toString() { return name + ':' + count; }\n" +
+         "}\n";
+
+   private static final String ORDER = "package test_domain;\n" +
+         "import java.util.*;\n" +
+         "import org.infinispan.protostream.UnknownFieldSet;\n" +
+         "import org.infinispan.protostream.annotations.*;\n" +
+         "@ProtoMessage(name = \"PurchaseOrder\")\n" +
+         "public class Order {\n" +
+         "   @ProtoField(number = 1, required = true) long id;\n" +
+         "   @ProtoField(number = 2, defaultValue = \"VERDE\") Color color;\n" +
+         "   @ProtoField(number = 3, collectionImplementation = ArrayList.class) List<Item> items;\n" +
+         "   @ProtoField(number = 4, packed = true) int[] values;\n" +
+         "   @ProtoField(number = 5) Date created;\n" +
+         "   @ProtoField(number = 6) Item main;\n" +
+         "   @ProtoField(number = 7, type = org.infinispan.protostream.descriptors.Type.SINT32, packed = true, collectionImplementation = TreeSet.class) Set<Integer> codes;\n" +
+         "   @ProtoField(number = 9, defaultValue = \"3\") short priority;\n" +
+         "   @ProtoField(number = 10) Boolean urgent;\n" +
+         "   @ProtoField(number = 11) double[] weights;\n" +
+         "   @ProtoField(number = 12) Line[] lines;\n" +
+         "   @ProtoField(number = 13, required = true) char flag = 'x';\n" +
+         "   @ProtoUnknownFieldSet UnknownFieldSet unknownFields;\n" +
+         "   private String note;\n" +
+         "   @ProtoField(number = 8, defaultValue = \"none\")\n" +
+         "   public String getNote() { return note; }\n" +
+         "   public void setNote(String note) { this.note = note; }\n" +
+         "   public static class Line {\n" +
+         "      @ProtoField(number = 1, required = true) public int quantity;\n" +
+         "      @ProtoField(number = 2) public Color color;\n" +
+         "      public String toString() { return quantity + \"x\" + color; }\n" +
+         "   }\n" +
+         "   public static Order sample() {\n" +
+         "      Order o = new Order();\n" +
+         "      o.id = -42;\n" +
+         "      o.color = Color.RED;\n" +
+         "      Item a = new Item(); a.name = \"a\"; a.count = 1;\n" +
+         "      Item b = new Item(); b.name = \"b\"; b.count = 300;\n" +
+         "      o.items = new ArrayList<>(Arrays.asList(a, b));\n" +
+         "      o.values = new int[]{1, -1, 100000};\n" +
+         "      o.created = new Date(1500000000000L);\n" +
+         "      o.main = b;\n" +
+         "      o.codes = new TreeSet<>(Arrays.asList(-5, 0, 5));\n" +
+         "      o.priority = 9;\n" +
+         "      o.urgent = true;\n" +
+         "      o.weights = new double[]{0.5, 1.5};\n" +
+         "      Line l = new Line(); l.quantity = 2; l.color = Color.GREEN;\n" +
+         "      o.lines = new Line[]{l};\n" +
+         "      o.flag = 'y';\n" +
+         "      o.note = \"fragile\";\n" +
+         "      return o;\n" +
+         "   }\n" +
+         "   public String toString() {\n" +
+         "      return id + \" \" + color + \" \" + items + \" \" + Arrays.toString(values) + \" \" + (created == null ? null : created.getTime())\n" +
+         "            + \" \" + main + \" \" + codes + \" \" + priority + \" \" + urgent + \" \" + Arrays.toString(weights)\n" +
+         "            + \" \" + Arrays.toString(lines) + \" \" + flag + \" \" + note;\n" +
+         "   }\n" +
+         "}\n";
+
+   private static final String SCHEMA = "package test_domain;\n" +
+         "import org.infinispan.protostream.SerializationContextInitializer;\n" +
+         "import org.infinispan.protostream.annotations.AutoProtoSchemaBuilder;\n" +
+         "@AutoProtoSchemaBuilder(schemaFileName = \"test_domain.proto\", schemaPackageName = \"test_processor\", includeClasses = Order.class)\n" +
+         "public interface TestSchema extends SerializationContextInitializer {\n" +
+         "}\n";
+
+   @Rule
+   public TemporaryFolder tempFolder = new TemporaryFolder();
+
+   private static final class Source extends SimpleJavaFileObject {
+
+      private final String code;
+
+      Source(String className, String code) {
+         super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+         this.code = code;
+      }
+
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+         return code;
+      }
+   }
+
+   /**
+    * Compiles the sources with the annotation processor.
+    *
+    * @return the errors reported by the compiler
+    */
+   private static List<String> compile(File outputDir, Source... sources) throws IOException {
+      JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+      DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+      try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+         List<String> options = Arrays.asList("-d", outputDir.getPath(), "-s", outputDir.getPath(),
+                                              "-classpath", System.getProperty("java.class.path"));
+         JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, Arrays.asList(sources));
+         task.setProcessors(Collections.singletonList(new AutoProtoSchemaBuilderAnnotationProcessor()));
+         task.call();
+      }
+      List<String> errors = new ArrayList<>();
+      for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+         if (d.getKind() == Diagnostic.Kind.ERROR) {
+            errors.add(d.getMessage(null));
+         }
+      }
+      return errors;
+   }
+
+   @Test
+   public void testGeneratedMarshallers() throws Exception {
+      File outputDir = tempFolder.getRoot();
+      List<String> errors = compile(outputDir, new Source("test_domain.Color", COLOR), new Source("test_domain.Item", ITEM),
+                                    new Source("test_domain.Order", ORDER), new Source("test_domain.TestSchema", SCHEMA));
+      assertEquals(Collections.emptyList(), errors);
+
+      File marshallerSource = new File(outputDir, "test_domain/Order$Line$___Marshaller.java");
+      assertTrue(marshallerSource.exists());
+      File schemaResource = new File(outputDir, "test_domain/test_domain.proto");
+      assertTrue(schemaResource.exists());
+
+      try (URLClassLoader cl = new URLClassLoader(new URL[]{outputDir.toURI().toURL()}, getClass().getClassLoader())) {
+         SerializationContextInitializer initializer = (SerializationContextInitializer) cl.loadClass("test_domain.TestSchemaImpl").newInstance();
+         assertEquals("test_domain.proto", initializer.getProtoFileName());
+         assertEquals(new String(Files.readAllBytes(schemaResource.toPath()), StandardCharsets.UTF_8), initializer.getProtoFile());
+
+         String protoFile = initializer.getProtoFile();
+         assertTrue(protoFile.contains("package test_processor;"));
+         assertTrue(protoFile.contains("/*\nAn item\n*/\nmessage Item {"));
+         assertTrue(protoFile.contains("message PurchaseOrder {"));
+         assertTrue(protoFile.contains("   message Line {"));
+         assertTrue(protoFile.contains("optional Color color = 2 [default = VERDE];"));
+         assertTrue(protoFile.contains("repeated sint32 codes = 7 [packed = true];"));
+         assertTrue(protoFile.contains("optional string note = 8 [default = \"none\"];"));
+
+         SerializationContext ctx = ProtobufUtil.newSerializationContext(new Configuration.Builder().build());
+         initializer.registerSchema(ctx);
+         initializer.registerMarshallers(ctx);
+
+         Class<?> orderClass = cl.loadClass("test_domain.Order");
+         Object order = orderClass.getMethod("sample").invoke(null);
+         assertTrue(ctx.canMarshall(orderClass));
+         assertEquals("test_processor.PurchaseOrder", ctx.getMarshaller(orderClass).getTypeName());
+
+         byte[] bytes = ProtobufUtil.toByteArray(ctx, order);
+         Object decoded = ProtobufUtil.fromByteArray(ctx, bytes, orderClass);
+         assertEquals(order.toString(), decoded.toString());
+
+         // missing fields get their default values
+         Object empty = orderClass.newInstance();
+         Field flagField = orderClass.getDeclaredField("flag");
+         flagField.setAccessible(true);
+         flagField.setChar(empty, 'z');
+         decoded = ProtobufUtil.fromByteArray(ctx, ProtobufUtil.toByteArray(ctx, empty), orderClass);
+         assertEquals("0 GREEN null null null null null 0 null null null z none", decoded.toString());
+         Field unknownFieldsField = orderClass.getDeclaredField("unknownFields");
+         unknownFieldsField.setAccessible(true);
+         assertNull(unknownFieldsField.get(decoded));
+
+         // wrapping works for generated marshallers too
+         decoded = ProtobufUtil.fromWrappedByteArray(ctx, ProtobufUtil.toWrappedByteArray(ctx, order));
+         assertEquals(order.toString(), decoded.toString());
+      }
+   }
+
+   @Test
+   public void testSameAsProtoSchemaBuilder() throws Exception {
+      File outputDir = tempFolder.getRoot();
+      List<String> errors = compile(outputDir, new Source("test_domain.Color", COLOR), new Source("test_domain.Item", ITEM),
+                                    new Source("test_domain.Order", ORDER), new Source("test_domain.TestSchema", SCHEMA));
+      assertEquals(Collections.emptyList(), errors);
+
+      try (URLClassLoader cl = new URLClassLoader(new URL[]{outputDir.toURI().toURL()}, getClass().getClassLoader())) {
+         SerializationContextInitializer initializer = (SerializationContextInitializer) cl.loadClass("test_domain.TestSchemaImpl").newInstance();
+         SerializationContext ctx = ProtobufUtil.newSerializationContext(new Configuration.Builder().build());
+         initializer.registerSchema(ctx);
+         initializer.registerMarshallers(ctx);
+
+         // the runtime marshallers are defined in the context class loader so they can access the package-private fields
+         Class<?> orderClass = cl.loadClass("test_domain.Order");
+         SerializationContext runtimeCtx = ProtobufUtil.newSerializationContext(new Configuration.Builder().build());
+         String runtimeProtoFile;
+         Thread thread = Thread.currentThread();
+         ClassLoader contextClassLoader = thread.getContextClassLoader();
+         thread.setContextClassLoader(cl);
+         try {
+            runtimeProtoFile = new ProtoSchemaBuilder()
+                  .fileName("test_domain.proto")
+                  .packageName("test_processor")
+                  .addClass(orderClass)
+                  .build(runtimeCtx);
+         } finally {
+            thread.setContextClassLoader(contextClassLoader);
+         }
+         assertEquals(runtimeProtoFile, initializer.getProtoFile());
+
+         Object order = orderClass.getMethod("sample").invoke(null);
+         assertArrayEquals(ProtobufUtil.toByteArray(runtimeCtx, order), ProtobufUtil.toByteArray(ctx, order));
+      }
+   }
+
+   @Test
+   public void testErrorIsReported() throws Exception {
+      File outputDir = tempFolder.getRoot();
+      String badItem = ITEM.replace("public String name", "private String name");
+      List<String> errors = compile(outputDir, new Source("test_domain.Color", COLOR), new Source("test_domain.Item", badItem),
+                                    new Source("test_domain.Order", ORDER), new Source("test_domain.TestSchema", SCHEMA));
+      assertEquals(1, errors.size());
+      assertTrue(errors.get(0), errors.get(0).startsWith("Non-public fields cannot be @ProtoField annotated"));
+      assertFalse(new File(outputDir, "test_domain/TestSchemaImpl.java").exists());
+   }
+
+   @Test
+   public void testNotAnInitializer() throws Exception {
+      File outputDir = tempFolder.getRoot();
+      String badSchema = SCHEMA.replace(" extends SerializationContextInitializer", "");
+      List<String> errors = compile(outputDir, new Source("test_domain.Color", COLOR), new Source("test_domain.Item", ITEM),
+                                    new Source("test_domain.Order", ORDER), new Source("test_domain.TestSchema", badSchema));
+      assertEquals(1, errors.size());
+      assertTrue(errors.get(0), errors.get(0).endsWith("must extend " + SerializationContextInitializer.class.getName()));
+   }
+}